@@ -0,0 +1,94 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.benchmark;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.ParallelRetriever;
+import com.vmware.connection.helpers.RetrieveResultIterator;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+
+import java.util.stream.Stream;
+
+/**
+ * <pre>
+ * ParallelRetrieval
+ *
+ * Retrieves every object of a type twice, once as a single paged result
+ * and once sharded by datacenter with concurrent page fetches, and prints
+ * the throughput of each in objects per second.
+ *
+ * <b>Parameters:</b>
+ * url          [required] : url of the web service
+ * username     [required] : username for the authentication
+ * password     [required] : password for the authentication
+ * type         [optional] : managed object type, default VirtualMachine
+ * parallelism  [optional] : round-trips in flight at once, default 4
+ * pagesize     [optional] : objects per page, default 500
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.benchmark.ParallelRetrieval --url [webserviceurl]
+ * --username [username] --password [password] --type HostSystem --parallelism 8
+ * </pre>
+ */
+@Sample(
+      name = "parallel-retrieval",
+      description = "Compares retrieving every object of a type as one paged result with a retrieval " +
+            "sharded by datacenter that fetches pages concurrently, and prints objects per second."
+)
+public class ParallelRetrieval extends ConnectedVimServiceBase {
+   String type = "VirtualMachine";
+   int parallelism = ParallelRetriever.DEFAULT_PARALLELISM;
+   int pageSize = ParallelRetriever.DEFAULT_PAGE_SIZE;
+
+   @Option(name = "type", required = false, description = "managed object type, default VirtualMachine")
+   public void setType(final String type) {
+      this.type = type;
+   }
+
+   @Option(name = "parallelism", required = false, description = "round-trips in flight at once, default 4")
+   public void setParallelism(final String parallelism) {
+      this.parallelism = Integer.parseInt(parallelism);
+   }
+
+   @Option(name = "pagesize", required = false, description = "objects per page, default 500")
+   public void setPageSize(final String pageSize) {
+      this.pageSize = Integer.parseInt(pageSize);
+   }
+
+   @Action
+   public void run() throws RuntimeFaultFaultMsg {
+      long start = System.nanoTime();
+      long sequential;
+      try (Stream<ObjectContent> objects = getMOREFs.stream(rootRef, type, pageSize, "name")) {
+         sequential = objects.count();
+      }
+      long nanos = System.nanoTime() - start;
+      System.out.printf("sequential: %d objects in %d ms, %.1f objects/s%n",
+            sequential, nanos / 1000000L, nanos > 0 ? sequential * 1e9 / nanos : 0);
+
+      ParallelRetriever retriever = new ParallelRetriever(connection, type, "name")
+            .parallelism(parallelism)
+            .pageSize(pageSize);
+      try (Stream<ObjectContent> objects = retriever.stream()) {
+         objects.count();
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         System.out.println("parallel retrieval failed: " + e.getCause());
+         return;
+      }
+      System.out.println("parallel:   " + retriever.getStatistics());
+   }
+}
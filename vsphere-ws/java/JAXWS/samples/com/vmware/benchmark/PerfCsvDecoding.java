@@ -0,0 +1,311 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.benchmark;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.performance.collector.PerfCsvParser;
+import com.vmware.vim25.*;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * <pre>
+ * PerfCsvDecoding
+ *
+ * Compares the two queryPerf result formats on the client side. Builds the
+ * same synthetic samples as a normal PerfEntityMetric and as a
+ * PerfEntityMetricCSV, marshals both to XML to compare their size on the
+ * wire, then measures unmarshalling them and decoding the samples into
+ * primitive arrays: the normal format through the JAXB lists, the csv format
+ * with String.split as VIUsage does and with PerfCsvParser. No server is
+ * contacted.
+ *
+ * The allocation figures come from the per thread allocation counter of the
+ * JVM, so run it on a HotSpot based JVM.
+ *
+ * <b>Parameters:</b>
+ * samples      [optional] : samples per series, default 180 (an hour of realtime)
+ * counters     [optional] : series per entity, default 4
+ * iterations   [optional] : measured entities per variant, default 2000
+ * warmup       [optional] : entities per variant before measuring, default 1000
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.benchmark.PerfCsvDecoding --samples 15 --counters 20
+ * </pre>
+ */
+@Sample(
+      name = "perf-csv-decoding",
+      description = "Compares wire size, time and allocation of decoding queryPerf results in the normal format " +
+            "and in the csv format, split naively and with PerfCsvParser. No server is contacted."
+)
+public class PerfCsvDecoding {
+   private static final QName RETURNVAL = new QName("urn:vim25", "returnval");
+
+   int samples = 180;
+   int counters = 4;
+   int iterations = 2000;
+   int warmup = 1000;
+
+   private final PerfCsvParser parser = new PerfCsvParser();
+   private DatatypeFactory datatypeFactory;
+   private Unmarshaller unmarshaller;
+   private long[] timestamps = new long[16];
+   private long[] values = new long[16];
+   // written by every decode so the JIT cannot drop the work
+   private long sink;
+
+   @Option(name = "samples", required = false, description = "samples per series, default 180")
+   public void setSamples(final String samples) {
+      this.samples = Integer.parseInt(samples);
+   }
+
+   @Option(name = "counters", required = false, description = "series per entity, default 4")
+   public void setCounters(final String counters) {
+      this.counters = Integer.parseInt(counters);
+   }
+
+   @Option(name = "iterations", required = false, description = "measured entities per variant, default 2000")
+   public void setIterations(final String iterations) {
+      this.iterations = Integer.parseInt(iterations);
+   }
+
+   @Option(name = "warmup", required = false, description = "entities per variant before measuring, default 1000")
+   public void setWarmup(final String warmup) {
+      this.warmup = Integer.parseInt(warmup);
+   }
+
+   interface Decoder {
+      void decode(PerfEntityMetricBase metric);
+   }
+
+   @Action
+   public void run() throws JAXBException, DatatypeConfigurationException {
+      final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if (!threads.isThreadAllocatedMemorySupported()) {
+         System.out.println("this JVM does not count allocated bytes per thread");
+         return;
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+      datatypeFactory = DatatypeFactory.newInstance();
+
+      final JAXBContext context = JAXBContext.newInstance(PerfEntityMetric.class, PerfEntityMetricCSV.class);
+      final byte[] normalXml = marshal(context, buildNormal());
+      final byte[] csvXml = marshal(context, buildCsv());
+      unmarshaller = context.createUnmarshaller();
+
+      System.out.printf("%d series of %d samples per entity%n", counters, samples);
+      System.out.printf("wire size per entity: normal %d bytes, csv %d bytes%n%n", normalXml.length, csvXml.length);
+      System.out.printf("%-36s %14s %10s%n", "variant", "bytes/entity", "us/entity");
+      measure(threads, "normal, decode", unmarshal(normalXml), null, this::decodeNormal);
+      measure(threads, "csv split, decode", unmarshal(csvXml), null, this::decodeSplit);
+      measure(threads, "csv parser, decode", unmarshal(csvXml), null, this::decodeParser);
+      measure(threads, "normal, unmarshal and decode", null, normalXml, this::decodeNormal);
+      measure(threads, "csv split, unmarshal and decode", null, csvXml, this::decodeSplit);
+      measure(threads, "csv parser, unmarshal and decode", null, csvXml, this::decodeParser);
+      System.out.println("(" + sink + ")");
+   }
+
+   /**
+    * decodes the already unmarshalled metric, or unmarshals the xml and decodes the result, over and over
+    */
+   private void measure(final com.sun.management.ThreadMXBean threads, final String name,
+                        final PerfEntityMetricBase metric, final byte[] xml, final Decoder decoder) {
+      for (int i = 0; i < warmup; i++) {
+         decoder.decode(metric != null ? metric : unmarshal(xml));
+      }
+      final long thread = Thread.currentThread().getId();
+      final long bytesBefore = threads.getThreadAllocatedBytes(thread);
+      final long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+         decoder.decode(metric != null ? metric : unmarshal(xml));
+      }
+      final long nanos = System.nanoTime() - start;
+      final long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+      System.out.printf("%-36s %14d %10.1f%n", name, bytes / iterations, nanos / 1000.0 / iterations);
+   }
+
+   /**
+    * what PerfCollector does with a normal result
+    */
+   private void decodeNormal(final PerfEntityMetricBase base) {
+      final PerfEntityMetric metric = (PerfEntityMetric) base;
+      final List<PerfSampleInfo> sampleInfo = metric.getSampleInfo();
+      final int count = sampleInfo.size();
+      ensure(count);
+      for (int i = 0; i < count; i++) {
+         timestamps[i] = sampleInfo.get(i).getTimestamp().toGregorianCalendar().getTimeInMillis();
+      }
+      for (PerfMetricSeries series : metric.getValue()) {
+         final List<Long> seriesValues = ((PerfMetricIntSeries) series).getValue();
+         for (int i = 0; i < seriesValues.size(); i++) {
+            values[i] = seriesValues.get(i);
+         }
+         sink += values[count - 1] + timestamps[count - 1];
+      }
+   }
+
+   /**
+    * general purpose string handling, as VIUsage parses its csv values
+    */
+   private void decodeSplit(final PerfEntityMetricBase base) {
+      final PerfEntityMetricCSV metric = (PerfEntityMetricCSV) base;
+      final String[] info = metric.getSampleInfoCSV().split(",");
+      final int count = info.length / 2;
+      ensure(count);
+      for (int i = 0; i < count; i++) {
+         timestamps[i] = datatypeFactory.newXMLGregorianCalendar(info[2 * i + 1])
+               .toGregorianCalendar().getTimeInMillis();
+      }
+      for (PerfMetricSeriesCSV series : metric.getValue()) {
+         final String[] fields = series.getValue().split(",");
+         for (int i = 0; i < fields.length; i++) {
+            values[i] = Long.parseLong(fields[i]);
+         }
+         sink += values[count - 1] + timestamps[count - 1];
+      }
+   }
+
+   /**
+    * what PerfCollector does with a csv result
+    */
+   private void decodeParser(final PerfEntityMetricBase base) {
+      final PerfEntityMetricCSV metric = (PerfEntityMetricCSV) base;
+      final int count = parser.parseSampleInfo(metric.getSampleInfoCSV());
+      final long[] times = parser.getTimestamps();
+      for (PerfMetricSeriesCSV series : metric.getValue()) {
+         parser.parseValues(series.getValue());
+         sink += parser.getValues()[count - 1] + times[count - 1];
+      }
+   }
+
+   private void ensure(final int count) {
+      if (timestamps.length < count) {
+         timestamps = new long[count];
+         values = new long[count];
+      }
+   }
+
+   private PerfEntityMetric buildNormal() {
+      final PerfEntityMetric metric = new PerfEntityMetric();
+      metric.setEntity(entity());
+      final long start = startMillis();
+      for (int i = 0; i < samples; i++) {
+         final PerfSampleInfo info = new PerfSampleInfo();
+         info.setInterval(20);
+         info.setTimestamp(datatypeFactory.newXMLGregorianCalendar(calendar(start + i * 20000L)));
+         metric.getSampleInfo().add(info);
+      }
+      for (int c = 0; c < counters; c++) {
+         final PerfMetricIntSeries series = new PerfMetricIntSeries();
+         series.setId(metricId(c));
+         for (int i = 0; i < samples; i++) {
+            series.getValue().add(value(c, i));
+         }
+         metric.getValue().add(series);
+      }
+      return metric;
+   }
+
+   private PerfEntityMetricCSV buildCsv() {
+      final PerfEntityMetricCSV metric = new PerfEntityMetricCSV();
+      metric.setEntity(entity());
+      final long start = startMillis();
+      final StringBuilder info = new StringBuilder();
+      for (int i = 0; i < samples; i++) {
+         if (i > 0) {
+            info.append(',');
+         }
+         info.append("20,").append(datatypeFactory.newXMLGregorianCalendar(calendar(start + i * 20000L))
+               .toXMLFormat());
+      }
+      metric.setSampleInfoCSV(info.toString());
+      for (int c = 0; c < counters; c++) {
+         final PerfMetricSeriesCSV series = new PerfMetricSeriesCSV();
+         series.setId(metricId(c));
+         final StringBuilder csv = new StringBuilder();
+         for (int i = 0; i < samples; i++) {
+            if (i > 0) {
+               csv.append(',');
+            }
+            csv.append(value(c, i));
+         }
+         series.setValue(csv.toString());
+         metric.getValue().add(series);
+      }
+      return metric;
+   }
+
+   private static ManagedObjectReference entity() {
+      final ManagedObjectReference ref = new ManagedObjectReference();
+      ref.setType("VirtualMachine");
+      ref.setValue("vm-42");
+      return ref;
+   }
+
+   private static PerfMetricId metricId(final int counter) {
+      final PerfMetricId id = new PerfMetricId();
+      id.setCounterId(counter + 1);
+      id.setInstance("");
+      return id;
+   }
+
+   private static long value(final int counter, final int sample) {
+      // plausible looking numbers of a few digits, not all alike
+      return (counter * 7919L + sample * 104729L) % 10000;
+   }
+
+   private static long startMillis() {
+      return 1338833540000L;
+   }
+
+   private static GregorianCalendar calendar(final long millis) {
+      final GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+      calendar.setTimeInMillis(millis);
+      return calendar;
+   }
+
+   private static byte[] marshal(final JAXBContext context, final PerfEntityMetricBase metric)
+         throws JAXBException {
+      final Marshaller marshaller = context.createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      marshaller.marshal(new JAXBElement<PerfEntityMetricBase>(RETURNVAL, PerfEntityMetricBase.class, metric), out);
+      return out.toByteArray();
+   }
+
+   private PerfEntityMetricBase unmarshal(final byte[] xml) {
+      try {
+         return unmarshaller.unmarshal(new StreamSource(new ByteArrayInputStream(xml)), PerfEntityMetricBase.class)
+               .getValue();
+      } catch (JAXBException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
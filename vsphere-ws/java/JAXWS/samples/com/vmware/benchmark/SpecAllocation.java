@@ -0,0 +1,162 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.benchmark;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.helpers.builders.ObjectSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertyFilterSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertySpecBuilder;
+import com.vmware.connection.helpers.builders.SpecTemplates;
+import com.vmware.connection.helpers.builders.TraversalSpecs;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <pre>
+ * SpecAllocation
+ *
+ * Measures the heap allocated and the time spent preparing the spec set of
+ * one retrievePropertiesEx call, building it with the builders every time
+ * versus reusing a SpecTemplates template, looked up per call or held by the
+ * caller. Covers a single object query and a full inventory traversal query.
+ * No server is contacted.
+ *
+ * The figures come from the per thread allocation counter of the JVM, so run
+ * it on a HotSpot based JVM.
+ *
+ * <b>Parameters:</b>
+ * iterations   [optional] : measured calls per variant, default 200000
+ * warmup       [optional] : calls per variant before measuring, default 50000
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.benchmark.SpecAllocation --iterations 1000000
+ * </pre>
+ */
+@Sample(
+      name = "spec-allocation",
+      description = "Measures the allocation and time of preparing retrievePropertiesEx spec sets with the " +
+            "builders on every call versus reusing SpecTemplates. No server is contacted."
+)
+public class SpecAllocation {
+   private static final String[] PROPERTIES = {"name", "runtime.powerState", "summary.quickStats.overallCpuUsage"};
+
+   int iterations = 200000;
+   int warmup = 50000;
+
+   private final ManagedObjectReference vm = reference("VirtualMachine", "vm-42");
+   private final ManagedObjectReference rootFolder = reference("Folder", "group-d1");
+   // written by every call so the JIT cannot drop the work
+   private int sink;
+
+   @Option(name = "iterations", required = false, description = "measured calls per variant, default 200000")
+   public void setIterations(final String iterations) {
+      this.iterations = Integer.parseInt(iterations);
+   }
+
+   @Option(name = "warmup", required = false, description = "calls per variant before measuring, default 50000")
+   public void setWarmup(final String warmup) {
+      this.warmup = Integer.parseInt(warmup);
+   }
+
+   interface Variant {
+      List<PropertyFilterSpec> specSet();
+   }
+
+   @Action
+   public void run() {
+      final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if (!threads.isThreadAllocatedMemorySupported()) {
+         System.out.println("this JVM does not count allocated bytes per thread");
+         return;
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+
+      System.out.printf("%-28s %12s %10s%n", "variant", "bytes/call", "ns/call");
+      measure(threads, "object, builders", this::buildObject);
+      measure(threads, "object, template", () -> SpecTemplates.forObject(vm, PROPERTIES));
+      final List<PropertyFilterSpec> held = SpecTemplates.forObject(vm, PROPERTIES);
+      measure(threads, "object, held template", () -> held);
+      measure(threads, "full traversal, builders", this::buildTraversal);
+      measure(threads, "full traversal, template",
+            () -> SpecTemplates.forTraversal(rootFolder, TraversalSpecs.FULL_INVENTORY, "VirtualMachine", PROPERTIES));
+      System.out.println("(" + sink + ")");
+   }
+
+   private void measure(final com.sun.management.ThreadMXBean threads, final String name, final Variant variant) {
+      for (int i = 0; i < warmup; i++) {
+         sink += variant.specSet().size();
+      }
+      final long thread = Thread.currentThread().getId();
+      final long bytesBefore = threads.getThreadAllocatedBytes(thread);
+      final long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+         sink += variant.specSet().size();
+      }
+      final long nanos = System.nanoTime() - start;
+      final long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+      System.out.printf("%-28s %12.1f %10.1f%n", name, (double) bytes / iterations, (double) nanos / iterations);
+   }
+
+   /**
+    * what GetMOREF.entityProps used to do for every call
+    */
+   private List<PropertyFilterSpec> buildObject() {
+      PropertyFilterSpec[] propertyFilterSpecs = {
+            new PropertyFilterSpecBuilder()
+                  .propSet(
+                        new PropertySpecBuilder()
+                              .all(Boolean.FALSE)
+                              .type(vm.getType())
+                              .pathSet(PROPERTIES)
+                  )
+                  .objectSet(
+                        new ObjectSpecBuilder()
+                              .obj(vm)
+                  )
+      };
+      return Arrays.asList(propertyFilterSpecs);
+   }
+
+   /**
+    * the full inventory graph built from scratch, as the samples' buildFullTraversal methods used to
+    */
+   private List<PropertyFilterSpec> buildTraversal() {
+      final ObjectSpec objectSpec = new ObjectSpecBuilder()
+            .obj(rootFolder)
+            .skip(Boolean.TRUE);
+      objectSpec.getSelectSet().addAll(TraversalSpecs.newFullInventory());
+      return Arrays.<PropertyFilterSpec>asList(new PropertyFilterSpecBuilder()
+            .propSet(
+                  new PropertySpecBuilder()
+                        .all(Boolean.FALSE)
+                        .type("VirtualMachine")
+                        .pathSet(PROPERTIES)
+            )
+            .objectSet(objectSpec));
+   }
+
+   private static ManagedObjectReference reference(final String type, final String value) {
+      ManagedObjectReference ref = new ManagedObjectReference();
+      ref.setType(type);
+      ref.setValue(value);
+      return ref;
+   }
+}
@@ -0,0 +1,111 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.benchmark;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.VimServiceFactory;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VimService;
+
+import javax.xml.ws.BindingProvider;
+
+/**
+ * <pre>
+ * VimServiceStartup
+ *
+ * Compares the cost of preparing a port for a new connection the old way,
+ * a new VimService per connection, with the shared VimServiceFactory.
+ * No server is contacted, only the client side JAX-WS setup is measured.
+ *
+ * <b>Parameters:</b>
+ * iterations   [optional] : number of ports to create with each approach, default 20
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.benchmark.VimServiceStartup --iterations 50
+ * </pre>
+ */
+@Sample(
+      name = "vim-service-startup",
+      description = "Compares creating a new VimService per connection with the shared VimServiceFactory. " +
+            "No server is contacted, only the client side JAX-WS setup is measured."
+)
+public class VimServiceStartup {
+   private static final String ENDPOINT = "https://localhost/sdk";
+
+   int iterations = 20;
+
+   @Option(name = "iterations", required = false, description = "number of ports to create with each approach, default 20")
+   public void setIterations(final String iterations) {
+      this.iterations = Integer.parseInt(iterations);
+   }
+
+   @Action
+   public void run() {
+      // the very first service pays for class loading and JAXB context creation whichever path creates it
+      long start = System.nanoTime();
+      VimServiceFactory.newPort(ENDPOINT);
+      long firstFactory = System.nanoTime() - start;
+      System.out.printf("first port from the shared service (cold): %8.1f ms%n", millis(firstFactory));
+
+      gc();
+      long heapBefore = usedHeap();
+      start = System.nanoTime();
+      VimPortType[] legacy = new VimPortType[iterations];
+      for (int i = 0; i < iterations; i++) {
+         VimService vimService = new VimService();
+         legacy[i] = vimService.getVimPort();
+         ((BindingProvider) legacy[i]).getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, ENDPOINT);
+         ((BindingProvider) legacy[i]).getRequestContext().put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+      }
+      long legacyNanos = System.nanoTime() - start;
+      gc();
+      long legacyHeap = Math.max(0, usedHeap() - heapBefore);
+
+      heapBefore = usedHeap();
+      start = System.nanoTime();
+      VimPortType[] shared = new VimPortType[iterations];
+      for (int i = 0; i < iterations; i++) {
+         shared[i] = VimServiceFactory.newPort(ENDPOINT);
+      }
+      long sharedNanos = System.nanoTime() - start;
+      gc();
+      long sharedHeap = Math.max(0, usedHeap() - heapBefore);
+
+      System.out.printf("%d ports, new VimService each:   %8.1f ms total %8.2f ms/port %8d KB retained%n",
+            iterations, millis(legacyNanos), millis(legacyNanos) / iterations, legacyHeap / 1024);
+      System.out.printf("%d ports, shared VimService:     %8.1f ms total %8.2f ms/port %8d KB retained%n",
+            iterations, millis(sharedNanos), millis(sharedNanos) / iterations, sharedHeap / 1024);
+      if (sharedNanos > 0) {
+         System.out.printf("speed-up: %.1fx%n", (double) legacyNanos / sharedNanos);
+      }
+      // keep the ports reachable until the heap has been measured
+      System.out.printf("(%d ports created)%n", legacy.length + shared.length);
+   }
+
+   private static double millis(final long nanos) {
+      return nanos / 1000000.0;
+   }
+
+   private static void gc() {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+   }
+
+   private static long usedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+   }
+}
@@ -0,0 +1,240 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import com.vmware.vim25.*;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous facade over the VimPortType of a connection. Every call returns a CompletableFuture right away
+ * and the SOAP round-trip is made later on a small, shared I/O executor.
+ * <p/>
+ * The wsimport generated VimPortType only has blocking operations, so a round-trip always occupies an executor
+ * thread while it runs. What this class avoids is one <em>caller</em> thread per call: calls beyond the in-flight
+ * limit of the session wait in a queue as plain objects, not as parked threads, so thousands of outstanding calls
+ * cost a few executor threads and the queue entries.
+ * </p>
+ * The in-flight limit is set with the system property <code>async.vim.maxInFlight</code> (default 8) and the
+ * size of the shared executor with <code>async.vim.threads</code> (default 16). Futures fail with the original
+ * fault (RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, ...) as their cause.
+ * <pre>
+ *     AsyncVimPort async = new AsyncVimPort(connection);
+ *     async.powerOnVMTask(vmRef, null)
+ *          .thenAccept(task -> System.out.println("started " + task.getValue()));
+ * </pre>
+ *
+ * @see Connection#getVimPort()
+ */
+public class AsyncVimPort {
+   public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+   public static final int DEFAULT_THREADS = 16;
+
+   /**
+    * a single blocking call against the port, run on the I/O executor
+    *
+    * @param <T> the result type of the call
+    */
+   public interface VimCall<T> {
+      T call(VimPortType vimPort) throws Exception;
+   }
+
+   private static volatile ExecutorService sharedExecutor;
+
+   private final Connection connection;
+   private final Executor executor;
+   private final int maxInFlight;
+   private final Queue<PendingCall<?>> pending = new ConcurrentLinkedQueue<PendingCall<?>>();
+   private final AtomicInteger inFlight = new AtomicInteger();
+
+   /**
+    * builds a facade using the process wide I/O executor and the default in-flight limit
+    *
+    * @param connection a connection, it is connected on first use
+    */
+   public AsyncVimPort(final Connection connection) {
+      this(connection, sharedExecutor(), Integer.getInteger("async.vim.maxInFlight", DEFAULT_MAX_IN_FLIGHT));
+   }
+
+   /**
+    * builds a facade on a caller supplied executor
+    *
+    * @param connection  a connection, it is connected on first use
+    * @param executor    runs the blocking round-trips
+    * @param maxInFlight maximum number of round-trips running at the same time for this session
+    */
+   public AsyncVimPort(final Connection connection, final Executor executor, final int maxInFlight) {
+      if (maxInFlight < 1) {
+         throw new IllegalArgumentException("maxInFlight must be at least 1");
+      }
+      this.connection = connection;
+      this.executor = executor;
+      this.maxInFlight = maxInFlight;
+   }
+
+   /**
+    * the process wide executor, created on first use with daemon threads so it never keeps a sample alive
+    *
+    * @return the shared executor
+    */
+   public static ExecutorService sharedExecutor() {
+      if (sharedExecutor == null) {
+         synchronized (AsyncVimPort.class) {
+            if (sharedExecutor == null) {
+               final AtomicInteger count = new AtomicInteger();
+               sharedExecutor = Executors.newFixedThreadPool(
+                     Integer.getInteger("async.vim.threads", DEFAULT_THREADS),
+                     runnable -> {
+                        Thread thread = new Thread(runnable, "vim-async-io-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                     });
+            }
+         }
+      }
+      return sharedExecutor;
+   }
+
+   /**
+    * Queues an arbitrary call against the port. Use this for any VimPortType operation that has no
+    * convenience method below.
+    *
+    * @param call the blocking call to make
+    * @param <T>  result type
+    * @return a future completed with the result of the call, or exceptionally with the fault it raised
+    */
+   public <T> CompletableFuture<T> submit(final VimCall<T> call) {
+      final PendingCall<T> pendingCall = new PendingCall<T>(call);
+      pending.add(pendingCall);
+      dispatch();
+      return pendingCall.future;
+   }
+
+   public CompletableFuture<RetrieveResult> retrievePropertiesEx(
+         final ManagedObjectReference propertyCollector,
+         final List<PropertyFilterSpec> specSet,
+         final RetrieveOptions options) {
+      return submit(vimPort -> vimPort.retrievePropertiesEx(propertyCollector, specSet, options));
+   }
+
+   public CompletableFuture<RetrieveResult> continueRetrievePropertiesEx(
+         final ManagedObjectReference propertyCollector, final String token) {
+      return submit(vimPort -> vimPort.continueRetrievePropertiesEx(propertyCollector, token));
+   }
+
+   public CompletableFuture<ManagedObjectReference> powerOnVMTask(
+         final ManagedObjectReference vm, final ManagedObjectReference host) {
+      return submit(vimPort -> vimPort.powerOnVMTask(vm, host));
+   }
+
+   public CompletableFuture<ManagedObjectReference> powerOffVMTask(final ManagedObjectReference vm) {
+      return submit(vimPort -> vimPort.powerOffVMTask(vm));
+   }
+
+   public CompletableFuture<List<PerfEntityMetricBase>> queryPerf(
+         final ManagedObjectReference performanceManager, final List<PerfQuerySpec> querySpec) {
+      return submit(vimPort -> vimPort.queryPerf(performanceManager, querySpec));
+   }
+
+   public CompletableFuture<PerfCompositeMetric> queryPerfComposite(
+         final ManagedObjectReference performanceManager, final PerfQuerySpec querySpec) {
+      return submit(vimPort -> vimPort.queryPerfComposite(performanceManager, querySpec));
+   }
+
+   public CompletableFuture<XMLGregorianCalendar> currentTime() {
+      return submit(vimPort -> vimPort.currentTime(connection.getServiceInstanceReference()));
+   }
+
+   /**
+    * @return number of round-trips currently running for this session
+    */
+   public int getInFlight() {
+      return inFlight.get();
+   }
+
+   /**
+    * @return number of calls waiting for an in-flight slot
+    */
+   public int getQueued() {
+      return pending.size();
+   }
+
+   public int getMaxInFlight() {
+      return maxInFlight;
+   }
+
+   private VimPortType vimPort() {
+      // connections are not thread safe, only one executor thread may log in
+      synchronized (connection) {
+         return connection.connect().getVimPort();
+      }
+   }
+
+   /**
+    * Hands queued calls to the executor while there are free in-flight slots. Any thread that queues or
+    * finishes a call runs this, so a call never waits on a slot that has already been freed.
+    */
+   private void dispatch() {
+      while (!pending.isEmpty()) {
+         final int running = inFlight.get();
+         if (running >= maxInFlight) {
+            return;
+         }
+         if (!inFlight.compareAndSet(running, running + 1)) {
+            continue;
+         }
+         final PendingCall<?> next = pending.poll();
+         if (next == null) {
+            // someone else took it, give the slot back and look again
+            inFlight.decrementAndGet();
+            continue;
+         }
+         try {
+            executor.execute(next);
+         } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            next.future.completeExceptionally(e);
+         }
+      }
+   }
+
+   private class PendingCall<T> implements Runnable {
+      private final VimCall<T> call;
+      private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+      PendingCall(final VimCall<T> call) {
+         this.call = call;
+      }
+
+      @Override
+      public void run() {
+         try {
+            // a caller may have cancelled while the call was queued, don't spend a round-trip on it
+            if (!future.isDone()) {
+               final T result = call.call(vimPort());
+               HeartbeatService.touchIfRunning(connection);
+               future.complete(result);
+            }
+         } catch (Throwable t) {
+            future.completeExceptionally(t);
+         } finally {
+            inFlight.decrementAndGet();
+            dispatch();
+         }
+      }
+   }
+}
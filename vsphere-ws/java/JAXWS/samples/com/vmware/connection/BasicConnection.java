@@ -18,7 +18,6 @@ import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.MessageContext;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Date;
 import java.util.Map;
 
 /**
@@ -46,6 +45,7 @@ public class BasicConnection implements Connection {
    private String password = ""; // default password is empty since on rare occasion passwords are not set
    @SuppressWarnings("rawtypes")
    private Map headers;
+   private final ConnectionAttachments attachments = new ConnectionAttachments(this);
 
    public String getUrl() {
       return url.toString();
@@ -135,13 +135,9 @@ public class BasicConnection implements Connection {
 
    @SuppressWarnings("rawtypes")
    private void _connect() throws RuntimeFaultFaultMsg, InvalidLocaleFaultMsg, InvalidLoginFaultMsg {
-      vimService = new VimService();
-      vimPort = vimService.getVimPort();
-      Map<String, Object> ctxt =
-            ((BindingProvider) vimPort).getRequestContext();
-
-      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url.toString());
-      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+      // the WSDL is parsed once per process, each connection only gets its own port
+      vimService = VimServiceFactory.getVimService();
+      vimPort = VimServiceFactory.newPort(url.toString());
 
       serviceContent = vimPort.retrieveServiceContent(this.getServiceInstanceReference());
 
@@ -154,28 +150,43 @@ public class BasicConnection implements Connection {
       headers =
             (Map) ((BindingProvider) vimPort).getResponseContext().get(
                   MessageContext.HTTP_RESPONSE_HEADERS);
+
+      SessionLiveness.of(this).attach(vimPort);
    }
 
    public boolean isConnected() {
-      if (userSession == null) {
-         return false;
-      }
-      long startTime = userSession.getLastActiveTime().toGregorianCalendar().getTime().getTime();
+      // answered from memory, a session that went quiet for longer than the trust window is not trusted
+      return userSession != null && SessionLiveness.of(this).isTrusted();
+   }
 
-      // 30 minutes in milliseconds = 30 minutes * 60 seconds * 1000 milliseconds
-      return new Date().getTime() < startTime + 30 * 60 * 1000;
+   /**
+    * @return true if the session is usable; after a long quiet period this asks the server
+    * @see SessionLiveness#isAlive()
+    */
+   @Override
+   public boolean isAlive() {
+      return userSession != null && SessionLiveness.of(this).isAlive();
    }
 
    public Connection disconnect() {
-      if (this.isConnected()) {
+      if (userSession != null) {
+         // answered from memory, a session that went quiet is not validated just to log it out
+         final boolean alive = SessionLiveness.of(this).mayBeAlive();
+         // stops the helpers while they can still clean up on the server
+         attachments.clear();
          try {
-            vimPort.logout(serviceContent.getSessionManager());
+            if (alive) {
+               vimPort.logout(serviceContent.getSessionManager());
+            }
          } catch (Exception e) {
-            Throwable cause = e.getCause();
-            throw new BasicConnectionException(
-                  "failed to disconnect properly: " + e.getMessage() + " : " + cause.getMessage(),
-                  cause
-            );
+            // a session the server dropped already needs no logout
+            if (!SessionLiveness.isNotAuthenticated(e)) {
+               Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+               throw new BasicConnectionException(
+                     "failed to disconnect properly: " + e.getMessage() + " : " + cause.getMessage(),
+                     cause
+               );
+            }
          } finally {
             // A connection is very memory intensive, I'm helping the garbage collector here
             userSession = null;
@@ -187,6 +198,10 @@ public class BasicConnection implements Connection {
       return this;
    }
 
+   public ConnectionAttachments getAttachments() {
+      return attachments;
+   }
+
    @Override
    public URL getURL() {
       return this.url;
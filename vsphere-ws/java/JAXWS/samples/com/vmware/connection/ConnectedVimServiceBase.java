@@ -116,7 +116,9 @@ public abstract class ConnectedVimServiceBase {
          this.waitForValues = new WaitForValues(connection);
          this.getMOREFs = new GetMOREF(connection);
          this.headers = connection.getHeaders();
-         this.vimPort = connection.getVimPort();
+         // opt in: retry idempotent calls once after the session expired underneath a long running sample
+         this.vimPort = Boolean.getBoolean("connection.reauthenticate") ?
+               ReauthenticatingVimPort.wrap(connection) : connection.getVimPort();
          this.serviceContent = connection.getServiceContent();
          this.rootRef = serviceContent.getRootFolder();
       } catch (ConnectionException e) {
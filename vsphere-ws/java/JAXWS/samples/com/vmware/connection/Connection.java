@@ -63,11 +63,33 @@ public interface Connection {
 
    ManagedObjectReference getServiceInstanceReference();
 
+   /**
+    * The connections of the samples hold their own and clear them on {@link #disconnect()}. Other implementations
+    * get them from a process wide map, which only lets go of them when they are cleared.
+    *
+    * @return the state helpers keep for this connection
+    */
+   default ConnectionAttachments getAttachments() {
+      return ConnectionAttachments.of(this);
+   }
+
    @Before
    Connection connect();
 
+   /**
+    * @return true while the connection holds a session it has no reason to distrust, never calls the server
+    */
    boolean isConnected();
 
+   /**
+    * Unlike {@link #isConnected()} this may cost a round-trip to make sure the server still knows the session.
+    *
+    * @return true if the session is usable
+    */
+   default boolean isAlive() {
+      return isConnected();
+   }
+
    @After
    Connection disconnect();
 
@@ -0,0 +1,126 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The per-connection state of helpers such as {@link SessionLiveness} or the WaitDispatcher, one object of each
+ * type, held by the connection itself instead of in static maps keyed by connection. The helpers hold their
+ * connection, so a static map never let go of either; held here, they live exactly as long as the connection.
+ * <p/>
+ * {@link #clear()}, called by every Connection on disconnect, drops them all and closes those that are
+ * {@link Closeable}, which stops any thread they run. The next use after that creates fresh ones.
+ * </p>
+ * <pre>
+ *     WaitDispatcher dispatcher = connection.getAttachments().get(WaitDispatcher.class, WaitDispatcher::new);
+ * </pre>
+ */
+public class ConnectionAttachments {
+   // for Connection implementations that do not hold their own, see Connection.getAttachments()
+   private static final Map<Connection, ConnectionAttachments> held =
+         Collections.synchronizedMap(new IdentityHashMap<Connection, ConnectionAttachments>());
+
+   private final Connection connection;
+   // in creation order, so clear() closes them in reverse
+   private final Map<Class<?>, Object> attachments = new LinkedHashMap<Class<?>, Object>();
+
+   /**
+    * @param connection the connection the attachments belong to, passed to the factories
+    */
+   public ConnectionAttachments(final Connection connection) {
+      this.connection = connection;
+   }
+
+   /**
+    * @param connection a connection that does not hold its own attachments
+    * @return the attachments kept for it in a process wide map until they are cleared
+    */
+   static ConnectionAttachments of(final Connection connection) {
+      synchronized (held) {
+         ConnectionAttachments attachments = held.get(connection);
+         if (attachments == null) {
+            attachments = new ConnectionAttachments(connection);
+            held.put(connection, attachments);
+         }
+         return attachments;
+      }
+   }
+
+   /**
+    * The factory runs under this object's lock, so it must only build the attachment, not call the server; it
+    * may look up other attachments.
+    *
+    * @param type    the attachment's type, its key
+    * @param factory creates the attachment for the connection on first use
+    * @param <T>     the attachment's type
+    * @return the connection's attachment of that type
+    */
+   public synchronized <T> T get(final Class<T> type, final Function<? super Connection, ? extends T> factory) {
+      Object attachment = attachments.get(type);
+      if (attachment == null) {
+         attachment = factory.apply(connection);
+         attachments.put(type, attachment);
+      }
+      return type.cast(attachment);
+   }
+
+   /**
+    * @param type the attachment's type
+    * @param <T>  the attachment's type
+    * @return the connection's attachment of that type, null if there is none
+    */
+   public synchronized <T> T peek(final Class<T> type) {
+      return type.cast(attachments.get(type));
+   }
+
+   /**
+    * @param type       the attachment's type
+    * @param attachment removed only if it is still the connection's attachment of that type
+    */
+   public synchronized void remove(final Class<?> type, final Object attachment) {
+      if (attachments.get(type) == attachment) {
+         attachments.remove(type);
+      }
+   }
+
+   /**
+    * Drops every attachment and closes the Closeable ones, the last created first, outside of the lock so
+    * their close may remove themselves. A failing close is reported and the others are closed still. Held in
+    * the process wide map, this object is removed from it as well.
+    */
+   public void clear() {
+      final List<Object> dropped;
+      synchronized (this) {
+         dropped = new ArrayList<Object>(attachments.values());
+         attachments.clear();
+      }
+      held.remove(connection, this);
+      for (int i = dropped.size() - 1; i >= 0; i--) {
+         if (dropped.get(i) instanceof Closeable) {
+            try {
+               ((Closeable) dropped.get(i)).close();
+            } catch (Exception e) {
+               System.err.println("could not close " + dropped.get(i) + ": " + e);
+            }
+         }
+      }
+   }
+}
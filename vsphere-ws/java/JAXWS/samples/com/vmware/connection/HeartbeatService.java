@@ -0,0 +1,293 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps any number of connections alive from a single small scheduler instead of one {@link KeepAlive} thread
+ * per session. Each registered connection is checked once per interval; if the connection did real work since
+ * the last check (reported through {@link #touch(Connection)}) the "currentTime" ping is skipped since the
+ * server already saw the session as active.
+ * <p/>
+ * The interval defaults to {@link KeepAlive#DEFAULT_INTERVAL} and may be set with the system property
+ * <code>heartbeat.interval</code> (milliseconds). The number of scheduler threads defaults to 2 and may be set
+ * with <code>heartbeat.threads</code>. Set <code>keep-alive.verbose=true</code> to print every ping.
+ * <pre>
+ *     HeartbeatService.getInstance().register(connection);
+ *     ...
+ *     HeartbeatService.Heartbeat beat = HeartbeatService.getInstance().getHeartbeat(connection);
+ *     System.out.println(beat.isAlive() + " " + beat.getLastLatencyMillis() + "ms");
+ * </pre>
+ *
+ * @see KeepAlive
+ */
+public class HeartbeatService {
+   public static final int DEFAULT_THREADS = 2;
+
+   private static volatile HeartbeatService instance;
+
+   private final long interval;
+   private final boolean verbose = Boolean.parseBoolean(System.getProperty("keep-alive.verbose", "false"));
+   private final ScheduledExecutorService scheduler;
+   private final Map<Connection, Heartbeat> heartbeats = new ConcurrentHashMap<Connection, Heartbeat>();
+
+   /**
+    * builds a service with its own scheduler
+    *
+    * @param interval milliseconds between checks of each connection
+    * @param threads  scheduler threads, pings are short so one or two threads serve hundreds of sessions
+    */
+   public HeartbeatService(final long interval, final int threads) {
+      this.interval = interval;
+      final AtomicInteger count = new AtomicInteger();
+      this.scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+         Thread thread = new Thread(runnable, "heartbeat-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   /**
+    * @return the process wide service, created on first use
+    */
+   public static HeartbeatService getInstance() {
+      if (instance == null) {
+         synchronized (HeartbeatService.class) {
+            if (instance == null) {
+               instance = new HeartbeatService(
+                     Long.getLong("heartbeat.interval", KeepAlive.DEFAULT_INTERVAL),
+                     Integer.getInteger("heartbeat.threads", DEFAULT_THREADS));
+            }
+         }
+      }
+      return instance;
+   }
+
+   /**
+    * Starts keeping the connection alive. Registering the same connection twice returns the existing heartbeat.
+    * The first check of each connection is spread randomly over one interval so that sessions registered
+    * together are not all pinged at the same moment.
+    *
+    * @param connection a connected connection
+    * @return the heartbeat tracking this connection
+    * @throws IllegalStateException if this service was shut down
+    */
+   public Heartbeat register(final Connection connection) {
+      Heartbeat heartbeat = heartbeats.get(connection);
+      if (heartbeat != null) {
+         return heartbeat;
+      }
+      synchronized (heartbeats) {
+         if (scheduler.isShutdown()) {
+            throw new IllegalStateException("the heartbeat service was shut down, getInstance() returns a new one");
+         }
+         heartbeat = heartbeats.get(connection);
+         if (heartbeat == null) {
+            heartbeat = new Heartbeat(connection);
+            long initialDelay = ThreadLocalRandom.current().nextLong(interval);
+            heartbeat.future = scheduler.scheduleWithFixedDelay(
+                  heartbeat, initialDelay, interval, TimeUnit.MILLISECONDS);
+            heartbeats.put(connection, heartbeat);
+         }
+      }
+      return heartbeat;
+   }
+
+   /**
+    * stops the heartbeat for this connection, it is not disconnected
+    *
+    * @param connection a registered connection
+    */
+   public void unregister(final Connection connection) {
+      final Heartbeat heartbeat = heartbeats.remove(connection);
+      if (heartbeat != null && heartbeat.future != null) {
+         heartbeat.future.cancel(false);
+      }
+   }
+
+   /**
+    * Records that the connection just completed a real call. Costs one map lookup and does nothing for
+    * connections that are not registered, so it is safe to call after every round-trip.
+    *
+    * @param connection the connection that did some work
+    */
+   public void touch(final Connection connection) {
+      final Heartbeat heartbeat = heartbeats.get(connection);
+      if (heartbeat != null) {
+         heartbeat.touch();
+      }
+   }
+
+   /**
+    * Reports a real call to the process wide service, if it was ever created. Unlike
+    * <code>getInstance().touch(connection)</code> this never creates the service and its scheduler threads, so
+    * code that runs on every round-trip can call it whether or not anything uses heartbeats.
+    *
+    * @param connection the connection that did some work
+    */
+   public static void touchIfRunning(final Connection connection) {
+      final HeartbeatService service = instance;
+      if (service != null) {
+         service.touch(connection);
+      }
+   }
+
+   /**
+    * @param connection a registered connection
+    * @return the heartbeat for the connection or null if it is not registered
+    */
+   public Heartbeat getHeartbeat(final Connection connection) {
+      return heartbeats.get(connection);
+   }
+
+   public Collection<Heartbeat> getHeartbeats() {
+      return Collections.unmodifiableCollection(heartbeats.values());
+   }
+
+   public long getInterval() {
+      return interval;
+   }
+
+   /**
+    * Stops every heartbeat and the scheduler. If this is the process wide service, the next
+    * {@link #getInstance()} creates a new one.
+    */
+   public void shutdown() {
+      synchronized (HeartbeatService.class) {
+         if (instance == this) {
+            instance = null;
+         }
+      }
+      synchronized (heartbeats) {
+         heartbeats.clear();
+         scheduler.shutdownNow();
+      }
+   }
+
+   /**
+    * Liveness and latency of a single registered connection. A connection is alive until a ping fails and
+    * becomes alive again on the next successful ping or touch.
+    */
+   public class Heartbeat implements Runnable {
+      private final Connection connection;
+      private final AtomicLong pings = new AtomicLong();
+      private final AtomicLong skipped = new AtomicLong();
+      private final AtomicLong failures = new AtomicLong();
+      private volatile long lastActivity = System.currentTimeMillis();
+      private volatile long lastPing;
+      private volatile long lastLatencyNanos = -1;
+      private volatile boolean alive = true;
+      private volatile Throwable lastError;
+      private volatile ScheduledFuture<?> future;
+
+      Heartbeat(final Connection connection) {
+         this.connection = connection;
+      }
+
+      void touch() {
+         lastActivity = System.currentTimeMillis();
+         alive = true;
+      }
+
+      @Override
+      public void run() {
+         final long now = System.currentTimeMillis();
+         if (now - lastActivity < interval) {
+            skipped.incrementAndGet();
+            return;
+         }
+         final long start = System.nanoTime();
+         try {
+            KeepAlive.run(connection.getVimPort(), connection.getServiceInstanceReference());
+            lastLatencyNanos = System.nanoTime() - start;
+            lastPing = System.currentTimeMillis();
+            lastActivity = lastPing;
+            lastError = null;
+            alive = true;
+            pings.incrementAndGet();
+            if (verbose) {
+               System.out.printf("heartbeat %s %dms%n", connection.getUrl(), getLastLatencyMillis());
+            }
+         } catch (Throwable t) {
+            // never let an exception escape, the scheduler would silently drop this heartbeat
+            failures.incrementAndGet();
+            lastError = t;
+            alive = false;
+            if (verbose) {
+               System.out.printf("heartbeat %s failed: %s%n", connection.getUrl(), t);
+            }
+         }
+      }
+
+      public Connection getConnection() {
+         return connection;
+      }
+
+      /**
+       * @return false if the most recent ping failed
+       */
+      public boolean isAlive() {
+         return alive;
+      }
+
+      /**
+       * @return round-trip time of the last successful ping, -1 if there has not been one yet
+       */
+      public long getLastLatencyMillis() {
+         final long nanos = lastLatencyNanos;
+         return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+      }
+
+      /**
+       * @return time of the last successful ping in milliseconds since the epoch, 0 if never pinged
+       */
+      public long getLastPing() {
+         return lastPing;
+      }
+
+      /**
+       * @return time of the last ping or reported real work in milliseconds since the epoch
+       */
+      public long getLastActivity() {
+         return lastActivity;
+      }
+
+      public long getPings() {
+         return pings.get();
+      }
+
+      /**
+       * @return number of checks that needed no ping because the connection had been used
+       */
+      public long getSkipped() {
+         return skipped.get();
+      }
+
+      public long getFailures() {
+         return failures.get();
+      }
+
+      /**
+       * @return the failure from the last ping, null if it succeeded
+       */
+      public Throwable getLastError() {
+         return lastError;
+      }
+   }
+}
@@ -19,8 +19,12 @@ import com.vmware.vim25.VimPortType;
 /**
  * This is a keep-alive utility class. It will keep an instance of a connection alive by polling the "currentTime"
  * method on the remote Host or vCenter that the supplied connection & VimPortType were talking to.
+ * <p/>
+ * Each KeepAlive occupies a thread that sleeps between pings. When many sessions must be kept alive use the
+ * {@link HeartbeatService} instead, it serves every registered connection from a shared scheduler.
  *
  * @see com.vmware.vim25.VimPortType
+ * @see HeartbeatService
  */
 public class KeepAlive implements Runnable {
    public static final Long DEFAULT_INTERVAL = 300000l;
@@ -28,7 +32,7 @@ public class KeepAlive implements Runnable {
    private final VimPortType vimPort;
    private final ManagedObjectReference serviceInstanceReference;
    private boolean verbose = Boolean.parseBoolean(System.getProperty("keep-alive.verbose", "false"));
-   private Boolean running;
+   private volatile boolean running;
 
    /**
     * this class is immutable and acts on the supplied vimPort and serviceInstanceReference the default
@@ -52,7 +56,7 @@ public class KeepAlive implements Runnable {
       this.vimPort = vimPort;
       this.serviceInstanceReference = serviceInstanceReference;
       this.interval = interval;
-      this.running = Boolean.TRUE;
+      this.running = true;
    }
 
    /**
@@ -108,23 +112,17 @@ public class KeepAlive implements Runnable {
     * @return true if the embedded thread is running
     */
    public boolean isRunning() {
-      final Boolean val;
-      synchronized (running) {
-         val = running;
-      }
-      return val;
+      return running;
    }
 
    /**
     * signals the embedded thread to stop
     */
    public void stop() {
-      synchronized (running) {
-         if (verbose) {
-            System.out.println("keep alive stopped");
-         }
-         running = false;
+      if (verbose) {
+         System.out.println("keep alive stopped");
       }
+      running = false;
    }
 
    /**
@@ -132,9 +130,7 @@ public class KeepAlive implements Runnable {
     */
    @Override
    public void run() {
-      synchronized (running) {
-         running = true;
-      }
+      running = true;
       try {
          while (isRunning()) {
             if (verbose) {
@@ -0,0 +1,144 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by a {@link SessionPool}. A "hit" is a borrow that was satisfied by an idle, authenticated
+ * session; a "miss" is a borrow that had to log in a brand new session. Wait times are measured from the
+ * moment a caller asks for a session until it holds a pool slot.
+ * <p/>
+ * All counters are updated without locking and may be read at any time.
+ *
+ * @see SessionPool
+ * @see PooledConnection
+ */
+public class PoolStatistics {
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong waits = new AtomicLong();
+   private final AtomicLong timeouts = new AtomicLong();
+   private final AtomicLong totalWaitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+
+   void hit() {
+      hits.incrementAndGet();
+   }
+
+   void miss() {
+      misses.incrementAndGet();
+   }
+
+   void timeout() {
+      timeouts.incrementAndGet();
+   }
+
+   void evicted() {
+      evictions.incrementAndGet();
+   }
+
+   void invalidated() {
+      invalidations.incrementAndGet();
+   }
+
+   /**
+    * records the time a borrower spent getting a slot in the pool
+    *
+    * @param nanos   time spent waiting
+    * @param blocked true if the borrower had to block because the pool was exhausted
+    */
+   void waited(final long nanos, final boolean blocked) {
+      if (blocked) {
+         waits.incrementAndGet();
+      }
+      totalWaitNanos.addAndGet(nanos);
+      long max = maxWaitNanos.get();
+      while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+         max = maxWaitNanos.get();
+      }
+   }
+
+   public long getHits() {
+      return hits.get();
+   }
+
+   public long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * @return number of borrows that blocked because every session was leased out
+    */
+   public long getWaits() {
+      return waits.get();
+   }
+
+   /**
+    * @return number of borrows that gave up after waiting the full pool timeout
+    */
+   public long getTimeouts() {
+      return timeouts.get();
+   }
+
+   /**
+    * @return number of idle sessions that were logged out for being idle or old for too long
+    */
+   public long getEvictions() {
+      return evictions.get();
+   }
+
+   /**
+    * @return number of sessions discarded because they failed validation or were reported broken
+    */
+   public long getInvalidations() {
+      return invalidations.get();
+   }
+
+   public long getBorrows() {
+      return hits.get() + misses.get();
+   }
+
+   /**
+    * @return ratio of borrows served from an idle session, 0.0 if nothing was borrowed yet
+    */
+   public double getHitRatio() {
+      long borrows = getBorrows();
+      return borrows == 0 ? 0.0 : (double) hits.get() / borrows;
+   }
+
+   public long getTotalWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+   }
+
+   public long getMaxWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+   }
+
+   public double getAverageWaitMillis() {
+      long borrows = getBorrows();
+      return borrows == 0 ? 0.0 : (double) totalWaitNanos.get() / borrows / 1000000.0;
+   }
+
+   @Override
+   public String toString() {
+      return String.format(
+            "hits=%d misses=%d hitRatio=%.2f waits=%d timeouts=%d avgWait=%.2fms maxWait=%dms evictions=%d invalidations=%d",
+            getHits(), getMisses(), getHitRatio(), getWaits(), getTimeouts(),
+            getAverageWaitMillis(), getMaxWaitMillis(), getEvictions(), getInvalidations()
+      );
+   }
+}
@@ -0,0 +1,200 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import com.vmware.vim25.*;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * A Connection that leases an already authenticated session from a shared {@link SessionPool} instead of
+ * logging in. Calling {@link #connect()} borrows a session for (url, username), calling {@link #disconnect()}
+ * hands it back to the pool without logging out so the next job can skip the login entirely.
+ * <p/>
+ * Select it for any sample with the system property
+ * <code>com.vmware.connection.Connection=com.vmware.connection.PooledConnection</code>. The connection class
+ * used for the real login is selected with <code>connection.pool.delegate</code> and defaults to the
+ * SsoConnection.
+ * </p>
+ * A PooledConnection holds at most one session at a time and, like the other Connection classes, is not meant
+ * to be shared between threads. Use one PooledConnection per job.
+ *
+ * @see SessionPool
+ * @see ConnectionFactory
+ */
+public class PooledConnection implements Connection {
+   private URL url;
+   private String username;
+   private String password = "";
+   private ManagedObjectReference svcInstRef;
+   private SessionPool.PooledSession session;
+   private final ConnectionAttachments attachments = new ConnectionAttachments(this);
+
+   public String getUrl() {
+      return url.toString();
+   }
+
+   public void setUrl(String url) {
+      try {
+         this.url = new URL(url);
+      } catch (MalformedURLException e) {
+         throw new ConnectionMalformedUrlException("malformed URL argument: '" + url + "'", e);
+      }
+   }
+
+   public String getHost() {
+      return url.getHost();
+   }
+
+   public Integer getPort() {
+      return url.getPort();
+   }
+
+   public String getUsername() {
+      return username;
+   }
+
+   public void setUsername(String username) {
+      this.username = username;
+   }
+
+   public String getPassword() {
+      return password;
+   }
+
+   public void setPassword(String password) {
+      this.password = password;
+   }
+
+   public VimService getVimService() {
+      return isConnected() ? session.getConnection().getVimService() : null;
+   }
+
+   public VimPortType getVimPort() {
+      return isConnected() ? session.getConnection().getVimPort() : null;
+   }
+
+   public ServiceContent getServiceContent() {
+      return isConnected() ? session.getConnection().getServiceContent() : null;
+   }
+
+   public UserSession getUserSession() {
+      return isConnected() ? session.getConnection().getUserSession() : null;
+   }
+
+   public String getServiceInstanceName() {
+      return "ServiceInstance"; // Theoretically this could change but it never does in these samples.
+   }
+
+   @SuppressWarnings("rawtypes")
+   public Map getHeaders() {
+      return isConnected() ? session.getConnection().getHeaders() : null;
+   }
+
+   public ManagedObjectReference getServiceInstanceReference() {
+      if (svcInstRef == null) {
+         ManagedObjectReference ref = new ManagedObjectReference();
+         ref.setType(this.getServiceInstanceName());
+         ref.setValue(this.getServiceInstanceName());
+         svcInstRef = ref;
+      }
+      return svcInstRef;
+   }
+
+   /**
+    * leases a session from the pool, does nothing if this object already holds one
+    *
+    * @return this connection, for method chaining
+    */
+   public Connection connect() {
+      if (!isConnected()) {
+         session = getPool().borrow();
+      }
+      return this;
+   }
+
+   /**
+    * @return true while this object holds a leased session
+    */
+   public boolean isConnected() {
+      return session != null;
+   }
+
+   /**
+    * @return true while this object holds a leased session the server still knows
+    */
+   @Override
+   public boolean isAlive() {
+      final SessionPool.PooledSession leased = session;
+      return leased != null && leased.getConnection().isAlive();
+   }
+
+   /**
+    * hands the leased session back to the pool, the session stays logged in for the next borrower
+    *
+    * @return this connection, for method chaining
+    */
+   public Connection disconnect() {
+      release(true);
+      return this;
+   }
+
+   /**
+    * Call this instead of disconnect after the session failed underneath you (for example a NotAuthenticated
+    * fault). The session is logged out and dropped from the pool rather than handed to the next borrower.
+    *
+    * @return this connection, for method chaining
+    */
+   public Connection invalidate() {
+      release(false);
+      return this;
+   }
+
+   /**
+    * @return the pool serving this connection's url and username
+    */
+   public SessionPool getPool() {
+      return SessionPool.forConnection(this);
+   }
+
+   /**
+    * @return hit, miss and wait-time counters for the pool serving this connection
+    */
+   public PoolStatistics getStatistics() {
+      return getPool().getStatistics();
+   }
+
+   /**
+    * @return the state helpers keep for this connection, cleared when the session is handed back
+    */
+   public ConnectionAttachments getAttachments() {
+      return attachments;
+   }
+
+   @Override
+   public URL getURL() {
+      return this.url;
+   }
+
+   private void release(final boolean reusable) {
+      if (session != null) {
+         // the helpers clean up on the session before the next borrower gets it
+         attachments.clear();
+         final SessionPool.PooledSession leased = session;
+         session = null;
+         leased.getPool().release(leased, reusable);
+      }
+   }
+}
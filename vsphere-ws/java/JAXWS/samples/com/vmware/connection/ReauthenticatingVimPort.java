@@ -0,0 +1,124 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import com.vmware.vim25.VimPortType;
+
+import javax.xml.ws.BindingProvider;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A VimPortType that logs in again and retries once when an idempotent call fails with NotAuthenticated. Long
+ * running programs otherwise see the first call after a server side session timeout (or a vCenter restart) fail.
+ * <p/>
+ * Only calls that are safe to repeat are retried: property reads, queries, searches and "currentTime". Calls
+ * that change state (anything returning a task, login, destroy...) or depend on session bound state (property
+ * filters, continuation tokens, event collectors) are passed through and fail as before.
+ * </p>
+ * The proxy always calls the connection's current port, so it stays valid across re-logins, and it also
+ * implements BindingProvider so code that reads the request or response context keeps working.
+ * <pre>
+ *     VimPortType vimPort = ReauthenticatingVimPort.wrap(connection);
+ * </pre>
+ *
+ * @see SessionLiveness
+ */
+public class ReauthenticatingVimPort implements InvocationHandler {
+   private static final Set<String> IDEMPOTENT_PREFIXES = Collections.unmodifiableSet(new HashSet<String>(
+         Arrays.asList("retrieve", "query", "find", "browse", "currentTime", "fetch", "validate")));
+   // session bound or state changing despite an idempotent looking name
+   private static final Set<String> NOT_RETRIED = Collections.unmodifiableSet(new HashSet<String>(
+         Arrays.asList("continueRetrievePropertiesEx", "retrieveServiceContent", "queryChangedDiskAreas")));
+
+   private final Connection connection;
+
+   ReauthenticatingVimPort(final Connection connection) {
+      this.connection = connection;
+   }
+
+   /**
+    * @param connection the connection to call through, it is connected on first use
+    * @return a VimPortType (and BindingProvider) that re-authenticates and retries idempotent calls once
+    */
+   public static VimPortType wrap(final Connection connection) {
+      return (VimPortType) Proxy.newProxyInstance(
+            ReauthenticatingVimPort.class.getClassLoader(),
+            new Class<?>[]{VimPortType.class, BindingProvider.class},
+            new ReauthenticatingVimPort(connection));
+   }
+
+   /**
+    * @param methodName a VimPortType method name
+    * @return true if the call may be repeated after logging in again
+    */
+   public static boolean isIdempotent(final String methodName) {
+      if (NOT_RETRIED.contains(methodName) || methodName.endsWith("Task")) {
+         return false;
+      }
+      for (String prefix : IDEMPOTENT_PREFIXES) {
+         if (methodName.startsWith(prefix)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   @Override
+   public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+         if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+         }
+         if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+         }
+         return toString();
+      }
+      try {
+         return method.invoke(connection.connect().getVimPort(), args);
+      } catch (InvocationTargetException e) {
+         final Throwable cause = e.getCause();
+         if (!SessionLiveness.isNotAuthenticated(cause) || !isIdempotent(method.getName())) {
+            throw cause;
+         }
+      }
+      reauthenticate();
+      try {
+         return method.invoke(connection.connect().getVimPort(), args);
+      } catch (InvocationTargetException e) {
+         throw e.getCause();
+      }
+   }
+
+   private void reauthenticate() {
+      if (connection instanceof PooledConnection) {
+         // drop the dead session, connect() borrows another one
+         ((PooledConnection) connection).invalidate();
+      } else {
+         SessionLiveness.of(connection).invalidate();
+      }
+      connection.connect();
+   }
+
+   @Override
+   public String toString() {
+      return "ReauthenticatingVimPort[" + connection.getUrl() + "]";
+   }
+}
@@ -0,0 +1,276 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import com.vmware.connection.helpers.builders.ObjectSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertyFilterSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertySpecBuilder;
+import com.vmware.vim25.*;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.DetailEntry;
+import javax.xml.soap.SOAPFault;
+import javax.xml.ws.Binding;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.util.*;
+
+/**
+ * Tracks whether the session behind a connection is still authenticated, based on the time of the last
+ * successful round-trip rather than on the local clock and the session's login time.
+ * <p/>
+ * {@link #attach(VimPortType)} installs a SOAP handler on the port that records every successful response.
+ * A session that answered within the trust window (default 25 minutes, just under the server's 30 minute idle
+ * timeout, system property <code>connection.liveness.trustWindow</code>) is alive without any further call. Only
+ * when the session has been quiet for longer is it checked, once, with a read of
+ * <code>SessionManager.currentSession</code>. A NotAuthenticated fault marks the session dead straight away.
+ * </p>
+ *
+ * @see ReauthenticatingVimPort
+ */
+public class SessionLiveness {
+   public static final Long DEFAULT_TRUST_WINDOW = 1500000l;
+
+   private final Connection connection;
+   private final long trustWindow;
+   private volatile long lastSuccess;
+   private volatile boolean invalid = true;
+
+   SessionLiveness(final Connection connection) {
+      this.connection = connection;
+      this.trustWindow = Long.getLong("connection.liveness.trustWindow", DEFAULT_TRUST_WINDOW);
+   }
+
+   /**
+    * @param connection any connection
+    * @return the liveness tracker for the connection, created on first use
+    */
+   public static SessionLiveness of(final Connection connection) {
+      return connection.getAttachments().get(SessionLiveness.class, SessionLiveness::new);
+   }
+
+   /**
+    * Recognizes the NotAuthenticated fault whether JAX-WS mapped it to a declared fault message or left it as a
+    * raw SOAP fault.
+    *
+    * @param t a failure from a VimPortType call
+    * @return true if the server no longer recognizes the session
+    */
+   public static boolean isNotAuthenticated(final Throwable t) {
+      for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+         if (cause instanceof RuntimeFaultFaultMsg
+               && ((RuntimeFaultFaultMsg) cause).getFaultInfo() instanceof NotAuthenticated) {
+            return true;
+         }
+         if (cause instanceof SOAPFaultException && isNotAuthenticated(((SOAPFaultException) cause).getFault())) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Recognizes the faults after which a PropertyCollector, filter or view created earlier is of no use: the
+    * session is gone, or the object is unknown, as after a new login, since these objects live and die with
+    * the session that created them.
+    *
+    * @param t a failure from a VimPortType call on such an object
+    * @return true if the object has to be created again
+    */
+   public static boolean isSessionObjectLost(final Throwable t) {
+      if (isNotAuthenticated(t)) {
+         return true;
+      }
+      for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+         if (cause instanceof ManagedObjectNotFoundFaultMsg || cause instanceof RuntimeFaultFaultMsg
+               && ((RuntimeFaultFaultMsg) cause).getFaultInfo() instanceof ManagedObjectNotFound) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   static boolean isNotAuthenticated(final SOAPFault fault) {
+      if (fault == null || fault.getDetail() == null) {
+         return false;
+      }
+      Iterator<?> entries = fault.getDetail().getDetailEntries();
+      while (entries.hasNext()) {
+         Object entry = entries.next();
+         // vim faults are sent as e.g. <NotAuthenticatedFault xsi:type="NotAuthenticated">
+         if (entry instanceof DetailEntry && ((DetailEntry) entry).getLocalName().startsWith("NotAuthenticated")) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Starts tracking a freshly logged in port. The login itself counts as the first successful round-trip.
+    *
+    * @param vimPort the port the connection just logged in with
+    */
+   @SuppressWarnings("rawtypes")
+   public void attach(final VimPortType vimPort) {
+      final Binding binding = ((BindingProvider) vimPort).getBinding();
+      final List<Handler> chain = binding.getHandlerChain();
+      chain.add(new LivenessHandler());
+      binding.setHandlerChain(chain);
+      success();
+   }
+
+   /**
+    * records a successful round-trip
+    */
+   public void success() {
+      lastSuccess = System.currentTimeMillis();
+      invalid = false;
+      HeartbeatService.touchIfRunning(connection);
+   }
+
+   /**
+    * marks the session as dead, the next liveness check answers false without calling the server
+    */
+   public void invalidate() {
+      invalid = true;
+   }
+
+   /**
+    * @return false once the session is known to be dead, never calls the server
+    */
+   public boolean mayBeAlive() {
+      return !invalid;
+   }
+
+   /**
+    * @return true if the session answered within the trust window and is not known to be dead, never calls the
+    * server
+    */
+   public boolean isTrusted() {
+      return !invalid && System.currentTimeMillis() - lastSuccess < trustWindow;
+   }
+
+   /**
+    * Answers from memory when possible and calls the server only if the session has been quiet for longer than
+    * the trust window.
+    *
+    * @return true if the session is usable
+    */
+   public boolean isAlive() {
+      if (invalid) {
+         return false;
+      }
+      if (System.currentTimeMillis() - lastSuccess < trustWindow) {
+         return true;
+      }
+      if (validate(connection)) {
+         success();
+         return true;
+      }
+      invalidate();
+      return false;
+   }
+
+   /**
+    * @return time of the last successful round-trip in milliseconds since the epoch, 0 if none
+    */
+   public long getLastSuccess() {
+      return lastSuccess;
+   }
+
+   public long getTrustWindow() {
+      return trustWindow;
+   }
+
+   /**
+    * Checks a session with a single read of SessionManager.currentSession, which is null or faults once the
+    * server has dropped the session. This is far cheaper than a failed call followed by a full login.
+    *
+    * @param connection a connection that has logged in at least once
+    * @return true if the server still knows the session
+    */
+   public static boolean validate(final Connection connection) {
+      try {
+         final ServiceContent serviceContent = connection.getServiceContent();
+         final PropertyFilterSpec spec = new PropertyFilterSpecBuilder()
+               .propSet(
+                     new PropertySpecBuilder()
+                           .all(Boolean.FALSE)
+                           .type("SessionManager")
+                           .pathSet("currentSession")
+               )
+               .objectSet(
+                     new ObjectSpecBuilder()
+                           .obj(serviceContent.getSessionManager())
+               );
+         RetrieveResult result = connection.getVimPort().retrievePropertiesEx(
+               serviceContent.getPropertyCollector(),
+               Arrays.<PropertyFilterSpec>asList(spec),
+               new RetrieveOptions());
+         if (result == null) {
+            return false;
+         }
+         for (ObjectContent oc : result.getObjects()) {
+            for (DynamicProperty dp : oc.getPropSet()) {
+               if (dp.getVal() != null) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      } catch (Exception e) {
+         // NotAuthenticated or a transport failure, either way the session is of no use
+         return false;
+      }
+   }
+
+   /**
+    * Records successful responses. Faults are left to the caller since most of them (InvalidProperty,
+    * InvalidState, ...) say nothing about the session, except NotAuthenticated which invalidates it.
+    */
+   private class LivenessHandler implements SOAPHandler<SOAPMessageContext> {
+      @Override
+      public boolean handleMessage(SOAPMessageContext smc) {
+         Boolean outbound = (Boolean) smc.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
+         if (!outbound.booleanValue()) {
+            success();
+         }
+         return true;
+      }
+
+      @Override
+      public boolean handleFault(SOAPMessageContext smc) {
+         try {
+            if (isNotAuthenticated(smc.getMessage().getSOAPBody().getFault())) {
+               invalidate();
+            }
+         } catch (Exception e) {
+            // an unreadable fault is passed on to the caller untouched
+         }
+         return true;
+      }
+
+      @Override
+      public void close(MessageContext context) {
+      }
+
+      @Override
+      public Set<QName> getHeaders() {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,402 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of authenticated sessions against a single vCenter or host for a single user. Logging in,
+ * fetching the ServiceContent and (for SSO) exchanging a token are by far the most expensive part of a short
+ * job, so sessions are handed back to the pool instead of being logged out and are re-used by the next borrower.
+ * <p/>
+ * Pools are shared process wide and keyed by (url, username, password digest), so a caller only ever gets sessions
+ * logged in with its own credentials and a changed password starts a new pool. Each pool is tuned with system properties:
+ * <ul>
+ * <li><code>connection.pool.maxSize</code> - maximum sessions per pool, leased and idle (default 8)</li>
+ * <li><code>connection.pool.maxWait</code> - milliseconds a borrower waits for a free session (default 30000)</li>
+ * <li><code>connection.pool.maxIdle</code> - milliseconds an idle session is kept before logout (default 600000)</li>
+ * <li><code>connection.pool.maxAge</code> - milliseconds a session is used before it is replaced (default 14400000)</li>
+ * <li><code>connection.pool.validationInterval</code> - sessions idle longer than this many milliseconds are checked
+ * with a single property read before being handed out (default 60000)</li>
+ * <li><code>connection.pool.delegate</code> - the Connection class used to log in (default SsoConnection)</li>
+ * </ul>
+ * Eviction is done lazily on every borrow and release, no background thread is needed.
+ *
+ * @see PooledConnection
+ * @see PoolStatistics
+ */
+public class SessionPool {
+   public static final int DEFAULT_MAX_SIZE = 8;
+   public static final Long DEFAULT_MAX_WAIT = 30000l;
+   // vCenter drops sessions after 30 minutes of inactivity, stay well clear of that
+   public static final Long DEFAULT_MAX_IDLE = 600000l;
+   public static final Long DEFAULT_MAX_AGE = 14400000l;
+   public static final Long DEFAULT_VALIDATION_INTERVAL = 60000l;
+
+   private static final ConcurrentMap<String, SessionPool> pools = new ConcurrentHashMap<String, SessionPool>();
+
+   static {
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+         @Override
+         public void run() {
+            closeAll();
+         }
+      }, "session-pool-shutdown"));
+   }
+
+   private final String url;
+   private final String username;
+   private final String password;
+   private final int maxSize;
+   private final long maxWait;
+   private final long maxIdle;
+   private final long maxAge;
+   private final long validationInterval;
+   private final Class<? extends Connection> delegateType;
+
+   private final Semaphore permits;
+   // most recently returned sessions are at the head, so hot sessions are re-used and cold ones age out
+   private final Deque<PooledSession> idle = new ArrayDeque<PooledSession>();
+   private final PoolStatistics statistics = new PoolStatistics();
+   private volatile boolean closed = false;
+
+   SessionPool(final String url, final String username, final String password) {
+      this.url = url;
+      this.username = username;
+      this.password = password;
+      this.maxSize = Integer.getInteger("connection.pool.maxSize", DEFAULT_MAX_SIZE);
+      this.maxWait = Long.getLong("connection.pool.maxWait", DEFAULT_MAX_WAIT);
+      this.maxIdle = Long.getLong("connection.pool.maxIdle", DEFAULT_MAX_IDLE);
+      this.maxAge = Long.getLong("connection.pool.maxAge", DEFAULT_MAX_AGE);
+      this.validationInterval = Long.getLong("connection.pool.validationInterval", DEFAULT_VALIDATION_INTERVAL);
+      this.delegateType = delegateType();
+      this.permits = new Semaphore(maxSize, true);
+   }
+
+   /**
+    * finds or creates the pool serving the url and credentials of the supplied connection
+    *
+    * @param connection supplies url, username and password
+    * @return the shared pool for (url, username, password)
+    */
+   public static SessionPool forConnection(final Connection connection) {
+      final String key = key(connection.getUrl(), connection.getUsername(), connection.getPassword());
+      SessionPool pool = pools.get(key);
+      if (pool == null) {
+         SessionPool created = new SessionPool(connection.getUrl(), connection.getUsername(), connection.getPassword());
+         pool = pools.putIfAbsent(key, created);
+         if (pool == null) {
+            pool = created;
+         }
+      }
+      return pool;
+   }
+
+   /**
+    * @return an unmodifiable view of all pools created in this process keyed by "url|username|digest", where
+    * digest is the hex SHA-256 of the password
+    */
+   public static Map<String, SessionPool> getPools() {
+      return Collections.unmodifiableMap(pools);
+   }
+
+   /**
+    * logs out every idle session in every pool, used on shutdown
+    */
+   public static void closeAll() {
+      for (SessionPool pool : pools.values()) {
+         pool.close();
+      }
+   }
+
+   static String key(final String url, final String username, final String password) {
+      return url + "|" + username + "|" + digest(password);
+   }
+
+   private String describe() {
+      return url + "|" + username;
+   }
+
+   // the password itself never ends up in the key, getPools() hands the keys out
+   private static String digest(final String password) {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         byte[] hash = sha.digest(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+         StringBuilder hex = new StringBuilder(hash.length * 2);
+         for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+         }
+         return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+         // every Java platform is required to support SHA-256
+         throw new IllegalStateException(e);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   private static Class<? extends Connection> delegateType() {
+      String className = System.getProperty("connection.pool.delegate", SsoConnection.class.getCanonicalName());
+      try {
+         Class<?> type = Class.forName(className);
+         if (!Connection.class.isAssignableFrom(type) || PooledConnection.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(className + " is not a usable Connection implementation");
+         }
+         return (Class<? extends Connection>) type;
+      } catch (ClassNotFoundException e) {
+         throw new IllegalArgumentException("connection.pool.delegate class not found: " + className, e);
+      }
+   }
+
+   /**
+    * Takes a session out of the pool, logging in a new one if no idle session is usable. Blocks for at most
+    * <code>connection.pool.maxWait</code> milliseconds when every session is leased.
+    *
+    * @return an authenticated session leased exclusively to the caller
+    * @throws SessionPoolException if the pool is closed, exhausted or a login fails
+    */
+   public PooledSession borrow() {
+      if (closed) {
+         throw new SessionPoolException("session pool for " + describe() + " is closed", null);
+      }
+      final long start = System.nanoTime();
+      boolean blocked = false;
+      try {
+         if (!permits.tryAcquire()) {
+            blocked = true;
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+               statistics.timeout();
+               throw new SessionPoolException(
+                     "timed out after " + maxWait + "ms waiting for a session to " + describe(), null);
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SessionPoolException("interrupted while waiting for a session", e);
+      }
+      statistics.waited(System.nanoTime() - start, blocked);
+
+      try {
+         PooledSession session;
+         while ((session = pollIdle()) != null) {
+            final long now = System.currentTimeMillis();
+            if (isExpired(session, now)) {
+               statistics.evicted();
+               destroy(session);
+            } else if (isValid(session, now)) {
+               statistics.hit();
+               session.leased(now);
+               return session;
+            } else {
+               statistics.invalidated();
+               destroy(session);
+            }
+         }
+         statistics.miss();
+         session = create();
+         session.leased(System.currentTimeMillis());
+         return session;
+      } catch (RuntimeException e) {
+         permits.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Returns a leased session to the pool.
+    *
+    * @param session  the session previously obtained from {@link #borrow()}
+    * @param reusable false if the caller saw the session fail, the session is then logged out and dropped
+    */
+   public void release(final PooledSession session, final boolean reusable) {
+      if (session == null) {
+         return;
+      }
+      try {
+         if (reusable && !closed) {
+            session.returned(System.currentTimeMillis());
+            synchronized (idle) {
+               idle.offerFirst(session);
+            }
+         } else {
+            if (!reusable) {
+               statistics.invalidated();
+            }
+            destroy(session);
+         }
+      } finally {
+         permits.release();
+      }
+      evictIdle();
+   }
+
+   /**
+    * logs out idle sessions that have been unused longer than maxIdle or are older than maxAge
+    */
+   public void evictIdle() {
+      final long now = System.currentTimeMillis();
+      final List<PooledSession> expired = new ArrayList<PooledSession>();
+      synchronized (idle) {
+         // the oldest returns are at the tail
+         Iterator<PooledSession> it = idle.descendingIterator();
+         while (it.hasNext()) {
+            PooledSession session = it.next();
+            if (isExpired(session, now)) {
+               it.remove();
+               expired.add(session);
+            }
+         }
+      }
+      for (PooledSession session : expired) {
+         statistics.evicted();
+         destroy(session);
+      }
+   }
+
+   /**
+    * closes the pool, idle sessions are logged out now and leased sessions are logged out when released
+    */
+   public void close() {
+      closed = true;
+      final List<PooledSession> drained;
+      synchronized (idle) {
+         drained = new ArrayList<PooledSession>(idle);
+         idle.clear();
+      }
+      for (PooledSession session : drained) {
+         destroy(session);
+      }
+   }
+
+   public PoolStatistics getStatistics() {
+      return statistics;
+   }
+
+   public int getMaxSize() {
+      return maxSize;
+   }
+
+   public int getIdleCount() {
+      synchronized (idle) {
+         return idle.size();
+      }
+   }
+
+   public int getLeasedCount() {
+      return maxSize - permits.availablePermits();
+   }
+
+   private PooledSession pollIdle() {
+      synchronized (idle) {
+         return idle.pollFirst();
+      }
+   }
+
+   private boolean isExpired(final PooledSession session, final long now) {
+      return now - session.getLastUsed() > maxIdle || now - session.getCreated() > maxAge;
+   }
+
+   /**
+    * A session used within the validation interval is trusted as is, older ones are checked with a single
+    * property read.
+    *
+    * @see SessionLiveness#validate(Connection)
+    */
+   private boolean isValid(final PooledSession session, final long now) {
+      return now - session.getLastUsed() < validationInterval || SessionLiveness.validate(session.getConnection());
+   }
+
+   private PooledSession create() {
+      final Connection delegate;
+      try {
+         delegate = delegateType.newInstance();
+      } catch (Exception e) {
+         throw new SessionPoolException("could not instantiate " + delegateType.getName(), e);
+      }
+      delegate.setUrl(url);
+      delegate.setUsername(username);
+      delegate.setPassword(password);
+      delegate.connect();
+      return new PooledSession(this, delegate, System.currentTimeMillis());
+   }
+
+   private void destroy(final PooledSession session) {
+      try {
+         session.getConnection().disconnect();
+      } catch (RuntimeException e) {
+         // the session is being thrown away, a failed logout only means the server already dropped it
+      }
+   }
+
+   /**
+    * A single authenticated session owned by a pool.
+    */
+   public static class PooledSession {
+      private final SessionPool pool;
+      private final Connection connection;
+      private final long created;
+      private volatile long lastUsed;
+
+      PooledSession(final SessionPool pool, final Connection connection, final long created) {
+         this.pool = pool;
+         this.connection = connection;
+         this.created = created;
+         this.lastUsed = created;
+      }
+
+      void leased(final long now) {
+         // a fresh login or a successful validation both prove the session works right now
+         lastUsed = now;
+      }
+
+      void returned(final long now) {
+         lastUsed = now;
+      }
+
+      public SessionPool getPool() {
+         return pool;
+      }
+
+      /**
+       * @return the connected delegate (BasicConnection, SsoConnection, ...) holding the real session
+       */
+      public Connection getConnection() {
+         return connection;
+      }
+
+      public long getCreated() {
+         return created;
+      }
+
+      public long getLastUsed() {
+         return lastUsed;
+      }
+   }
+
+   /**
+    * thrown when a session cannot be obtained from the pool
+    */
+   public class SessionPoolException extends ConnectionException {
+      private static final long serialVersionUID = 1L;
+
+      public SessionPoolException(String s, Throwable t) {
+         super(s, t);
+      }
+   }
+}
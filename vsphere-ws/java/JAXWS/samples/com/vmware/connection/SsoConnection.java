@@ -20,12 +20,15 @@ import com.vmware.vsphere.soaphandlers.HeaderCookieExtractionHandler;
 import org.w3c.dom.Element;
 
 import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.Handler;
 import javax.xml.ws.handler.MessageContext;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static com.vmware.sso.client.samples.AcquireHoKTokenByUserCredentialSample.getToken;
@@ -62,6 +65,7 @@ public class SsoConnection implements Connection {
    private String password;
    @SuppressWarnings("rawtypes")
    private Map headers;
+   private final ConnectionAttachments attachments = new ConnectionAttachments(this);
    private PrivateKey privateKey;
    private X509Certificate certificate;
 
@@ -218,8 +222,32 @@ public class SsoConnection implements Connection {
       return token;
    }
 
+   /**
+    * Builds the handler chain that signs every request with the token: a time stamp, the token itself and the
+    * signature, followed by the supplied handlers.
+    *
+    * @param token    - service token
+    * @param handlers - arbitrary number of handlers
+    * @return the handlers in chain order
+    */
+   @SuppressWarnings("rawtypes")
+   public List<Handler> handlerChain(Element token, SSOHeaderHandler... handlers) {
+      List<Handler> chain = new ArrayList<Handler>();
+      chain.add(new TimeStampHandler());
+      chain.add(new SamlTokenHandler(token));
+      chain.add(new WsSecuritySignatureAssertionHandler(
+            privateKey, certificate, Utils
+            .getNodeProperty(token, "ID")));
+      chain.addAll(Arrays.asList(handlers));
+      return chain;
+   }
+
    /**
     * sets up a VIM service registering handlers and handler resolvers. Takes an arbitrary number of handlers.
+    * <p/>
+    * Every call parses the vim25 WSDL again. Connections use the shared service from {@link VimServiceFactory}
+    * together with {@link #handlerChain(Element, SSOHeaderHandler...)} instead.
+    * </p>
     *
     * @param token    - service token
     * @param handlers - arbitrary number of handlers
@@ -271,20 +299,17 @@ public class SsoConnection implements Connection {
 
       Element token = login();
       HeaderCookieExtractionHandler cookieExtracter = new HeaderCookieExtractionHandler();
-      vimService = setupVimService(token, cookieExtracter);
-      vimPort = vimService.getVimPort();
-      Map<String, Object> ctxt =
-            ((BindingProvider) vimPort).getRequestContext();
-
-      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url.toString());
-      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
-
+      // the WSDL is parsed once per process, the token handlers are set on this connection's port only
+      vimService = VimServiceFactory.getVimService();
+      vimPort = VimServiceFactory.newPort(url.toString(), handlerChain(token, cookieExtracter));
 
       serviceContent = vimPort.retrieveServiceContent(this.getServiceInstanceReference());
       userSession = vimPort.loginByToken(serviceContent.getSessionManager(), null);
       headers =
             (Map) ((BindingProvider) vimPort).getResponseContext().get(
                   MessageContext.HTTP_RESPONSE_HEADERS);
+
+      SessionLiveness.of(this).attach(vimPort);
    }
 
    /**
@@ -319,19 +344,25 @@ public class SsoConnection implements Connection {
    }
 
    /**
-    * returns true if the connection is open, and hasn't timed out. Connections time-out every 30 minutes.
+    * returns true if the connection is open, and hasn't timed out. Connections time-out after 30 minutes without
+    * any call.
     *
     * @return true if a good, non-stale connection
+    * @see SessionLiveness
     */
    @Override
    public boolean isConnected() {
-      if (userSession == null) {
-         return false;
-      }
-      long startTime = userSession.getLastActiveTime().toGregorianCalendar().getTime().getTime();
+      // answered from memory, a session that went quiet for longer than the trust window is not trusted
+      return userSession != null && SessionLiveness.of(this).isTrusted();
+   }
 
-      // 30 minutes in milliseconds = 30 minutes * 60 seconds * 1000 milliseconds
-      return new Date().getTime() < startTime + 30 * 60 * 1000;
+   /**
+    * @return true if the session is usable; after a long quiet period this asks the server
+    * @see SessionLiveness#isAlive()
+    */
+   @Override
+   public boolean isAlive() {
+      return userSession != null && SessionLiveness.of(this).isAlive();
    }
 
    /**
@@ -342,14 +373,23 @@ public class SsoConnection implements Connection {
     */
    @Override
    public Connection disconnect() {
-      if (this.isConnected()) {
+      if (userSession != null) {
+         // answered from memory, a session that went quiet is not validated just to log it out
+         final boolean alive = SessionLiveness.of(this).mayBeAlive();
+         // stops the helpers while they can still clean up on the server
+         attachments.clear();
          try {
-            vimPort.logout(serviceContent.getSessionManager());
+            if (alive) {
+               vimPort.logout(serviceContent.getSessionManager());
+            }
          } catch (RuntimeFaultFaultMsg runtimeFaultFaultMsg) {
-            throw new SSOLogoutException(
-                  "failure while logging out: " + runtimeFaultFaultMsg.getMessage(),
-                  runtimeFaultFaultMsg.getCause()
-            );
+            // a session the server dropped already needs no logout
+            if (!SessionLiveness.isNotAuthenticated(runtimeFaultFaultMsg)) {
+               throw new SSOLogoutException(
+                     "failure while logging out: " + runtimeFaultFaultMsg.getMessage(),
+                     runtimeFaultFaultMsg.getCause()
+               );
+            }
          } finally {
             // A connection is very memory intensive, I'm helping the garbage collector here
             userSession = null;
@@ -361,6 +401,11 @@ public class SsoConnection implements Connection {
       return this;
    }
 
+   @Override
+   public ConnectionAttachments getAttachments() {
+      return attachments;
+   }
+
    /**
     * gets the URL used for this connection
     *
@@ -0,0 +1,86 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection;
+
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VimService;
+
+import javax.xml.ws.Binding;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.Handler;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands out VimPortType instances from a single, process wide VimService.
+ * <p/>
+ * Constructing a VimService parses the vim25 WSDL bundled in vim25.jar and builds the JAX-WS runtime model,
+ * which takes seconds and a good deal of heap. The model only depends on the WSDL, so it is built once, on
+ * first use, and every connection gets its own port from it. Each port has its own request context (endpoint
+ * address, session cookie) and its own handler chain, so sessions never share state.
+ * </p>
+ * Handlers that used to be registered on a per connection VimService through a HandlerResolver are passed to
+ * {@link #newPort(String, List)} instead, since the shared service must not carry any session specific handler.
+ *
+ * @see BasicConnection
+ * @see SsoConnection
+ */
+public class VimServiceFactory {
+   private VimServiceFactory() {
+   }
+
+   // initialization-on-demand holder: the WSDL is parsed by the first thread that needs a port, exactly once
+   private static class Holder {
+      static final VimService SERVICE = new VimService();
+   }
+
+   /**
+    * @return the shared VimService, building it on the first call
+    */
+   public static VimService getVimService() {
+      return Holder.SERVICE;
+   }
+
+   /**
+    * creates a port talking to the given endpoint with HTTP session cookies maintained
+    *
+    * @param url the vSphere WS SDK url, e.g. https://vcenter/sdk
+    * @return a new port, not shared with any other caller
+    */
+   public static VimPortType newPort(final String url) {
+      return newPort(url, null);
+   }
+
+   /**
+    * creates a port talking to the given endpoint with HTTP session cookies maintained
+    *
+    * @param url      the vSphere WS SDK url, e.g. https://vcenter/sdk
+    * @param handlers handlers for this port only, in chain order, may be null
+    * @return a new port, not shared with any other caller
+    */
+   @SuppressWarnings("rawtypes")
+   public static VimPortType newPort(final String url, final List<Handler> handlers) {
+      final VimPortType vimPort = getVimService().getVimPort();
+      final Map<String, Object> ctxt = ((BindingProvider) vimPort).getRequestContext();
+      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url);
+      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+
+      if (handlers != null && !handlers.isEmpty()) {
+         final Binding binding = ((BindingProvider) vimPort).getBinding();
+         final List<Handler> chain = binding.getHandlerChain();
+         chain.addAll(handlers);
+         binding.setHandlerChain(chain);
+      }
+      return vimPort;
+   }
+}
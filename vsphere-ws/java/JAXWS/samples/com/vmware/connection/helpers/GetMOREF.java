@@ -17,6 +17,7 @@ import com.vmware.connection.helpers.builders.*;
 import com.vmware.vim25.*;
 
 import java.util.*;
+import java.util.stream.Stream;
 
 public class GetMOREF extends BaseHelper {
    VimPortType vimPort;
@@ -166,44 +167,92 @@ public class GetMOREF extends BaseHelper {
    ) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
       final PropertyFilterSpec[] propertyFilterSpecs = propertyFilterSpecs(folder, morefType, "name");
 
-      // reuse this property collector again later to scroll through results
-      final ManagedObjectReference propertyCollector = serviceContent.getPropertyCollector();
-
-      RetrieveResult results = vimPort.retrievePropertiesEx(
-            propertyCollector,
-            Arrays.asList(propertyFilterSpecs),
-            retrieveOptions);
-
       final Map<String, ManagedObjectReference> tgtMoref =
             new HashMap<String, ManagedObjectReference>();
-      while (results != null && !results.getObjects().isEmpty()) {
-         resultsToTgtMorefMap(results, tgtMoref);
-         final String token = results.getToken();
-         // if we have a token, we can scroll through additional results, else there's nothing to do.
-         results =
-               (token != null) ?
-                     vimPort.continueRetrievePropertiesEx(propertyCollector, token) : null;
+      // pages are fetched one at a time and dropped as soon as they are copied into the map
+      try (RetrieveResultIterator results = new RetrieveResultIterator(
+            vimPort, serviceContent.getPropertyCollector(), Arrays.asList(propertyFilterSpecs), retrieveOptions)) {
+         while (results.hasNext()) {
+            putName(results.next(), tgtMoref);
+         }
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         throw rethrow(e);
       }
 
       return tgtMoref;
    }
 
-   private void resultsToTgtMorefMap(RetrieveResult results, Map<String, ManagedObjectReference> tgtMoref) {
-      List<ObjectContent> oCont = (results != null) ? results.getObjects() : null;
+   private static void putName(final ObjectContent oc, final Map<String, ManagedObjectReference> tgtMoref) {
+      String entityNm = null;
+      List<DynamicProperty> dps = oc.getPropSet();
+      if (dps != null) {
+         for (DynamicProperty dp : dps) {
+            entityNm = (String) dp.getVal();
+         }
+      }
+      tgtMoref.put(entityNm, oc.getObj());
+   }
 
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            ManagedObjectReference mr = oc.getObj();
-            String entityNm = null;
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  entityNm = (String) dp.getVal();
-               }
-            }
-            tgtMoref.put(entityNm, mr);
+   private static Map<String, Object> toPropMap(final ObjectContent oc) {
+      Map<String, Object> propMap = new HashMap<String, Object>();
+      List<DynamicProperty> dps = oc.getPropSet();
+      if (dps != null) {
+         for (DynamicProperty dp : dps) {
+            propMap.put(dp.getName(), dp.getVal());
          }
       }
+      return propMap;
+   }
+
+   /**
+    * unwraps the fault a RetrieveResultIterator hit so callers see the same checked faults as before
+    */
+   private static RuntimeException rethrow(final RetrieveResultIterator.RetrievalException e)
+         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      if (e.getCause() instanceof InvalidPropertyFaultMsg) {
+         throw (InvalidPropertyFaultMsg) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeFaultFaultMsg) {
+         throw (RuntimeFaultFaultMsg) e.getCause();
+      }
+      return e;
+   }
+
+   /**
+    * Streams the objects of a type under a container, one page of at most maxObjects at a time, so that callers
+    * can process very large inventories in constant memory. Closing the stream cancels any pages not yet read
+    * and destroys the ContainerView.
+    *
+    * @param container       container to look in
+    * @param morefType       type to filter for
+    * @param maxObjects      page size
+    * @param morefProperties properties to include
+    * @return a lazily fetched stream, close it when done
+    * @throws RuntimeFaultFaultMsg
+    */
+   public Stream<ObjectContent> stream(
+         final ManagedObjectReference container,
+         final String morefType,
+         final int maxObjects,
+         final String... morefProperties
+   ) throws RuntimeFaultFaultMsg {
+      final PropertyFilterSpec[] propertyFilterSpecs = propertyFilterSpecs(container, morefType, morefProperties);
+      final ManagedObjectReference containerView = propertyFilterSpecs[0].getObjectSet().get(0).getObj();
+      final RetrieveResultIterator results = new RetrieveResultIterator(
+            vimPort,
+            serviceContent.getPropertyCollector(),
+            Arrays.asList(propertyFilterSpecs),
+            RetrieveResultIterator.pageSize(maxObjects));
+      return results.stream().onClose(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               vimPort.destroyView(containerView);
+            } catch (RuntimeFaultFaultMsg e) {
+               throw new HelperException(e);
+            }
+         }
+      });
    }
 
    /**
@@ -224,22 +273,19 @@ public class GetMOREF extends BaseHelper {
          ManagedObjectReference container, String morefType,
          String[] morefProperties, RetrieveOptions retrieveOptions) throws InvalidPropertyFaultMsg,
          RuntimeFaultFaultMsg {
-      List<ObjectContent> oCont = containerViewByType(container, morefType, retrieveOptions, morefProperties).getObjects();
+      RetrieveResult rslts = containerViewByType(container, morefType, retrieveOptions, morefProperties);
 
       Map<ManagedObjectReference, Map<String, Object>> tgtMoref =
             new HashMap<ManagedObjectReference, Map<String, Object>>();
 
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            Map<String, Object> propMap = new HashMap<String, Object>();
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  propMap.put(dp.getName(), dp.getVal());
-               }
-            }
-            tgtMoref.put(oc.getObj(), propMap);
+      try (RetrieveResultIterator results =
+                 new RetrieveResultIterator(vimPort, serviceContent.getPropertyCollector(), rslts)) {
+         while (results.hasNext()) {
+            ObjectContent oc = results.next();
+            tgtMoref.put(oc.getObj(), toPropMap(oc));
          }
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         throw rethrow(e);
       }
       return tgtMoref;
    }
@@ -266,16 +312,16 @@ public class GetMOREF extends BaseHelper {
    }
 
    public Map<String, ManagedObjectReference> toMap(RetrieveResult rslts) throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      init();
       final Map<String, ManagedObjectReference> tgtMoref = new HashMap<String, ManagedObjectReference>();
-      String token = null;
-      token = populate(rslts, tgtMoref);
 
-      while (token != null && !token.isEmpty()) {
-         // fetch results based on new token
-         rslts = vimPort.continueRetrievePropertiesEx(
-               serviceContent.getPropertyCollector(), token);
-
-         token = populate(rslts, tgtMoref);
+      try (RetrieveResultIterator results =
+                 new RetrieveResultIterator(vimPort, serviceContent.getPropertyCollector(), rslts)) {
+         while (results.hasNext()) {
+            putName(results.next(), tgtMoref);
+         }
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         throw rethrow(e);
       }
 
       return tgtMoref;
@@ -349,51 +395,8 @@ public class GetMOREF extends BaseHelper {
     * object.
     */
    public TraversalSpec getVMTraversalSpec() {
-      // Create a traversal spec that starts from the 'root' objects
-      // and traverses the inventory tree to get to the VirtualMachines.
-      // Build the traversal specs bottoms up
-
-      //Traversal to get to the VM in a VApp
-      TraversalSpec vAppToVM = new TraversalSpecBuilder()
-            .name("vAppToVM")
-            .type("VirtualApp")
-            .path("vm");
-
-      //Traversal spec for VApp to VApp
-      TraversalSpec vAppToVApp = new TraversalSpecBuilder()
-            .name("vAppToVApp")
-            .type("VirtualApp")
-            .path("resourcePool")
-            .selectSet(
-                  //SelectionSpec for both VApp to VApp and VApp to VM
-                  new SelectionSpecBuilder().name("vAppToVApp"),
-                  new SelectionSpecBuilder().name("vAppToVM")
-            );
-
-
-      //This SelectionSpec is used for recursion for Folder recursion
-      SelectionSpec visitFolders = new SelectionSpecBuilder().name("VisitFolders");
-
-      // Traversal to get to the vmFolder from DataCenter
-      TraversalSpec dataCenterToVMFolder = new TraversalSpecBuilder()
-            .name("DataCenterToVMFolder")
-            .type("Datacenter")
-            .path("vmFolder")
-            .skip(false)
-            .selectSet(visitFolders);
-
-      // TraversalSpec to get to the DataCenter from rootFolder
-      return new TraversalSpecBuilder()
-            .name("VisitFolders")
-            .type("Folder")
-            .path("childEntity")
-            .skip(false)
-            .selectSet(
-                  visitFolders,
-                  dataCenterToVMFolder,
-                  vAppToVM,
-                  vAppToVApp
-            );
+      // built once and shared, callers must not modify it
+      return TraversalSpecs.vmInventory();
    }
 
    /**
@@ -413,26 +416,10 @@ public class GetMOREF extends BaseHelper {
 
       final HashMap<String, Object> retVal = new HashMap<String, Object>();
 
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      PropertyFilterSpec[] propertyFilterSpecs = {
-            new PropertyFilterSpecBuilder()
-                  .propSet(
-                        // Create Property Spec
-                        new PropertySpecBuilder()
-                              .all(Boolean.FALSE)
-                              .type(entityMor.getType())
-                              .pathSet(props)
-                  )
-                  .objectSet(
-                        // Now create Object Spec
-                        new ObjectSpecBuilder()
-                              .obj(entityMor)
-                  )
-      };
-
+      // the same entity and properties are often read again and again, reuse the spec built the first time
       List<ObjectContent> oCont =
             vimPort.retrievePropertiesEx(serviceContent.getPropertyCollector(),
-                  Arrays.asList(propertyFilterSpecs), new RetrieveOptions()).getObjects();
+                  SpecTemplates.forObject(entityMor, props), new RetrieveOptions()).getObjects();
 
       if (oCont != null) {
          for (ObjectContent oc : oCont) {
@@ -488,29 +475,15 @@ public class GetMOREF extends BaseHelper {
             new ArrayList<PropertyFilterSpec>();
       propertyFilterSpecs.add(propertyFilterSpec);
 
-      RetrieveResult rslts =
-            vimPort.retrievePropertiesEx(serviceContent.getPropertyCollector(),
-                  propertyFilterSpecs, new RetrieveOptions());
-
-      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
-      String token = populate(rslts, listobjcontent);
-      while (token != null && !token.isEmpty()) {
-         rslts =
-               vimPort.continueRetrievePropertiesEx(
-                     serviceContent.getPropertyCollector(), token);
-
-         token = populate(rslts, listobjcontent);
-      }
-
-      for (ObjectContent oc : listobjcontent) {
-         List<DynamicProperty> dps = oc.getPropSet();
-         Map<String, Object> propMap = new HashMap<String, Object>();
-         if (dps != null) {
-            for (DynamicProperty dp : dps) {
-               propMap.put(dp.getName(), dp.getVal());
-            }
+      // each page is turned into property maps and dropped before the next one is fetched
+      try (RetrieveResultIterator results = new RetrieveResultIterator(
+            vimPort, serviceContent.getPropertyCollector(), propertyFilterSpecs, new RetrieveOptions())) {
+         while (results.hasNext()) {
+            ObjectContent oc = results.next();
+            retVal.put(oc.getObj(), toPropMap(oc));
          }
-         retVal.put(oc.getObj(), propMap);
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         throw rethrow(e);
       }
       return retVal;
    }
@@ -0,0 +1,559 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.Connection;
+import com.vmware.connection.SessionLiveness;
+import com.vmware.connection.helpers.builders.ObjectSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertyFilterSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertySpecBuilder;
+import com.vmware.connection.helpers.builders.TraversalSpecBuilder;
+import com.vmware.vim25.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory copy of the inventory that is loaded once and then kept current with property collector deltas.
+ * <p/>
+ * GetMOREF crawls the inventory with retrievePropertiesEx on every lookup. This cache instead creates a
+ * ContainerView over the root folder, a private PropertyCollector and a single filter on the view. The first
+ * waitForUpdatesEx returns every object, later calls with the returned version only return what changed.
+ * Lookups by MoRef, by type and by name are then answered from hash maps without any round-trip.
+ * </p>
+ * <pre>
+ *     InventoryCache cache = new InventoryCache(connection, "VirtualMachine", "HostSystem");
+ *     cache.load();
+ *     cache.start();   // optional: follow changes in a background thread
+ *     ManagedObjectReference vm = cache.findByName("VirtualMachine", "my-vm");
+ * </pre>
+ * Without start() call {@link #sync()} whenever the cache should catch up; it never blocks on the server.
+ *
+ * @see GetMOREF
+ */
+public class InventoryCache extends BaseHelper {
+   public static final String NAME = "name";
+   public static final int DEFAULT_MAX_WAIT_SECONDS = 60;
+   public static final int DEFAULT_MAX_OBJECT_UPDATES = 1000;
+   private static final long MIN_RETRY_MILLIS = 1000;
+   private static final long MAX_RETRY_MILLIS = 60000;
+
+   private final Map<String, String[]> propertiesByType = new LinkedHashMap<String, String[]>();
+   // "type:value" -> cached object
+   private final ConcurrentHashMap<String, CachedObject> objects = new ConcurrentHashMap<String, CachedObject>();
+   // type -> cached objects of the type by "type:value" key
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, CachedObject>> objectsByType =
+         new ConcurrentHashMap<String, ConcurrentHashMap<String, CachedObject>>();
+   // type -> name -> "type:value" keys, names are not unique in vSphere
+   private final ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>> names =
+         new ConcurrentHashMap<String, ConcurrentHashMap<String, Set<String>>>();
+
+   private VimPortType vimPort;
+   private ServiceContent serviceContent;
+   private ManagedObjectReference containerView;
+   private ManagedObjectReference propertyCollector;
+   private volatile String version;
+   private volatile int updates;
+   private volatile Thread follower;
+
+   /**
+    * caches the name of every object of the given types
+    *
+    * @param connection a connection
+    * @param types      managed object types, e.g. "VirtualMachine", "HostSystem"
+    */
+   public InventoryCache(final Connection connection, final String... types) {
+      super(connection);
+      for (String type : types) {
+         propertiesByType.put(type, new String[]{NAME});
+      }
+   }
+
+   /**
+    * caches the given properties for the given type in addition to what is already cached, must be called
+    * before {@link #load()}. The name is always cached.
+    *
+    * @param type       managed object type
+    * @param properties property paths to keep current
+    * @return this cache, for method chaining
+    */
+   public InventoryCache withProperties(final String type, final String... properties) {
+      if (version != null) {
+         throw new IllegalStateException("properties must be added before the cache is loaded");
+      }
+      final Set<String> paths = new LinkedHashSet<String>();
+      paths.add(NAME);
+      if (propertiesByType.containsKey(type)) {
+         paths.addAll(Arrays.asList(propertiesByType.get(type)));
+      }
+      paths.addAll(Arrays.asList(properties));
+      propertiesByType.put(type, paths.toArray(new String[paths.size()]));
+      return this;
+   }
+
+   /**
+    * Creates the view, collector and filter and reads the full initial content. Loading again, e.g. after a new
+    * login, first destroys the view and collector of the previous load and drops its content.
+    *
+    * @return this cache, for method chaining
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidPropertyFaultMsg
+    * @throws InvalidCollectorVersionFaultMsg
+    */
+   public synchronized InventoryCache load()
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, InvalidCollectorVersionFaultMsg {
+      final boolean following = follower != null;
+      if (propertyCollector != null || containerView != null) {
+         // the session they belong to may be gone, so a fault here is no reason not to load
+         release();
+         objects.clear();
+         objectsByType.clear();
+         names.clear();
+      }
+      try {
+         vimPort = connection.connect().getVimPort();
+         serviceContent = connection.connect().getServiceContent();
+      } catch (Throwable cause) {
+         throw new HelperException(cause);
+      }
+
+      containerView = vimPort.createContainerView(
+            serviceContent.getViewManager(),
+            serviceContent.getRootFolder(),
+            new ArrayList<String>(propertiesByType.keySet()),
+            true);
+      // a private collector so our version numbers are not disturbed by other filters on the session
+      propertyCollector = vimPort.createPropertyCollector(serviceContent.getPropertyCollector());
+
+      PropertyFilterSpecBuilder spec = new PropertyFilterSpecBuilder()
+            .objectSet(
+                  new ObjectSpecBuilder()
+                        .obj(containerView)
+                        .skip(Boolean.TRUE)
+                        .selectSet(
+                              new TraversalSpecBuilder()
+                                    .name("view")
+                                    .path("view")
+                                    .skip(false)
+                                    .type("ContainerView")
+                        )
+            );
+      for (Map.Entry<String, String[]> entry : propertiesByType.entrySet()) {
+         spec.propSet(
+               new PropertySpecBuilder()
+                     .all(Boolean.FALSE)
+                     .type(entry.getKey())
+                     .pathSet(entry.getValue())
+         );
+      }
+      vimPort.createFilter(propertyCollector, spec, true);
+
+      version = "";
+      // the initial content may come in several truncated batches
+      while (poll(0)) {
+         // keep reading
+      }
+      if (following) {
+         start();
+      }
+      return this;
+   }
+
+   /**
+    * Applies every change the server has queued since the last call. Returns immediately when nothing changed,
+    * and does nothing while a background thread started with {@link #start()} is following the changes.
+    *
+    * @return number of objects that entered, changed or left
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidCollectorVersionFaultMsg
+    */
+   public synchronized int sync() throws RuntimeFaultFaultMsg, InvalidCollectorVersionFaultMsg {
+      assertLoaded();
+      if (follower != null) {
+         return 0;
+      }
+      int before = updates;
+      while (poll(0)) {
+         // keep reading
+      }
+      return updates - before;
+   }
+
+   /**
+    * one waitForUpdatesEx round-trip
+    *
+    * @return true if the server truncated the update set and more is waiting
+    */
+   private boolean poll(final int maxWaitSeconds) throws RuntimeFaultFaultMsg, InvalidCollectorVersionFaultMsg {
+      WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(maxWaitSeconds);
+      options.setMaxObjectUpdates(DEFAULT_MAX_OBJECT_UPDATES);
+      UpdateSet updateSet = vimPort.waitForUpdatesEx(propertyCollector, version, options);
+      if (updateSet == null) {
+         // maxWaitSeconds elapsed without any change
+         return false;
+      }
+      version = updateSet.getVersion();
+      for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+         for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+            apply(objectUpdate);
+            updates++;
+         }
+      }
+      return Boolean.TRUE.equals(updateSet.isTruncated());
+   }
+
+   private void apply(final ObjectUpdate objectUpdate) {
+      final ManagedObjectReference ref = objectUpdate.getObj();
+      final String key = key(ref);
+      if (objectUpdate.getKind() == ObjectUpdateKind.LEAVE) {
+         CachedObject gone = objects.remove(key);
+         if (gone != null) {
+            unindexName(gone);
+            final Map<String, CachedObject> ofType = objectsByType.get(ref.getType());
+            if (ofType != null) {
+               ofType.remove(key);
+            }
+         }
+         return;
+      }
+      CachedObject cached = objects.get(key);
+      if (cached == null) {
+         cached = new CachedObject(ref);
+         objects.put(key, cached);
+         ConcurrentHashMap<String, CachedObject> ofType = objectsByType.get(ref.getType());
+         if (ofType == null) {
+            objectsByType.putIfAbsent(ref.getType(), new ConcurrentHashMap<String, CachedObject>());
+            ofType = objectsByType.get(ref.getType());
+         }
+         ofType.put(key, cached);
+      }
+      for (PropertyChange change : objectUpdate.getChangeSet()) {
+         final boolean naming = NAME.equals(change.getName());
+         if (naming) {
+            unindexName(cached);
+         }
+         if (change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE) {
+            cached.properties.remove(change.getName());
+         } else if (change.getVal() == null) {
+            // an assign to an unset property
+            cached.properties.remove(change.getName());
+         } else {
+            // stored unwrapped and, for enums, decoded on read so the update loop does no more than a lookup
+            cached.properties.put(change.getName(), PropertyDecoder.value(change));
+         }
+         if (naming) {
+            indexName(cached);
+         }
+      }
+   }
+
+   private void indexName(final CachedObject cached) {
+      final Object name = cached.properties.get(NAME);
+      if (name == null) {
+         return;
+      }
+      ConcurrentHashMap<String, Set<String>> byName = names.get(cached.ref.getType());
+      if (byName == null) {
+         names.putIfAbsent(cached.ref.getType(), new ConcurrentHashMap<String, Set<String>>());
+         byName = names.get(cached.ref.getType());
+      }
+      Set<String> keys = byName.get(name.toString());
+      if (keys == null) {
+         byName.putIfAbsent(name.toString(), Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+         keys = byName.get(name.toString());
+      }
+      keys.add(key(cached.ref));
+   }
+
+   private void unindexName(final CachedObject cached) {
+      final Object name = cached.properties.get(NAME);
+      final Map<String, Set<String>> byName = names.get(cached.ref.getType());
+      if (name == null || byName == null) {
+         return;
+      }
+      final Set<String> keys = byName.get(name.toString());
+      if (keys != null) {
+         keys.remove(key(cached.ref));
+         if (keys.isEmpty()) {
+            byName.remove(name.toString(), keys);
+         }
+      }
+   }
+
+   /**
+    * Follows changes in a daemon thread that long-polls the server, so lookups always see a recent inventory.
+    * The maps are concurrent, lookups never wait for the long poll. A failed poll is retried with a growing pause;
+    * when the collector was lost with the session or its version is no longer valid, the cache is loaded again.
+    */
+   public synchronized void start() {
+      assertLoaded();
+      if (follower != null) {
+         return;
+      }
+      follower = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            final Thread me = Thread.currentThread();
+            boolean reload = false;
+            long pause = MIN_RETRY_MILLIS;
+            while (follower == me) {
+               try {
+                  if (reload) {
+                     reload(me);
+                     // a successful load hands the following over to a new thread
+                     reload = false;
+                     continue;
+                  }
+                  poll(DEFAULT_MAX_WAIT_SECONDS);
+                  pause = MIN_RETRY_MILLIS;
+               } catch (Exception e) {
+                  // close() cancels the wait
+                  if (follower != me) {
+                     return;
+                  }
+                  reload = reload || SessionLiveness.isSessionObjectLost(e)
+                        || e instanceof InvalidCollectorVersionFaultMsg;
+                  System.err.println("inventory cache could not follow updates, retrying in " + pause + "ms: " + e);
+                  try {
+                     Thread.sleep(pause);
+                  } catch (InterruptedException interrupted) {
+                     return;
+                  }
+                  pause = Math.min(pause * 2, MAX_RETRY_MILLIS);
+               }
+            }
+         }
+      }, "inventory-cache");
+      follower.setDaemon(true);
+      follower.start();
+   }
+
+   /**
+    * loads again from the follower thread, which stays the follower if the load fails
+    */
+   private synchronized void reload(final Thread me)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, InvalidCollectorVersionFaultMsg {
+      if (follower != me) {
+         return;
+      }
+      try {
+         load();
+      } finally {
+         if (follower == null) {
+            follower = me;
+         }
+      }
+   }
+
+   /**
+    * stops following changes and destroys the server side view and collector
+    */
+   public synchronized void close() {
+      final RuntimeFaultFaultMsg fault = release();
+      if (fault != null) {
+         throw new HelperException(fault);
+      }
+   }
+
+   /**
+    * @return the first fault destroying the view or collector, each is destroyed regardless
+    */
+   private RuntimeFaultFaultMsg release() {
+      final Thread running = follower;
+      follower = null;
+      RuntimeFaultFaultMsg fault = null;
+      if (running != null && propertyCollector != null) {
+         try {
+            vimPort.cancelWaitForUpdates(propertyCollector);
+         } catch (RuntimeFaultFaultMsg e) {
+            fault = e;
+         }
+      }
+      if (propertyCollector != null) {
+         try {
+            vimPort.destroyPropertyCollector(propertyCollector);
+         } catch (RuntimeFaultFaultMsg e) {
+            fault = fault == null ? e : fault;
+         }
+      }
+      if (containerView != null) {
+         try {
+            vimPort.destroyView(containerView);
+         } catch (RuntimeFaultFaultMsg e) {
+            fault = fault == null ? e : fault;
+         }
+      }
+      propertyCollector = null;
+      containerView = null;
+      version = null;
+      return fault;
+   }
+
+   /**
+    * @param ref a managed object reference
+    * @return the cached properties of the object, null if it is not in the cache
+    */
+   public Map<String, Object> get(final ManagedObjectReference ref) {
+      final CachedObject cached = objects.get(key(ref));
+      return cached == null ? null : Collections.unmodifiableMap(cached.properties);
+   }
+
+   /**
+    * @param ref      a managed object reference
+    * @param property a cached property path
+    * @return the cached value, null if the object or property is not cached
+    */
+   public Object getProperty(final ManagedObjectReference ref, final String property) {
+      final CachedObject cached = objects.get(key(ref));
+      return cached == null ? null : cached.properties.get(property);
+   }
+
+   /**
+    * @param ref      a managed object reference
+    * @param property a cached property path
+    * @param type     the expected type, enums are decoded even when the server sent them untyped
+    * @param <T>      expected type
+    * @return the cached value, null if the object or property is not cached
+    * @see PropertyDecoder#as(Object, Class)
+    */
+   public <T> T getProperty(final ManagedObjectReference ref, final String property, final Class<T> type) {
+      return PropertyDecoder.as(getProperty(ref, property), type);
+   }
+
+   /**
+    * @param type managed object type
+    * @param name entity name
+    * @return an object of that type and name, null if there is none. If several objects share the name any of
+    * them may be returned, use {@link #findAllByName(String, String)} to see them all.
+    */
+   public ManagedObjectReference findByName(final String type, final String name) {
+      final Map<String, Set<String>> byName = names.get(type);
+      if (byName == null) {
+         return null;
+      }
+      final Set<String> keys = byName.get(name);
+      if (keys == null) {
+         return null;
+      }
+      for (String key : keys) {
+         CachedObject cached = objects.get(key);
+         if (cached != null) {
+            return cached.ref;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * @param type managed object type
+    * @param name entity name
+    * @return every object of that type with that name, empty if there is none
+    */
+   public List<ManagedObjectReference> findAllByName(final String type, final String name) {
+      final List<ManagedObjectReference> found = new ArrayList<ManagedObjectReference>();
+      final Map<String, Set<String>> byName = names.get(type);
+      final Set<String> keys = byName == null ? null : byName.get(name);
+      if (keys != null) {
+         for (String key : keys) {
+            CachedObject cached = objects.get(key);
+            if (cached != null) {
+               found.add(cached.ref);
+            }
+         }
+      }
+      return found;
+   }
+
+   /**
+    * @param type managed object type
+    * @return name to MoRef for every cached object of the type, the same shape GetMOREF.inContainerByType returns
+    */
+   public Map<String, ManagedObjectReference> byType(final String type) {
+      final Map<String, ManagedObjectReference> result = new HashMap<String, ManagedObjectReference>();
+      final Map<String, CachedObject> ofType = objectsByType.get(type);
+      if (ofType != null) {
+         for (CachedObject cached : ofType.values()) {
+            Object name = cached.properties.get(NAME);
+            result.put(name == null ? null : name.toString(), cached.ref);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Bulk property read served from memory.
+    *
+    * @param refs       objects to read
+    * @param properties cached property paths to return
+    * @return property map for every object found in the cache, by {@link #key} of its MoRef
+    */
+   public Map<String, Map<String, Object>> properties(
+         final Collection<ManagedObjectReference> refs, final String... properties) {
+      final Map<String, Map<String, Object>> result = new LinkedHashMap<String, Map<String, Object>>();
+      for (ManagedObjectReference ref : refs) {
+         final CachedObject cached = objects.get(key(ref));
+         if (cached == null) {
+            continue;
+         }
+         final Map<String, Object> values = new HashMap<String, Object>();
+         for (String property : properties) {
+            Object value = cached.properties.get(property);
+            if (value != null) {
+               values.put(property, value);
+            }
+         }
+         result.put(key(cached.ref), values);
+      }
+      return result;
+   }
+
+   /**
+    * @return number of cached objects
+    */
+   public int size() {
+      return objects.size();
+   }
+
+   /**
+    * @return the property collector version the cache is current with, null before load
+    */
+   public String getVersion() {
+      return version;
+   }
+
+   private void assertLoaded() {
+      if (version == null) {
+         throw new IllegalStateException("the inventory cache has not been loaded");
+      }
+   }
+
+   /**
+    * ManagedObjectReference has no equals or hashCode, so references are keyed by type and value
+    *
+    * @param ref a managed object reference
+    * @return a string that identifies the reference
+    */
+   public static String key(final ManagedObjectReference ref) {
+      return ref.getType() + ":" + ref.getValue();
+   }
+
+   private static class CachedObject {
+      final ManagedObjectReference ref;
+      final ConcurrentHashMap<String, Object> properties = new ConcurrentHashMap<String, Object>();
+
+      CachedObject(final ManagedObjectReference ref) {
+         this.ref = ref;
+      }
+   }
+}
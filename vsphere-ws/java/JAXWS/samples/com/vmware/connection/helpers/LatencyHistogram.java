@@ -0,0 +1,90 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+/**
+ * Counts durations in fixed buckets from 10 ms to 30 minutes, roughly three per power of ten, so percentiles of
+ * task times can be told without keeping every duration. Percentiles are the upper bound of the bucket they fall
+ * in, the maximum for the last one.
+ */
+public class LatencyHistogram {
+   private static final long[] BOUNDS = {
+         10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 60000, 150000, 300000, 600000, 1800000
+   };
+
+   private final long[] counts = new long[BOUNDS.length + 1];
+   private long count;
+   private long sum;
+   private long max;
+
+   /**
+    * @param millis a duration, negative ones count as 0
+    */
+   public synchronized void record(final long millis) {
+      final long value = Math.max(0, millis);
+      int bucket = 0;
+      while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+         bucket++;
+      }
+      counts[bucket]++;
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+   }
+
+   /**
+    * @return durations recorded
+    */
+   public synchronized long getCount() {
+      return count;
+   }
+
+   /**
+    * @return mean duration in milliseconds, 0 if none was recorded
+    */
+   public synchronized long getMean() {
+      return count == 0 ? 0 : sum / count;
+   }
+
+   /**
+    * @return longest duration in milliseconds
+    */
+   public synchronized long getMax() {
+      return max;
+   }
+
+   /**
+    * @param percentile between 0 and 100
+    * @return duration in milliseconds that percentile of the recorded ones did not exceed, 0 if none was recorded
+    */
+   public synchronized long getPercentile(final double percentile) {
+      if (count == 0) {
+         return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BOUNDS.length; i++) {
+         seen += counts[i];
+         if (seen >= rank) {
+            return Math.min(BOUNDS[i], max);
+         }
+      }
+      return max;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "n=" + count + " mean=" + getMean() + "ms p50=" + getPercentile(50) + "ms p95=" + getPercentile(95)
+            + "ms p99=" + getPercentile(99) + "ms max=" + max + "ms";
+   }
+}
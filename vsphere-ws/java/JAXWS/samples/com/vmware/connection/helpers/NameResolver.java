@@ -0,0 +1,300 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.Connection;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Resolves many names, or inventory paths, to managed object references with one inventory retrieval.
+ * <p/>
+ * Resolving names one at a time with {@link GetMOREF#vmByVMname} or a per sample getHostByHostName walks the
+ * whole inventory for every name. Here the objects of the type are streamed once from a ContainerView on the
+ * root folder, one page at a time, and joined against a hash set of the wanted names, so 5,000 names cost the
+ * same single retrieval as one.
+ * </p>
+ * An input containing '/' is an inventory path in the form {@link com.vmware.vim25.VimPortType#findByInventoryPath}
+ * uses, e.g. <code>dc1/vm/web/web-01</code> or <code>dc1/host/cluster1/esx-01.example.com</code>. Paths need the
+ * name and parent of every entity, so when any path is given the single retrieval covers all managed entities.
+ * Virtual machines in a vApp have no parent but a parentVApp, which takes a second retrieval over the virtual
+ * machines only if there are such.
+ * <pre>
+ *     NameResolver.Resolution vms = new NameResolver(connection).resolve("VirtualMachine", names);
+ *     for (String miss : vms.getMisses()) ...
+ *     for (Map.Entry&lt;String, List&lt;ManagedObjectReference&gt;&gt; dup : vms.getDuplicates().entrySet()) ...
+ * </pre>
+ */
+public class NameResolver extends BaseHelper {
+   public static final int DEFAULT_PAGE_SIZE = 1000;
+
+   private static final String MANAGED_ENTITY = "ManagedEntity";
+   private static final String VIRTUAL_MACHINE = "VirtualMachine";
+   // types whose subtypes should match too, everything else is matched exactly
+   private static final Map<String, List<String>> SUBTYPES = new HashMap<String, List<String>>();
+
+   static {
+      SUBTYPES.put("ComputeResource", Arrays.asList("ClusterComputeResource"));
+      SUBTYPES.put("ResourcePool", Arrays.asList("VirtualApp"));
+   }
+
+   private final GetMOREF getMOREFs;
+   private int pageSize = DEFAULT_PAGE_SIZE;
+
+   public NameResolver(final Connection connection) {
+      super(connection);
+      getMOREFs = new GetMOREF(connection);
+   }
+
+   /**
+    * @param pageSize objects per retrieval page
+    * @return this resolver, for method chaining
+    */
+   public NameResolver pageSize(final int pageSize) {
+      this.pageSize = pageSize;
+      return this;
+   }
+
+   /**
+    * @param type  managed object type, e.g. "VirtualMachine" or "HostSystem"
+    * @param names names or inventory paths, duplicates in the input are looked up once
+    * @return what each name resolved to, and which names missed or matched several objects
+    * @throws RuntimeFaultFaultMsg
+    */
+   public Resolution resolve(final String type, final Collection<String> names) throws RuntimeFaultFaultMsg {
+      final Set<String> wanted = new LinkedHashSet<String>(names);
+      boolean paths = false;
+      for (String name : wanted) {
+         if (name.indexOf('/') >= 0) {
+            paths = true;
+            break;
+         }
+      }
+      final ManagedObjectReference rootFolder = connection.getServiceContent().getRootFolder();
+      final Map<String, List<ManagedObjectReference>> matches = new HashMap<String, List<ManagedObjectReference>>();
+
+      if (!paths) {
+         try (Stream<ObjectContent> objects = getMOREFs.stream(rootFolder, type, pageSize, "name")) {
+            objects.forEach(oc -> {
+               final String name = (String) property(oc, "name");
+               if (wanted.contains(name)) {
+                  match(matches, name, oc.getObj());
+               }
+            });
+         } catch (RetrieveResultIterator.RetrievalException e) {
+            throw rethrow(e);
+         }
+      } else {
+         // one pass over every entity, remember name and parent so paths can be built afterwards
+         final Map<String, Node> nodes = new HashMap<String, Node>();
+         final List<Node> candidates = new ArrayList<Node>();
+         final List<Node> orphans = new ArrayList<Node>();
+         try (Stream<ObjectContent> objects =
+                    getMOREFs.stream(rootFolder, MANAGED_ENTITY, pageSize, "name", "parent")) {
+            objects.forEach(oc -> {
+               final Node node = new Node(oc.getObj(),
+                     (String) property(oc, "name"), (ManagedObjectReference) property(oc, "parent"));
+               nodes.put(InventoryCache.key(oc.getObj()), node);
+               if (isA(oc.getObj().getType(), type)) {
+                  candidates.add(node);
+                  if (node.parent == null && VIRTUAL_MACHINE.equals(oc.getObj().getType())) {
+                     orphans.add(node);
+                  }
+               }
+            });
+         } catch (RetrieveResultIterator.RetrievalException e) {
+            throw rethrow(e);
+         }
+         if (!orphans.isEmpty()) {
+            // virtual machines in a vApp, parentVApp is only defined on VirtualMachine
+            try (Stream<ObjectContent> objects =
+                       getMOREFs.stream(rootFolder, VIRTUAL_MACHINE, pageSize, "parentVApp")) {
+               objects.forEach(oc -> {
+                  final Node node = nodes.get(InventoryCache.key(oc.getObj()));
+                  if (node != null && node.parent == null) {
+                     node.parent = (ManagedObjectReference) property(oc, "parentVApp");
+                  }
+               });
+            } catch (RetrieveResultIterator.RetrievalException e) {
+               throw rethrow(e);
+            }
+         }
+         for (Node node : candidates) {
+            // a bare name is matched on the name, a path on the full path
+            if (wanted.contains(node.name)) {
+               match(matches, node.name, node.ref);
+            }
+            final String path = node.path(nodes);
+            if (path != null && wanted.contains(path)) {
+               match(matches, path, node.ref);
+            }
+         }
+      }
+
+      final Resolution resolution = new Resolution();
+      for (String name : wanted) {
+         final List<ManagedObjectReference> found = matches.get(name);
+         if (found == null) {
+            resolution.misses.add(name);
+         } else if (found.size() == 1) {
+            resolution.resolved.put(name, found.get(0));
+         } else {
+            resolution.duplicates.put(name, Collections.unmodifiableList(found));
+         }
+      }
+      return resolution;
+   }
+
+   private static void match(
+         final Map<String, List<ManagedObjectReference>> matches, final String name, final ManagedObjectReference ref) {
+      List<ManagedObjectReference> found = matches.get(name);
+      if (found == null) {
+         found = new ArrayList<ManagedObjectReference>(1);
+         matches.put(name, found);
+      }
+      found.add(ref);
+   }
+
+   /**
+    * unwraps the fault a RetrieveResultIterator hit so callers see the RuntimeFaultFaultMsg resolve declares
+    */
+   private static RuntimeException rethrow(final RetrieveResultIterator.RetrievalException e)
+         throws RuntimeFaultFaultMsg {
+      if (e.getCause() instanceof RuntimeFaultFaultMsg) {
+         throw (RuntimeFaultFaultMsg) e.getCause();
+      }
+      return e;
+   }
+
+   private static Object property(final ObjectContent oc, final String name) {
+      if (oc.getPropSet() != null) {
+         for (DynamicProperty dp : oc.getPropSet()) {
+            if (name.equals(dp.getName())) {
+               return dp.getVal();
+            }
+         }
+      }
+      return null;
+   }
+
+   private static boolean isA(final String actual, final String type) {
+      if (actual.equals(type) || MANAGED_ENTITY.equals(type)) {
+         return true;
+      }
+      final List<String> subtypes = SUBTYPES.get(type);
+      return subtypes != null && subtypes.contains(actual);
+   }
+
+   /**
+    * name and parent of one entity, the path is built on demand and remembered
+    */
+   private static class Node {
+      final ManagedObjectReference ref;
+      final String name;
+      // the parentVApp for a virtual machine in a vApp
+      ManagedObjectReference parent;
+      String path;
+
+      Node(final ManagedObjectReference ref, final String name, final ManagedObjectReference parent) {
+         this.ref = ref;
+         this.name = name;
+         this.parent = parent;
+      }
+
+      /**
+       * @return the path from below the root folder, null for the root folder itself
+       */
+      String path(final Map<String, Node> nodes) {
+         if (path == null && parent != null) {
+            final Node up = nodes.get(InventoryCache.key(parent));
+            final String prefix = up == null ? null : up.path(nodes);
+            path = prefix == null ? name : prefix + "/" + name;
+         }
+         return path;
+      }
+   }
+
+   /**
+    * the outcome of one {@link #resolve} call
+    */
+   public static class Resolution {
+      private final Map<String, ManagedObjectReference> resolved = new LinkedHashMap<String, ManagedObjectReference>();
+      private final Set<String> misses = new LinkedHashSet<String>();
+      private final Map<String, List<ManagedObjectReference>> duplicates =
+            new LinkedHashMap<String, List<ManagedObjectReference>>();
+
+      /**
+       * @param name a name that was asked for
+       * @return the only object with that name, null if it missed or is a duplicate
+       */
+      public ManagedObjectReference get(final String name) {
+         return resolved.get(name);
+      }
+
+      /**
+       * @return names that matched exactly one object
+       */
+      public Map<String, ManagedObjectReference> getResolved() {
+         return Collections.unmodifiableMap(resolved);
+      }
+
+      /**
+       * @return names that matched nothing
+       */
+      public Set<String> getMisses() {
+         return Collections.unmodifiableSet(misses);
+      }
+
+      /**
+       * @return names shared by several objects, with all of them
+       */
+      public Map<String, List<ManagedObjectReference>> getDuplicates() {
+         return Collections.unmodifiableMap(duplicates);
+      }
+
+      public boolean isComplete() {
+         return misses.isEmpty() && duplicates.isEmpty();
+      }
+
+      @Override
+      public String toString() {
+         final StringBuilder text = new StringBuilder();
+         text.append(resolved.size()).append(" resolved, ")
+               .append(misses.size()).append(" missing, ")
+               .append(duplicates.size()).append(" duplicate");
+         final Iterator<String> missing = misses.iterator();
+         for (int i = 0; i < 5 && missing.hasNext(); i++) {
+            text.append(i == 0 ? "; missing: " : ", ").append(missing.next());
+         }
+         if (misses.size() > 5) {
+            text.append(", ...");
+         }
+         return text.toString();
+      }
+   }
+}
@@ -0,0 +1,453 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.AsyncVimPort;
+import com.vmware.connection.Connection;
+import com.vmware.connection.helpers.builders.ObjectSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertyFilterSpecBuilder;
+import com.vmware.connection.helpers.builders.PropertySpecBuilder;
+import com.vmware.connection.helpers.builders.TraversalSpecBuilder;
+import com.vmware.vim25.*;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Retrieves every object of one type by splitting the inventory into shards and fetching the pages of all the
+ * shards at the same time.
+ * <p/>
+ * {@link GetMOREF#inFolderByType} and {@link RetrieveResultIterator} walk a single result, so each
+ * continueRetrievePropertiesEx waits for the round-trip of the one before it. Here each shard, by default one per
+ * datacenter, gets its own ContainerView and its own PropertyCollector from createPropertyCollector, so the
+ * shards have independent result tokens and their pages can be requested concurrently. At most
+ * <code>parallelism</code> round-trips run at once; as soon as a page arrives the next page of that shard is
+ * requested, so the network is kept busy while the caller processes what has already arrived. Pages are
+ * merged into one Stream in arrival order, no ordering between shards is implied.
+ * </p>
+ * <pre>
+ *     ParallelRetriever retriever = new ParallelRetriever(connection, "VirtualMachine", "name")
+ *           .parallelism(4).pageSize(500);
+ *     try (Stream&lt;ObjectContent&gt; vms = retriever.stream()) {
+ *         vms.forEach(oc -&gt; ...);
+ *     }
+ *     System.out.println(retriever.getStatistics());
+ * </pre>
+ * To bound memory, no more than twice <code>parallelism</code> pages are buffered ahead of the caller; a shard
+ * whose page would overflow the buffer waits until the caller catches up. Reading the stream to its end or
+ * closing it cancels pending results and destroys the views and collectors the shards created.
+ */
+public class ParallelRetriever extends BaseHelper {
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int DEFAULT_PAGE_SIZE = 500;
+
+   private final String type;
+   private final String[] properties;
+   private int parallelism = Integer.getInteger("retrieve.parallelism", DEFAULT_PARALLELISM);
+   private int pageSize = Integer.getInteger("retrieve.pageSize", DEFAULT_PAGE_SIZE);
+   private Statistics statistics = new Statistics();
+
+   /**
+    * @param connection a connection
+    * @param type       managed object type to retrieve, e.g. "VirtualMachine"
+    * @param properties property paths to retrieve for each object
+    */
+   public ParallelRetriever(final Connection connection, final String type, final String... properties) {
+      super(connection);
+      this.type = type;
+      this.properties = properties;
+   }
+
+   /**
+    * @param parallelism maximum number of round-trips in flight at once
+    * @return this retriever, for method chaining
+    */
+   public ParallelRetriever parallelism(final int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be at least 1");
+      }
+      this.parallelism = parallelism;
+      return this;
+   }
+
+   /**
+    * @param pageSize maxObjects for each retrieve round-trip
+    * @return this retriever, for method chaining
+    */
+   public ParallelRetriever pageSize(final int pageSize) {
+      if (pageSize < 1) {
+         throw new IllegalArgumentException("pageSize must be at least 1");
+      }
+      this.pageSize = pageSize;
+      return this;
+   }
+
+   /**
+    * Shards the inventory by datacenter. Falls back to the root folder as a single shard when there is no
+    * datacenter, as on a host connection.
+    *
+    * @return the merged stream, close it when done
+    */
+   public Stream<ObjectContent> stream() {
+      final ServiceContent serviceContent = connection.getServiceContent();
+      final List<ManagedObjectReference> shards = new ArrayList<ManagedObjectReference>();
+      // by reference, not through a map keyed by name, two datacenters in different folders may share a name
+      try (Stream<ObjectContent> datacenters = new GetMOREF(connection)
+            .stream(serviceContent.getRootFolder(), "Datacenter", pageSize)) {
+         datacenters.forEach(oc -> shards.add(oc.getObj()));
+      } catch (RuntimeFaultFaultMsg e) {
+         throw new HelperException(e);
+      } catch (RetrieveResultIterator.RetrievalException e) {
+         throw new HelperException(e.getCause());
+      }
+      if (shards.isEmpty()) {
+         shards.add(serviceContent.getRootFolder());
+      }
+      return stream(shards);
+   }
+
+   /**
+    * Retrieves from each of the given containers in its own shard. The containers should not overlap, an
+    * object reachable from two of them is returned twice.
+    *
+    * @param containers folders, datacenters, clusters or resource pools
+    * @return the merged stream, close it when done
+    */
+   public Stream<ObjectContent> stream(final List<ManagedObjectReference> containers) {
+      final Merger merger = new Merger(containers);
+      merger.start();
+      return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(merger, Spliterator.NONNULL), false)
+            .onClose(merger::close);
+   }
+
+   /**
+    * @return figures of the most recent stream, complete once it has been read to the end
+    */
+   public Statistics getStatistics() {
+      return statistics;
+   }
+
+   /**
+    * throughput of one retrieval, from the start of the stream to its last page
+    */
+   public static class Statistics {
+      private final AtomicLong objects = new AtomicLong();
+      private final AtomicLong pages = new AtomicLong();
+      private final long started = System.nanoTime();
+      private volatile long finished;
+      private volatile int shards;
+
+      public long getObjects() {
+         return objects.get();
+      }
+
+      public long getPages() {
+         return pages.get();
+      }
+
+      public int getShards() {
+         return shards;
+      }
+
+      /**
+       * @return time from the start of the stream until the last page arrived, or until now if still running
+       */
+      public long getElapsedMillis() {
+         final long end = finished != 0 ? finished : System.nanoTime();
+         return (end - started) / 1000000L;
+      }
+
+      public double getObjectsPerSecond() {
+         final long end = finished != 0 ? finished : System.nanoTime();
+         final long nanos = end - started;
+         return nanos > 0 ? objects.get() * 1e9 / nanos : 0;
+      }
+
+      @Override
+      public String toString() {
+         return String.format("%d objects in %d pages from %d shards in %d ms, %.1f objects/s",
+               getObjects(), getPages(), getShards(), getElapsedMillis(), getObjectsPerSecond());
+      }
+   }
+
+   private static final Object END = new Object();
+
+   /**
+    * Drives the shards and hands their pages to the consuming thread. Callbacks run on the AsyncVimPort
+    * executor, the iterator side runs on the caller.
+    */
+   private class Merger implements Iterator<ObjectContent>, Closeable {
+      private final AsyncVimPort async = new AsyncVimPort(connection, AsyncVimPort.sharedExecutor(), parallelism);
+      private final List<Shard> shards = new ArrayList<Shard>();
+      // RetrieveResult pages, Throwable faults and one END marker per finished shard
+      private final BlockingQueue<Object> arrived = new LinkedBlockingQueue<Object>();
+      // shards holding a token whose next page would not fit the buffer yet
+      private final Queue<Shard> parked = new ArrayDeque<Shard>();
+      private final int maxBuffered = parallelism * 2;
+      private final Statistics statistics = new Statistics();
+      private Iterator<ObjectContent> page = Collections.<ObjectContent>emptyList().iterator();
+      // pages in arrived, the markers and faults do not count against maxBuffered
+      private int buffered;
+      private int running;
+      private boolean closed;
+
+      Merger(final List<ManagedObjectReference> containers) {
+         for (ManagedObjectReference container : containers) {
+            shards.add(new Shard(this, container));
+         }
+         running = shards.size();
+         statistics.shards = shards.size();
+         ParallelRetriever.this.statistics = statistics;
+      }
+
+      void start() {
+         for (Shard shard : shards) {
+            shard.first();
+         }
+      }
+
+      /**
+       * called by a shard when a page has arrived
+       */
+      void arrived(final Shard shard, final RetrieveResult result) {
+         statistics.pages.incrementAndGet();
+         statistics.objects.addAndGet(result.getObjects().size());
+         shard.token = result.getToken();
+         final boolean more;
+         synchronized (this) {
+            more = shard.token != null && !closed;
+            arrived.add(result);
+            buffered++;
+            if (more) {
+               // prefetch while the caller works through what has arrived, unless it is too far behind
+               if (buffered < maxBuffered) {
+                  shard.next();
+               } else {
+                  parked.add(shard);
+               }
+            }
+         }
+         if (!more) {
+            arrived.add(END);
+         }
+      }
+
+      void failed(final Throwable cause) {
+         arrived.add(cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+         arrived.add(END);
+      }
+
+      @Override
+      public boolean hasNext() {
+         while (!page.hasNext()) {
+            if (running == 0) {
+               if (statistics.finished == 0) {
+                  statistics.finished = System.nanoTime();
+               }
+               // a stream read to the end need not be closed to release the server side objects
+               close();
+               return false;
+            }
+            final Object next;
+            try {
+               next = arrived.take();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new RetrieveResultIterator.RetrievalException(e);
+            }
+            if (next == END) {
+               running--;
+            } else if (next instanceof Throwable) {
+               close();
+               throw new RetrieveResultIterator.RetrievalException((Throwable) next);
+            } else {
+               page = ((RetrieveResult) next).getObjects().iterator();
+               resume();
+            }
+         }
+         return true;
+      }
+
+      @Override
+      public ObjectContent next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         return page.next();
+      }
+
+      /**
+       * a page left the buffer, let a waiting shard fetch again
+       */
+      private synchronized void resume() {
+         buffered--;
+         final Shard shard = parked.poll();
+         if (shard != null && !closed) {
+            shard.next();
+         }
+      }
+
+      /**
+       * Waits for the round-trips already running, then cancels unread results and removes the server side
+       * views and collectors. Safe to call more than once.
+       */
+      @Override
+      public void close() {
+         synchronized (this) {
+            if (closed) {
+               return;
+            }
+            // from here on no shard queues another page
+            closed = true;
+         }
+         RuntimeException failure = null;
+         for (Shard shard : shards) {
+            try {
+               shard.cleanup();
+            } catch (RuntimeException e) {
+               if (failure == null) {
+                  failure = e;
+               }
+            }
+         }
+         if (failure != null) {
+            throw failure;
+         }
+      }
+   }
+
+   /**
+    * one container with its own view, collector and result token
+    */
+   private class Shard {
+      private final Merger merger;
+      private final ManagedObjectReference container;
+      private volatile ManagedObjectReference view;
+      private volatile ManagedObjectReference collector;
+      private volatile String token;
+      // completes once the callback of the latest round-trip has run
+      private volatile CompletableFuture<Void> current;
+
+      Shard(final Merger merger, final ManagedObjectReference container) {
+         this.merger = merger;
+         this.container = container;
+      }
+
+      /**
+       * creates the view and collector and retrieves the first page in a single queued call
+       */
+      void first() {
+         final ServiceContent serviceContent = connection.getServiceContent();
+         track(merger.async.submit(vimPort -> {
+            view = vimPort.createContainerView(
+                  serviceContent.getViewManager(), container, Arrays.asList(type), true);
+            collector = vimPort.createPropertyCollector(serviceContent.getPropertyCollector());
+            final PropertyFilterSpec spec = new PropertyFilterSpecBuilder()
+                  .propSet(
+                        new PropertySpecBuilder()
+                              .all(Boolean.FALSE)
+                              .type(type)
+                              .pathSet(properties)
+                  )
+                  .objectSet(
+                        new ObjectSpecBuilder()
+                              .obj(view)
+                              .skip(Boolean.TRUE)
+                              .selectSet(
+                                    new TraversalSpecBuilder()
+                                          .name("view")
+                                          .path("view")
+                                          .skip(false)
+                                          .type("ContainerView")
+                              )
+                  );
+            return vimPort.retrievePropertiesEx(
+                  collector, Arrays.asList(spec), RetrieveResultIterator.pageSize(pageSize));
+         }));
+      }
+
+      void next() {
+         track(merger.async.continueRetrievePropertiesEx(collector, token));
+      }
+
+      private void track(final CompletableFuture<RetrieveResult> future) {
+         // cleanup joins this, so the callback has recorded the token before the shard is torn down. It is set
+         // before the callback is attached: on a future already complete the callback runs right here and may
+         // track the next page, whose completion must not be overwritten by this one's.
+         final CompletableFuture<Void> handled = new CompletableFuture<Void>();
+         current = handled;
+         future.whenComplete((result, fault) -> {
+            try {
+               if (fault != null) {
+                  merger.failed(fault);
+               } else if (result == null) {
+                  // an empty container
+                  merger.arrived.add(END);
+               } else {
+                  merger.arrived(this, result);
+               }
+            } finally {
+               handled.complete(null);
+            }
+         });
+      }
+
+      void cleanup() {
+         final CompletableFuture<Void> last = current;
+         if (last != null) {
+            try {
+               last.join();
+            } catch (RuntimeException e) {
+               // already reported to the caller
+            }
+         }
+         final VimPortType vimPort = connection.getVimPort();
+         try {
+            if (token != null) {
+               vimPort.cancelRetrievePropertiesEx(collector, token);
+            }
+            if (collector != null) {
+               vimPort.destroyPropertyCollector(collector);
+            }
+            if (view != null) {
+               vimPort.destroyView(view);
+            }
+         } catch (InvalidPropertyFaultMsg e) {
+            throw new HelperException(e);
+         } catch (RuntimeFaultFaultMsg e) {
+            throw new HelperException(e);
+         } finally {
+            token = null;
+            collector = null;
+            view = null;
+         }
+      }
+   }
+}
@@ -0,0 +1,191 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.PropertyChange;
+import org.w3c.dom.Element;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the values of DynamicProperty and PropertyChange into the types callers expect.
+ * <p/>
+ * Two shapes need help. Array valued properties arrive wrapped in an <code>ArrayOfXXX</code> holder whose single
+ * getter returns the list. Enum valued properties sometimes arrive as a bare DOM Element when the server omits
+ * the xsi:type, so JAX-WS cannot bind them. The accessor for each ArrayOf class and the value table for each
+ * enum are looked up once per class, on first use, and cached in a {@link ClassValue}, so decoding inside an
+ * update loop costs a map lookup rather than reflection or string scanning.
+ * </p>
+ * <pre>
+ *     List&lt;ManagedObjectReference&gt; hosts = PropertyDecoder.list(dp.getVal(), ManagedObjectReference.class);
+ *     HttpNfcLeaseState state = PropertyDecoder.as(change.getVal(), HttpNfcLeaseState.class);
+ * </pre>
+ */
+public class PropertyDecoder {
+   private static final String ARRAY_OF = "ArrayOf";
+
+   private PropertyDecoder() {
+   }
+
+   /**
+    * the getter of an ArrayOfXXX holder, or null for any other class
+    */
+   private static final ClassValue<MethodHandle> ARRAY_ACCESSORS = new ClassValue<MethodHandle>() {
+      @Override
+      protected MethodHandle computeValue(final Class<?> type) {
+         if (!type.getSimpleName().startsWith(ARRAY_OF)) {
+            return null;
+         }
+         // ArrayOfManagedObjectReference.getManagedObjectReference(), ArrayOfInt.getInt() and so on
+         for (Method method : type.getDeclaredMethods()) {
+            if (Modifier.isPublic(method.getModifiers())
+                  && method.getParameterTypes().length == 0
+                  && List.class.isAssignableFrom(method.getReturnType())) {
+               try {
+                  return MethodHandles.publicLookup().unreflect(method);
+               } catch (IllegalAccessException e) {
+                  throw new IllegalStateException("cannot read " + type.getName(), e);
+               }
+            }
+         }
+         return null;
+      }
+   };
+
+   /**
+    * wire value to constant of a vim25 enum, keyed by both the WSDL value and the constant name
+    */
+   private static final ClassValue<Map<String, Object>> ENUM_VALUES = new ClassValue<Map<String, Object>>() {
+      @Override
+      protected Map<String, Object> computeValue(final Class<?> type) {
+         final Map<String, Object> values = new HashMap<String, Object>();
+         Method value = null;
+         try {
+            value = type.getMethod("value");
+         } catch (NoSuchMethodException e) {
+            // not generated from the WSDL, the constant names are all there is
+         }
+         for (Object constant : type.getEnumConstants()) {
+            values.put(((Enum<?>) constant).name().toLowerCase(), constant);
+            if (value != null) {
+               try {
+                  values.put(String.valueOf(value.invoke(constant)).toLowerCase(), constant);
+               } catch (ReflectiveOperationException e) {
+                  throw new IllegalStateException("cannot read " + type.getName(), e);
+               }
+            }
+         }
+         return Collections.unmodifiableMap(values);
+      }
+   };
+
+   /**
+    * @param property a retrieved property
+    * @return its value with any ArrayOfXXX holder replaced by the list it holds
+    */
+   public static Object value(final DynamicProperty property) {
+      return unwrap(property.getVal());
+   }
+
+   /**
+    * @param change a change from waitForUpdatesEx
+    * @return its value with any ArrayOfXXX holder replaced by the list it holds
+    */
+   public static Object value(final PropertyChange change) {
+      return unwrap(change.getVal());
+   }
+
+   /**
+    * @param val any property value
+    * @return the list held by an ArrayOfXXX holder, or the value itself
+    */
+   public static Object unwrap(final Object val) {
+      if (val == null) {
+         return null;
+      }
+      final MethodHandle accessor = ARRAY_ACCESSORS.get(val.getClass());
+      if (accessor == null) {
+         return val;
+      }
+      try {
+         return accessor.invoke(val);
+      } catch (Throwable t) {
+         throw new IllegalStateException("cannot unwrap " + val.getClass().getName(), t);
+      }
+   }
+
+   /**
+    * @param val         an ArrayOfXXX holder, a list or an array
+    * @param elementType the element type
+    * @param <T>         element type
+    * @return the elements, empty for null
+    */
+   @SuppressWarnings("unchecked")
+   public static <T> List<T> list(final Object val, final Class<T> elementType) {
+      final Object unwrapped = unwrap(val);
+      if (unwrapped == null) {
+         return Collections.emptyList();
+      }
+      if (unwrapped instanceof List) {
+         return (List<T>) unwrapped;
+      }
+      if (unwrapped instanceof Object[]) {
+         return Arrays.asList((T[]) unwrapped);
+      }
+      return Collections.singletonList(as(unwrapped, elementType));
+   }
+
+   /**
+    * Converts a property value to the requested type. ArrayOfXXX holders are unwrapped and enums are decoded
+    * from a constant, a DOM Element or a String.
+    *
+    * @param val  any property value
+    * @param type the expected type
+    * @param <T>  expected type
+    * @return the value as T, null for null
+    * @throws ClassCastException if the value cannot be converted
+    */
+   public static <T> T as(final Object val, final Class<T> type) {
+      final Object unwrapped = unwrap(val);
+      if (unwrapped == null || type.isInstance(unwrapped)) {
+         return type.cast(unwrapped);
+      }
+      if (type.isEnum()) {
+         final Object constant = ENUM_VALUES.get(type).get(text(unwrapped).toLowerCase());
+         if (constant != null) {
+            return type.cast(constant);
+         }
+      }
+      throw new ClassCastException(unwrapped.getClass().getName() + " is not a " + type.getName());
+   }
+
+   /**
+    * @param val a value JAX-WS could not bind, or any other value
+    * @return the text of an Element, else the value's string form
+    */
+   public static String text(final Object val) {
+      if (val instanceof Element) {
+         return ((Element) val).getTextContent();
+      }
+      return String.valueOf(val);
+   }
+}
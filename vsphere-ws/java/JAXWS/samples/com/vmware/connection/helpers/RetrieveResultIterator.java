@@ -0,0 +1,203 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.vim25.*;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks the result of a retrievePropertiesEx call one page at a time. Only the current page is held in memory;
+ * the next page is fetched with continueRetrievePropertiesEx when the current one is used up, so a caller that
+ * processes and drops each ObjectContent needs constant memory however large the inventory is.
+ * <p/>
+ * The page size is the <code>maxObjects</code> of the RetrieveOptions. If the caller stops before the last page,
+ * {@link #close()} tells the server to drop the remaining results with cancelRetrievePropertiesEx. Use the
+ * iterator in a try-with-resources block, or close the Stream returned by {@link #stream()}.
+ * </p>
+ * <pre>
+ *     try (Stream&lt;ObjectContent&gt; vms = getMOREFs.stream(rootFolder, "VirtualMachine", 500, "name")) {
+ *         vms.forEach(oc -&gt; ...);
+ *     }
+ * </pre>
+ * Faults raised while fetching a page are thrown as {@link RetrievalException}.
+ *
+ * @see GetMOREF#stream(ManagedObjectReference, String, int, String...)
+ */
+public class RetrieveResultIterator implements Iterator<ObjectContent>, Closeable {
+   private final VimPortType vimPort;
+   private final ManagedObjectReference propertyCollector;
+   private final List<PropertyFilterSpec> specSet;
+   private final RetrieveOptions options;
+
+   private RetrieveResult first;
+   private Iterator<ObjectContent> page;
+   private String token;
+   private boolean started;
+   private boolean closed;
+   private int pages;
+
+   /**
+    * nothing is retrieved until the first call to hasNext or next
+    *
+    * @param vimPort           the port to call
+    * @param propertyCollector the collector to retrieve with
+    * @param specSet           what to retrieve
+    * @param options           page size, may be null for the server default
+    */
+   public RetrieveResultIterator(
+         final VimPortType vimPort,
+         final ManagedObjectReference propertyCollector,
+         final List<PropertyFilterSpec> specSet,
+         final RetrieveOptions options) {
+      this.vimPort = vimPort;
+      this.propertyCollector = propertyCollector;
+      this.specSet = specSet;
+      this.options = options != null ? options : new RetrieveOptions();
+   }
+
+   /**
+    * continues a result the caller already retrieved
+    *
+    * @param vimPort           the port to call
+    * @param propertyCollector the collector the result came from
+    * @param first             the first page, its token is used to fetch the rest
+    */
+   public RetrieveResultIterator(
+         final VimPortType vimPort,
+         final ManagedObjectReference propertyCollector,
+         final RetrieveResult first) {
+      this(vimPort, propertyCollector, null, null);
+      this.first = first;
+   }
+
+   /**
+    * @param maxObjects page size
+    * @return RetrieveOptions asking for at most maxObjects per page
+    */
+   public static RetrieveOptions pageSize(final int maxObjects) {
+      RetrieveOptions options = new RetrieveOptions();
+      options.setMaxObjects(maxObjects);
+      return options;
+   }
+
+   @Override
+   public boolean hasNext() {
+      while (page == null || !page.hasNext()) {
+         if (!fetch()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public ObjectContent next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      return page.next();
+   }
+
+   /**
+    * fetches the next page, dropping the reference to the previous one
+    *
+    * @return false when there is nothing more to fetch
+    */
+   private boolean fetch() {
+      if (closed) {
+         return false;
+      }
+      final RetrieveResult result;
+      try {
+         if (!started) {
+            started = true;
+            result = first != null ? first :
+                  vimPort.retrievePropertiesEx(propertyCollector, specSet, options);
+            first = null;
+         } else if (token != null) {
+            result = vimPort.continueRetrievePropertiesEx(propertyCollector, token);
+         } else {
+            result = null;
+         }
+      } catch (InvalidPropertyFaultMsg e) {
+         throw new RetrievalException(e);
+      } catch (RuntimeFaultFaultMsg e) {
+         throw new RetrievalException(e);
+      }
+      if (result == null) {
+         token = null;
+         page = null;
+         closed = true;
+         return false;
+      }
+      pages++;
+      token = result.getToken();
+      page = result.getObjects().iterator();
+      return true;
+   }
+
+   /**
+    * @return number of pages fetched so far
+    */
+   public int getPages() {
+      return pages;
+   }
+
+   /**
+    * Releases the server side result if pages are still pending. Safe to call more than once.
+    */
+   @Override
+   public void close() {
+      final String pending = token;
+      token = null;
+      page = null;
+      closed = true;
+      if (pending != null) {
+         try {
+            vimPort.cancelRetrievePropertiesEx(propertyCollector, pending);
+         } catch (InvalidPropertyFaultMsg e) {
+            throw new RetrievalException(e);
+         } catch (RuntimeFaultFaultMsg e) {
+            throw new RetrievalException(e);
+         }
+      }
+   }
+
+   /**
+    * @return a sequential stream over the remaining objects, closing the stream closes this iterator
+    */
+   public Stream<ObjectContent> stream() {
+      return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+            .onClose(this::close);
+   }
+
+   /**
+    * thrown when fetching a page fails, the fault is the cause
+    */
+   public static class RetrievalException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public RetrievalException(Throwable cause) {
+         super(cause);
+      }
+   }
+}
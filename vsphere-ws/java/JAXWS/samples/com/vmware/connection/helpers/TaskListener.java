@@ -0,0 +1,30 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+
+/**
+ * Hears about the state changes of the tasks a {@link TaskTracker} sees. All listeners of a tracker are called
+ * from its one thread, in the order the server reported the changes, so a listener that takes long delays the
+ * others.
+ */
+public interface TaskListener {
+   /**
+    * @param previous the state before, null for a task seen for the first time
+    * @param info     the task after the change, with the properties the tracker watches; not changed afterwards
+    * @throws Exception to have the tracker log the failure; it goes on with the next change
+    */
+   void stateChanged(TaskInfoState previous, TaskInfo info) throws Exception;
+}
@@ -0,0 +1,583 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.Connection;
+import com.vmware.vim25.*;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.ws.soap.SOAPFaultException;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Follows every task of the session through one PropertyFilter on the <code>recentTask</code> list of the
+ * TaskManager and the <code>info</code> of the tasks in it, instead of a retrieval or a wait per task.
+ * <p/>
+ * One daemon thread long-polls a private PropertyCollector. A task entering the list, and every change of its
+ * state, is passed to the {@link TaskListener}s as a {@link TaskInfo}; {@link #track} returns a future completed
+ * with the final info of a task once it succeeded or failed. Only the parts of the info that tell the state and the
+ * times are watched, not <code>info.progress</code>, which would wake the thread for every percent of every task.
+ * A tracked task the list has not reported on for <code>tasks.lookupSeconds</code> (default 30), because it is a
+ * task of another session not visible to this one or it had left the list already, is looked up on its own. After
+ * the collector was opened again or lost track of the version, the list is read in full, and the tasks it no longer
+ * has are forgotten, as they may have left it meanwhile.
+ * </p>
+ * The tracker is attached to its connection and closed when the connection disconnects.
+ * For every operation, by the descriptionId of its tasks such as <code>VirtualMachine.powerOn</code>, the tracker
+ * keeps a {@link LatencyHistogram} of the latency, from queueTime to completeTime, and one of the queue time, from
+ * queueTime to startTime, of the completed tasks in the list, each counted once.
+ * <pre>
+ *     TaskTracker tracker = TaskTracker.of(connection);
+ *     TaskInfo info = tracker.track(vimPort.powerOnVMTask(vm, null)).get();
+ *     System.out.println(tracker.getLatencies().get("VirtualMachine.powerOn"));
+ * </pre>
+ */
+public class TaskTracker extends BaseHelper implements Closeable {
+   public static final int DEFAULT_MAX_WAIT_SECONDS = 30;
+   public static final int DEFAULT_LOOKUP_SECONDS = 30;
+
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+   private static final String[] INFO_PATHS = {
+         "info.key", "info.descriptionId", "info.name", "info.entity", "info.entityName", "info.state",
+         "info.cancelled", "info.error", "info.result", "info.queueTime", "info.startTime", "info.completeTime",
+         "info.eventChainId"
+   };
+
+   private final int maxWaitSeconds = Integer.getInteger("tasks.maxWaitSeconds", DEFAULT_MAX_WAIT_SECONDS);
+   private final long lookupMillis = TimeUnit.SECONDS.toMillis(
+         Integer.getInteger("tasks.lookupSeconds", DEFAULT_LOOKUP_SECONDS));
+   private final List<TaskListener> listeners = new CopyOnWriteArrayList<TaskListener>();
+   private final AtomicLong updates = new AtomicLong();
+   private final AtomicLong transitions = new AtomicLong();
+   private final AtomicLong errors = new AtomicLong();
+
+   // guarded by this
+   private final Map<String, TaskInfo> tasks = new HashMap<String, TaskInfo>();
+   private final Map<String, Pending> pending = new HashMap<String, Pending>();
+   private final Map<String, LatencyHistogram> latencies = new TreeMap<String, LatencyHistogram>();
+   private final Map<String, LatencyHistogram> queueTimes = new TreeMap<String, LatencyHistogram>();
+   private volatile boolean running;
+   private Thread loop;
+   // owned by the loop thread
+   private ManagedObjectReference propertyCollector;
+   private volatile ManagedObjectReference waitingOn;
+   private String version = "";
+   // while the list is read in full, the tasks it had so far
+   private Set<String> resent;
+
+   /**
+    * a future for a task that is not known to be done yet
+    */
+   private static class Pending {
+      private final ManagedObjectReference task;
+      private long lookedUp = System.currentTimeMillis();
+      private final CompletableFuture<TaskInfo> future = new CompletableFuture<TaskInfo>();
+
+      private Pending(final ManagedObjectReference task) {
+         this.task = task;
+      }
+   }
+
+   TaskTracker(final Connection connection) {
+      super(connection);
+   }
+
+   /**
+    * @param connection any connection
+    * @return the tracker for the connection, created and started on first use
+    */
+   public static TaskTracker of(final Connection connection) {
+      final TaskTracker tracker = connection.getAttachments().get(TaskTracker.class, TaskTracker::new);
+      tracker.start();
+      return tracker;
+   }
+
+   /**
+    * @param listener hears about every state change from now on
+    * @return this tracker, for method chaining
+    */
+   public TaskTracker subscribe(final TaskListener listener) {
+      listeners.add(listener);
+      return this;
+   }
+
+   /**
+    * @param listener no longer hears about state changes
+    */
+   public void unsubscribe(final TaskListener listener) {
+      listeners.remove(listener);
+   }
+
+   /**
+    * @param task a task, typically just returned by a ...Task method
+    * @return a future completed with the info of the task once it succeeded or failed, see its state and error
+    */
+   public CompletableFuture<TaskInfo> track(final ManagedObjectReference task) {
+      final String key = InventoryCache.key(task);
+      synchronized (this) {
+         final TaskInfo known = tasks.get(key);
+         if (known != null && isDone(known.getState())) {
+            return CompletableFuture.completedFuture(known);
+         }
+         Pending waiting = pending.get(key);
+         if (waiting == null) {
+            waiting = new Pending(task);
+            pending.put(key, waiting);
+         }
+         return waiting.future;
+      }
+   }
+
+   /**
+    * starts the loop thread, a daemon, if it is not running
+    */
+   public synchronized void start() {
+      if (running) {
+         return;
+      }
+      running = true;
+      loop = new Thread(this::run, "task-tracker");
+      loop.setDaemon(true);
+      loop.start();
+   }
+
+   /**
+    * Stops the loop, destroys the PropertyCollector and cancels the futures not completed yet.
+    */
+   @Override
+   public void close() {
+      final Thread stopped;
+      synchronized (this) {
+         if (!running) {
+            return;
+         }
+         running = false;
+         stopped = loop;
+      }
+      connection.getAttachments().remove(TaskTracker.class, this);
+      final ManagedObjectReference waiting = waitingOn;
+      if (waiting != null) {
+         try {
+            connection.getVimPort().cancelWaitForUpdates(waiting);
+         } catch (RuntimeFaultFaultMsg e) {
+            // the wait ends on its own after maxWaitSeconds
+         }
+      }
+      stopped.interrupt();
+      try {
+         stopped.join(TimeUnit.SECONDS.toMillis(maxWaitSeconds + 5));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      final List<Pending> cancelled;
+      synchronized (this) {
+         cancelled = new ArrayList<Pending>(pending.values());
+         pending.clear();
+      }
+      for (Pending left : cancelled) {
+         left.future.cancel(false);
+      }
+   }
+
+   private void run() {
+      long backoff = 1000;
+      try {
+         while (running) {
+            try {
+               if (propertyCollector == null) {
+                  open();
+               }
+               awaitUpdates();
+               lookUpStale();
+               backoff = 1000;
+            } catch (InvalidCollectorVersionFaultMsg e) {
+               // start over, the server sends every task in the list again
+               version = "";
+            } catch (Exception e) {
+               if (!running) {
+                  break;
+               }
+               errors.incrementAndGet();
+               System.err.println("task tracker failed, retrying in " + backoff + " ms: " + e);
+               destroy();
+               Thread.sleep(backoff);
+               backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+         }
+      } catch (InterruptedException e) {
+         // closed while pausing
+      } finally {
+         // a pending interrupt would break the call below
+         Thread.interrupted();
+         destroy();
+      }
+   }
+
+   private void open() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      final VimPortType vimPort = connection.getVimPort();
+      final ServiceContent serviceContent = connection.getServiceContent();
+      propertyCollector = vimPort.createPropertyCollector(serviceContent.getPropertyCollector());
+      version = "";
+
+      final PropertySpec taskSpec = new PropertySpec();
+      taskSpec.setType("Task");
+      Collections.addAll(taskSpec.getPathSet(), INFO_PATHS);
+
+      final TraversalSpec recentTask = new TraversalSpec();
+      recentTask.setType("TaskManager");
+      recentTask.setPath("recentTask");
+      recentTask.setSkip(Boolean.FALSE);
+
+      final ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(serviceContent.getTaskManager());
+      objectSpec.setSkip(Boolean.TRUE);
+      objectSpec.getSelectSet().add(recentTask);
+
+      final PropertyFilterSpec spec = new PropertyFilterSpec();
+      spec.getPropSet().add(taskSpec);
+      spec.getObjectSet().add(objectSpec);
+      vimPort.createFilter(propertyCollector, spec, true);
+   }
+
+   private void awaitUpdates() throws RuntimeFaultFaultMsg, InvalidCollectorVersionFaultMsg {
+      final WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(maxWaitSeconds);
+      final UpdateSet updateSet;
+      if (version.isEmpty()) {
+         // the server sends every task in the list again
+         resent = new HashSet<String>();
+      }
+      waitingOn = propertyCollector;
+      try {
+         updateSet = connection.getVimPort().waitForUpdatesEx(propertyCollector, version, options);
+      } finally {
+         waitingOn = null;
+      }
+      if (updateSet == null) {
+         reconcile(true);
+         return;
+      }
+      version = updateSet.getVersion();
+      updates.incrementAndGet();
+      // collected under the lock, passed on outside of it so listeners and futures can call back into the tracker
+      final List<TaskInfoState> previous = new ArrayList<TaskInfoState>();
+      final List<TaskInfo> changed = new ArrayList<TaskInfo>();
+      final List<Pending> done = new ArrayList<Pending>();
+      final List<TaskInfo> results = new ArrayList<TaskInfo>();
+      final long now = System.currentTimeMillis();
+      synchronized (this) {
+         for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+            for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+               final String key = InventoryCache.key(objectUpdate.getObj());
+               if (objectUpdate.getKind() == ObjectUpdateKind.LEAVE) {
+                  tasks.remove(key);
+                  continue;
+               }
+               if (resent != null) {
+                  resent.add(key);
+               }
+               final Pending heard = pending.get(key);
+               if (heard != null) {
+                  // the list reports on it, no need to look it up
+                  heard.lookedUp = now;
+               }
+               final TaskInfo before = tasks.get(key);
+               final TaskInfo info = copy(before);
+               info.setTask(objectUpdate.getObj());
+               for (PropertyChange change : objectUpdate.getChangeSet()) {
+                  apply(info, change);
+               }
+               tasks.put(key, info);
+               final TaskInfoState from = before == null ? null : before.getState();
+               if (info.getState() == from) {
+                  continue;
+               }
+               previous.add(from);
+               changed.add(info);
+               if (isDone(info.getState())) {
+                  if (!isDone(from)) {
+                     record(info);
+                  }
+                  final Pending waiting = pending.remove(key);
+                  if (waiting != null) {
+                     done.add(waiting);
+                     results.add(info);
+                  }
+               }
+            }
+         }
+      }
+      reconcile(!Boolean.TRUE.equals(updateSet.isTruncated()));
+      for (int i = 0; i < changed.size(); i++) {
+         transitions.incrementAndGet();
+         for (TaskListener listener : listeners) {
+            try {
+               listener.stateChanged(previous.get(i), changed.get(i));
+            } catch (Exception e) {
+               errors.incrementAndGet();
+               System.err.println("task listener " + listener + " failed: " + e);
+            }
+         }
+      }
+      for (int i = 0; i < done.size(); i++) {
+         done.get(i).future.complete(results.get(i));
+      }
+   }
+
+   /**
+    * once the list was read in full, forgets the tasks it no longer has, which left it while nobody was watching
+    *
+    * @param complete true if the last update set was the end of the full list, not truncated
+    */
+   private void reconcile(final boolean complete) {
+      if (resent == null || !complete) {
+         return;
+      }
+      synchronized (this) {
+         tasks.keySet().retainAll(resent);
+      }
+      resent = null;
+   }
+
+   /**
+    * looks up on their own, every lookupSeconds, the tracked tasks the list has not reported on for as long
+    */
+   private void lookUpStale() {
+      final List<Pending> stale = new ArrayList<Pending>();
+      final long now = System.currentTimeMillis();
+      synchronized (this) {
+         for (Pending waiting : pending.values()) {
+            if (now - waiting.lookedUp >= lookupMillis) {
+               waiting.lookedUp = now;
+               stale.add(waiting);
+            }
+         }
+      }
+      final VimPortType vimPort = connection.getVimPort();
+      for (Pending waiting : stale) {
+         final PropertySpec propertySpec = new PropertySpec();
+         propertySpec.setType("Task");
+         propertySpec.getPathSet().add("info");
+         final ObjectSpec objectSpec = new ObjectSpec();
+         objectSpec.setObj(waiting.task);
+         objectSpec.setSkip(Boolean.FALSE);
+         final PropertyFilterSpec spec = new PropertyFilterSpec();
+         spec.getPropSet().add(propertySpec);
+         spec.getObjectSet().add(objectSpec);
+         final TaskInfo info;
+         try {
+            final RetrieveResult result = vimPort.retrievePropertiesEx(
+                  connection.getServiceContent().getPropertyCollector(), Collections.singletonList(spec),
+                  new RetrieveOptions());
+            info = result == null || result.getObjects().isEmpty() ? null
+                  : (TaskInfo) result.getObjects().get(0).getPropSet().get(0).getVal();
+         } catch (InvalidPropertyFaultMsg | RuntimeFaultFaultMsg | SOAPFaultException e) {
+            // typically a task that no longer exists
+            forget(waiting).completeExceptionally(e);
+            continue;
+         }
+         if (info == null) {
+            forget(waiting).completeExceptionally(new IllegalStateException("task " + waiting.task.getValue()
+                  + " not found"));
+         } else if (isDone(info.getState())) {
+            forget(waiting).complete(info);
+         }
+      }
+   }
+
+   private synchronized CompletableFuture<TaskInfo> forget(final Pending waiting) {
+      pending.remove(InventoryCache.key(waiting.task));
+      return waiting.future;
+   }
+
+   private void record(final TaskInfo info) {
+      final String operation = info.getDescriptionId() != null ? info.getDescriptionId() : info.getName();
+      if (operation == null || info.getQueueTime() == null || info.getCompleteTime() == null) {
+         return;
+      }
+      final long queued = millis(info.getQueueTime());
+      histogram(latencies, operation).record(millis(info.getCompleteTime()) - queued);
+      if (info.getStartTime() != null) {
+         histogram(queueTimes, operation).record(millis(info.getStartTime()) - queued);
+      }
+   }
+
+   private static LatencyHistogram histogram(final Map<String, LatencyHistogram> histograms, final String operation) {
+      LatencyHistogram histogram = histograms.get(operation);
+      if (histogram == null) {
+         histogram = new LatencyHistogram();
+         histograms.put(operation, histogram);
+      }
+      return histogram;
+   }
+
+   private static long millis(final XMLGregorianCalendar time) {
+      return time.toGregorianCalendar().getTimeInMillis();
+   }
+
+   private static boolean isDone(final TaskInfoState state) {
+      return state == TaskInfoState.SUCCESS || state == TaskInfoState.ERROR;
+   }
+
+   /**
+    * a new info with the watched properties of another, the infos handed out are never changed
+    */
+   private static TaskInfo copy(final TaskInfo info) {
+      final TaskInfo copy = new TaskInfo();
+      if (info == null) {
+         return copy;
+      }
+      copy.setKey(info.getKey());
+      copy.setTask(info.getTask());
+      copy.setDescriptionId(info.getDescriptionId());
+      copy.setName(info.getName());
+      copy.setEntity(info.getEntity());
+      copy.setEntityName(info.getEntityName());
+      copy.setState(info.getState());
+      copy.setCancelled(info.isCancelled());
+      copy.setError(info.getError());
+      copy.setResult(info.getResult());
+      copy.setQueueTime(info.getQueueTime());
+      copy.setStartTime(info.getStartTime());
+      copy.setCompleteTime(info.getCompleteTime());
+      copy.setEventChainId(info.getEventChainId());
+      return copy;
+   }
+
+   private static void apply(final TaskInfo info, final PropertyChange change) {
+      final Object val = change.getOp() == PropertyChangeOp.REMOVE ? null : change.getVal();
+      switch (change.getName()) {
+         case "info.key":
+            info.setKey((String) val);
+            break;
+         case "info.descriptionId":
+            info.setDescriptionId((String) val);
+            break;
+         case "info.name":
+            info.setName((String) val);
+            break;
+         case "info.entity":
+            info.setEntity((ManagedObjectReference) val);
+            break;
+         case "info.entityName":
+            info.setEntityName((String) val);
+            break;
+         case "info.state":
+            // enum states sometimes arrive as a bare DOM Element
+            info.setState(PropertyDecoder.as(val, TaskInfoState.class));
+            break;
+         case "info.cancelled":
+            info.setCancelled(Boolean.TRUE.equals(val));
+            break;
+         case "info.error":
+            info.setError((LocalizedMethodFault) val);
+            break;
+         case "info.result":
+            info.setResult(PropertyDecoder.unwrap(val));
+            break;
+         case "info.queueTime":
+            info.setQueueTime((XMLGregorianCalendar) val);
+            break;
+         case "info.startTime":
+            info.setStartTime((XMLGregorianCalendar) val);
+            break;
+         case "info.completeTime":
+            info.setCompleteTime((XMLGregorianCalendar) val);
+            break;
+         case "info.eventChainId":
+            info.setEventChainId(val == null ? 0 : (Integer) val);
+            break;
+         default:
+            break;
+      }
+   }
+
+   private void destroy() {
+      try {
+         if (propertyCollector != null) {
+            connection.getVimPort().destroyPropertyCollector(propertyCollector);
+         }
+      } catch (Exception e) {
+         // it goes away with the session anyway
+      } finally {
+         propertyCollector = null;
+      }
+   }
+
+   /**
+    * @return latency, queueTime to completeTime, of the completed tasks by operation, copied
+    */
+   public synchronized Map<String, LatencyHistogram> getLatencies() {
+      return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(latencies));
+   }
+
+   /**
+    * @return queue time, queueTime to startTime, of the completed tasks by operation, copied
+    */
+   public synchronized Map<String, LatencyHistogram> getQueueTimes() {
+      return Collections.unmodifiableMap(new TreeMap<String, LatencyHistogram>(queueTimes));
+   }
+
+   /**
+    * @return tasks queued or running in the list right now
+    */
+   public synchronized int getActive() {
+      int active = 0;
+      for (TaskInfo info : tasks.values()) {
+         if (!isDone(info.getState())) {
+            active++;
+         }
+      }
+      return active;
+   }
+
+   /**
+    * @return futures from {@link #track} not completed yet
+    */
+   public synchronized int getPending() {
+      return pending.size();
+   }
+
+   /**
+    * @return update sets received
+    */
+   public long getUpdates() {
+      return updates.get();
+   }
+
+   /**
+    * @return state changes passed to the listeners
+    */
+   public long getTransitions() {
+      return transitions.get();
+   }
+
+   /**
+    * @return failed waits and failed listener calls
+    */
+   public long getErrors() {
+      return errors.get();
+   }
+}
@@ -0,0 +1,261 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.Connection;
+import com.vmware.connection.helpers.builders.SpecTemplates;
+import com.vmware.connection.helpers.builders.TraversalSpecs;
+import com.vmware.vim25.*;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A query over one of the {@link TraversalSpecs} graphs that is registered with the server once and then read
+ * incrementally.
+ * <p/>
+ * The first {@link #retrieve()} creates a private PropertyCollector with a single PropertyFilter for the graph
+ * and reads the full content with waitForUpdatesEx. Later calls send only the collector version and receive only
+ * what changed since, so the spec tree is neither serialized by the client nor parsed by the server again, and
+ * an unchanged inventory costs one small round-trip. Instances are shared per connection and query through
+ * {@link #of}, attached to the connection and closed when it disconnects.
+ * </p>
+ * Servers that refuse createPropertyCollector get the same results from a plain retrievePropertiesEx on every
+ * call.
+ */
+public class TraversalFilter extends BaseHelper implements Closeable {
+   private final String queryKey;
+   private final PropertyFilterSpec spec;
+   // object key to the object and its properties, in the order they first entered
+   private final Map<String, Map.Entry<ManagedObjectReference, Map<String, Object>>> objects =
+         new LinkedHashMap<String, Map.Entry<ManagedObjectReference, Map<String, Object>>>();
+   private ManagedObjectReference propertyCollector;
+   private String version;
+   private boolean registered;
+   private boolean unsupported;
+
+   TraversalFilter(final Connection connection, final String queryKey, final PropertyFilterSpec spec) {
+      super(connection);
+      this.queryKey = queryKey;
+      this.spec = spec;
+   }
+
+   /**
+    * @param connection a connection
+    * @param root       where the traversal starts, usually the root folder
+    * @param graph      a graph name from {@link TraversalSpecs}
+    * @param type       managed object type to collect
+    * @param properties property paths to collect
+    * @return the shared filter for this query on this connection
+    */
+   public static TraversalFilter of(
+         final Connection connection,
+         final ManagedObjectReference root,
+         final String graph,
+         final String type,
+         final String... properties) {
+      final String queryKey = InventoryCache.key(root) + "|" + graph + "|" + type + "|" + Arrays.toString(properties);
+      final Filters filters = connection.getAttachments().get(Filters.class, c -> new Filters());
+      synchronized (filters) {
+         TraversalFilter filter = filters.byQuery.get(queryKey);
+         if (filter == null) {
+            final PropertyFilterSpec spec = SpecTemplates.forTraversal(root, graph, type, properties).get(0);
+            filter = new TraversalFilter(connection, queryKey, spec);
+            filters.byQuery.put(queryKey, filter);
+         }
+         return filter;
+      }
+   }
+
+   /**
+    * @return every matching object with its properties as of now
+    * @throws InvalidPropertyFaultMsg
+    * @throws RuntimeFaultFaultMsg
+    */
+   public synchronized Map<ManagedObjectReference, Map<String, Object>> retrieve()
+         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      final VimPortType vimPort = connection.getVimPort();
+      if (!registered && !unsupported) {
+         register(vimPort);
+      }
+      if (unsupported) {
+         objects.clear();
+         try (RetrieveResultIterator results = new RetrieveResultIterator(vimPort,
+               connection.getServiceContent().getPropertyCollector(), Arrays.asList(spec), null)) {
+            while (results.hasNext()) {
+               final ObjectContent oc = results.next();
+               final Map<String, Object> props = new HashMap<String, Object>();
+               if (oc.getPropSet() != null) {
+                  for (DynamicProperty dp : oc.getPropSet()) {
+                     props.put(dp.getName(), PropertyDecoder.value(dp));
+                  }
+               }
+               objects.put(InventoryCache.key(oc.getObj()),
+                     new AbstractMap.SimpleImmutableEntry<ManagedObjectReference, Map<String, Object>>(
+                           oc.getObj(), props));
+            }
+         }
+      } else {
+         try {
+            while (poll(vimPort)) {
+               // the server truncated the update set, keep reading
+            }
+         } catch (InvalidCollectorVersionFaultMsg e) {
+            // the collector lost track of us, read everything again
+            objects.clear();
+            version = "";
+            return retrieve();
+         } catch (RuntimeFaultFaultMsg e) {
+            // the collector may be gone with the session, the next call registers the query again
+            unregister(vimPort);
+            throw e;
+         } catch (RuntimeException e) {
+            unregister(vimPort);
+            throw e;
+         }
+      }
+      final Map<ManagedObjectReference, Map<String, Object>> snapshot =
+            new LinkedHashMap<ManagedObjectReference, Map<String, Object>>();
+      for (Map.Entry<ManagedObjectReference, Map<String, Object>> entry : objects.values()) {
+         snapshot.put(entry.getKey(), Collections.unmodifiableMap(new HashMap<String, Object>(entry.getValue())));
+      }
+      return snapshot;
+   }
+
+   private void register(final VimPortType vimPort) throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      try {
+         propertyCollector = vimPort.createPropertyCollector(connection.getServiceContent().getPropertyCollector());
+      } catch (RuntimeFaultFaultMsg e) {
+         if (!(e.getFaultInfo() instanceof NotSupported)) {
+            throw e;
+         }
+         unsupported = true;
+         return;
+      }
+      try {
+         vimPort.createFilter(propertyCollector, spec, false);
+      } catch (InvalidPropertyFaultMsg e) {
+         unregister(vimPort);
+         throw e;
+      } catch (RuntimeFaultFaultMsg e) {
+         unregister(vimPort);
+         throw e;
+      }
+      version = "";
+      registered = true;
+   }
+
+   /**
+    * destroys the collector if the server still knows it and forgets everything read through it
+    */
+   private void unregister(final VimPortType vimPort) {
+      if (propertyCollector != null) {
+         try {
+            vimPort.destroyPropertyCollector(propertyCollector);
+         } catch (RuntimeFaultFaultMsg e) {
+            // gone with the session
+         } catch (RuntimeException e) {
+            // unreachable, it goes away with the session
+         }
+      }
+      propertyCollector = null;
+      version = "";
+      registered = false;
+      objects.clear();
+   }
+
+   /**
+    * reads whatever changed since the last version without waiting
+    *
+    * @return true if the update set was truncated and more is waiting
+    */
+   private boolean poll(final VimPortType vimPort) throws RuntimeFaultFaultMsg, InvalidCollectorVersionFaultMsg {
+      final WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(0);
+      final UpdateSet updateSet = vimPort.waitForUpdatesEx(propertyCollector, version, options);
+      if (updateSet == null) {
+         return false;
+      }
+      version = updateSet.getVersion();
+      for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+         for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+            apply(objectUpdate);
+         }
+      }
+      return Boolean.TRUE.equals(updateSet.isTruncated());
+   }
+
+   private void apply(final ObjectUpdate objectUpdate) {
+      final String key = InventoryCache.key(objectUpdate.getObj());
+      if (objectUpdate.getKind() == ObjectUpdateKind.LEAVE) {
+         objects.remove(key);
+         return;
+      }
+      Map.Entry<ManagedObjectReference, Map<String, Object>> entry = objects.get(key);
+      if (entry == null) {
+         entry = new AbstractMap.SimpleImmutableEntry<ManagedObjectReference, Map<String, Object>>(
+               objectUpdate.getObj(), new HashMap<String, Object>());
+         objects.put(key, entry);
+      }
+      for (PropertyChange change : objectUpdate.getChangeSet()) {
+         if (change.getOp() == PropertyChangeOp.REMOVE || change.getOp() == PropertyChangeOp.INDIRECT_REMOVE) {
+            entry.getValue().remove(change.getName());
+         } else if (change.getVal() == null) {
+            // an assign to an unset property
+            entry.getValue().remove(change.getName());
+         } else {
+            entry.getValue().put(change.getName(), PropertyDecoder.value(change));
+         }
+      }
+   }
+
+   /**
+    * Destroys the collector and its filter on the server and forgets this query. The next {@link #of} for the
+    * same query registers it again.
+    */
+   @Override
+   public synchronized void close() {
+      final Filters filters = connection.getAttachments().peek(Filters.class);
+      if (filters != null) {
+         synchronized (filters) {
+            if (filters.byQuery.get(queryKey) == this) {
+               filters.byQuery.remove(queryKey);
+            }
+         }
+      }
+      unregister(connection.getVimPort());
+   }
+
+   /**
+    * the filters of one connection by query, closed with them when the connection disconnects
+    */
+   private static class Filters implements Closeable {
+      private final Map<String, TraversalFilter> byQuery = new HashMap<String, TraversalFilter>();
+
+      @Override
+      public void close() {
+         final TraversalFilter[] closed;
+         synchronized (this) {
+            closed = byQuery.values().toArray(new TraversalFilter[byQuery.size()]);
+         }
+         for (TraversalFilter filter : closed) {
+            filter.close();
+         }
+      }
+   }
+}
@@ -0,0 +1,383 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers;
+
+import com.vmware.connection.Connection;
+import com.vmware.connection.SessionLiveness;
+import com.vmware.vim25.*;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Waits for many objects at once on a single waitForUpdatesEx loop per session.
+ * <p/>
+ * Every {@link #register} creates a PropertyFilter on a private PropertyCollector and returns a future. One
+ * daemon thread long-polls that collector, routes each filter update to the waiter that owns the filter, and
+ * completes the waiter's future once one of the expected values is reached, destroying its filter. Launching
+ * hundreds of clone or power tasks therefore costs one thread and one outstanding long-poll, not one of each
+ * per task. The thread exits when nothing is left to wait for and is started again by the next registration.
+ * </p>
+ * The values and the result array are the same as {@link WaitForValues#wait}, which is now built on this
+ * class.
+ * <pre>
+ *     List&lt;CompletableFuture&lt;Object[]&gt;&gt; done = new ArrayList&lt;&gt;();
+ *     for (ManagedObjectReference vm : vms) {
+ *         done.add(WaitDispatcher.of(connection).waitForTask(vimPort.powerOnVMTask(vm, null)));
+ *     }
+ *     CompletableFuture.allOf(done.toArray(new CompletableFuture[done.size()])).join();
+ * </pre>
+ * Cancelling a returned future removes its filter on the next round of the loop. The dispatcher is attached to
+ * its connection and closed when the connection disconnects, which cancels every wait still pending.
+ */
+public class WaitDispatcher extends BaseHelper implements Closeable {
+   /**
+    * seconds each waitForUpdatesEx may block, bounds how long an idle loop lingers and how late a cancelled
+    * waiter's filter is destroyed
+    */
+   public static final int DEFAULT_MAX_WAIT_SECONDS = 30;
+
+   private final WaitForValues specs;
+   private final int maxWaitSeconds = Integer.getInteger("wait.maxWaitSeconds", DEFAULT_MAX_WAIT_SECONDS);
+   // filter key to waiter, guarded by this
+   private final Map<String, Waiter> waiters = new HashMap<String, Waiter>();
+   private ManagedObjectReference propertyCollector;
+   private String version = "";
+   private Thread loop;
+   private boolean closed;
+
+   WaitDispatcher(final Connection connection) {
+      super(connection);
+      specs = new WaitForValues(connection);
+   }
+
+   /**
+    * @param connection any connection
+    * @return the dispatcher for the connection, created on first use
+    */
+   public static WaitDispatcher of(final Connection connection) {
+      return connection.getAttachments().get(WaitDispatcher.class, WaitDispatcher::new);
+   }
+
+   /**
+    * Starts waiting for properties of one object to reach one of the expected values.
+    *
+    * @param objmor       the object to wait for
+    * @param filterProps  properties to watch, their last values are the result
+    * @param endWaitProps properties to check for expected values, matched as suffixes of the filter properties
+    * @param expectedVals for each end wait property, the values that end the wait
+    * @return a future completed with the result {@link WaitForValues#wait} returns
+    * @throws InvalidPropertyFaultMsg
+    * @throws RuntimeFaultFaultMsg
+    */
+   public CompletableFuture<Object[]> register(
+         final ManagedObjectReference objmor,
+         final String[] filterProps,
+         final String[] endWaitProps,
+         final Object[][] expectedVals
+   ) throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      final Waiter waiter = new Waiter(filterProps, endWaitProps, expectedVals);
+      final VimPortType vimPort = connection.getVimPort();
+      // Held across createFilter so the loop cannot see the filter's first update before the waiter is known.
+      // The loop only takes the lock to route an update set, never while it is blocked on the server.
+      synchronized (this) {
+         if (closed) {
+            throw new IllegalStateException("the dispatcher was closed with its connection");
+         }
+         if (propertyCollector == null) {
+            open(vimPort);
+         }
+         try {
+            waiter.filter = vimPort.createFilter(
+                  propertyCollector, specs.propertyFilterSpec(objmor, filterProps), true);
+         } catch (RuntimeFaultFaultMsg e) {
+            if (!SessionLiveness.isSessionObjectLost(e)) {
+               throw e;
+            }
+            // The collector belonged to an earlier session, and so did the filters of everyone waiting on it.
+            // The loop still blocked on it lets go of it once its wait fails.
+            fail(e);
+            open(vimPort);
+            waiter.filter = vimPort.createFilter(
+                  propertyCollector, specs.propertyFilterSpec(objmor, filterProps), true);
+         }
+         waiters.put(InventoryCache.key(waiter.filter), waiter);
+         if (loop == null) {
+            loop = new Thread(this::run, "wait-dispatcher");
+            loop.setDaemon(true);
+            loop.start();
+         }
+      }
+      return waiter.future;
+   }
+
+   /**
+    * waits for a task to succeed or fail
+    *
+    * @param task the task
+    * @return a future completed with the task's info.state and info.error
+    * @throws InvalidPropertyFaultMsg
+    * @throws RuntimeFaultFaultMsg
+    */
+   public CompletableFuture<Object[]> waitForTask(final ManagedObjectReference task)
+         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      return register(task, new String[]{"info.state", "info.error"},
+            new String[]{"state"}, new Object[][]{new Object[]{
+                  TaskInfoState.SUCCESS, TaskInfoState.ERROR}});
+   }
+
+   /**
+    * @return number of waits not yet completed
+    */
+   public synchronized int getPending() {
+      return waiters.size();
+   }
+
+   /**
+    * Cancels the waits not completed yet and destroys the PropertyCollector, which ends the loop's current
+    * wait. Called when the connection disconnects.
+    */
+   @Override
+   public void close() {
+      final List<Waiter> cancelled;
+      final ManagedObjectReference collector;
+      synchronized (this) {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         cancelled = new ArrayList<Waiter>(waiters.values());
+         waiters.clear();
+         collector = propertyCollector;
+         propertyCollector = null;
+      }
+      connection.getAttachments().remove(WaitDispatcher.class, this);
+      for (Waiter waiter : cancelled) {
+         waiter.future.cancel(false);
+      }
+      if (collector != null) {
+         try {
+            connection.getVimPort().destroyPropertyCollector(collector);
+         } catch (RuntimeFaultFaultMsg e) {
+            // it goes away with the session anyway
+         }
+      }
+   }
+
+   private void open(final VimPortType vimPort) throws RuntimeFaultFaultMsg {
+      propertyCollector = vimPort.createPropertyCollector(connection.getServiceContent().getPropertyCollector());
+      version = "";
+   }
+
+   private void run() {
+      final VimPortType vimPort = connection.getVimPort();
+      final WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(maxWaitSeconds);
+      while (true) {
+         final ManagedObjectReference collector;
+         final String since;
+         final List<ManagedObjectReference> finished;
+         synchronized (this) {
+            finished = reap();
+            if (waiters.isEmpty() || closed) {
+               loop = null;
+               collector = null;
+               since = null;
+            } else {
+               collector = propertyCollector;
+               since = version;
+            }
+         }
+         // a round-trip per filter, made outside the lock so register and close are not held up
+         for (ManagedObjectReference filter : finished) {
+            try {
+               vimPort.destroyPropertyFilter(filter);
+            } catch (RuntimeFaultFaultMsg e) {
+               // the filter goes away with the session anyway
+            }
+         }
+         if (collector == null) {
+            return;
+         }
+         final UpdateSet updateSet;
+         try {
+            updateSet = vimPort.waitForUpdatesEx(collector, since, options);
+         } catch (InvalidCollectorVersionFaultMsg e) {
+            // start over, the server sends the current values of every filter again
+            synchronized (this) {
+               if (collector == propertyCollector) {
+                  version = "";
+               }
+            }
+            continue;
+         } catch (Throwable t) {
+            synchronized (this) {
+               // unless register already replaced the collector, fail everyone waiting on it; the loop goes on
+               // for waiters registered since and exits at the top if there are none
+               if (collector == propertyCollector) {
+                  fail(t);
+               }
+            }
+            continue;
+         }
+         if (updateSet == null) {
+            // maxWaitSeconds elapsed without a change
+            continue;
+         }
+         synchronized (this) {
+            if (collector != propertyCollector) {
+               // replaced or closed while waiting, its waiters are gone
+               continue;
+            }
+            version = updateSet.getVersion();
+            for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+               final Waiter waiter = waiters.get(InventoryCache.key(filterUpdate.getFilter()));
+               if (waiter != null) {
+                  waiter.update(filterUpdate);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * forgets every waiter that is done, reached or cancelled
+    *
+    * @return the filters of those waiters, to be destroyed
+    */
+   private List<ManagedObjectReference> reap() {
+      final List<ManagedObjectReference> finished = new ArrayList<ManagedObjectReference>();
+      for (Iterator<Waiter> i = waiters.values().iterator(); i.hasNext(); ) {
+         final Waiter waiter = i.next();
+         if (waiter.future.isDone()) {
+            i.remove();
+            finished.add(waiter.filter);
+         }
+      }
+      return finished;
+   }
+
+   /**
+    * the collector cannot be used any more, typically because the session is gone: fail everyone waiting on it
+    * and forget it, the next registration creates a new one
+    */
+   private synchronized void fail(final Throwable cause) {
+      final List<Waiter> failed = new ArrayList<Waiter>(waiters.values());
+      waiters.clear();
+      propertyCollector = null;
+      version = "";
+      for (Waiter waiter : failed) {
+         waiter.future.completeExceptionally(cause);
+      }
+   }
+
+   /**
+    * the state of one registration, only touched by the loop thread while holding the dispatcher lock
+    */
+   private static class Waiter {
+      private final String[] filterProps;
+      private final String[] endWaitProps;
+      private final Object[][] expectedVals;
+      private final Object[] endVals;
+      private final Object[] filterVals;
+      private final Class<?>[] endTypes;
+      private final Class<?>[] filterTypes;
+      private final CompletableFuture<Object[]> future = new CompletableFuture<Object[]>();
+      private ManagedObjectReference filter;
+
+      Waiter(final String[] filterProps, final String[] endWaitProps, final Object[][] expectedVals) {
+         this.filterProps = filterProps;
+         this.endWaitProps = endWaitProps;
+         this.expectedVals = expectedVals;
+         this.endVals = new Object[endWaitProps.length];
+         this.filterVals = new Object[filterProps.length];
+         // decide once how each value is decoded, so update sets are compared without inspecting the values
+         this.endTypes = new Class<?>[endWaitProps.length];
+         this.filterTypes = new Class<?>[filterProps.length];
+         for (int i = 0; i < endWaitProps.length; i++) {
+            if (expectedVals[i].length > 0 && expectedVals[i][0] instanceof Enum) {
+               endTypes[i] = ((Enum<?>) expectedVals[i][0]).getDeclaringClass();
+               for (int j = 0; j < filterProps.length; j++) {
+                  if (filterProps[j].lastIndexOf(endWaitProps[i]) >= 0) {
+                     filterTypes[j] = endTypes[i];
+                  }
+               }
+            }
+         }
+      }
+
+      void update(final PropertyFilterUpdate filterUpdate) {
+         for (ObjectUpdate objup : filterUpdate.getObjectSet()) {
+            if (objup.getKind() == ObjectUpdateKind.MODIFY
+                  || objup.getKind() == ObjectUpdateKind.ENTER
+                  || objup.getKind() == ObjectUpdateKind.LEAVE) {
+               for (PropertyChange propchg : objup.getChangeSet()) {
+                  updateValues(endWaitProps, endTypes, endVals, propchg);
+                  updateValues(filterProps, filterTypes, filterVals, propchg);
+               }
+            }
+         }
+         if (reached()) {
+            future.complete(filterVals);
+         }
+      }
+
+      /**
+       * @return true if one of the expected values has been reached
+       */
+      private boolean reached() {
+         for (int chgi = 0; chgi < endVals.length; chgi++) {
+            if (endVals[chgi] == null) {
+               continue;
+            }
+            for (Object expctdval : expectedVals[chgi]) {
+               if (expctdval.equals(endVals[chgi])) {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+
+      private static void updateValues(String[] props, Class<?>[] types, Object[] vals, PropertyChange propchg) {
+         for (int findi = 0; findi < props.length; findi++) {
+            if (propchg.getName().lastIndexOf(props[findi]) >= 0) {
+               if (propchg.getOp() == PropertyChangeOp.REMOVE) {
+                  vals[findi] = "";
+               } else {
+                  vals[findi] = decode(propchg, types[findi]);
+               }
+            }
+         }
+      }
+
+      /**
+       * enum states sometimes arrive as a bare DOM Element, decode those to the type the caller expects
+       */
+      private static Object decode(final PropertyChange propchg, final Class<?> type) {
+         if (type == null) {
+            return PropertyDecoder.value(propchg);
+         }
+         try {
+            return PropertyDecoder.as(propchg.getVal(), type);
+         } catch (ClassCastException e) {
+            return PropertyDecoder.value(propchg);
+         }
+      }
+   }
+}
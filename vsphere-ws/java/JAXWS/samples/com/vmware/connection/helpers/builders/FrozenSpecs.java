@@ -0,0 +1,171 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers.builders;
+
+import com.vmware.vim25.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read only copies of query specs, for the specs {@link SpecTemplates} shares between callers and threads. Every
+ * setter throws UnsupportedOperationException and every list is unmodifiable, so a caller that changes a shared
+ * spec fails at once instead of changing the query of everyone else. Like the builders they are subclasses of
+ * the vim25 types and are sent as those.
+ */
+final class FrozenSpecs {
+
+   private FrozenSpecs() {
+   }
+
+   /**
+    * @param spec a filter spec
+    * @return a read only deep copy of the spec
+    */
+   static PropertyFilterSpec freeze(final PropertyFilterSpec spec) {
+      return new FrozenFilterSpec(spec);
+   }
+
+   private static UnsupportedOperationException readOnly() {
+      return new UnsupportedOperationException("a shared spec template is read only");
+   }
+
+   private static <T> List<T> unmodifiable(final List<T> list) {
+      return Collections.unmodifiableList(new ArrayList<T>(list));
+   }
+
+   private static List<SelectionSpec> freeze(final List<SelectionSpec> specs) {
+      final List<SelectionSpec> frozen = new ArrayList<SelectionSpec>(specs.size());
+      for (SelectionSpec spec : specs) {
+         frozen.add(spec instanceof TraversalSpec
+               ? new FrozenTraversalSpec((TraversalSpec) spec) : new FrozenSelectionSpec(spec));
+      }
+      return Collections.unmodifiableList(frozen);
+   }
+
+   private static final class FrozenFilterSpec extends PropertyFilterSpec {
+      FrozenFilterSpec(final PropertyFilterSpec spec) {
+         final List<PropertySpec> props = new ArrayList<PropertySpec>(spec.getPropSet().size());
+         for (PropertySpec prop : spec.getPropSet()) {
+            props.add(new FrozenPropertySpec(prop));
+         }
+         final List<ObjectSpec> objects = new ArrayList<ObjectSpec>(spec.getObjectSet().size());
+         for (ObjectSpec object : spec.getObjectSet()) {
+            objects.add(new FrozenObjectSpec(object));
+         }
+         propSet = Collections.unmodifiableList(props);
+         objectSet = Collections.unmodifiableList(objects);
+         reportMissingObjectsInResults = spec.isReportMissingObjectsInResults();
+      }
+
+      @Override
+      public void setReportMissingObjectsInResults(final Boolean value) {
+         throw readOnly();
+      }
+   }
+
+   private static final class FrozenPropertySpec extends PropertySpec {
+      FrozenPropertySpec(final PropertySpec spec) {
+         type = spec.getType();
+         all = spec.isAll();
+         pathSet = unmodifiable(spec.getPathSet());
+      }
+
+      @Override
+      public void setType(final String value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setAll(final Boolean value) {
+         throw readOnly();
+      }
+   }
+
+   private static final class FrozenObjectSpec extends ObjectSpec {
+      FrozenObjectSpec(final ObjectSpec spec) {
+         obj = spec.getObj() == null ? null : new FrozenReference(spec.getObj());
+         skip = spec.isSkip();
+         selectSet = freeze(spec.getSelectSet());
+      }
+
+      @Override
+      public void setObj(final ManagedObjectReference value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setSkip(final Boolean value) {
+         throw readOnly();
+      }
+   }
+
+   private static final class FrozenSelectionSpec extends SelectionSpec {
+      FrozenSelectionSpec(final SelectionSpec spec) {
+         name = spec.getName();
+      }
+
+      @Override
+      public void setName(final String value) {
+         throw readOnly();
+      }
+   }
+
+   private static final class FrozenTraversalSpec extends TraversalSpec {
+      FrozenTraversalSpec(final TraversalSpec spec) {
+         name = spec.getName();
+         type = spec.getType();
+         path = spec.getPath();
+         skip = spec.isSkip();
+         selectSet = freeze(spec.getSelectSet());
+      }
+
+      @Override
+      public void setName(final String value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setType(final String value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setPath(final String value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setSkip(final Boolean value) {
+         throw readOnly();
+      }
+   }
+
+   private static final class FrozenReference extends ManagedObjectReference {
+      FrozenReference(final ManagedObjectReference ref) {
+         type = ref.getType();
+         value = ref.getValue();
+      }
+
+      @Override
+      public void setType(final String value) {
+         throw readOnly();
+      }
+
+      @Override
+      public void setValue(final String value) {
+         throw readOnly();
+      }
+   }
+}
@@ -0,0 +1,302 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers.builders;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Builds each distinct query spec once and hands out the same object graph for every identical request.
+ * <p/>
+ * A spec is identified by a stable key made of its parameters: the kind of query, the object or view it starts
+ * from, the type and the property paths. The first request for a key builds the spec with the usual builders;
+ * later requests get the cached spec set, ready to pass to retrievePropertiesEx, for the price of the key. Callers
+ * that issue the same query in a loop can hold on to the returned list and skip even that. Specs returned
+ * here are shared between threads, so they are stored as read only copies: the list and every spec, list and
+ * reference in it throw UnsupportedOperationException when changed. The cache keeps the most recently used
+ * <code>spec.templates.maxSize</code> templates, 256 by default. It is split by key hash into segments with a
+ * lock and a least recently used order of their own, so threads asking for different specs rarely wait for
+ * each other; each segment holds an equal share of the maximum.
+ * </p>
+ * <pre>
+ *     vimPort.retrievePropertiesEx(propertyCollector,
+ *           SpecTemplates.forObject(vm, "name", "runtime.powerState"), new RetrieveOptions());
+ * </pre>
+ */
+public class SpecTemplates {
+   public static final int DEFAULT_MAX_SIZE = 256;
+
+   private static final int maxSize = Integer.getInteger("spec.templates.maxSize", DEFAULT_MAX_SIZE);
+   // a power of two, so a segment is picked by masking the hash
+   private static final int SEGMENTS = 16;
+
+   private static final Segment[] segments = new Segment[SEGMENTS];
+
+   static {
+      for (int i = 0; i < SEGMENTS; i++) {
+         segments[i] = new Segment(Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS));
+      }
+   }
+
+   private SpecTemplates() {
+   }
+
+   /**
+    * @param key     any value with equals and hashCode identifying the spec, e.g. a String
+    * @param builder builds the spec the first time the key is seen
+    * @return the shared spec set for the key, read only
+    */
+   public static List<PropertyFilterSpec> get(final Object key, final Supplier<PropertyFilterSpec> builder) {
+      final List<PropertyFilterSpec> specSet = lookup(key);
+      return specSet != null ? specSet : store(key, builder.get());
+   }
+
+   /**
+    * properties of a single object
+    *
+    * @param obj        the object
+    * @param properties property paths
+    * @return the shared spec set, read only
+    */
+   public static List<PropertyFilterSpec> forObject(final ManagedObjectReference obj, final String... properties) {
+      // look up before building anything, a hit allocates only the key
+      final Key key = new Key("object", obj, null, null, properties);
+      final List<PropertyFilterSpec> specSet = lookup(key);
+      if (specSet != null) {
+         return specSet;
+      }
+      return store(key.copy(), new PropertyFilterSpecBuilder()
+            .propSet(
+                  new PropertySpecBuilder()
+                        .all(Boolean.FALSE)
+                        .type(obj.getType())
+                        .pathSet(properties)
+            )
+            .objectSet(
+                  new ObjectSpecBuilder()
+                        .obj(obj)
+                        .skip(Boolean.FALSE)
+            ));
+   }
+
+   /**
+    * properties of every object of a type in an existing ContainerView
+    *
+    * @param view       the view, it must stay alive as long as the template is used
+    * @param type       managed object type
+    * @param properties property paths
+    * @return the shared spec set, read only
+    */
+   public static List<PropertyFilterSpec> forContainerView(
+         final ManagedObjectReference view, final String type, final String... properties) {
+      final Key key = new Key("view", view, null, type, properties);
+      final List<PropertyFilterSpec> specSet = lookup(key);
+      if (specSet != null) {
+         return specSet;
+      }
+      return store(key.copy(), new PropertyFilterSpecBuilder()
+            .propSet(
+                  new PropertySpecBuilder()
+                        .all(Boolean.FALSE)
+                        .type(type)
+                        .pathSet(properties)
+            )
+            .objectSet(
+                  new ObjectSpecBuilder()
+                        .obj(view)
+                        .skip(Boolean.TRUE)
+                        .selectSet(
+                              new TraversalSpecBuilder()
+                                    .name("view")
+                                    .path("view")
+                                    .skip(false)
+                                    .type("ContainerView")
+                        )
+            ));
+   }
+
+   /**
+    * properties of every object of a type reached through one of the {@link TraversalSpecs} graphs
+    *
+    * @param root       where the traversal starts
+    * @param graph      a graph name from TraversalSpecs
+    * @param type       managed object type
+    * @param properties property paths
+    * @return the shared spec set, read only
+    */
+   public static List<PropertyFilterSpec> forTraversal(
+         final ManagedObjectReference root, final String graph, final String type, final String... properties) {
+      final Key key = new Key("traversal", root, graph, type, properties);
+      final List<PropertyFilterSpec> specSet = lookup(key);
+      if (specSet != null) {
+         return specSet;
+      }
+      final ObjectSpec objectSpec = new ObjectSpecBuilder()
+            .obj(root)
+            .skip(Boolean.TRUE);
+      objectSpec.getSelectSet().addAll(TraversalSpecs.named(graph));
+      return store(key.copy(), new PropertyFilterSpecBuilder()
+            .propSet(
+                  new PropertySpecBuilder()
+                        .all(Boolean.FALSE)
+                        .type(type)
+                        .pathSet(properties)
+            )
+            .objectSet(objectSpec));
+   }
+
+   private static Segment segment(final Object key) {
+      final int h = key.hashCode();
+      return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+   }
+
+   private static List<PropertyFilterSpec> lookup(final Object key) {
+      final Segment segment = segment(key);
+      synchronized (segment) {
+         return segment.get(key);
+      }
+   }
+
+   /**
+    * keeps the first spec stored for a key, so racing builders all end up with the same instance
+    */
+   private static List<PropertyFilterSpec> store(final Object key, final PropertyFilterSpec spec) {
+      final Segment segment = segment(key);
+      synchronized (segment) {
+         List<PropertyFilterSpec> specSet = segment.get(key);
+         if (specSet == null) {
+            specSet = Collections.singletonList(FrozenSpecs.freeze(spec));
+            segment.put(key, specSet);
+         }
+         return specSet;
+      }
+   }
+
+   /**
+    * @return number of cached templates
+    */
+   public static int size() {
+      int size = 0;
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            size += segment.size();
+         }
+      }
+      return size;
+   }
+
+   /**
+    * drops every template, e.g. after the views they refer to were destroyed
+    */
+   public static void clear() {
+      for (Segment segment : segments) {
+         synchronized (segment) {
+            segment.clear();
+         }
+      }
+   }
+
+   /**
+    * one share of the cache, access ordered so the eldest entry is the least recently used one; guarded by
+    * itself
+    */
+   private static final class Segment extends LinkedHashMap<Object, List<PropertyFilterSpec>> {
+      private static final long serialVersionUID = 1L;
+
+      private final int capacity;
+
+      Segment(final int capacity) {
+         super(16, 0.75f, true);
+         this.capacity = capacity;
+      }
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Object, List<PropertyFilterSpec>> eldest) {
+         return size() > capacity;
+      }
+   }
+
+   /**
+    * The parameters of a built in template. ManagedObjectReference has no equals, so the reference is kept as
+    * its type and value.
+    */
+   private static final class Key {
+      private final String kind;
+      private final String refType;
+      private final String refValue;
+      private final String graph;
+      private final String type;
+      private final String[] properties;
+      private final int hash;
+
+      Key(final String kind, final ManagedObjectReference ref, final String graph, final String type,
+          final String[] properties) {
+         this(kind, ref.getType(), ref.getValue(), graph, type, properties);
+      }
+
+      private Key(final String kind, final String refType, final String refValue, final String graph,
+                  final String type, final String[] properties) {
+         this.kind = kind;
+         this.refType = refType;
+         this.refValue = refValue;
+         this.graph = graph;
+         this.type = type;
+         this.properties = properties;
+         int h = kind.hashCode();
+         h = 31 * h + Objects.hashCode(refType);
+         h = 31 * h + Objects.hashCode(refValue);
+         h = 31 * h + Objects.hashCode(graph);
+         h = 31 * h + Objects.hashCode(type);
+         this.hash = 31 * h + Arrays.hashCode(properties);
+      }
+
+      /**
+       * @return a key that no longer shares the caller's property array, for storing in the cache
+       */
+      Key copy() {
+         return new Key(kind, refType, refValue, graph, type, properties.clone());
+      }
+
+      @Override
+      public boolean equals(final Object o) {
+         if (this == o) {
+            return true;
+         }
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         final Key other = (Key) o;
+         return hash == other.hash
+               && kind.equals(other.kind)
+               && Objects.equals(refType, other.refType)
+               && Objects.equals(refValue, other.refValue)
+               && Objects.equals(graph, other.graph)
+               && Objects.equals(type, other.type)
+               && Arrays.equals(properties, other.properties);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+   }
+}
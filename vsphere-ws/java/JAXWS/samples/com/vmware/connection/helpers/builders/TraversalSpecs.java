@@ -0,0 +1,304 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.connection.helpers.builders;
+
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A catalog of the traversal graphs the samples use, each built once.
+ * <p/>
+ * A traversal graph only names types and paths, it does not depend on the session or the inventory, so there
+ * is no reason to assemble it through the builders for every query. The JAXB specs can not be made read only,
+ * so every accessor hands out a fresh copy of the graph, which the caller is free to change.
+ * </p>
+ * <pre>
+ *     ObjectSpec objectSpec = new ObjectSpecBuilder().obj(rootFolder).skip(Boolean.TRUE);
+ *     objectSpec.getSelectSet().addAll(TraversalSpecs.fullInventory());
+ * </pre>
+ * The same graphs are available by name, see {@link #named(String)}, which is what
+ * {@link com.vmware.connection.helpers.TraversalFilter} uses to register them as long lived filters.
+ */
+public class TraversalSpecs {
+   public static final String FULL_INVENTORY = "fullInventory";
+   public static final String VM_INVENTORY = "vmInventory";
+   public static final String DATASTORE_INVENTORY = "datastoreInventory";
+   public static final String HOST_TO_VM = "hostToVm";
+   public static final String DATASTORE_TO_VM = "datastoreToVm";
+
+   private static final Map<String, List<SelectionSpec>> CATALOG;
+
+   static {
+      final Map<String, List<SelectionSpec>> catalog = new LinkedHashMap<String, List<SelectionSpec>>();
+      catalog.put(FULL_INVENTORY, newFullInventory());
+      catalog.put(VM_INVENTORY, Collections.<SelectionSpec>singletonList(buildVmInventory()));
+      catalog.put(DATASTORE_INVENTORY, Collections.<SelectionSpec>singletonList(buildDatastoreInventory()));
+      catalog.put(HOST_TO_VM, Collections.<SelectionSpec>singletonList(
+            new TraversalSpecBuilder()
+                  .name("hToVm")
+                  .type("HostSystem")
+                  .path("vm")
+                  .skip(false)));
+      catalog.put(DATASTORE_TO_VM, Collections.<SelectionSpec>singletonList(
+            new TraversalSpecBuilder()
+                  .name("dsToVm")
+                  .type("Datastore")
+                  .path("vm")
+                  .skip(false)));
+      CATALOG = Collections.unmodifiableMap(catalog);
+   }
+
+   private TraversalSpecs() {
+   }
+
+   /**
+    * @param name one of the constants of this class
+    * @return a copy of the graph
+    * @throws IllegalArgumentException for an unknown name
+    */
+   public static List<SelectionSpec> named(final String name) {
+      final List<SelectionSpec> graph = CATALOG.get(name);
+      if (graph == null) {
+         throw new IllegalArgumentException("unknown traversal graph " + name + ", known are " + CATALOG.keySet());
+      }
+      return copy(graph);
+   }
+
+   /**
+    * @return VM, Host, Resource pool, Cluster Compute Resource, vApp and Datastore reachable from the root folder
+    */
+   public static List<SelectionSpec> fullInventory() {
+      return copy(CATALOG.get(FULL_INVENTORY));
+   }
+
+   /**
+    * @return a spec reaching every VirtualMachine from the root folder through vm folders and vApps
+    */
+   public static TraversalSpec vmInventory() {
+      return (TraversalSpec) copy(CATALOG.get(VM_INVENTORY).get(0));
+   }
+
+   /**
+    * @return a spec reaching every datastore and StoragePod from the root folder through the datastore folders
+    */
+   public static TraversalSpec datastoreInventory() {
+      return (TraversalSpec) copy(CATALOG.get(DATASTORE_INVENTORY).get(0));
+   }
+
+   /**
+    * @return a spec reaching the VMs of a HostSystem
+    */
+   public static TraversalSpec hostToVm() {
+      return (TraversalSpec) copy(CATALOG.get(HOST_TO_VM).get(0));
+   }
+
+   /**
+    * @return a spec reaching the VMs stored on a Datastore
+    */
+   public static TraversalSpec datastoreToVm() {
+      return (TraversalSpec) copy(CATALOG.get(DATASTORE_TO_VM).get(0));
+   }
+
+   /**
+    * @param specs a traversal graph
+    * @return a deep copy of the graph, sharing no spec or list with it
+    */
+   public static List<SelectionSpec> copy(final List<SelectionSpec> specs) {
+      final List<SelectionSpec> copies = new ArrayList<SelectionSpec>(specs.size());
+      for (SelectionSpec spec : specs) {
+         copies.add(copy(spec));
+      }
+      return copies;
+   }
+
+   /**
+    * @param spec a selection or traversal spec
+    * @return a deep copy of the spec and the specs it selects
+    */
+   public static SelectionSpec copy(final SelectionSpec spec) {
+      if (!(spec instanceof TraversalSpec)) {
+         final SelectionSpec copy = new SelectionSpec();
+         copy.setName(spec.getName());
+         return copy;
+      }
+      final TraversalSpec traversal = (TraversalSpec) spec;
+      final TraversalSpec copy = new TraversalSpec();
+      copy.setName(traversal.getName());
+      copy.setType(traversal.getType());
+      copy.setPath(traversal.getPath());
+      copy.setSkip(traversal.isSkip());
+      copy.getSelectSet().addAll(copy(traversal.getSelectSet()));
+      return copy;
+   }
+
+   /**
+    * @return the {@link #fullInventory()} graph built from scratch through the builders
+    */
+   public static List<SelectionSpec> newFullInventory() {
+      // Terminal traversal specs
+      TraversalSpec rpToVm = new TraversalSpecBuilder()
+            .name("rpToVm")
+            .type("ResourcePool")
+            .path("vm")
+            .skip(false);
+
+      TraversalSpec vAppToVM = new TraversalSpecBuilder()
+            .name("vAppToVM")
+            .type("VirtualApp")
+            .path("vm");
+
+      TraversalSpec hToVm = new TraversalSpecBuilder()
+            .name("hToVm")
+            .type("HostSystem")
+            .path("vm")
+            .skip(false)
+            .selectSet(new SelectionSpecBuilder().name("VisitFolders"));
+
+      TraversalSpec dcToDs = new TraversalSpecBuilder()
+            .name("dcToDs")
+            .type("Datacenter")
+            .path("datastore")
+            .skip(false);
+
+      // Recurse through all ResourcePools
+      TraversalSpec rpToRp = new TraversalSpecBuilder()
+            .name("rpToRp")
+            .type("ResourcePool")
+            .path("resourcePool")
+            .skip(false)
+            .selectSet(new SelectionSpecBuilder().name("rpToRp"));
+
+      TraversalSpec crToRp = new TraversalSpecBuilder()
+            .name("crToRp")
+            .type("ComputeResource")
+            .path("resourcePool")
+            .skip(false)
+            .selectSet(new SelectionSpecBuilder().name("rpToRp"));
+
+      TraversalSpec crToH = new TraversalSpecBuilder()
+            .name("crToH")
+            .type("ComputeResource")
+            .path("host")
+            .skip(false);
+
+      TraversalSpec dcToHf = new TraversalSpecBuilder()
+            .name("dcToHf")
+            .type("Datacenter")
+            .path("hostFolder")
+            .skip(false)
+            .selectSet(new SelectionSpecBuilder().name("VisitFolders"));
+
+      TraversalSpec vAppToRp = new TraversalSpecBuilder()
+            .name("vAppToRp")
+            .type("VirtualApp")
+            .path("resourcePool")
+            .selectSet(new SelectionSpecBuilder().name("rpToRp"));
+
+      TraversalSpec dcToVmf = new TraversalSpecBuilder()
+            .name("dcToVmf")
+            .type("Datacenter")
+            .path("vmFolder")
+            .skip(false)
+            .selectSet(new SelectionSpecBuilder().name("VisitFolders"));
+
+      // For Folder -> Folder recursion
+      TraversalSpec visitFolders = new TraversalSpecBuilder()
+            .name("VisitFolders")
+            .type("Folder")
+            .path("childEntity")
+            .skip(false)
+            .selectSet(
+                  new SelectionSpecBuilder().name("VisitFolders"),
+                  new SelectionSpecBuilder().name("dcToVmf"),
+                  new SelectionSpecBuilder().name("dcToHf"),
+                  new SelectionSpecBuilder().name("dcToDs"),
+                  new SelectionSpecBuilder().name("crToRp"),
+                  new SelectionSpecBuilder().name("crToH"),
+                  new SelectionSpecBuilder().name("hToVm"),
+                  new SelectionSpecBuilder().name("rpToVm"),
+                  new SelectionSpecBuilder().name("rpToRp"),
+                  new SelectionSpecBuilder().name("vAppToRp"),
+                  new SelectionSpecBuilder().name("vAppToVM"));
+
+      return new ArrayList<SelectionSpec>(Arrays.<SelectionSpec>asList(
+            visitFolders, dcToVmf, dcToHf, dcToDs, crToRp, crToH, hToVm, rpToVm, rpToRp, vAppToRp, vAppToVM));
+   }
+
+   private static TraversalSpec buildVmInventory() {
+      //Traversal to get to the VM in a VApp
+      TraversalSpec vAppToVM = new TraversalSpecBuilder()
+            .name("vAppToVM")
+            .type("VirtualApp")
+            .path("vm");
+
+      //Traversal spec for VApp to VApp
+      TraversalSpec vAppToVApp = new TraversalSpecBuilder()
+            .name("vAppToVApp")
+            .type("VirtualApp")
+            .path("resourcePool")
+            .selectSet(
+                  //SelectionSpec for both VApp to VApp and VApp to VM
+                  new SelectionSpecBuilder().name("vAppToVApp"),
+                  new SelectionSpecBuilder().name("vAppToVM")
+            );
+
+      //This SelectionSpec is used for recursion for Folder recursion
+      SelectionSpec visitFolders = new SelectionSpecBuilder().name("VisitFolders");
+
+      // Traversal to get to the vmFolder from DataCenter
+      TraversalSpec dataCenterToVMFolder = new TraversalSpecBuilder()
+            .name("DataCenterToVMFolder")
+            .type("Datacenter")
+            .path("vmFolder")
+            .skip(false)
+            .selectSet(visitFolders);
+
+      // TraversalSpec to get to the DataCenter from rootFolder
+      return new TraversalSpecBuilder()
+            .name("VisitFolders")
+            .type("Folder")
+            .path("childEntity")
+            .skip(false)
+            .selectSet(
+                  visitFolders,
+                  dataCenterToVMFolder,
+                  vAppToVM,
+                  vAppToVApp
+            );
+   }
+
+   private static TraversalSpec buildDatastoreInventory() {
+      SelectionSpec visitFolders = new SelectionSpecBuilder().name("visitFolders");
+
+      TraversalSpec datacenterSpec = new TraversalSpecBuilder()
+            .name("dcTodf")
+            .type("Datacenter")
+            .path("datastoreFolder")
+            .skip(false)
+            .selectSet(visitFolders);
+
+      return new TraversalSpecBuilder()
+            .name("visitFolders")
+            .type("Folder")
+            .path("childEntity")
+            .skip(false)
+            .selectSet(datacenterSpec, visitFolders);
+   }
+}
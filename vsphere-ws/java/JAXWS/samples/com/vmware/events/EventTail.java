@@ -0,0 +1,119 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.events;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.events.stream.EventCheckpoint;
+import com.vmware.events.stream.EventStream;
+import com.vmware.vim25.Event;
+import com.vmware.vim25.EventFilterSpec;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * EventTail
+ *
+ * This sample tails the event log of the whole vCenter with an EventStream:
+ * it reads the events in adaptive batches, wakes up when the latestPage of
+ * the collector changes instead of polling, and prints every event, or only
+ * the throughput every ten seconds. With a checkpoint file, a restart goes
+ * on right after the last event that was printed. With shard, it reads one
+ * collector per datacenter or cluster in parallel and merges them in order.
+ *
+ * <b>Parameters:</b>
+ * url        [required] : url of the web service
+ * username   [required] : username for the authentication
+ * password   [required] : password for the authentication
+ * quiet      [optional] : only print the throughput, not the events
+ * checkpoint [optional] : file to record the position in and resume from
+ * shard      [optional] : datacenter or cluster, one collector for each
+ * seconds    [optional] : seconds to run, default 0 for no limit
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.events.EventTail --url [webserviceurl]
+ * --username [username] --password [password] --quiet
+ * --checkpoint events.checkpoint --shard datacenter
+ * </pre>
+ */
+@Sample(
+      name = "event-tail",
+      description = "tails the event log of the whole vCenter through one EventHistoryCollector, or one per " +
+            "datacenter or cluster, waking up on latestPage changes, and prints the events or the throughput"
+)
+public class EventTail extends ConnectedVimServiceBase {
+   private boolean quiet = false;
+   private int seconds = 0;
+   private String checkpoint;
+   private EventStream.Sharding sharding = EventStream.Sharding.NONE;
+
+   @Option(name = "quiet", required = false, parameter = false, description = "only print the throughput")
+   public void setQuiet(final Boolean quiet) {
+      this.quiet = quiet;
+   }
+
+   @Option(name = "checkpoint", required = false, description = "file to record the position in and resume from")
+   public void setCheckpoint(final String checkpoint) {
+      this.checkpoint = checkpoint;
+   }
+
+   @Option(name = "shard", required = false, description = "datacenter or cluster, one collector for each")
+   public void setShard(final String shard) {
+      this.sharding = EventStream.Sharding.valueOf(shard.toUpperCase());
+   }
+
+   @Option(name = "seconds", required = false, description = "seconds to run, default 0 for no limit")
+   public void setSeconds(final String seconds) {
+      this.seconds = Integer.parseInt(seconds);
+   }
+
+   @Action
+   public void run() throws InterruptedException, IOException {
+      final EventCheckpoint position = checkpoint == null ? null : new EventCheckpoint(new File(checkpoint));
+      final EventStream stream = new EventStream(connection, new EventFilterSpec())
+            .checkpoint(position)
+            .sharding(sharding);
+      if (!quiet) {
+         stream.subscribe(events -> {
+            for (Event event : events) {
+               System.out.println(event.getCreatedTime() + " " + event.getKey() + " " + event.getFullFormattedMessage());
+            }
+         });
+      }
+      final long end = seconds == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+      try {
+         stream.start();
+         long last = 0;
+         while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(10000, Math.max(1, end - System.currentTimeMillis())));
+            final long delivered = stream.getDelivered();
+            System.out.printf("%d events delivered (%d/min), %d queued, %d reads of up to %d from %d "
+                        + "collectors, %d wakeups, %d skipped on resuming, %d duplicates, %d errors%n", delivered,
+                  (delivered - last) * 6, stream.getQueued(), stream.getReads(), stream.getBatchSize(),
+                  stream.getShards(), stream.getWakeups(), stream.getSkipped(), stream.getDuplicates(),
+                  stream.getErrors());
+            last = delivered;
+         }
+      } finally {
+         stream.close();
+         if (position != null) {
+            position.close();
+         }
+      }
+   }
+}
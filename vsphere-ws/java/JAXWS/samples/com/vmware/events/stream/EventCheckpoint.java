@@ -0,0 +1,215 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.events.stream;
+
+import com.vmware.vim25.Event;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Remembers in a local file how far the events were processed, so a restarted {@link EventStream} continues right
+ * after the last processed event instead of reading the history again or skipping what happened while it was down.
+ * <p/>
+ * The position is the createdTime of the newest processed event and the keys of all processed events created at
+ * that same millisecond, since several events can share a time. After each batch a line of the form
+ * <code>createdTimeMillis key,key,...</code> is appended and flushed, and with <code>events.checkpoint.sync</code>
+ * set, forced to disk. The last complete line that parses is the position; a line cut short by a crash is ignored
+ * and ended with a newline before the next one is appended. Every <code>events.checkpoint.compactLines</code> lines
+ * (default 10,000) the file is rewritten aside with the last line only and renamed over the old one.
+ * </p>
+ * A stream resumes by reading from the position's time on and dropping the events at that time whose keys are
+ * listed, see {@link #isProcessed}.
+ */
+public class EventCheckpoint implements Closeable {
+   public static final int DEFAULT_COMPACT_LINES = 10000;
+
+   private final File file;
+   private final int compactLines = Integer.getInteger("events.checkpoint.compactLines", DEFAULT_COMPACT_LINES);
+   private final boolean sync = Boolean.getBoolean("events.checkpoint.sync");
+   private long time = -1;
+   private final Set<Integer> keys = new LinkedHashSet<Integer>();
+   private FileOutputStream out;
+   private int lines;
+
+   /**
+    * @param file the checkpoint file, read if it exists and appended to
+    * @throws IOException if the file can not be read or opened
+    */
+   public EventCheckpoint(final File file) throws IOException {
+      this.file = file;
+      boolean torn = false;
+      if (file.isFile()) {
+         final String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+         read(content);
+         torn = !content.isEmpty() && content.charAt(content.length() - 1) != '\n';
+      }
+      out = new FileOutputStream(file, true);
+      if (torn) {
+         // end the line cut short by a crash, or the next record would be appended to it
+         out.write('\n');
+         out.flush();
+         lines++;
+      }
+   }
+
+   private void read(final String content) {
+      int end = content.lastIndexOf('\n');
+      // the newest line that parses is the position, anything after it was cut short
+      while (end >= 0) {
+         final int start = content.lastIndexOf('\n', end - 1) + 1;
+         if (parse(content.substring(start, end))) {
+            break;
+         }
+         end = start - 1;
+      }
+      for (int i = 0; i < content.length(); i++) {
+         if (content.charAt(i) == '\n') {
+            lines++;
+         }
+      }
+   }
+
+   private boolean parse(final String line) {
+      final int space = line.indexOf(' ');
+      if (space <= 0) {
+         return false;
+      }
+      final Set<Integer> parsed = new LinkedHashSet<Integer>();
+      final long parsedTime;
+      try {
+         parsedTime = Long.parseLong(line.substring(0, space));
+         for (String key : line.substring(space + 1).split(",")) {
+            if (!key.isEmpty()) {
+               parsed.add(Integer.valueOf(key));
+            }
+         }
+      } catch (NumberFormatException e) {
+         return false;
+      }
+      if (parsedTime < 0) {
+         return false;
+      }
+      time = parsedTime;
+      keys.addAll(parsed);
+      return true;
+   }
+
+   /**
+    * @return createdTime in milliseconds of the newest processed event, -1 if nothing was processed yet
+    */
+   public synchronized long getTime() {
+      return time;
+   }
+
+   /**
+    * @return keys of the processed events created at {@link #getTime()}
+    */
+   public synchronized Set<Integer> getKeys() {
+      return Collections.unmodifiableSet(new LinkedHashSet<Integer>(keys));
+   }
+
+   /**
+    * @param createdTime createdTime of an event in milliseconds
+    * @param key         key of the event
+    * @return true if the event is not newer than the position, so it was processed before
+    */
+   public synchronized boolean isProcessed(final long createdTime, final int key) {
+      return createdTime < time || createdTime == time && keys.contains(key);
+   }
+
+   /**
+    * Moves the position past the events, which must have been processed, and writes it.
+    *
+    * @param events events in the order they were read
+    * @throws IOException if the position can not be written
+    */
+   public synchronized void record(final List<Event> events) throws IOException {
+      if (events.isEmpty()) {
+         return;
+      }
+      for (Event event : events) {
+         final long created = createdTime(event);
+         if (created > time) {
+            time = created;
+            keys.clear();
+         }
+         if (created == time) {
+            keys.add(event.getKey());
+         }
+      }
+      final byte[] line = line();
+      if (++lines >= compactLines) {
+         compact(line);
+      } else {
+         out.write(line);
+         out.flush();
+         if (sync) {
+            out.getFD().sync();
+         }
+      }
+   }
+
+   private byte[] line() {
+      final StringBuilder builder = new StringBuilder(32 + keys.size() * 8);
+      builder.append(time).append(' ');
+      boolean first = true;
+      for (Integer key : keys) {
+         if (!first) {
+            builder.append(',');
+         }
+         builder.append(key);
+         first = false;
+      }
+      return builder.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+   }
+
+   private void compact(final byte[] line) throws IOException {
+      // write aside and rename, so a crash leaves either the old or the new file
+      final File temp = new File(file.getPath() + ".tmp");
+      try (FileOutputStream compacted = new FileOutputStream(temp)) {
+         compacted.write(line);
+         compacted.getFD().sync();
+      }
+      out.close();
+      if (!temp.renameTo(file)) {
+         file.delete();
+         if (!temp.renameTo(file)) {
+            throw new IOException("cannot rename " + temp + " to " + file);
+         }
+      }
+      out = new FileOutputStream(file, true);
+      lines = 1;
+   }
+
+   /**
+    * @param event an event
+    * @return its createdTime in milliseconds since the epoch
+    */
+   static long createdTime(final Event event) {
+      return event.getCreatedTime().toGregorianCalendar().getTimeInMillis();
+   }
+
+   @Override
+   public synchronized void close() throws IOException {
+      out.close();
+   }
+}
@@ -0,0 +1,326 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.events.stream;
+
+import com.vmware.connection.Connection;
+import com.vmware.vim25.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Formats events the way the vSphere Client does, from the format strings in the <code>description.eventInfo</code>
+ * of the EventManager, without asking the server for the fullFormattedMessage of each event.
+ * <p/>
+ * A format string such as <code>{vm.name} on {host.name} in {datacenter.name} is powered on</code> is compiled
+ * once per event class and {@link Scope} into a template of literal parts and accessors. The common arguments,
+ * <code>userName</code> and the <code>name</code> of <code>vm</code>, <code>host</code>,
+ * <code>computeResource</code>, <code>datacenter</code>, <code>ds</code>, <code>net</code> and <code>dvs</code>, are
+ * plain lambdas; any other path, such as <code>{oldName}</code> of a VmRenamedEvent, is resolved to a chain of
+ * getters of the event class when compiling, and an EventEx looks it up in its arguments. Formatting an event then
+ * only walks its template into a StringBuilder.
+ * </p>
+ * An event whose type has no format, or that lacks a value for an argument, for instance a VM event outside of a
+ * cluster formatted on the compute resource, gets its fullFormattedMessage instead, if the server sent one. The
+ * formatter is immutable apart from its template cache and may be shared between threads.
+ */
+public class EventFormatter {
+   /**
+    * which of the format strings of an event type to use, by the inventory object the event is shown on
+    */
+   public enum Scope {
+      VM, HOST, COMPUTE_RESOURCE, DATACENTER, FULL
+   }
+
+   private static final Map<String, Function<Event, Object>> ARGUMENTS =
+         new HashMap<String, Function<Event, Object>>();
+
+   static {
+      ARGUMENTS.put("userName", Event::getUserName);
+      ARGUMENTS.put("vm.name", event -> event.getVm() == null ? null : event.getVm().getName());
+      ARGUMENTS.put("host.name", event -> event.getHost() == null ? null : event.getHost().getName());
+      ARGUMENTS.put("computeResource.name",
+            event -> event.getComputeResource() == null ? null : event.getComputeResource().getName());
+      ARGUMENTS.put("datacenter.name", event -> event.getDatacenter() == null ? null : event.getDatacenter().getName());
+      ARGUMENTS.put("ds.name", event -> event.getDs() == null ? null : event.getDs().getName());
+      ARGUMENTS.put("net.name", event -> event.getNet() == null ? null : event.getNet().getName());
+      ARGUMENTS.put("dvs.name", event -> event.getDvs() == null ? null : event.getDvs().getName());
+      ARGUMENTS.put("createdTime", Event::getCreatedTime);
+   }
+
+   /**
+    * the format of one event class in one scope, null parts of {@link #accessors} are literals
+    */
+   private static final class Template {
+      private final String[] literals;
+      private final Function<Event, Object>[] accessors;
+
+      private Template(final String[] literals, final Function<Event, Object>[] accessors) {
+         this.literals = literals;
+         this.accessors = accessors;
+      }
+
+      /**
+       * @return false, with builder partly written, if an argument has no value
+       */
+      private boolean append(final Event event, final StringBuilder builder) {
+         for (int i = 0; i < literals.length; i++) {
+            if (accessors[i] == null) {
+               builder.append(literals[i]);
+            } else {
+               final Object value = accessors[i].apply(event);
+               if (value == null) {
+                  return false;
+               }
+               builder.append(value);
+            }
+         }
+         return true;
+      }
+   }
+
+   private static final Template NO_FORMAT = new Template(new String[0], null);
+
+   private final Map<String, EventDescriptionEventDetail> details;
+   private final Map<Class<?>, Template[]> templates = new ConcurrentHashMap<Class<?>, Template[]>();
+   private final Map<String, Template[]> extendedTemplates = new ConcurrentHashMap<String, Template[]>();
+
+   /**
+    * @param eventInfo the <code>description.eventInfo</code> of the EventManager
+    */
+   public EventFormatter(final List<EventDescriptionEventDetail> eventInfo) {
+      final Map<String, EventDescriptionEventDetail> byKey = new HashMap<String, EventDescriptionEventDetail>();
+      for (EventDescriptionEventDetail detail : eventInfo) {
+         byKey.put(detail.getKey(), detail);
+      }
+      this.details = Collections.unmodifiableMap(byKey);
+   }
+
+   /**
+    * @param connection a connection
+    * @return a formatter with the event descriptions of the server
+    * @throws RuntimeFaultFaultMsg     if the server fails
+    * @throws InvalidPropertyFaultMsg if the server has no event descriptions
+    */
+   public static EventFormatter load(final Connection connection)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      final ServiceContent serviceContent = connection.connect().getServiceContent();
+      final PropertySpec propertySpec = new PropertySpec();
+      propertySpec.setType(serviceContent.getEventManager().getType());
+      propertySpec.getPathSet().add("description.eventInfo");
+      final ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(serviceContent.getEventManager());
+      objectSpec.setSkip(Boolean.FALSE);
+      final PropertyFilterSpec spec = new PropertyFilterSpec();
+      spec.getPropSet().add(propertySpec);
+      spec.getObjectSet().add(objectSpec);
+      final RetrieveResult result = connection.getVimPort().retrievePropertiesEx(
+            serviceContent.getPropertyCollector(), Collections.singletonList(spec), new RetrieveOptions());
+      final List<EventDescriptionEventDetail> eventInfo = new ArrayList<EventDescriptionEventDetail>();
+      if (result != null && !result.getObjects().isEmpty()
+            && !result.getObjects().get(0).getPropSet().isEmpty()) {
+         eventInfo.addAll(((ArrayOfEventDescriptionEventDetail) result.getObjects().get(0).getPropSet().get(0)
+               .getVal()).getEventDescriptionEventDetail());
+      }
+      return new EventFormatter(eventInfo);
+   }
+
+   /**
+    * @param event an event
+    * @param scope which format to use
+    * @return the message, the fullFormattedMessage of the event if it can not be formatted
+    */
+   public String format(final Event event, final Scope scope) {
+      final StringBuilder builder = new StringBuilder(128);
+      return format(event, scope, builder) ? builder.toString() : event.getFullFormattedMessage();
+   }
+
+   /**
+    * Appends the message without creating a String, for writing many events; on false, the builder is left as it
+    * was.
+    *
+    * @param event   an event
+    * @param scope   which format to use
+    * @param builder where to append the message
+    * @return false if there is no format for the event or an argument has no value
+    */
+   public boolean format(final Event event, final Scope scope, final StringBuilder builder) {
+      final Template template = template(event)[scope.ordinal()];
+      final int length = builder.length();
+      if (template == NO_FORMAT || !template.append(event, builder)) {
+         builder.setLength(length);
+         return false;
+      }
+      return true;
+   }
+
+   private Template[] template(final Event event) {
+      if (event instanceof EventEx) {
+         // all EventEx share a class, their type is the eventTypeId
+         final String typeId = ((EventEx) event).getEventTypeId();
+         final Template[] compiled = extendedTemplates.get(typeId);
+         return compiled != null ? compiled
+               : extendedTemplates.computeIfAbsent(typeId, key -> compile(event.getClass(), details.get(key)));
+      }
+      final Template[] compiled = templates.get(event.getClass());
+      return compiled != null ? compiled : templates.computeIfAbsent(event.getClass(),
+            type -> compile(type, details.get(type.getSimpleName())));
+   }
+
+   private static Template[] compile(final Class<?> type, final EventDescriptionEventDetail detail) {
+      final Template[] compiled = new Template[Scope.values().length];
+      for (Scope scope : Scope.values()) {
+         compiled[scope.ordinal()] = detail == null ? NO_FORMAT : compile(type, formatString(detail, scope));
+      }
+      return compiled;
+   }
+
+   private static String formatString(final EventDescriptionEventDetail detail, final Scope scope) {
+      switch (scope) {
+         case VM:
+            return detail.getFormatOnVm();
+         case HOST:
+            return detail.getFormatOnHost();
+         case COMPUTE_RESOURCE:
+            return detail.getFormatOnComputeResource();
+         case DATACENTER:
+            return detail.getFormatOnDatacenter();
+         default:
+            return detail.getFullFormat();
+      }
+   }
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   private static Template compile(final Class<?> type, final String format) {
+      if (format == null || format.isEmpty()) {
+         return NO_FORMAT;
+      }
+      final List<String> literals = new ArrayList<String>();
+      final List<Function<Event, Object>> accessors = new ArrayList<Function<Event, Object>>();
+      int from = 0;
+      while (from < format.length()) {
+         final int open = format.indexOf('{', from);
+         final int close = open < 0 ? -1 : format.indexOf('}', open);
+         if (close < 0) {
+            literals.add(format.substring(from));
+            accessors.add(null);
+            break;
+         }
+         if (open > from) {
+            literals.add(format.substring(from, open));
+            accessors.add(null);
+         }
+         final String path = format.substring(open + 1, close);
+         final Function<Event, Object> accessor = accessor(type, path);
+         if (accessor == null) {
+            // nested or unknown arguments are left to the server's message
+            return NO_FORMAT;
+         }
+         literals.add(path);
+         accessors.add(accessor);
+         from = close + 1;
+      }
+      return new Template(literals.toArray(new String[literals.size()]),
+            accessors.toArray(new Function[accessors.size()]));
+   }
+
+   private static Function<Event, Object> accessor(final Class<?> type, final String path) {
+      final Function<Event, Object> known = ARGUMENTS.get(path);
+      if (known != null) {
+         return known;
+      }
+      if (path.isEmpty() || path.indexOf('{') >= 0) {
+         return null;
+      }
+      final List<MethodHandle> getters = new ArrayList<MethodHandle>();
+      Class<?> current = type;
+      for (String name : path.split("\\.")) {
+         final Method getter = getter(current, name);
+         if (getter == null) {
+            return EventEx.class.isAssignableFrom(type) && path.indexOf('.') < 0 ? argument(path) : null;
+         }
+         try {
+            getters.add(MethodHandles.publicLookup().unreflect(getter)
+                  .asType(MethodType.methodType(Object.class, Object.class)));
+         } catch (IllegalAccessException e) {
+            return null;
+         }
+         current = getter.getReturnType();
+      }
+      final MethodHandle[] chain = getters.toArray(new MethodHandle[getters.size()]);
+      final Function<Event, Object> walk = event -> {
+         Object value = event;
+         try {
+            for (int i = 0; i < chain.length && value != null; i++) {
+               value = chain[i].invokeExact(value);
+            }
+         } catch (Throwable e) {
+            // the getters of the generated types do not throw
+            throw new IllegalStateException(e);
+         }
+         return value;
+      };
+      return current.isEnum() ? walk.andThen(wireNames(current)::get) : walk;
+   }
+
+   private static Method getter(final Class<?> type, final String name) {
+      if (name.isEmpty()) {
+         return null;
+      }
+      final String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+      for (String prefix : new String[]{"get", "is"}) {
+         try {
+            final Method method = type.getMethod(prefix + suffix);
+            if (method.getReturnType() != void.class) {
+               return method;
+            }
+         } catch (NoSuchMethodException e) {
+            // try the next prefix
+         }
+      }
+      return null;
+   }
+
+   private static Function<Event, Object> argument(final String key) {
+      return event -> {
+         for (KeyAnyValue argument : ((EventEx) event).getArguments()) {
+            if (key.equals(argument.getKey())) {
+               return argument.getValue();
+            }
+         }
+         return null;
+      };
+   }
+
+   private static Map<Object, String> wireNames(final Class<?> type) {
+      // the generated enums carry the name used on the wire in value()
+      final Map<Object, String> names = new HashMap<Object, String>();
+      for (Object constant : type.getEnumConstants()) {
+         try {
+            names.put(constant, String.valueOf(type.getMethod("value").invoke(constant)));
+         } catch (ReflectiveOperationException e) {
+            names.put(constant, ((Enum<?>) constant).name());
+         }
+      }
+      return names;
+   }
+}
@@ -0,0 +1,782 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.events.stream;
+
+import com.vmware.connection.AsyncVimPort;
+import com.vmware.connection.Connection;
+import com.vmware.connection.SessionLiveness;
+import com.vmware.connection.helpers.GetMOREF;
+import com.vmware.vim25.*;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Tails the event log of a vCenter through an EventHistoryCollector, or one per subtree of the inventory, and hands
+ * the events to {@link EventSubscriber}s.
+ * <p/>
+ * A reader thread reads the collector with readNextEvents until it is caught up, then blocks in waitForUpdatesEx
+ * on the collector's <code>latestPage</code> on a private PropertyCollector, and reads again as soon as the page
+ * changes, or after <code>events.stream.maxWaitSeconds</code> (default 30) at the latest. The page is only a
+ * wake-up signal, so it is shrunk to <code>events.stream.pageSize</code> events (default 1) with
+ * setCollectorPageSize to keep the notifications small. A read that comes back full doubles the size of the next
+ * one and a read that comes back short halves it, between <code>events.stream.minBatch</code> (default 50) and
+ * <code>events.stream.maxBatch</code> (default 1000), so a burst is read in few large round-trips and a quiet log
+ * in small ones.
+ * </p>
+ * Events go through a queue of <code>events.stream.queueCapacity</code> events (default 10,000) to a delivery
+ * thread, which passes them to every subscriber in batches of up to <code>events.stream.deliveryBatch</code>
+ * (default 500). When the subscribers fall behind and the queue is full, the reader stops reading until there is
+ * room again; the events wait on the server meanwhile, nothing is dropped. A subscriber that fails on a batch is
+ * handed the same batch again, after a pause that doubles each time, up to <code>events.stream.deliveryRetries</code>
+ * times (default 3); if it still fails the stream stops, so that no batch counts as handled that was not.
+ * <p/>
+ * With an {@link EventCheckpoint}, the position is recorded after every batch all subscribers handled, and a stream
+ * started on the same checkpoint asks the collector only for events from the recorded time on, dropping the ones at
+ * that time it had already delivered.
+ * </p>
+ * On a large vCenter one collector over the whole inventory is the bottleneck. With {@link #sharding(Sharding)} the
+ * stream creates one collector per datacenter or per cluster subtree instead, each with the filter narrowed to its
+ * entity and all its children, and reads them in parallel, at most <code>events.stream.readers</code> (default 8)
+ * at a time. Each round reads one batch from every collector that is not caught up yet, and the events are merged in
+ * key order, which is the order the server logged them in, so a chain's events follow its first one, whose key is
+ * their chainId. Events with a key past the last one read from a collector that still has more are held back for the
+ * next round, so the merged stream stays in order across rounds too. An
+ * event on entities in two subtrees, such as a migration between clusters, is read by both collectors and delivered
+ * once: the keys of the last <code>events.stream.dedupKeys</code> events (default 100,000) are remembered. The
+ * subtrees are listed again every <code>events.stream.shardRefreshSeconds</code> (default 300) and after a failed
+ * read; collectors of removed subtrees are destroyed and new subtrees get a collector that begins at the time of the
+ * newest event read so far. Events on no entity of any subtree, such as logins, are not read in this mode.
+ * <p/>
+ * The collectors live in the session. When a read finds them gone, after the session expired or the connection
+ * logged in again, every collector is opened again, beginning at the time of the newest event read so far, or at
+ * the checkpoint if nothing was read yet; the events read before are weeded out by their keys.
+ * </p>
+ * <p/>
+ * <pre>
+ *     EventStream stream = new EventStream(connection, new EventFilterSpec())
+ *           .subscribe(events -&gt; ...);
+ *     stream.start();
+ *     ...
+ *     stream.close();
+ * </pre>
+ */
+public class EventStream implements Closeable {
+   public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+   public static final int DEFAULT_MIN_BATCH = 50;
+   public static final int DEFAULT_MAX_BATCH = 1000;
+   public static final int DEFAULT_DELIVERY_BATCH = 500;
+   public static final int DEFAULT_PAGE_SIZE = 1;
+   public static final int DEFAULT_MAX_WAIT_SECONDS = 30;
+   public static final int DEFAULT_READERS = 8;
+   public static final int DEFAULT_DEDUP_KEYS = 100000;
+   public static final int DEFAULT_SHARD_REFRESH_SECONDS = 300;
+   public static final int DEFAULT_DELIVERY_RETRIES = 3;
+
+   /**
+    * how the events are split over collectors
+    */
+   public enum Sharding {
+      /**
+       * one collector for the whole filter
+       */
+      NONE(null),
+      /**
+       * one collector per datacenter
+       */
+      DATACENTER("Datacenter"),
+      /**
+       * one collector per cluster and per standalone host, events on datastores and networks are not read
+       */
+      CLUSTER("ComputeResource");
+
+      private final String type;
+
+      Sharding(final String type) {
+         this.type = type;
+      }
+   }
+
+   /**
+    * a collector and the filter on its latestPage, one per subtree
+    */
+   private static final class Shard {
+      private final ManagedObjectReference entity;
+      private ManagedObjectReference collector;
+      private ManagedObjectReference pageFilter;
+      private int batchSize;
+      private boolean resuming;
+      private boolean full;
+      private int lastKey;
+
+      private Shard(final ManagedObjectReference entity, final int batchSize) {
+         this.entity = entity;
+         this.batchSize = batchSize;
+      }
+   }
+
+   private static final Comparator<Event> BY_KEY = new Comparator<Event>() {
+      @Override
+      public int compare(final Event a, final Event b) {
+         return Integer.compare(a.getKey(), b.getKey());
+      }
+   };
+
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+
+   private final Connection connection;
+   private final EventFilterSpec filter;
+   private final List<EventSubscriber> subscribers = new CopyOnWriteArrayList<EventSubscriber>();
+   private final BlockingQueue<Event> queue;
+   private final int minBatch = Integer.getInteger("events.stream.minBatch", DEFAULT_MIN_BATCH);
+   private final int maxBatch = Integer.getInteger("events.stream.maxBatch", DEFAULT_MAX_BATCH);
+   private final int deliveryBatch = Integer.getInteger("events.stream.deliveryBatch", DEFAULT_DELIVERY_BATCH);
+   private final int deliveryRetries = Integer.getInteger("events.stream.deliveryRetries", DEFAULT_DELIVERY_RETRIES);
+   private final int pageSize = Integer.getInteger("events.stream.pageSize", DEFAULT_PAGE_SIZE);
+   private final int maxWaitSeconds = Integer.getInteger("events.stream.maxWaitSeconds", DEFAULT_MAX_WAIT_SECONDS);
+   private final int dedupKeys = Integer.getInteger("events.stream.dedupKeys", DEFAULT_DEDUP_KEYS);
+   private final long shardRefreshMillis = TimeUnit.SECONDS.toMillis(
+         Integer.getInteger("events.stream.shardRefreshSeconds", DEFAULT_SHARD_REFRESH_SECONDS));
+
+   private final AtomicLong read = new AtomicLong();
+   private final AtomicLong delivered = new AtomicLong();
+   private final AtomicLong reads = new AtomicLong();
+   private final AtomicLong wakeups = new AtomicLong();
+   private final AtomicLong errors = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong duplicates = new AtomicLong();
+
+   private volatile boolean running;
+   private volatile int batchSize;
+   private Thread reader;
+   private Thread dispatcher;
+   private volatile int shardCount;
+   private EventCheckpoint checkpoint;
+   private Sharding sharding = Sharding.NONE;
+   // owned by the reader thread
+   private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+   private final Set<Integer> recentKeys = new LinkedHashSet<Integer>();
+   private AsyncVimPort asyncPort;
+   private ManagedObjectReference propertyCollector;
+   private volatile ManagedObjectReference waitingOn;
+   private String version = "";
+   private long shardsListed;
+   private long newest = -1;
+   // the highest key queued by a stream that is not sharded, where keys only grow
+   private int lastQueued = -1;
+
+   /**
+    * a stream with a queue of <code>events.stream.queueCapacity</code> events
+    *
+    * @param connection a connection
+    * @param filter     the events to read, an empty spec for all of them
+    */
+   public EventStream(final Connection connection, final EventFilterSpec filter) {
+      this(connection, filter, Integer.getInteger("events.stream.queueCapacity", DEFAULT_QUEUE_CAPACITY));
+   }
+
+   /**
+    * @param connection    a connection
+    * @param filter        the events to read, an empty spec for all of them
+    * @param queueCapacity events read but not delivered yet before reading stops
+    */
+   public EventStream(final Connection connection, final EventFilterSpec filter, final int queueCapacity) {
+      this.connection = connection.connect();
+      this.filter = filter;
+      this.queue = new ArrayBlockingQueue<Event>(queueCapacity);
+      this.batchSize = minBatch;
+   }
+
+   /**
+    * @param subscriber receives every event from now on
+    * @return this stream, for method chaining
+    */
+   public EventStream subscribe(final EventSubscriber subscriber) {
+      subscribers.add(subscriber);
+      return this;
+   }
+
+   /**
+    * @param checkpoint where to resume from and to record the position, set before {@link #start()}; its time
+    *                   becomes the begin time of the filter
+    * @return this stream, for method chaining
+    */
+   public EventStream checkpoint(final EventCheckpoint checkpoint) {
+      this.checkpoint = checkpoint;
+      return this;
+   }
+
+   /**
+    * @param sharding how to split the events over collectors, set before {@link #start()}; anything but
+    *                 {@link Sharding#NONE} needs a filter without an entity
+    * @return this stream, for method chaining
+    */
+   public EventStream sharding(final Sharding sharding) {
+      if (sharding != Sharding.NONE && filter.getEntity() != null) {
+         throw new IllegalArgumentException("a sharded stream sets the entity of the filter itself");
+      }
+      this.sharding = sharding;
+      return this;
+   }
+
+   /**
+    * @param subscriber no longer receives events, after the batch it may be handling
+    */
+   public void unsubscribe(final EventSubscriber subscriber) {
+      subscribers.remove(subscriber);
+   }
+
+   /**
+    * starts the reader and the delivery thread, both daemons
+    */
+   public synchronized void start() {
+      if (running) {
+         return;
+      }
+      running = true;
+      reader = new Thread(this::read, "event-stream-reader");
+      reader.setDaemon(true);
+      dispatcher = new Thread(this::deliver, "event-stream-delivery");
+      dispatcher.setDaemon(true);
+      reader.start();
+      dispatcher.start();
+   }
+
+   /**
+    * Stops reading, delivers what was already read and destroys the collectors.
+    */
+   @Override
+   public void close() {
+      final Thread stoppedReader;
+      final Thread stoppedDispatcher;
+      synchronized (this) {
+         if (!running) {
+            return;
+         }
+         stoppedReader = reader;
+         stoppedDispatcher = dispatcher;
+         stop();
+      }
+      try {
+         stoppedReader.join(TimeUnit.SECONDS.toMillis(maxWaitSeconds + 5));
+         // a subscriber that hangs must not hang close() with it, the dispatcher is a daemon thread
+         stoppedDispatcher.join(TimeUnit.SECONDS.toMillis(maxWaitSeconds + 5));
+         if (stoppedDispatcher.isAlive()) {
+            System.err.println("event stream closed while events were still being delivered");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * ends the reading without waiting for it, the reader destroys the collectors on its way out
+    */
+   private synchronized void stop() {
+      running = false;
+      final ManagedObjectReference waiting = waitingOn;
+      if (waiting != null) {
+         try {
+            connection.getVimPort().cancelWaitForUpdates(waiting);
+         } catch (RuntimeFaultFaultMsg e) {
+            // the wait ends on its own after maxWaitSeconds
+         }
+      }
+      reader.interrupt();
+   }
+
+   private void read() {
+      long backoff = 1000;
+      try {
+         while (running) {
+            try {
+               if (propertyCollector == null) {
+                  open();
+               }
+               if (shards.isEmpty() || sharding != Sharding.NONE
+                     && System.currentTimeMillis() - shardsListed >= shardRefreshMillis) {
+                  listShards();
+               }
+               drain();
+               awaitChange();
+               backoff = 1000;
+            } catch (InterruptedException e) {
+               break;
+            } catch (InvalidCollectorVersionFaultMsg e) {
+               version = "";
+            } catch (Exception e) {
+               if (!running) {
+                  break;
+               }
+               errors.incrementAndGet();
+               if (SessionLiveness.isSessionObjectLost(e)) {
+                  // the collectors went with the session, they are all opened again from the newest event read
+                  destroy();
+               }
+               // otherwise the collectors keep their position on the server and reading goes on after a pause;
+               // a subtree may have gone, so they are listed again
+               shardsListed = 0;
+               System.err.println("event stream read failed, retrying in " + backoff + " ms: " + e);
+               Thread.sleep(backoff);
+               backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+            }
+         }
+      } catch (InterruptedException e) {
+         // closed while pausing
+      } finally {
+         // a pending interrupt would break the calls below
+         Thread.interrupted();
+         destroy();
+      }
+   }
+
+   private void open() throws RuntimeFaultFaultMsg {
+      propertyCollector = connection.getVimPort().createPropertyCollector(
+            connection.getServiceContent().getPropertyCollector());
+      version = "";
+      if (sharding != Sharding.NONE) {
+         asyncPort = new AsyncVimPort(connection, AsyncVimPort.sharedExecutor(),
+               Integer.getInteger("events.stream.readers", DEFAULT_READERS));
+      }
+   }
+
+   /**
+    * opens a collector for every subtree that has none yet and destroys those of subtrees that are gone
+    */
+   private void listShards() throws RuntimeFaultFaultMsg, InvalidStateFaultMsg, InvalidPropertyFaultMsg {
+      shardsListed = System.currentTimeMillis();
+      final Map<String, ManagedObjectReference> entities = new LinkedHashMap<String, ManagedObjectReference>();
+      if (sharding == Sharding.NONE) {
+         entities.put("", null);
+      } else {
+         final ServiceContent serviceContent = connection.getServiceContent();
+         try (Stream<ObjectContent> objects = new GetMOREF(connection)
+               .stream(serviceContent.getRootFolder(), sharding.type, 1000)) {
+            objects.forEach(object -> entities.put(key(object.getObj()), object.getObj()));
+         }
+      }
+      for (Iterator<Map.Entry<String, Shard>> it = shards.entrySet().iterator(); it.hasNext(); ) {
+         final Map.Entry<String, Shard> entry = it.next();
+         if (!entities.containsKey(entry.getKey())) {
+            destroy(entry.getValue());
+            it.remove();
+         }
+      }
+      for (Map.Entry<String, ManagedObjectReference> entry : entities.entrySet()) {
+         if (!shards.containsKey(entry.getKey())) {
+            shards.put(entry.getKey(), openShard(entry.getValue()));
+         }
+      }
+      shardCount = shards.size();
+   }
+
+   private Shard openShard(final ManagedObjectReference entity)
+         throws RuntimeFaultFaultMsg, InvalidStateFaultMsg, InvalidPropertyFaultMsg {
+      final VimPortType vimPort = connection.getVimPort();
+      final Shard shard = new Shard(entity, minBatch);
+      // never the caller's spec, the begin time set below would change it and its EventFilterSpecByTime
+      final EventFilterSpec spec = copy(filter);
+      // a subtree added later begins where the others are, the keys already read weed out what they had
+      final long begin;
+      if (newest >= 0) {
+         begin = newest;
+      } else if (checkpoint != null && checkpoint.getTime() >= 0) {
+         begin = checkpoint.getTime();
+         shard.resuming = true;
+      } else {
+         begin = -1;
+      }
+      if (begin >= 0) {
+         final EventFilterSpecByTime time = spec.getTime() != null ? spec.getTime() : new EventFilterSpecByTime();
+         time.setBeginTime(xmlTime(begin));
+         spec.setTime(time);
+      }
+      if (entity != null) {
+         final EventFilterSpecByEntity byEntity = new EventFilterSpecByEntity();
+         byEntity.setEntity(entity);
+         byEntity.setRecursion(EventFilterSpecRecursionOption.ALL);
+         spec.setEntity(byEntity);
+      }
+      shard.collector = vimPort.createCollectorForEvents(connection.getServiceContent().getEventManager(), spec);
+      try {
+         vimPort.setCollectorPageSize(shard.collector, pageSize);
+      } catch (RuntimeFaultFaultMsg e) {
+         // larger notifications, but the stream still works
+         System.err.println("could not set the event page size to " + pageSize + ": " + e);
+      }
+      final PropertySpec propertySpec = new PropertySpec();
+      propertySpec.setType(shard.collector.getType());
+      propertySpec.getPathSet().add("latestPage");
+      final ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(shard.collector);
+      objectSpec.setSkip(Boolean.FALSE);
+      final PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+      filterSpec.getPropSet().add(propertySpec);
+      filterSpec.getObjectSet().add(objectSpec);
+      shard.pageFilter = vimPort.createFilter(propertyCollector, filterSpec, true);
+      return shard;
+   }
+
+   /**
+    * reads rounds of one batch per collector, each round from the collectors that returned all they were asked for
+    * in the one before, until none did, putting everything in the queue
+    */
+   private void drain() throws Exception {
+      final List<Shard> open = new ArrayList<Shard>(shards.values());
+      final List<Event> held = new ArrayList<Event>();
+      while (running && !open.isEmpty()) {
+         List<Event> events;
+         if (open.size() == 1 && held.isEmpty()) {
+            events = readBatch(open.get(0));
+         } else {
+            final List<CompletableFuture<List<Event>>> batches = new ArrayList<CompletableFuture<List<Event>>>();
+            for (final Shard shard : open) {
+               batches.add(asyncPort.submit(vimPort -> readBatch(shard)));
+            }
+            // wait for all of them, so no read is still running when the shards are listed again
+            events = new ArrayList<Event>(held);
+            held.clear();
+            Throwable failure = null;
+            for (CompletableFuture<List<Event>> batch : batches) {
+               try {
+                  events.addAll(batch.join());
+               } catch (CompletionException e) {
+                  failure = failure == null ? e.getCause() : failure;
+               }
+            }
+            if (failure != null) {
+               throw failure instanceof Exception ? (Exception) failure : new IllegalStateException(failure);
+            }
+            Collections.sort(events, BY_KEY);
+         }
+         int largest = 0;
+         for (Shard shard : shards.values()) {
+            largest = Math.max(largest, shard.batchSize);
+         }
+         batchSize = largest;
+         open.removeIf(shard -> !shard.full);
+         if (!open.isEmpty() && shards.size() > 1) {
+            // a collector that has more may still return keys below those the others are at
+            int frontier = Integer.MAX_VALUE;
+            for (Shard shard : open) {
+               frontier = Math.min(frontier, shard.lastKey);
+            }
+            int end = events.size();
+            while (end > 0 && events.get(end - 1).getKey() > frontier) {
+               end--;
+            }
+            held.addAll(events.subList(end, events.size()));
+            events = events.subList(0, end);
+         }
+         for (Event event : events) {
+            if (sharding != Sharding.NONE) {
+               if (!recentKeys.add(event.getKey())) {
+                  duplicates.incrementAndGet();
+                  continue;
+               }
+               if (recentKeys.size() > dedupKeys) {
+                  final Iterator<Integer> oldest = recentKeys.iterator();
+                  oldest.next();
+                  oldest.remove();
+               }
+            } else if (event.getKey() <= lastQueued) {
+               // read again by a collector opened anew
+               duplicates.incrementAndGet();
+               continue;
+            } else {
+               lastQueued = event.getKey();
+            }
+            newest = Math.max(newest, EventCheckpoint.createdTime(event));
+            queue.put(event);
+         }
+      }
+   }
+
+   /**
+    * one readNextEvents on the collector of a shard, adapting the size of its next one
+    */
+   private List<Event> readBatch(final Shard shard) throws RuntimeFaultFaultMsg {
+      final int asked = shard.batchSize;
+      final List<Event> events = connection.getVimPort().readNextEvents(shard.collector, asked);
+      reads.incrementAndGet();
+      final int count = events == null ? 0 : events.size();
+      read.addAndGet(count);
+      shard.full = count >= asked;
+      if (count > 0) {
+         shard.lastKey = events.get(count - 1).getKey();
+      }
+      if (shard.full) {
+         shard.batchSize = Math.min(maxBatch, asked * 2);
+      } else {
+         // caught up, shrink gradually so one quiet moment in a busy log does not cost many small reads
+         shard.batchSize = Math.max(minBatch, Math.max(Math.min(maxBatch, count * 2), asked / 2));
+      }
+      final List<Event> fresh = new ArrayList<Event>(count);
+      for (int i = 0; i < count; i++) {
+         final Event event = events.get(i);
+         if (shard.resuming) {
+            // the events at the begin time that were delivered before the restart
+            if (checkpoint.isProcessed(EventCheckpoint.createdTime(event), event.getKey())) {
+               skipped.incrementAndGet();
+               continue;
+            }
+            shard.resuming = false;
+         }
+         fresh.add(event);
+      }
+      return fresh;
+   }
+
+   private static EventFilterSpec copy(final EventFilterSpec filter) {
+      final EventFilterSpec copy = new EventFilterSpec();
+      if (filter.getTime() != null) {
+         final EventFilterSpecByTime time = new EventFilterSpecByTime();
+         time.setBeginTime(filter.getTime().getBeginTime());
+         time.setEndTime(filter.getTime().getEndTime());
+         copy.setTime(time);
+      }
+      // a shard replaces it, unsharded the caller's entity applies
+      copy.setEntity(filter.getEntity());
+      copy.setUserName(filter.getUserName());
+      copy.setEventChainId(filter.getEventChainId());
+      copy.setAlarm(filter.getAlarm());
+      copy.setScheduledTask(filter.getScheduledTask());
+      copy.setDisableFullMessage(filter.isDisableFullMessage());
+      copy.getCategory().addAll(filter.getCategory());
+      copy.getType().addAll(filter.getType());
+      copy.getTag().addAll(filter.getTag());
+      copy.getEventTypeId().addAll(filter.getEventTypeId());
+      return copy;
+   }
+
+   private static String key(final ManagedObjectReference ref) {
+      return ref.getType() + ":" + ref.getValue();
+   }
+
+   /**
+    * blocks until latestPage changes or maxWaitSeconds pass
+    */
+   private void awaitChange() throws RuntimeFaultFaultMsg, InvalidCollectorVersionFaultMsg {
+      final WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(maxWaitSeconds);
+      waitingOn = propertyCollector;
+      try {
+         final UpdateSet updateSet = connection.getVimPort().waitForUpdatesEx(propertyCollector, version, options);
+         if (updateSet != null) {
+            version = updateSet.getVersion();
+            wakeups.incrementAndGet();
+         }
+      } finally {
+         waitingOn = null;
+      }
+   }
+
+   private static XMLGregorianCalendar xmlTime(final long millis) {
+      final GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+      calendar.setTimeInMillis(millis);
+      try {
+         return DatatypeFactory.newInstance().newXMLGregorianCalendar(calendar);
+      } catch (DatatypeConfigurationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private void destroy() {
+      for (Shard shard : shards.values()) {
+         destroy(shard);
+      }
+      shards.clear();
+      try {
+         if (propertyCollector != null) {
+            connection.getVimPort().destroyPropertyCollector(propertyCollector);
+         }
+      } catch (Exception e) {
+         // it goes away with the session anyway
+      } finally {
+         propertyCollector = null;
+         asyncPort = null;
+      }
+   }
+
+   private void destroy(final Shard shard) {
+      final VimPortType vimPort = connection.getVimPort();
+      try {
+         vimPort.destroyPropertyFilter(shard.pageFilter);
+         vimPort.destroyCollector(shard.collector);
+      } catch (Exception e) {
+         // both go away with the session anyway
+      }
+   }
+
+   private void deliver() {
+      while (running || !queue.isEmpty() || reader.isAlive()) {
+         final List<Event> batch = new ArrayList<Event>(Math.min(deliveryBatch, queue.size() + 1));
+         try {
+            final Event first = queue.poll(1, TimeUnit.SECONDS);
+            if (first == null) {
+               continue;
+            }
+            batch.add(first);
+         } catch (InterruptedException e) {
+            return;
+         }
+         queue.drainTo(batch, deliveryBatch - 1);
+         final List<Event> events = Collections.unmodifiableList(batch);
+         if (!handOut(events)) {
+            // neither delivered nor recorded, a stream started on the checkpoint reads the batch again
+            System.err.println("event stream stopped, a subscriber failed on the same batch "
+                  + (deliveryRetries + 1) + " times");
+            stop();
+            return;
+         }
+         delivered.addAndGet(batch.size());
+         if (checkpoint != null) {
+            try {
+               checkpoint.record(events);
+            } catch (IOException e) {
+               errors.incrementAndGet();
+               System.err.println("could not record the event checkpoint: " + e);
+            }
+         }
+      }
+   }
+
+   /**
+    * passes a batch to every subscriber, then again to those that failed, pausing longer each time
+    *
+    * @return true once every subscriber handled the batch, false if one still failed after the retries
+    */
+   private boolean handOut(final List<Event> events) {
+      List<EventSubscriber> pending = new ArrayList<EventSubscriber>(subscribers);
+      long backoff = 1000;
+      for (int attempt = 0; ; attempt++) {
+         final List<EventSubscriber> failed = new ArrayList<EventSubscriber>();
+         for (EventSubscriber subscriber : pending) {
+            try {
+               subscriber.onEvents(events);
+            } catch (Exception e) {
+               errors.incrementAndGet();
+               System.err.println("event subscriber " + subscriber + " failed: " + e);
+               failed.add(subscriber);
+            }
+         }
+         if (failed.isEmpty()) {
+            return true;
+         }
+         if (attempt >= deliveryRetries) {
+            return false;
+         }
+         try {
+            Thread.sleep(backoff);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+         backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+         pending = failed;
+      }
+   }
+
+   /**
+    * @return events read from the collectors, counting those read by two of them twice
+    */
+   public long getRead() {
+      return read.get();
+   }
+
+   /**
+    * @return events handed to the subscribers
+    */
+   public long getDelivered() {
+      return delivered.get();
+   }
+
+   /**
+    * @return events read but not delivered yet
+    */
+   public int getQueued() {
+      return queue.size();
+   }
+
+   /**
+    * @return events dropped on resuming because the checkpoint had them
+    */
+   public long getSkipped() {
+      return skipped.get();
+   }
+
+   /**
+    * @return events read twice, by two collectors of a sharded stream or by a collector opened again, and
+    * delivered once
+    */
+   public long getDuplicates() {
+      return duplicates.get();
+   }
+
+   /**
+    * @return collectors open, one per subtree when sharded
+    */
+   public int getShards() {
+      return shardCount;
+   }
+
+   /**
+    * @return readNextEvents calls made
+    */
+   public long getReads() {
+      return reads.get();
+   }
+
+   /**
+    * @return latestPage changes that woke the reader
+    */
+   public long getWakeups() {
+      return wakeups.get();
+   }
+
+   /**
+    * @return failed reads and failed subscriber calls
+    */
+   public long getErrors() {
+      return errors.get();
+   }
+
+   /**
+    * @return events the next readNextEvents asks for, the most of any collector
+    */
+   public int getBatchSize() {
+      return batchSize;
+   }
+}
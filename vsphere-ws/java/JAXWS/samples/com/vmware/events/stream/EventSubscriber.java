@@ -0,0 +1,34 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.events.stream;
+
+import com.vmware.vim25.Event;
+
+import java.util.List;
+
+/**
+ * Receives the events an {@link EventStream} read, in batches, oldest first.
+ * <p/>
+ * All subscribers of a stream are called from its one delivery thread, one batch after the other, so a subscriber
+ * needs no locking of its own. A subscriber that takes long holds up the others and, once the stream's queue is
+ * full, the reading of new events: that is the stream's back-pressure.
+ * </p>
+ */
+public interface EventSubscriber {
+   /**
+    * @param events the next events, the list is not changed afterwards and may be kept
+    * @throws Exception to have the stream log the failure and hand this subscriber the same batch again after a
+    *                   pause; the stream stops when the retries are used up
+    */
+   void onEvents(List<Event> events) throws Exception;
+}
@@ -0,0 +1,79 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.general;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.LatencyHistogram;
+import com.vmware.connection.helpers.TaskTracker;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * TaskMonitor
+ *
+ * This sample follows the recent tasks of the vCenter through a single
+ * PropertyFilter on the TaskManager with a TaskTracker, prints every state
+ * change as it happens, and at the end the latency and the queue time of
+ * the completed tasks for each operation.
+ *
+ * <b>Parameters:</b>
+ * url          [required] : url of the web service
+ * username     [required] : username for the authentication
+ * password     [required] : password for the authentication
+ * seconds      [optional] : seconds to run, default 60
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.general.TaskMonitor --url [webserviceurl]
+ * --username [username] --password [password] --seconds 300
+ * </pre>
+ */
+@Sample(
+      name = "task-monitor",
+      description = "follows the recent tasks through one PropertyFilter, prints their state changes and the " +
+            "latency and queue time for each operation"
+)
+public class TaskMonitor extends ConnectedVimServiceBase {
+   private int seconds = 60;
+
+   @Option(name = "seconds", required = false, description = "seconds to run, default 60")
+   public void setSeconds(final String seconds) {
+      this.seconds = Integer.parseInt(seconds);
+   }
+
+   @Action
+   public void run() throws InterruptedException {
+      final TaskTracker tracker = TaskTracker.of(connection).subscribe((previous, info) ->
+            System.out.println(info.getTask().getValue() + " " + info.getDescriptionId() + " on "
+                  + info.getEntityName() + ": " + (previous == null ? "" : previous.value() + " -> ")
+                  + info.getState().value()
+                  + (info.getError() == null ? "" : " (" + info.getError().getLocalizedMessage() + ")")));
+      try {
+         Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+      } finally {
+         tracker.close();
+      }
+      System.out.println(tracker.getTransitions() + " state changes in " + tracker.getUpdates() + " updates, "
+            + tracker.getActive() + " tasks still active, " + tracker.getErrors() + " errors");
+      final Map<String, LatencyHistogram> queueTimes = tracker.getQueueTimes();
+      for (Map.Entry<String, LatencyHistogram> latency : tracker.getLatencies().entrySet()) {
+         System.out.println(latency.getKey());
+         System.out.println("   latency    " + latency.getValue());
+         System.out.println("   queue time " + queueTimes.get(latency.getKey()));
+      }
+   }
+}
@@ -17,10 +17,10 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.vim25.*;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -144,10 +144,7 @@ public class Basics extends ConnectedVimServiceBase {
    void getCounters(ManagedObjectReference perfMgr,
                     VimPortType service) throws InvalidPropertyFaultMsg,
          RuntimeFaultFaultMsg {
-      Object property = getMOREFs.entityProps(perfMgr, new String[]{"perfCounter"}).get(
-            "perfCounter");
-      ArrayOfPerfCounterInfo arrayCounter = (ArrayOfPerfCounterInfo) property;
-      List<PerfCounterInfo> counters = arrayCounter.getPerfCounterInfo();
+      List<PerfCounterInfo> counters = PerfCounterCatalog.of(connection).getCounters();
       System.out.println("Performance counters (averages only):");
       System.out.println("-------------------------------------");
       for (PerfCounterInfo counter : counters) {
@@ -179,7 +176,7 @@ public class Basics extends ConnectedVimServiceBase {
 
    void getQueryAvailable(ManagedObjectReference perfMgr,
                           ManagedObjectReference hostmor, VimPortType service)
-         throws DatatypeConfigurationException, RuntimeFaultFaultMsg {
+         throws DatatypeConfigurationException, RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
 
       PerfProviderSummary perfProviderSummary =
             service.queryPerfProviderSummary(perfMgr, hostmor);
@@ -187,19 +184,12 @@ public class Basics extends ConnectedVimServiceBase {
             service.queryAvailablePerfMetric(perfMgr, hostmor, null, null,
                   perfProviderSummary.getRefreshRate());
 
-      List<Integer> idslist = new ArrayList<Integer>();
-
-      for (int i = 0; i != pmidlist.size(); ++i) {
-         idslist.add(pmidlist.get(i).getCounterId());
-      }
-
-      List<PerfCounterInfo> pcinfolist =
-            service.queryPerfCounter(perfMgr, idslist);
+      PerfCounterCatalog catalog = PerfCounterCatalog.of(connection);
       System.out.println("Available real-time metrics for host ("
             + pmidlist.size() + "):");
       System.out.println("--------------------------");
       for (int i = 0; i != pmidlist.size(); ++i) {
-         String label = pcinfolist.get(i).getNameInfo().getLabel();
+         String label = catalog.get(pmidlist.get(i).getCounterId()).getNameInfo().getLabel();
          String instance = pmidlist.get(i).getInstance();
          System.out.print("   " + label);
          if (instance.length() != 0) {
@@ -16,6 +16,7 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.vim25.*;
 
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -53,7 +54,6 @@ import java.util.*;
  */
 @Sample(name = "history", description = "reads performance measurements from the current time")
 public class History extends ConnectedVimServiceBase {
-   Map<String, Map<String, ArrayList<PerfCounterInfo>>> pci = new HashMap<String, Map<String, ArrayList<PerfCounterInfo>>>();
    String hostname = null;
    String interval = null;
    int starttime = 0;
@@ -206,7 +206,6 @@ public class History extends ConnectedVimServiceBase {
          System.out.println("Host " + hostname + " not found");
          return;
       }
-      counterInfo(perfManager);
       List<PerfInterval> intervals = getPerfInterval();
 
       // Integer interval = new Integer(Integer.parseInt(interval));
@@ -216,8 +215,8 @@ public class History extends ConnectedVimServiceBase {
          return;
       }
 
-      PerfCounterInfo pci = getCounterInfo(groupname, countername,
-            PerfSummaryType.AVERAGE, null);
+      PerfCounterInfo pci = PerfCounterCatalog.of(connection)
+            .get(groupname + "." + countername + "." + PerfSummaryType.AVERAGE.value());
       if (pci == null) {
          System.out
                .println("Incorrect Group Name and Countername specified");
@@ -335,112 +334,6 @@ public class History extends ConnectedVimServiceBase {
       return flag;
    }
 
-   /**
-    * This method initializes all the performance counters available on the
-    * system it is connected to. The performance counters are stored in the
-    * hashmap counters with group.counter.rolluptype being the key and id being
-    * the value.
-    */
-   List<PerfCounterInfo> getPerfCounters() throws Exception {
-
-      List<PerfCounterInfo> pciArr = null;
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.getPathSet().add("perfCounter");
-      propertySpec.setType("PerformanceManager");
-      List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-      propertySpecs.add(propertySpec);
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(perfManager);
-
-      List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-      objectSpecs.add(objectSpec);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-
-      List<PropertyFilterSpec> propertyFilterSpecs = new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-
-      List<PropertyFilterSpec> listpfs = new ArrayList<PropertyFilterSpec>(1);
-      listpfs.add(propertyFilterSpec);
-      List<ObjectContent> listocont = retrievePropertiesAllObjects(listpfs);
-
-      if (listocont != null) {
-         for (ObjectContent oc : listocont) {
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  List<PerfCounterInfo> pcinfolist = ((ArrayOfPerfCounterInfo) dp
-                        .getVal()).getPerfCounterInfo();
-                  pciArr = pcinfolist;
-               }
-            }
-         }
-      }
-      return pciArr;
-   }
-
-   void counterInfo(ManagedObjectReference pmRef) throws Exception {
-      List<PerfCounterInfo> cInfos = getPerfCounters();
-      for (int i = 0; i < cInfos.size(); ++i) {
-         PerfCounterInfo cInfo = cInfos.get(i);
-         String group = cInfo.getGroupInfo().getKey();
-         Map<String, ArrayList<PerfCounterInfo>> nameMap = null;
-         if (!pci.containsKey(group)) {
-            nameMap = new HashMap<String, ArrayList<PerfCounterInfo>>();
-            pci.put(group, nameMap);
-         } else {
-            nameMap = pci.get(group);
-         }
-         String name = cInfo.getNameInfo().getKey();
-         ArrayList<PerfCounterInfo> counters = null;
-         if (!nameMap.containsKey(name)) {
-            counters = new ArrayList<PerfCounterInfo>();
-            nameMap.put(name, counters);
-         } else {
-            counters = nameMap.get(name);
-         }
-         counters.add(cInfo);
-      }
-
-   }
-
-   ArrayList<PerfCounterInfo> getCounterInfos(String groupName,
-                                              String counterName) {
-      Map<String, ArrayList<PerfCounterInfo>> nameMap = pci.get(groupName);
-      if (nameMap != null) {
-         ArrayList<PerfCounterInfo> ret = nameMap.get(counterName);
-         if (ret != null) {
-            return ret;
-         }
-      }
-      return null;
-   }
-
-   PerfCounterInfo getCounterInfo(String groupName, String counterName,
-                                  PerfSummaryType rollupType, PerfStatsType statsType) {
-      ArrayList<PerfCounterInfo> counters = getCounterInfos(groupName,
-            counterName);
-      if (counters != null) {
-         for (Iterator<?> i = counters.iterator(); i.hasNext(); ) {
-            PerfCounterInfo pci = (PerfCounterInfo) i.next();
-            if ((statsType == null || statsType.equals(pci.getStatsType()))
-                  && (rollupType == null || rollupType.equals(pci
-                  .getRollupType()))) {
-               return pci;
-            }
-         }
-      }
-      return null;
-   }
-
    void displayValues(List<PerfEntityMetricBase> values, PerfCounterInfo pci,
                       PerfMetricId pmid, Integer inter) {
       for (int i = 0; i < values.size(); ++i) {
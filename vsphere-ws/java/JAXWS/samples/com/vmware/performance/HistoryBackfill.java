@@ -0,0 +1,163 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.CsvMetricWriter;
+import com.vmware.performance.collector.PerfBackfill;
+import com.vmware.performance.collector.PerfCollector;
+import com.vmware.performance.collector.PerfCounterCatalog;
+import com.vmware.vim25.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <pre>
+ * HistoryBackfill
+ *
+ * This sample writes the historical samples of every entity of a type over
+ * the last days to a csv file, reading each part of the range from the
+ * finest historical interval that still has it, in parallel queryPerf calls.
+ * What was written is recorded in a checkpoint file, so running the same
+ * command again after a crash continues where it stopped.
+ *
+ * <b>Parameters:</b>
+ * url          [required] : url of the web service
+ * username     [required] : username for the authentication
+ * password     [required] : password for the authentication
+ * output       [required] : csv file to append the samples to
+ * type         [optional] : entity type, VirtualMachine (default) or HostSystem
+ * counters     [optional] : comma separated counters in dotted notation
+ *                           (group.counter.rollup), default
+ *                           cpu.usage.average,mem.usage.average
+ * days         [optional] : days back from now, default 30
+ * interval     [optional] : sampling period of the historical interval to
+ *                           read, e.g. 300 or 1800, default the finest one
+ *                           that still has the data
+ * checkpoint   [optional] : checkpoint file, default output.checkpoint
+ * batchsize    [optional] : entities per queryPerf call, default 16
+ * parallelism  [optional] : queryPerf calls in flight at once, default 4
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.performance.HistoryBackfill --url [webserviceurl]
+ * --username [username] --password [password] --output vms.csv --days 90
+ * </pre>
+ */
+@Sample(name = "history-backfill",
+      description = "writes the historical samples of every entity of a type over the last days to a csv " +
+            "file in parallel windowed queryPerf calls, resuming from a checkpoint file"
+)
+public class HistoryBackfill extends ConnectedVimServiceBase {
+   private String output;
+   private String type = "VirtualMachine";
+   private String counters = "cpu.usage.average,mem.usage.average";
+   private int days = 30;
+   private int interval = 0;
+   private String checkpoint;
+   private int batchSize = PerfBackfill.DEFAULT_BATCH_SIZE;
+   private int parallelism = PerfBackfill.DEFAULT_PARALLELISM;
+
+   @Option(name = "output", description = "csv file to append the samples to")
+   public void setOutput(final String output) {
+      this.output = output;
+   }
+
+   @Option(name = "type", required = false, description = "entity type, VirtualMachine (default) or HostSystem")
+   public void setType(final String type) {
+      this.type = type;
+   }
+
+   @Option(name = "counters", required = false,
+         description = "comma separated counters as group.counter.rollup, default cpu.usage.average,mem.usage.average")
+   public void setCounters(final String counters) {
+      this.counters = counters;
+   }
+
+   @Option(name = "days", required = false, description = "days back from now, default 30")
+   public void setDays(final String days) {
+      this.days = Integer.parseInt(days);
+   }
+
+   @Option(name = "interval", required = false,
+         description = "sampling period of the historical interval to read, default the finest that has the data")
+   public void setInterval(final String interval) {
+      this.interval = Integer.parseInt(interval);
+   }
+
+   @Option(name = "checkpoint", required = false, description = "checkpoint file, default output.checkpoint")
+   public void setCheckpoint(final String checkpoint) {
+      this.checkpoint = checkpoint;
+   }
+
+   @Option(name = "batchsize", required = false, description = "entities per queryPerf call, default 16")
+   public void setBatchSize(final String batchSize) {
+      this.batchSize = Integer.parseInt(batchSize);
+   }
+
+   @Option(name = "parallelism", required = false, description = "queryPerf calls in flight at once, default 4")
+   public void setParallelism(final String parallelism) {
+      this.parallelism = Integer.parseInt(parallelism);
+   }
+
+   @Action
+   public void run() throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg, IOException, InterruptedException {
+      final PerfCounterCatalog catalog = PerfCounterCatalog.of(connection);
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (String name : counters.split(",")) {
+         final PerfCounterInfo info = catalog.get(name.trim());
+         if (info == null) {
+            System.out.println("Unknown counter " + name.trim());
+            return;
+         }
+         ids.add(info.getKey());
+      }
+      final List<ManagedObjectReference> entities;
+      try (Stream<ObjectContent> objects = getMOREFs.stream(rootRef, type, 1000, "name")) {
+         entities = objects.map(ObjectContent::getObj).collect(Collectors.toList());
+      }
+      System.out.println(entities.size() + " " + type + " entities");
+
+      final File outputFile = new File(output);
+      final boolean header = !outputFile.isFile() || outputFile.length() == 0;
+      final long to = vimPort.currentTime(connection.getServiceInstanceReference())
+            .toGregorianCalendar().getTimeInMillis();
+      try (CsvMetricWriter writer = new CsvMetricWriter(new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(outputFile, true), StandardCharsets.UTF_8)), catalog)) {
+         if (header) {
+            writer.header();
+         }
+         final PerfBackfill.Result result = new PerfBackfill(connection, writer,
+               PerfCollector.metricIds(ids, ""), entities)
+               .intervalId(interval)
+               .batchSize(batchSize)
+               .parallelism(parallelism)
+               .checkpoint(new File(checkpoint != null ? checkpoint : output + ".checkpoint"))
+               .run(to - TimeUnit.DAYS.toMillis(days), to);
+         System.out.println(result);
+         System.out.println(writer.getLines() + " lines written to " + output);
+      }
+   }
+}
@@ -0,0 +1,196 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.MetricSink;
+import com.vmware.performance.collector.PerfCounterCatalog;
+import com.vmware.performance.collector.PerfCollector;
+import com.vmware.performance.collector.TimeSeriesStore;
+import com.vmware.vim25.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <pre>
+ * PerfCollection
+ *
+ * This sample collects realtime performance counters of every connected
+ * host and powered on virtual machine, batching many entities into each
+ * queryPerf call, and prints a summary of every 20 second cycle. The
+ * samples are also kept in a TimeSeriesStore, which the summary uses to
+ * show the five entities with the highest value of the first counter.
+ *
+ * <b>Parameters:</b>
+ * url          [required] : url of the web service
+ * username     [required] : username for the authentication
+ * password     [required] : password for the authentication
+ * counters     [optional] : comma separated counters in dotted notation
+ *                           (group.counter.rollup), default
+ *                           cpu.usage.average,mem.usage.average
+ * instance     [optional] : counter instance, "" for the aggregate (default),
+ *                           * for all instances
+ * batchsize    [optional] : entities per queryPerf call, default 64
+ * parallelism  [optional] : queryPerf calls in flight at once, default 4
+ * cycles       [optional] : cycles to run, default 0 for no limit
+ * format       [optional] : queryPerf result format, csv (default) or normal
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.performance.PerfCollection --url [webserviceurl]
+ * --username [username] --password [password]
+ * --counters cpu.usage.average,net.usage.average --cycles 10
+ * </pre>
+ */
+@Sample(name = "perf-collection",
+      description = "collects realtime performance counters of every connected host and powered on " +
+            "virtual machine in batched queryPerf calls and prints a summary of every cycle"
+)
+public class PerfCollection extends ConnectedVimServiceBase {
+   private String counters = "cpu.usage.average,mem.usage.average";
+   private String instance = "";
+   private int batchSize = PerfCollector.DEFAULT_BATCH_SIZE;
+   private int parallelism = PerfCollector.DEFAULT_PARALLELISM;
+   private int cycles = 0;
+   private String format = PerfCollector.FORMAT_CSV;
+
+   @Option(name = "counters", required = false,
+         description = "comma separated counters as group.counter.rollup, default cpu.usage.average,mem.usage.average")
+   public void setCounters(final String counters) {
+      this.counters = counters;
+   }
+
+   @Option(name = "instance", required = false, description = "counter instance, * for all, default the aggregate")
+   public void setInstance(final String instance) {
+      this.instance = instance;
+   }
+
+   @Option(name = "batchsize", required = false, description = "entities per queryPerf call, default 64")
+   public void setBatchSize(final String batchSize) {
+      this.batchSize = Integer.parseInt(batchSize);
+   }
+
+   @Option(name = "parallelism", required = false, description = "queryPerf calls in flight at once, default 4")
+   public void setParallelism(final String parallelism) {
+      this.parallelism = Integer.parseInt(parallelism);
+   }
+
+   @Option(name = "cycles", required = false, description = "cycles to run, default 0 for no limit")
+   public void setCycles(final String cycles) {
+      this.cycles = Integer.parseInt(cycles);
+   }
+
+   @Option(name = "format", required = false, description = "queryPerf result format, csv (default) or normal")
+   public void setFormat(final String format) {
+      this.format = format;
+   }
+
+   @Action
+   public void run() throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg, InterruptedException {
+      final PerfCounterCatalog catalog = PerfCounterCatalog.of(connection);
+      final Map<Integer, String> names = new TreeMap<Integer, String>();
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (String name : counters.split(",")) {
+         final PerfCounterInfo info = catalog.get(name.trim());
+         if (info == null) {
+            System.out.println("Unknown counter " + name.trim());
+            return;
+         }
+         final int id = info.getKey();
+         ids.add(id);
+         names.put(id, name.trim());
+      }
+
+      final TimeSeriesStore store = new TimeSeriesStore();
+      final ConsoleSink sink = new ConsoleSink(names, store, ids.get(0),
+            // with all instances asked for, rank by the aggregate, which comes back as ""
+            "*".equals(instance) ? "" : instance);
+      final PerfCollector collector = new PerfCollector(connection, MetricSink.tee(store, sink),
+            PerfCollector.metricIds(ids, instance))
+            .batchSize(batchSize)
+            .parallelism(parallelism)
+            .format(format);
+      try {
+         collector.start();
+         synchronized (sink) {
+            while (cycles == 0 || sink.cycles < cycles) {
+               sink.wait();
+            }
+         }
+      } finally {
+         collector.close();
+      }
+   }
+
+   /**
+    * prints the number of samples and the latest average per counter after every cycle, then the top five
+    * entities of one counter
+    */
+   static class ConsoleSink implements MetricSink {
+      private final Map<Integer, String> names;
+      private final Map<Integer, long[]> totals = new TreeMap<Integer, long[]>();
+      private final TimeSeriesStore store;
+      private final int topCounter;
+      private final String topInstance;
+      int cycles;
+
+      ConsoleSink(final Map<Integer, String> names, final TimeSeriesStore store,
+                  final int topCounter, final String topInstance) {
+         this.names = names;
+         this.store = store;
+         this.topCounter = topCounter;
+         this.topInstance = topInstance;
+      }
+
+      @Override
+      public void publish(final ManagedObjectReference entity, final int counterId, final String instance,
+                          final long[] timestamps, final long[] values, final int count) {
+         long[] total = totals.get(counterId);
+         if (total == null) {
+            total = new long[2];
+            totals.put(counterId, total);
+         }
+         // only the latest sample counts towards the average
+         if (count > 0 && values[count - 1] >= 0) {
+            total[0]++;
+            total[1] += values[count - 1];
+         }
+      }
+
+      @Override
+      public void cycleCompleted(final PerfCollector.Cycle cycle) {
+         System.out.println(cycle);
+         for (Map.Entry<Integer, long[]> entry : totals.entrySet()) {
+            final long[] total = entry.getValue();
+            System.out.printf("   %-40s %8d series, latest average %d%n", names.get(entry.getKey()),
+                  total[0], total[0] == 0 ? 0 : total[1] / total[0]);
+         }
+         totals.clear();
+         System.out.println("   top " + names.get(topCounter) + ":");
+         for (TimeSeriesStore.Ranked ranked : store.top(topCounter, topInstance, 5)) {
+            System.out.printf("      %-20s %d%n", ranked.getEntity().getValue(), ranked.getValue());
+         }
+         System.out.printf("   %d series, %d samples, about %d KB%n",
+               store.size(), store.getSampleCount(), store.getEstimatedBytes() / 1024);
+         synchronized (this) {
+            cycles++;
+            notifyAll();
+         }
+      }
+   }
+}
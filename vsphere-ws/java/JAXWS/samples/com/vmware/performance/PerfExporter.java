@@ -0,0 +1,115 @@
+/*
+ * ******************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * ******************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance;
+
+import com.vmware.common.annotations.Action;
+import com.vmware.common.annotations.Option;
+import com.vmware.common.annotations.Sample;
+import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
+import com.vmware.performance.collector.PerfCollector;
+import com.vmware.performance.collector.PrometheusExporter;
+import com.vmware.vim25.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <pre>
+ * PerfExporter
+ *
+ * This sample collects realtime performance counters of every connected
+ * host and powered on virtual machine, like PerfCollection, and serves the
+ * latest sample of each on http://127.0.0.1:[port]/metrics in the Prometheus
+ * text format, or OpenMetrics when the scraper asks for it, until it is
+ * stopped.
+ *
+ * <b>Parameters:</b>
+ * url          [required] : url of the web service
+ * username     [required] : username for the authentication
+ * password     [required] : password for the authentication
+ * port         [optional] : port to serve the metrics on, default 9272
+ * counters     [optional] : comma separated counters in dotted notation
+ *                           (group.counter.rollup), default
+ *                           cpu.usage.average,mem.usage.average
+ * instance     [optional] : counter instance, "" for the aggregate (default),
+ *                           * for all instances
+ * maxseries    [optional] : most series exported, default 10000
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.performance.PerfExporter --url [webserviceurl]
+ * --username [username] --password [password]
+ * --counters cpu.usage.average,net.usage.average --port 9272
+ * </pre>
+ */
+@Sample(name = "perf-exporter",
+      description = "collects realtime performance counters of every connected host and powered on " +
+            "virtual machine and serves them to Prometheus on a local http endpoint"
+)
+public class PerfExporter extends ConnectedVimServiceBase {
+   public static final int DEFAULT_PORT = 9272;
+
+   private int port = DEFAULT_PORT;
+   private String counters = "cpu.usage.average,mem.usage.average";
+   private String instance = "";
+   private int maxSeries = Integer.getInteger("prometheus.maxSeries", PrometheusExporter.DEFAULT_MAX_SERIES);
+
+   @Option(name = "port", required = false, description = "port to serve the metrics on, default 9272")
+   public void setPort(final String port) {
+      this.port = Integer.parseInt(port);
+   }
+
+   @Option(name = "counters", required = false,
+         description = "comma separated counters as group.counter.rollup, default cpu.usage.average,mem.usage.average")
+   public void setCounters(final String counters) {
+      this.counters = counters;
+   }
+
+   @Option(name = "instance", required = false, description = "counter instance, * for all, default the aggregate")
+   public void setInstance(final String instance) {
+      this.instance = instance;
+   }
+
+   @Option(name = "maxseries", required = false, description = "most series exported, default 10000")
+   public void setMaxSeries(final String maxSeries) {
+      this.maxSeries = Integer.parseInt(maxSeries);
+   }
+
+   @Action
+   public void run() throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg, IOException, InterruptedException {
+      final PerfCounterCatalog catalog = PerfCounterCatalog.of(connection);
+      final List<Integer> ids = new ArrayList<Integer>();
+      for (String name : counters.split(",")) {
+         final PerfCounterInfo info = catalog.get(name.trim());
+         if (info == null) {
+            System.out.println("Unknown counter " + name.trim());
+            return;
+         }
+         ids.add(info.getKey());
+      }
+
+      final PrometheusExporter exporter = new PrometheusExporter(catalog, maxSeries,
+            Integer.getInteger("prometheus.staleCycles", PrometheusExporter.DEFAULT_STALE_CYCLES));
+      final PerfCollector collector = new PerfCollector(connection, exporter, PerfCollector.metricIds(ids, instance));
+      try {
+         exporter.start(port);
+         collector.start();
+         System.out.println("Serving http://" + exporter.getAddress().getHostString() + ":" + port + "/metrics");
+         Thread.currentThread().join();
+      } finally {
+         collector.close();
+         exporter.close();
+      }
+   }
+}
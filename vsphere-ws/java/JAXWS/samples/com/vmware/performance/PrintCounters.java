@@ -16,13 +16,13 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.vim25.*;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -61,7 +61,6 @@ public class PrintCounters extends ConnectedVimServiceBase {
    String entityname;
    String entitytype;
    private ManagedObjectReference perfManager;
-   private ManagedObjectReference propCollectorRef;
 
    @Option(name = "entitytype", description = "Managed entity [HostSystem|VirtualMachine|ResourcePool]")
    public void setEntitytype(String entitytype) {
@@ -78,47 +77,6 @@ public class PrintCounters extends ConnectedVimServiceBase {
       this.filename = filename;
    }
 
-   /**
-    * Uses the new RetrievePropertiesEx method to emulate the now deprecated
-    * RetrieveProperties method.
-    *
-    * @param listpfs
-    * @return list of object content
-    * @throws Exception
-    */
-   List<ObjectContent> retrievePropertiesAllObjects(
-         List<PropertyFilterSpec> listpfs) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
-
-      RetrieveOptions propObjectRetrieveOpts = new RetrieveOptions();
-
-      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
-
-      RetrieveResult rslts =
-            vimPort.retrievePropertiesEx(propCollectorRef, listpfs,
-                  propObjectRetrieveOpts);
-      if (rslts != null && rslts.getObjects() != null
-            && !rslts.getObjects().isEmpty()) {
-         listobjcontent.addAll(rslts.getObjects());
-      }
-      String token = null;
-      if (rslts != null && rslts.getToken() != null) {
-         token = rslts.getToken();
-      }
-      while (token != null && !token.isEmpty()) {
-         rslts =
-               vimPort.continueRetrievePropertiesEx(propCollectorRef, token);
-         token = null;
-         if (rslts != null) {
-            token = rslts.getToken();
-            if (rslts.getObjects() != null && !rslts.getObjects().isEmpty()) {
-               listobjcontent.addAll(rslts.getObjects());
-            }
-         }
-      }
-
-      return listobjcontent;
-   }
-
    void printCounters() throws RuntimeFaultFaultMsg, IOException, InvalidPropertyFaultMsg {
       String entityType = entitytype;
 
@@ -134,65 +92,13 @@ public class PrintCounters extends ConnectedVimServiceBase {
       }
    }
 
-   /**
-    * This method initializes all the performance counters available on the
-    * system it is connected to. The performance counters are stored in the
-    * hashmap counters with group.counter.rolluptype being the key and id being
-    * the value.
-    */
-   List<PerfCounterInfo> getPerfCounters() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
-      List<PerfCounterInfo> pciArr = null;
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.getPathSet().add("perfCounter");
-      propertySpec.setType("PerformanceManager");
-      List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-      propertySpecs.add(propertySpec);
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(perfManager);
-      List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-      objectSpecs.add(objectSpec);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-      List<PropertyFilterSpec> propertyFilterSpecs =
-            new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-      List<PropertyFilterSpec> listpfs =
-            new ArrayList<PropertyFilterSpec>(1);
-      listpfs.add(propertyFilterSpec);
-      List<ObjectContent> listobjcont =
-            retrievePropertiesAllObjects(listpfs);
-
-      if (listobjcont != null) {
-         for (ObjectContent oc : listobjcont) {
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  List<PerfCounterInfo> pcinfolist =
-                        ((ArrayOfPerfCounterInfo) dp.getVal())
-                              .getPerfCounterInfo();
-                  pciArr = pcinfolist;
-               }
-            }
-         }
-      }
-      return pciArr;
-   }
-
    void printEntityCounters(String entityType) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, IOException {
 
       ManagedObjectReference mor =
             getMOREFs.inFolderByType(serviceContent.getRootFolder(), entityType)
                   .get(entityname);
 
-      List<PerfCounterInfo> cInfo = getPerfCounters();
+      List<PerfCounterInfo> cInfo = PerfCounterCatalog.of(connection).getCounters();
 
       if (mor != null) {
          Set<?> ids = getPerfIdsAvailable(perfManager, mor);
@@ -277,7 +183,6 @@ public class PrintCounters extends ConnectedVimServiceBase {
 
    @Action
    public void run() throws RuntimeFaultFaultMsg, IOException, InvalidPropertyFaultMsg {
-      propCollectorRef = serviceContent.getPropertyCollector();
       perfManager = serviceContent.getPerfManager();
       printCounters();
    }
@@ -16,6 +16,7 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.vim25.*;
 
 import javax.xml.ws.soap.SOAPFaultException;
@@ -49,7 +50,6 @@ import java.util.*;
             " at the console"
 )
 public class RealTime extends ConnectedVimServiceBase {
-   private ManagedObjectReference propCollectorRef;
    private ManagedObjectReference perfManager;
 
    private String virtualmachinename;
@@ -59,54 +59,6 @@ public class RealTime extends ConnectedVimServiceBase {
       this.virtualmachinename = virtualmachinename;
    }
 
-   /**
-    * Uses the new RetrievePropertiesEx method to emulate the now deprecated
-    * RetrieveProperties method.
-    *
-    * @param listpfs
-    * @return list of object content
-    * @throws Exception
-    */
-   List<ObjectContent> retrievePropertiesAllObjects(
-         List<PropertyFilterSpec> listpfs) {
-
-      RetrieveOptions propObjectRetrieveOpts = new RetrieveOptions();
-
-      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
-
-      try {
-         RetrieveResult rslts =
-               vimPort.retrievePropertiesEx(propCollectorRef, listpfs,
-                     propObjectRetrieveOpts);
-         if (rslts != null && rslts.getObjects() != null
-               && !rslts.getObjects().isEmpty()) {
-            listobjcontent.addAll(rslts.getObjects());
-         }
-         String token = null;
-         if (rslts != null && rslts.getToken() != null) {
-            token = rslts.getToken();
-         }
-         while (token != null && !token.isEmpty()) {
-            rslts =
-                  vimPort.continueRetrievePropertiesEx(propCollectorRef, token);
-            token = null;
-            if (rslts != null) {
-               token = rslts.getToken();
-               if (rslts.getObjects() != null && !rslts.getObjects().isEmpty()) {
-                  listobjcontent.addAll(rslts.getObjects());
-               }
-            }
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         System.out.println(" : Failed Getting Contents");
-         e.printStackTrace();
-      }
-
-      return listobjcontent;
-   }
-
    void displayValues(List<PerfEntityMetricBase> values,
                       Map<Integer, PerfCounterInfo> counters) {
 
@@ -138,67 +90,6 @@ public class RealTime extends ConnectedVimServiceBase {
       }
    }
 
-   /**
-    * This method initializes all the performance counters available on the
-    * system it is connected to. The performance counters are stored in the
-    * hashmap counters with group.counter.rolluptype being the key and id being
-    * the value.
-    */
-   List<PerfCounterInfo> getPerfCounters() {
-      List<PerfCounterInfo> pciArr = null;
-
-      try {
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("perfCounter");
-         propertySpec.setType("PerformanceManager");
-         List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-         propertySpecs.add(propertySpec);
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(perfManager);
-         List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-         objectSpecs.add(objectSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-
-         List<PropertyFilterSpec> propertyFilterSpecs =
-               new ArrayList<PropertyFilterSpec>();
-         propertyFilterSpecs.add(propertyFilterSpec);
-
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobjcont =
-               retrievePropertiesAllObjects(listpfs);
-
-         if (listobjcont != null) {
-            for (ObjectContent oc : listobjcont) {
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     List<PerfCounterInfo> pcinfolist =
-                           ((ArrayOfPerfCounterInfo) dp.getVal())
-                                 .getPerfCounterInfo();
-                     pciArr = pcinfolist;
-                  }
-               }
-            }
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         e.printStackTrace();
-      }
-      return pciArr;
-   }
-
 
    void doRealTime() throws IOException, RuntimeFaultFaultMsg, InterruptedException, InvalidPropertyFaultMsg {
       Map<String, ManagedObjectReference> vms = getMOREFs.inContainerByType(serviceContent
@@ -206,7 +97,7 @@ public class RealTime extends ConnectedVimServiceBase {
       ManagedObjectReference vmmor = vms.get(virtualmachinename);
 
       if (vmmor != null) {
-         List<PerfCounterInfo> cInfo = getPerfCounters();
+         List<PerfCounterInfo> cInfo = PerfCounterCatalog.of(connection).getCounters();
          List<PerfCounterInfo> vmCpuCounters = new ArrayList<PerfCounterInfo>();
          for (int i = 0; i < cInfo.size(); ++i) {
             if ("cpu".equalsIgnoreCase(cInfo.get(i).getGroupInfo().getKey())) {
@@ -301,7 +192,6 @@ public class RealTime extends ConnectedVimServiceBase {
 
    @Action
    public void run() throws RuntimeFaultFaultMsg, IOException, InterruptedException, InvalidPropertyFaultMsg {
-      propCollectorRef = serviceContent.getPropertyCollector();
       perfManager = serviceContent.getPerfManager();
       doRealTime();
    }
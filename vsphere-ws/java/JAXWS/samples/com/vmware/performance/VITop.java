@@ -15,34 +15,42 @@ package com.vmware.performance;
 import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
+import com.vmware.connection.AsyncVimPort;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.InventoryCache;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.performance.widgets.StatsTable;
 import com.vmware.vim25.*;
 
 import javax.swing.*;
+import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.ws.soap.SOAPFaultException;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.lang.reflect.InvocationTargetException;
-import java.rmi.RemoteException;
 import java.util.*;
 import java.util.Timer;
-
-import com.vmware.common.annotations.Action;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
 
 /**
  * <pre>
  * VITop
  *
  * This sample is an ESX-Top-like application that lets administrators specify
- * the CPU and memory counters by name to obtain metrics for a specified host
+ * the CPU and memory counters by name to obtain metrics for the virtual
+ * machines of one or more hosts. Every refresh queries all hosts at once and
+ * takes the virtual machine names from a cache, which is reloaded in a single
+ * retrieval only when a new virtual machine shows up.
  *
  * <b>Parameters:</b>
  * url        [required] : url of the web service
  * username   [required] : username for the authentication
  * password   [required] : password for the authentication
- * host       [required] : name of the host
+ * host       [optional] : comma separated host names, default all
+ *                         connected hosts
  * cpu        [required] : CPU counter name
  *                         e.g. usage, ready, guaranteed
  * memory     [required] : memory counter name
@@ -59,7 +67,7 @@ import com.vmware.common.annotations.Action;
       name = "vi-top",
       description = "an ESX-Top-like application that lets " +
             "administrators specify the CPU and memory " +
-            "counters by name to obtain metrics for a specified host"
+            "counters by name to obtain metrics for the virtual machines of one or more hosts"
 )
 public class VITop extends ConnectedVimServiceBase {
    String hostname;
@@ -67,11 +75,17 @@ public class VITop extends ConnectedVimServiceBase {
    String memory;
    StatsTable statsTable;
    ManagedObjectReference perfManager;
-   PerfQuerySpec querySpec;
+   // one spec per host, each remembering the time of its last sample
+   final Map<String, PerfQuerySpec> querySpecs = new LinkedHashMap<String, PerfQuerySpec>();
 
-   private ManagedObjectReference hostmor;
+   private static final int PAGE_SIZE = 1000;
+   private AsyncVimPort asyncPort;
+   private volatile Map<String, String> entityNames = Collections.emptyMap();
+   // children the last refreshNames() did not name either, not worth another retrieval by themselves
+   private Set<String> unresolved = Collections.emptySet();
 
-   @Option(name = "host", description = "name of the host")
+   @Option(name = "host", required = false,
+         description = "comma separated host names, default all connected hosts")
    public void setHostname(String hostname) {
       this.hostname = hostname;
    }
@@ -150,68 +164,62 @@ public class VITop extends ConnectedVimServiceBase {
       frame.setVisible(true);
    }
 
-   String getEntityName(ManagedObjectReference moRef) throws InvalidPropertyFaultMsg,
-         RuntimeFaultFaultMsg {
-      String ret = null;
-      Map<String, Object> prop = null;
-      try {
-         prop = getMOREFs.entityProps(moRef, new String[]{"name"});
-      } catch (InvalidPropertyFaultMsg e) {
-         e.printStackTrace();
-      } catch (RuntimeFaultFaultMsg e) {
-         e.printStackTrace();
-      }
-      try {
-         ret = (String) prop.get("name");
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         return "<Unknown Entity>";
-      }
+   /**
+    * @param moRef a child entity of a host
+    * @return its name from the name cache, filled by {@link #refreshNames()}
+    */
+   String getEntityName(ManagedObjectReference moRef) {
+      String name = entityNames.get(InventoryCache.key(moRef));
+      return name != null ? name : "<Unknown Entity>";
+   }
 
-      if (ret != null) {
-         return ret;
-      } else {
-         return "<Unknown Entity>";
+   /**
+    * reloads the names of all virtual machines in one paged retrieval, replacing the name cache
+    */
+   void refreshNames() throws RuntimeFaultFaultMsg {
+      Map<String, String> names = new HashMap<String, String>();
+      try (Stream<ObjectContent> vms =
+                 getMOREFs.stream(serviceContent.getRootFolder(), "VirtualMachine", PAGE_SIZE, "name")) {
+         vms.forEach(oc -> names.put(InventoryCache.key(oc.getObj()), (String) oc.getPropSet().get(0).getVal()));
       }
+      entityNames = names;
    }
 
    /**
-    * @param midList
-    * @param compMetric
-    * @return
-    * @throws RuntimeException
-    * @throws RemoteException
-    * @throws InvalidPropertyFaultMsg
-    * @throws RuntimeFaultFaultMsg
+    * adds one row per child of a host, named "vm (host)"
+    *
+    * @param hostName   name of the host the metric is for
+    * @param midList    metrics in column order
+    * @param compMetric result of the composite query for the host
+    * @param data       rows to add to
+    * @return usage and time of the latest host sample, null if the host had no new sample
     */
-   XMLGregorianCalendar displayStats(List<PerfMetricId> midList,
-                                     PerfCompositeMetric compMetric) throws RuntimeException,
-         RemoteException, InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+   Object[] addStats(String hostName, List<PerfMetricId> midList,
+                     PerfCompositeMetric compMetric, List<Object[]> data) {
       if (compMetric == null || (compMetric.getEntity() == null)) {
          return null;
       }
 
-      List<Object[]> data = new ArrayList<Object[]>();
       PerfEntityMetric entityMetric = (PerfEntityMetric) compMetric.getEntity();
+      int numSamples = entityMetric.getSampleInfo().size();
+      if (numSamples == 0 || entityMetric.getValue().isEmpty()) {
+         return null;
+      }
       PerfMetricIntSeries intSeries =
             (PerfMetricIntSeries) entityMetric.getValue().get(0);
-      int numSamples = entityMetric.getSampleInfo().size();
 
       XMLGregorianCalendar timeStamp =
             entityMetric.getSampleInfo().get(numSamples - 1).getTimestamp();
       long overallUsage = intSeries.getValue().get(numSamples - 1);
-      System.out.println("Info Updated");
       int numColumns = midList.size() + 1;
-      List<PerfEntityMetricBase> listpemb = compMetric.getChildEntity();
-      List<PerfEntityMetricBase> childEntityMetric = listpemb;
-      for (int childNum = 0; childNum < childEntityMetric.size(); childNum++) {
-         PerfEntityMetric childStats =
-               (PerfEntityMetric) childEntityMetric.get(childNum);
-         String childName = getEntityName(childStats.getEntity());
+      for (PerfEntityMetricBase child : compMetric.getChildEntity()) {
+         PerfEntityMetric childStats = (PerfEntityMetric) child;
          int numChildSamples = childStats.getSampleInfo().size();
+         if (numChildSamples == 0) {
+            continue;
+         }
          Object[] tableData = new Object[numColumns];
-         tableData[0] = childName;
+         tableData[0] = getEntityName(childStats.getEntity()) + " (" + hostName + ")";
 
          for (int i = 0; i < childStats.getValue().size(); i++) {
             PerfMetricIntSeries childSeries =
@@ -224,12 +232,34 @@ public class VITop extends ConnectedVimServiceBase {
          }
          data.add(tableData);
       }
+      return new Object[]{overallUsage, timeStamp};
+   }
+
+   /**
+    * @return true if a child of any of the metrics is missing from the name cache and was not missing after
+    * the last reload already
+    */
+   boolean hasUnknownChildren(Collection<PerfCompositeMetric> metrics) {
+      return !unresolved.containsAll(unknownChildren(metrics));
+   }
 
-      if (statsTable != null) {
-         statsTable.setData(timeStamp.toGregorianCalendar(), overallUsage,
-               "Mhz", data);
+   /**
+    * @return keys of the children of the metrics that are missing from the name cache
+    */
+   Set<String> unknownChildren(Collection<PerfCompositeMetric> metrics) {
+      Set<String> unknown = new HashSet<String>();
+      for (PerfCompositeMetric metric : metrics) {
+         if (metric == null) {
+            continue;
+         }
+         for (PerfEntityMetricBase child : metric.getChildEntity()) {
+            String key = InventoryCache.key(child.getEntity());
+            if (!entityNames.containsKey(key)) {
+               unknown.add(key);
+            }
+         }
       }
-      return timeStamp;
+      return unknown;
    }
 
    int findStatsIndex(List<PerfMetricId> midList,
@@ -245,17 +275,6 @@ public class VITop extends ConnectedVimServiceBase {
       return -1;
    }
 
-   PerfCounterInfo getCounterInfo(
-         List<PerfCounterInfo> counterInfo, String groupName, String counterName) {
-      for (PerfCounterInfo info : counterInfo) {
-         if (info.getGroupInfo().getKey().equals(groupName)
-               && info.getNameInfo().getKey().equals(counterName)) {
-            return info;
-         }
-      }
-      return null;
-   }
-
    /**
     * @return
     * @throws Exception
@@ -277,16 +296,52 @@ public class VITop extends ConnectedVimServiceBase {
    }
 
    /**
-    *
+    * Queries all hosts at once, one composite query each, then updates the table. Child names come from the
+    * name cache, which is reloaded in bulk only when a query returns a child it has not seen. A child the reload
+    * does not name either stays unknown until another new child causes the next reload.
     */
    void refreshStats() {
       try {
-         PerfCompositeMetric metric =
-               vimPort.queryPerfComposite(perfManager, querySpec);
-         XMLGregorianCalendar latestTs =
-               displayStats(querySpec.getMetricId(), metric);
-         if (latestTs != null) {
-            querySpec.setStartTime(latestTs);
+         Map<String, CompletableFuture<PerfCompositeMetric>> futures =
+               new LinkedHashMap<String, CompletableFuture<PerfCompositeMetric>>();
+         for (Map.Entry<String, PerfQuerySpec> entry : querySpecs.entrySet()) {
+            futures.put(entry.getKey(), asyncPort.queryPerfComposite(perfManager, entry.getValue()));
+         }
+         Map<String, PerfCompositeMetric> metrics = new LinkedHashMap<String, PerfCompositeMetric>();
+         for (Map.Entry<String, CompletableFuture<PerfCompositeMetric>> entry : futures.entrySet()) {
+            try {
+               metrics.put(entry.getKey(), entry.getValue().join());
+            } catch (CompletionException e) {
+               System.out.println("Query for host " + entry.getKey() + " failed - " + e.getCause());
+            }
+         }
+         if (hasUnknownChildren(metrics.values())) {
+            refreshNames();
+            unresolved = unknownChildren(metrics.values());
+         }
+
+         List<Object[]> data = new ArrayList<Object[]>();
+         long overallUsage = 0;
+         XMLGregorianCalendar latestTs = null;
+         for (Map.Entry<String, PerfCompositeMetric> entry : metrics.entrySet()) {
+            PerfQuerySpec querySpec = querySpecs.get(entry.getKey());
+            Object[] latest = addStats(entry.getKey(), querySpec.getMetricId(), entry.getValue(), data);
+            if (latest != null) {
+               overallUsage += (Long) latest[0];
+               XMLGregorianCalendar ts = (XMLGregorianCalendar) latest[1];
+               querySpec.setStartTime(ts);
+               if (latestTs == null || ts.compare(latestTs) == DatatypeConstants.GREATER) {
+                  latestTs = ts;
+               }
+            }
+         }
+         if (latestTs == null) {
+            return;
+         }
+         System.out.println("Info Updated");
+         if (statsTable != null) {
+            statsTable.setData(latestTs.toGregorianCalendar(), overallUsage,
+                  "Mhz", data);
          }
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
@@ -295,6 +350,42 @@ public class VITop extends ConnectedVimServiceBase {
       }
    }
 
+   /**
+    * @return the hosts to show by name, the named ones or else every connected host
+    */
+   Map<String, ManagedObjectReference> getHosts() throws RuntimeFaultFaultMsg {
+      Set<String> wanted = new HashSet<String>();
+      if (hostname != null) {
+         for (String name : hostname.split(",")) {
+            wanted.add(name.trim());
+         }
+      }
+      Map<String, ManagedObjectReference> hosts = new TreeMap<String, ManagedObjectReference>();
+      try (Stream<ObjectContent> results = getMOREFs.stream(serviceContent.getRootFolder(), "HostSystem",
+            PAGE_SIZE, "name", "runtime.connectionState")) {
+         results.forEach(oc -> {
+            String name = null;
+            Object state = null;
+            for (DynamicProperty property : oc.getPropSet()) {
+               if ("name".equals(property.getName())) {
+                  name = (String) property.getVal();
+               } else {
+                  state = property.getVal();
+               }
+            }
+            if (wanted.isEmpty() ? HostSystemConnectionState.CONNECTED.equals(state) : wanted.contains(name)) {
+               hosts.put(name, oc.getObj());
+            }
+         });
+      }
+      for (String name : wanted) {
+         if (!hosts.containsKey(name)) {
+            System.out.println("Host " + name + " Not Found");
+         }
+      }
+      return hosts;
+   }
+
    /**
     * @throws InterruptedException
     * @throws Exception
@@ -302,37 +393,22 @@ public class VITop extends ConnectedVimServiceBase {
    void displayStats() throws RuntimeFaultFaultMsg, InvocationTargetException,
          NoSuchMethodException, IllegalAccessException, InterruptedException {
       String[][] statsList = getCounters();
-      Map<String, ManagedObjectReference> results = null;
-      try {
-         results = getMOREFs.inFolderByType(serviceContent.getRootFolder(), "HostSystem",
-               new RetrieveOptions());
-      } catch (RuntimeFaultFaultMsg e) {
-         e.printStackTrace();
-      } catch (InvalidPropertyFaultMsg e) {
-         e.printStackTrace();
-      }
-
-      hostmor = results.get(hostname);
-
-      if (hostmor == null) {
-         System.out.println("Host " + hostname + " Not Found");
+      Map<String, ManagedObjectReference> hosts = getHosts();
+      if (hosts.isEmpty()) {
+         System.out.println("No hosts to show");
          return;
       }
-      Map<String, Object> prop = null;
+      PerfCounterCatalog catalog = null;
       try {
-         prop = getMOREFs.entityProps(perfManager, new String[]{"perfCounter"});
+         catalog = PerfCounterCatalog.of(connection);
       } catch (InvalidPropertyFaultMsg e) {
          e.printStackTrace();
-      } catch (RuntimeFaultFaultMsg e) {
-         e.printStackTrace();
+         return;
       }
-      ArrayOfPerfCounterInfo arrayPerfCounterInfo = (ArrayOfPerfCounterInfo) prop
-            .get("perfCounter");
-      List<PerfCounterInfo> props = arrayPerfCounterInfo.getPerfCounterInfo();
-      List<PerfMetricId> midVector = new ArrayList<PerfMetricId>();
+      List<PerfMetricId> midList = new ArrayList<PerfMetricId>();
       List<String> statNames = new ArrayList<String>();
       for (int i = 0; i < statsList.length; i++) {
-         PerfCounterInfo counterInfo = getCounterInfo(props, statsList[i][0], statsList[i][1]);
+         PerfCounterInfo counterInfo = catalog.get(statsList[i][0], statsList[i][1]);
          if (counterInfo == null) {
             System.out.println("Warning: Unable to find stat "
                   + statsList[i][0] + " " + statsList[i][1]);
@@ -344,26 +420,29 @@ public class VITop extends ConnectedVimServiceBase {
          PerfMetricId pmid = new PerfMetricId();
          pmid.setCounterId(counterInfo.getKey());
          pmid.setInstance("");
-         midVector.add(pmid);
+         midList.add(pmid);
       }
-      List<PerfMetricId> midList = new ArrayList<PerfMetricId>(midVector);
-      Collections.copy(midList, midVector);
 
-
-      PerfProviderSummary perfProviderSummary =
-            vimPort.queryPerfProviderSummary(perfManager, hostmor);
-      PerfQuerySpec spec = new PerfQuerySpec();
-      spec.setEntity(hostmor);
-      spec.getMetricId().addAll(midList);
-      spec.setIntervalId(perfProviderSummary.getRefreshRate());
-      querySpec = spec;
+      asyncPort = new AsyncVimPort(connection);
+      int refreshRate = Integer.MAX_VALUE;
+      for (Map.Entry<String, ManagedObjectReference> host : hosts.entrySet()) {
+         PerfProviderSummary perfProviderSummary =
+               vimPort.queryPerfProviderSummary(perfManager, host.getValue());
+         PerfQuerySpec spec = new PerfQuerySpec();
+         spec.setEntity(host.getValue());
+         spec.getMetricId().addAll(midList);
+         spec.setIntervalId(perfProviderSummary.getRefreshRate());
+         querySpecs.put(host.getKey(), spec);
+         refreshRate = Math.min(refreshRate, perfProviderSummary.getRefreshRate());
+      }
+      refreshNames();
 
       final List<String> statNames2 = statNames;
       javax.swing.SwingUtilities.invokeLater(new Runnable() {
 
          @Override
          public void run() {
-            createAndShowGUI("VM Name", statNames2);
+            createAndShowGUI("VM Name (Host)", statNames2);
          }
       });
 
@@ -374,7 +453,7 @@ public class VITop extends ConnectedVimServiceBase {
          public void run() {
             refreshStats();
          }
-      }, 1000, 21000);
+      }, 1000, refreshRate * 1000L);
       Thread.currentThread().join();
    }
 
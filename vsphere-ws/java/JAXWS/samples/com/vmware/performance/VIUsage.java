@@ -16,6 +16,7 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.performance.collector.PerfCounterCatalog;
 import com.vmware.performance.widgets.LineChart;
 import com.vmware.vim25.*;
 
@@ -210,35 +211,22 @@ public class VIUsage extends ConnectedVimServiceBase implements ActionListener {
 
    @SuppressWarnings("unchecked")
    private void updateChart() throws DatatypeConfigurationException {
-      List<PerfCounterInfo> counterInfoList = new ArrayList<PerfCounterInfo>();
-      Map<String, Object> prop = null;
+      PerfCounterCatalog catalog;
       try {
-         prop = getMOREFs.entityProps(perfManager, new String[]{"perfCounter"});
-         ArrayOfPerfCounterInfo arrayPerfCounterInfo = (ArrayOfPerfCounterInfo) prop
-               .get("perfCounter");
-         counterInfoList = arrayPerfCounterInfo.getPerfCounterInfo();
+         catalog = PerfCounterCatalog.of(connection);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
+         return;
       } catch (Exception x) {
          System.out.println("Error in getting perfCounter property: " + x);
          return;
       }
-      if (counterInfoList != null && !counterInfoList.isEmpty()) {
-         Map<String, PerfCounterInfo> counterMap =
-               new HashMap<String, PerfCounterInfo>();
-         for (PerfCounterInfo counterInfo : counterInfoList) {
-            String group = counterInfo.getGroupInfo().getKey();
-            String counter = counterInfo.getNameInfo().getKey();
-            String rollup = counterInfo.getRollupType().value();
-            String key = group + "." + counter + "." + rollup;
-            counterMap.put(key, counterInfo);
-         }
-
+      if (!catalog.getCounters().isEmpty()) {
          List<PerfMetricId> metricIds = new ArrayList<PerfMetricId>();
          String[] statNames = new String[1];
          String key = stats;
-         if (counterMap.containsKey(key)) {
-            PerfCounterInfo counterInfo = counterMap.get(key);
+         PerfCounterInfo counterInfo = catalog.get(key);
+         if (counterInfo != null) {
             statNames[0] = counterInfo.getNameInfo().getLabel();
             String instance = "";
             PerfMetricId pmfids = new PerfMetricId();
@@ -248,12 +236,8 @@ public class VIUsage extends ConnectedVimServiceBase implements ActionListener {
 
          } else {
             System.out.println("Unknown counter " + key);
-            for (PerfCounterInfo counterInfo : counterInfoList) {
-               String group = counterInfo.getGroupInfo().getKey();
-               String counter = counterInfo.getNameInfo().getKey();
-               String rollup = counterInfo.getRollupType().value();
-               System.out.println("Counter " + group + "." + counter + "."
-                     + rollup);
+            for (PerfCounterInfo info : catalog.getCounters()) {
+               System.out.println("Counter " + PerfCounterCatalog.name(info));
             }
             System.out.println("Select The Counter From This list");
             System.exit(1);
@@ -0,0 +1,103 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.time.Instant;
+
+/**
+ * Writes every sample it receives as a line of <code>type,entity,counter,instance,time,value</code>, e.g.
+ * <code>VirtualMachine,vm-42,cpu.usage.average,,2012-06-04T18:10:00Z,1270</code>, as it arrives. Nothing is kept,
+ * so it can take any number of samples. Samples the server had no value for are left out.
+ */
+public class CsvMetricWriter implements MetricSink, Flushable, Closeable {
+   public static final String HEADER = "type,entity,counter,instance,time,value";
+
+   private final Writer out;
+   private final PerfCounterCatalog catalog;
+   private long lines;
+
+   /**
+    * @param out     where to write, buffer it
+    * @param catalog names the counters, null to write their ids
+    */
+   public CsvMetricWriter(final Writer out, final PerfCounterCatalog catalog) {
+      this.out = out;
+      this.catalog = catalog;
+   }
+
+   /**
+    * @return this writer, after writing the column names
+    */
+   public CsvMetricWriter header() {
+      try {
+         out.write(HEADER);
+         out.write('\n');
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return this;
+   }
+
+   @Override
+   public void publish(final ManagedObjectReference entity, final int counterId, final String instance,
+                       final long[] timestamps, final long[] values, final int count) {
+      final String counter = catalog == null || catalog.get(counterId) == null
+            ? Integer.toString(counterId) : catalog.name(counterId);
+      try {
+         for (int i = 0; i < count; i++) {
+            if (values[i] < 0) {
+               continue;
+            }
+            out.write(entity.getType());
+            out.write(',');
+            out.write(entity.getValue());
+            out.write(',');
+            out.write(counter);
+            out.write(',');
+            out.write(instance == null ? "" : instance);
+            out.write(',');
+            out.write(Instant.ofEpochMilli(timestamps[i]).toString());
+            out.write(',');
+            out.write(Long.toString(values[i]));
+            out.write('\n');
+            lines++;
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * @return lines written, not counting the header
+    */
+   public long getLines() {
+      return lines;
+   }
+
+   @Override
+   public void flush() throws IOException {
+      out.flush();
+   }
+
+   @Override
+   public void close() throws IOException {
+      out.close();
+   }
+}
@@ -0,0 +1,69 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Receives the samples a {@link PerfCollector} fetched.
+ * <p/>
+ * Calls are made from the collector's I/O threads but never concurrently, so an implementation needs no locking
+ * of its own as long as it is only fed by one collector. The arrays passed to {@link #publish} are reused by the
+ * collector once the call returns: copy what has to be kept.
+ * </p>
+ */
+public interface MetricSink {
+   /**
+    * new samples of one metric of one entity, oldest first
+    *
+    * @param entity     the host or virtual machine
+    * @param counterId  the PerfCounterInfo key
+    * @param instance   the instance, empty for the aggregate of the entity
+    * @param timestamps sample times in milliseconds since the epoch
+    * @param values     the sample values, -1 where the server had no value
+    * @param count      number of valid entries in timestamps and values
+    */
+   void publish(ManagedObjectReference entity, int counterId, String instance,
+                long[] timestamps, long[] values, int count);
+
+   /**
+    * called after every collection cycle, when all of its samples were published
+    *
+    * @param cycle what the cycle did
+    */
+   default void cycleCompleted(PerfCollector.Cycle cycle) {
+   }
+
+   /**
+    * @param sinks sinks to feed
+    * @return a sink that passes everything to each of the sinks in turn
+    */
+   static MetricSink tee(final MetricSink... sinks) {
+      return new MetricSink() {
+         @Override
+         public void publish(final ManagedObjectReference entity, final int counterId, final String instance,
+                             final long[] timestamps, final long[] values, final int count) {
+            for (MetricSink sink : sinks) {
+               sink.publish(entity, counterId, instance, timestamps, values, count);
+            }
+         }
+
+         @Override
+         public void cycleCompleted(final PerfCollector.Cycle cycle) {
+            for (MetricSink sink : sinks) {
+               sink.cycleCompleted(cycle);
+            }
+         }
+      };
+   }
+}
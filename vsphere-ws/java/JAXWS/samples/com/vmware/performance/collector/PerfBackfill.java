@@ -0,0 +1,575 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.connection.AsyncVimPort;
+import com.vmware.connection.Connection;
+import com.vmware.connection.helpers.GetMOREF;
+import com.vmware.connection.helpers.InventoryCache;
+import com.vmware.connection.helpers.PropertyDecoder;
+import com.vmware.vim25.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches the historical samples of many entities over a long time range, e.g. months of 5 minute and 30 minute
+ * rollups for capacity planning.
+ * <p/>
+ * The range is cut into windows of <code>perf.backfill.windowSamples</code> samples (default 288, a day of 5
+ * minute samples), each read from one of the vCenter's historical intervals: the finest enabled interval that
+ * still keeps data as old as the window, unless an interval is forced with {@link #intervalId(int)}. A window
+ * ends where a finer interval starts to have data. Windows are aligned to multiples of their length, so a run
+ * over a different range cuts the same windows, except at the ends of the range and of each interval's
+ * retention, which move with the clock by a sample of that interval at a time.
+ * </p>
+ * Every window is queried for batches of <code>perf.backfill.batchSize</code> entities (default 16) per queryPerf
+ * call, in the csv format, with at most <code>perf.backfill.parallelism</code> calls in flight (default 4); a failed
+ * call is retried <code>perf.backfill.retries</code> times (default 2), unless it failed while its samples were
+ * written, which a retry would write again. Keep batch size times metric count under the
+ * vCenter's <code>config.vpxd.stats.maxQueryMetrics</code> limit (64 by default).
+ * <p/>
+ * Samples go to a {@link MetricSink} as each call completes, e.g. a {@link CsvMetricWriter}, so memory use does not
+ * grow with the range. With a checkpoint file, every window and entity that was written is recorded after the sink
+ * was flushed, and a run with the same file queries only the parts of its windows not covered yet for the entity
+ * and interval, so a backfill that crashed continues where it stopped, however the moving retention ends cut its
+ * windows this time. A crash between the two may write the samples of one call twice. The vCenter fills a sample
+ * in only after its period ended and the rollup job ran, so only what is older than a sampling period plus
+ * <code>perf.backfill.settleMillis</code> (default an hour) is recorded; the newer end of a range is queried
+ * again by the next run.
+ * </p>
+ * <pre>
+ *     PerfBackfill backfill = new PerfBackfill(connection, sink, metricIds, vms).checkpoint(file);
+ *     PerfBackfill.Result result = backfill.run(from, to);
+ * </pre>
+ */
+public class PerfBackfill {
+   public static final int DEFAULT_WINDOW_SAMPLES = 288;
+   public static final int DEFAULT_BATCH_SIZE = 16;
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int DEFAULT_RETRIES = 2;
+   public static final Long DEFAULT_SETTLE_MILLIS = 3600000l;
+
+   private static final String CHECKPOINT_HEADER = "# perf-backfill metrics ";
+
+   private final Connection connection;
+   private final MetricSink sink;
+   private final List<PerfMetricId> metrics;
+   private final List<ManagedObjectReference> entities;
+   private final ManagedObjectReference perfManager;
+   private int windowSamples = Integer.getInteger("perf.backfill.windowSamples", DEFAULT_WINDOW_SAMPLES);
+   private int batchSize = Integer.getInteger("perf.backfill.batchSize", DEFAULT_BATCH_SIZE);
+   private int parallelism = Integer.getInteger("perf.backfill.parallelism", DEFAULT_PARALLELISM);
+   private int retries = Integer.getInteger("perf.backfill.retries", DEFAULT_RETRIES);
+   private long settleMillis = Long.getLong("perf.backfill.settleMillis", DEFAULT_SETTLE_MILLIS);
+   private int intervalId;
+   private File checkpointFile;
+
+   // publishing and checkpointing are serialized, so the sink, the decoder and the file need no other locking
+   private final Object publishLock = new Object();
+   private final PerfResultDecoder decoder = new PerfResultDecoder();
+   private Writer checkpoint;
+
+   private final AtomicLong queries = new AtomicLong();
+   private final AtomicLong failedQueries = new AtomicLong();
+   private final AtomicLong samples = new AtomicLong();
+
+   /**
+    * @param connection a connection
+    * @param sink       receives the samples
+    * @param metrics    the counters and instances to fetch of every entity
+    * @param entities   the hosts, virtual machines or other entities to fetch
+    */
+   public PerfBackfill(final Connection connection, final MetricSink sink, final Collection<PerfMetricId> metrics,
+                       final Collection<ManagedObjectReference> entities) {
+      this.connection = connection.connect();
+      this.sink = sink;
+      this.metrics = Collections.unmodifiableList(new ArrayList<PerfMetricId>(metrics));
+      this.entities = new ArrayList<ManagedObjectReference>(entities);
+      this.perfManager = this.connection.getServiceContent().getPerfManager();
+   }
+
+   /**
+    * @param windowSamples samples per entity and metric in one window
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill windowSamples(final int windowSamples) {
+      this.windowSamples = windowSamples;
+      return this;
+   }
+
+   /**
+    * @param batchSize entities per queryPerf call
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill batchSize(final int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+   }
+
+   /**
+    * @param parallelism queryPerf calls in flight at once
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill parallelism(final int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+   }
+
+   /**
+    * @param retries times a failed queryPerf call is repeated before its windows are given up
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill retries(final int retries) {
+      this.retries = retries;
+      return this;
+   }
+
+   /**
+    * @param settleMillis milliseconds after the end of a sampling period until its rolled up sample is expected
+    *                     to be complete, newer samples are written but not recorded in the checkpoint
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill settleMillis(final long settleMillis) {
+      this.settleMillis = settleMillis;
+      return this;
+   }
+
+   /**
+    * @param intervalId sampling period of the historical interval to read every window from, 0 to pick the finest
+    *                   one that still has the data
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill intervalId(final int intervalId) {
+      this.intervalId = intervalId;
+      return this;
+   }
+
+   /**
+    * @param file where to record what was written, and what to skip when it exists; null for no checkpoint
+    * @return this backfill, for method chaining
+    */
+   public PerfBackfill checkpoint(final File file) {
+      this.checkpointFile = file;
+      return this;
+   }
+
+   /**
+    * @return the enabled historical intervals of the vCenter, finest first
+    */
+   public List<PerfInterval> historicalIntervals() throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
+      final Object value = new GetMOREF(connection)
+            .entityProps(perfManager, new String[]{"historicalInterval"}).get("historicalInterval");
+      final List<PerfInterval> intervals = new ArrayList<PerfInterval>();
+      for (PerfInterval interval : PropertyDecoder.list(value, PerfInterval.class)) {
+         if (interval.isEnabled()) {
+            intervals.add(interval);
+         }
+      }
+      intervals.sort(Comparator.comparingInt(PerfInterval::getSamplingPeriod));
+      return intervals;
+   }
+
+   /**
+    * Fetches everything between two times and returns when all of it was written or given up. Windows already
+    * in the checkpoint are skipped.
+    *
+    * @param fromMillis start of the range in milliseconds since the epoch, exclusive like a PerfQuerySpec startTime
+    * @param toMillis   end of the range, inclusive
+    * @return what was done
+    * @throws InterruptedException if interrupted while waiting for calls in flight
+    */
+   public Result run(final long fromMillis, final long toMillis)
+         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg, InterruptedException {
+      if (windowSamples < 1 || batchSize < 1 || parallelism < 1) {
+         throw new IllegalArgumentException("windowSamples, batchSize and parallelism must be at least 1");
+      }
+      final long start = System.nanoTime();
+      final List<PerfInterval> intervals = historicalIntervals();
+      final long now = connection.getVimPort().currentTime(connection.getServiceInstanceReference())
+            .toGregorianCalendar().getTimeInMillis();
+      final Map<String, TreeMap<Long, Long>> done = readCheckpoint();
+      final AsyncVimPort async = new AsyncVimPort(connection, AsyncVimPort.sharedExecutor(), parallelism);
+      final Semaphore inFlight = new Semaphore(parallelism);
+      final Result result = new Result();
+      queries.set(0);
+      failedQueries.set(0);
+      samples.set(0);
+
+      try {
+         long windowStart = fromMillis;
+         while (windowStart < toMillis) {
+            final PerfInterval interval = intervalFor(intervals, now - windowStart);
+            if (interval == null) {
+               throw new IllegalArgumentException("no enabled historical interval "
+                     + (intervalId == 0 ? "keeps data from " + (now - windowStart) / 1000 + " seconds ago" : intervalId));
+            }
+            final long length = interval.getSamplingPeriod() * 1000L * windowSamples;
+            final long windowEnd = Math.min(Math.min(toMillis, (windowStart / length + 1) * length),
+                  finerDataFrom(intervals, interval, now, windowStart));
+            if (now - windowStart > interval.getLength() * 1000L) {
+               // older than the interval keeps, the server would return nothing
+               result.outOfRetention++;
+            } else {
+               result.windows++;
+               submitWindow(async, inFlight, interval.getSamplingPeriod(), windowStart, windowEnd,
+                     now - interval.getSamplingPeriod() * 1000L - settleMillis, done, result);
+            }
+            windowStart = windowEnd;
+         }
+         inFlight.acquire(parallelism);
+         inFlight.release(parallelism);
+      } finally {
+         synchronized (publishLock) {
+            closeCheckpoint();
+         }
+      }
+      result.queries = queries.get();
+      result.failedQueries = failedQueries.get();
+      result.samples = samples.get();
+      result.elapsedMillis = (System.nanoTime() - start) / 1000000;
+      return result;
+   }
+
+   /**
+    * @return the forced interval, or the finest one whose retention covers the age
+    */
+   private PerfInterval intervalFor(final List<PerfInterval> intervals, final long ageMillis) {
+      for (PerfInterval interval : intervals) {
+         if (intervalId != 0 ? interval.getSamplingPeriod() == intervalId
+               : interval.getLength() * 1000L >= ageMillis) {
+            return interval;
+         }
+      }
+      return intervalId == 0 && !intervals.isEmpty() ? intervals.get(intervals.size() - 1) : null;
+   }
+
+   /**
+    * @return where a finer interval than the given one starts to have data, rounded up to a sample of the given
+    * one, or Long.MAX_VALUE if the interval was forced or nothing finer has data after the window start
+    */
+   private long finerDataFrom(final List<PerfInterval> intervals, final PerfInterval interval, final long now,
+                              final long windowStart) {
+      long retention = 0;
+      for (PerfInterval finer : intervals) {
+         if (finer.getSamplingPeriod() < interval.getSamplingPeriod()) {
+            retention = Math.max(retention, finer.getLength() * 1000L);
+         }
+      }
+      final long period = interval.getSamplingPeriod() * 1000L;
+      final long from = (now - retention + period - 1) / period * period;
+      return intervalId != 0 || retention == 0 || from <= windowStart ? Long.MAX_VALUE : from;
+   }
+
+   private void submitWindow(final AsyncVimPort async, final Semaphore inFlight, final int period,
+                             final long windowStart, final long windowEnd, final long settled,
+                             final Map<String, TreeMap<Long, Long>> done, final Result result)
+         throws InterruptedException {
+      List<String> keys = new ArrayList<String>(batchSize);
+      List<PerfQuerySpec> specs = new ArrayList<PerfQuerySpec>(batchSize);
+      for (ManagedObjectReference entity : entities) {
+         final List<long[]> gaps = gaps(done.get(period + " " + InventoryCache.key(entity)), windowStart, windowEnd);
+         if (gaps.isEmpty()) {
+            result.skipped++;
+            continue;
+         }
+         for (long[] gap : gaps) {
+            final PerfQuerySpec spec = new PerfQuerySpec();
+            spec.setEntity(entity);
+            spec.setIntervalId(period);
+            spec.setFormat(PerfCollector.FORMAT_CSV);
+            spec.getMetricId().addAll(metrics);
+            synchronized (publishLock) {
+               spec.setStartTime(decoder.toXml(gap[0]));
+               spec.setEndTime(decoder.toXml(gap[1]));
+            }
+            // samples newer than settled may still be missing or change, leave them to the next run
+            final long recorded = Math.min(gap[1], settled);
+            if (recorded > gap[0]) {
+               keys.add(gap[0] + " " + recorded + " " + period + " " + InventoryCache.key(entity));
+            }
+            specs.add(spec);
+            if (specs.size() == batchSize) {
+               inFlight.acquire();
+               query(async, inFlight, specs, keys, 0);
+               keys = new ArrayList<String>(batchSize);
+               specs = new ArrayList<PerfQuerySpec>(batchSize);
+            }
+         }
+      }
+      if (!specs.isEmpty()) {
+         inFlight.acquire();
+         query(async, inFlight, specs, keys, 0);
+      }
+   }
+
+   /**
+    * @param written the time ranges in the checkpoint for one entity and interval, by start, null if none
+    * @return the parts of the window that are not in the checkpoint, as start and end, oldest first
+    */
+   private static List<long[]> gaps(final TreeMap<Long, Long> written, final long windowStart, final long windowEnd) {
+      final List<long[]> gaps = new ArrayList<long[]>(1);
+      long start = windowStart;
+      if (written != null) {
+         final Map.Entry<Long, Long> covering = written.floorEntry(start);
+         if (covering != null && covering.getValue() > start) {
+            start = covering.getValue();
+         }
+         for (Map.Entry<Long, Long> range : written.subMap(start, false, windowEnd, false).entrySet()) {
+            gaps.add(new long[]{start, range.getKey()});
+            start = range.getValue();
+         }
+      }
+      if (start < windowEnd) {
+         gaps.add(new long[]{start, windowEnd});
+      }
+      return gaps;
+   }
+
+   /**
+    * adds a time range to the ones of an entity and interval, merging it with those it overlaps or touches
+    */
+   private static void cover(final TreeMap<Long, Long> written, final long start, final long end) {
+      long from = start;
+      long to = end;
+      final Map.Entry<Long, Long> before = written.floorEntry(from);
+      if (before != null && before.getValue() >= from) {
+         from = before.getKey();
+         to = Math.max(to, before.getValue());
+      }
+      Map.Entry<Long, Long> after;
+      while ((after = written.ceilingEntry(from)) != null && after.getKey() <= to) {
+         to = Math.max(to, after.getValue());
+         written.remove(after.getKey());
+      }
+      written.put(from, to);
+   }
+
+   /**
+    * runs one call, retrying it if it failed, and releases its permit once it is written or given up
+    */
+   private void query(final AsyncVimPort async, final Semaphore inFlight, final List<PerfQuerySpec> specs,
+                      final List<String> keys, final int attempt) {
+      queries.incrementAndGet();
+      async.queryPerf(perfManager, specs).whenComplete((metrics, failure) -> {
+         if (failure != null && attempt < retries) {
+            query(async, inFlight, specs, keys, attempt + 1);
+            return;
+         }
+         if (failure == null) {
+            try {
+               write(metrics, keys);
+            } catch (RuntimeException e) {
+               // some samples may have reached the sink, a retry would publish them twice
+               failure = e;
+            }
+         }
+         if (failure != null) {
+            failedQueries.incrementAndGet();
+            final PerfQuerySpec first = specs.get(0);
+            System.err.println("backfill query failed for " + InventoryCache.key(first.getEntity()) + " interval "
+                  + first.getIntervalId() + (specs.size() > 1 ? " and " + (specs.size() - 1) + " more" : "") + ": "
+                  + (failure instanceof CompletionException ? failure.getCause() : failure));
+         }
+         inFlight.release();
+      });
+   }
+
+   private void write(final List<PerfEntityMetricBase> metrics, final List<String> keys) {
+      synchronized (publishLock) {
+         if (metrics != null) {
+            for (PerfEntityMetricBase metric : metrics) {
+               samples.addAndGet(decoder.publish(metric, sink));
+            }
+         }
+         try {
+            if (sink instanceof Flushable) {
+               ((Flushable) sink).flush();
+            }
+            if (checkpoint != null) {
+               for (String key : keys) {
+                  checkpoint.write(key);
+                  checkpoint.write('\n');
+               }
+               checkpoint.flush();
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }
+   }
+
+   /**
+    * @return by interval and entity, the time ranges already written, after opening the checkpoint for appending
+    */
+   private Map<String, TreeMap<Long, Long>> readCheckpoint() {
+      final Map<String, TreeMap<Long, Long>> done = new HashMap<String, TreeMap<Long, Long>>();
+      if (checkpointFile == null) {
+         return done;
+      }
+      final String header = CHECKPOINT_HEADER + metricsKey();
+      try {
+         final boolean exists = checkpointFile.isFile() && checkpointFile.length() > 0;
+         if (exists) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                  new FileInputStream(checkpointFile), StandardCharsets.UTF_8))) {
+               final String first = in.readLine();
+               if (!header.equals(first)) {
+                  throw new IllegalStateException("checkpoint " + checkpointFile + " was written for other metrics: "
+                        + first);
+               }
+               String line;
+               while ((line = in.readLine()) != null) {
+                  // start, end, interval and entity; a line cut short by a crash is left out
+                  final String[] fields = line.split(" ", 4);
+                  if (fields.length < 4 || fields[3].indexOf(':') < 0) {
+                     continue;
+                  }
+                  final String key = fields[2] + " " + fields[3];
+                  TreeMap<Long, Long> written = done.get(key);
+                  if (written == null) {
+                     written = new TreeMap<Long, Long>();
+                     done.put(key, written);
+                  }
+                  try {
+                     cover(written, Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                  } catch (NumberFormatException e) {
+                     // cut short
+                  }
+               }
+            }
+         }
+         synchronized (publishLock) {
+            checkpoint = new BufferedWriter(new OutputStreamWriter(
+                  new FileOutputStream(checkpointFile, true), StandardCharsets.UTF_8));
+            if (!exists) {
+               checkpoint.write(header);
+               checkpoint.write('\n');
+               checkpoint.flush();
+            } else {
+               // a line cut short by a crash must not run into the next one
+               checkpoint.write('\n');
+            }
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return done;
+   }
+
+   private void closeCheckpoint() {
+      if (checkpoint != null) {
+         try {
+            checkpoint.close();
+         } catch (IOException e) {
+            System.err.println("could not close checkpoint " + checkpointFile + ": " + e);
+         }
+         checkpoint = null;
+      }
+   }
+
+   private String metricsKey() {
+      final StringBuilder builder = new StringBuilder();
+      for (PerfMetricId metric : metrics) {
+         if (builder.length() > 0) {
+            builder.append(',');
+         }
+         builder.append(metric.getCounterId()).append(':').append(metric.getInstance());
+      }
+      return builder.toString();
+   }
+
+   /**
+    * what a {@link #run} did
+    */
+   public static class Result {
+      private int windows;
+      private int outOfRetention;
+      private long skipped;
+      private long queries;
+      private long failedQueries;
+      private long samples;
+      private long elapsedMillis;
+
+      /**
+       * @return windows queried
+       */
+      public int getWindows() {
+         return windows;
+      }
+
+      /**
+       * @return windows older than any interval keeps, not queried
+       */
+      public int getOutOfRetention() {
+         return outOfRetention;
+      }
+
+      /**
+       * @return window and entity pairs skipped because the checkpoint had them
+       */
+      public long getSkipped() {
+         return skipped;
+      }
+
+      /**
+       * @return queryPerf calls, retries included
+       */
+      public long getQueries() {
+         return queries;
+      }
+
+      /**
+       * @return queryPerf calls given up after their retries, run again to fetch them
+       */
+      public long getFailedQueries() {
+         return failedQueries;
+      }
+
+      public long getSamples() {
+         return samples;
+      }
+
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      @Override
+      public String toString() {
+         return windows + " windows (" + outOfRetention + " out of retention), " + queries + " queries ("
+               + failedQueries + " failed), " + skipped + " skipped from the checkpoint, " + samples + " samples in "
+               + elapsedMillis + " ms";
+      }
+   }
+}
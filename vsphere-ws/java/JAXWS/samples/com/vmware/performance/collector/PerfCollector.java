@@ -0,0 +1,447 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.connection.AsyncVimPort;
+import com.vmware.connection.Connection;
+import com.vmware.connection.helpers.GetMOREF;
+import com.vmware.connection.helpers.InventoryCache;
+import com.vmware.vim25.*;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Collects realtime performance samples of every connected host and powered on virtual machine of a vCenter.
+ * <p/>
+ * Every 20 seconds, the realtime sampling period, one cycle puts a PerfQuerySpec per entity into batches of
+ * <code>perf.collector.batchSize</code> specs (default 64) and sends each batch as a single queryPerf call,
+ * at most <code>perf.collector.parallelism</code> calls at a time (default 4). The collector remembers the
+ * timestamp of the last sample it got for each entity and asks only for what came after it, so every sample is
+ * fetched once. The list of entities is read again every <code>perf.collector.inventoryRefresh</code> cycles
+ * (default 15, five minutes) and after any failed batch, which is usually an entity that went away.
+ * </p>
+ * Results are requested in the csv format by default (system property <code>perf.collector.format</code>), which
+ * is a fraction of the size of the normal format on the wire and is decoded by a {@link PerfCsvParser} without
+ * building the per sample JAXB objects. Samples go to a {@link MetricSink}.
+ * <pre>
+ *     PerfCollector collector = new PerfCollector(connection, sink, metricIds);
+ *     collector.start();
+ *     ...
+ *     collector.close();
+ * </pre>
+ */
+public class PerfCollector implements Closeable {
+   public static final int REALTIME_INTERVAL = 20;
+   public static final int DEFAULT_BATCH_SIZE = 64;
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int DEFAULT_INVENTORY_REFRESH = 15;
+   public static final String FORMAT_CSV = "csv";
+   public static final String FORMAT_NORMAL = "normal";
+
+   private static final int INVENTORY_PAGE_SIZE = 1000;
+
+   private final Connection connection;
+   private final MetricSink sink;
+   private final List<PerfMetricId> metrics;
+   private final ManagedObjectReference perfManager;
+   private final GetMOREF getMOREFs;
+   private int batchSize = Integer.getInteger("perf.collector.batchSize", DEFAULT_BATCH_SIZE);
+   private int parallelism = Integer.getInteger("perf.collector.parallelism", DEFAULT_PARALLELISM);
+   private int inventoryRefresh = Integer.getInteger("perf.collector.inventoryRefresh", DEFAULT_INVENTORY_REFRESH);
+   private int interval = REALTIME_INTERVAL;
+   private String format = System.getProperty("perf.collector.format", FORMAT_CSV);
+
+   // entity key to the entity, changed only between cycles
+   private final Map<String, Entity> entities = new LinkedHashMap<String, Entity>();
+   // publishing is serialized, so the sink and the decoder need no other locking
+   private final Object publishLock = new Object();
+   private final PerfResultDecoder decoder = new PerfResultDecoder();
+
+   private final AtomicLong cycles = new AtomicLong();
+   private final AtomicLong overruns = new AtomicLong();
+   private final AtomicLong queries = new AtomicLong();
+   private final AtomicLong failedQueries = new AtomicLong();
+   private final AtomicLong samples = new AtomicLong();
+
+   private AsyncVimPort async;
+   private ScheduledExecutorService scheduler;
+   private volatile boolean inventoryStale = true;
+   private int cyclesSinceRefresh;
+   private volatile Cycle lastCycle;
+
+   /**
+    * @param connection a connection
+    * @param sink       receives the samples
+    * @param metrics    the counters and instances to collect from every entity; hosts and VMs ignore the ones
+    *                   they do not have
+    */
+   public PerfCollector(final Connection connection, final MetricSink sink, final Collection<PerfMetricId> metrics) {
+      this.connection = connection.connect();
+      this.sink = sink;
+      this.metrics = Collections.unmodifiableList(new ArrayList<PerfMetricId>(metrics));
+      this.perfManager = this.connection.getServiceContent().getPerfManager();
+      this.getMOREFs = new GetMOREF(this.connection);
+   }
+
+   /**
+    * @param counterIds PerfCounterInfo keys
+    * @param instance   the instance to collect for every counter, "" for the aggregate, "*" for all instances
+    * @return one metric id per counter
+    */
+   public static List<PerfMetricId> metricIds(final Collection<Integer> counterIds, final String instance) {
+      final List<PerfMetricId> ids = new ArrayList<PerfMetricId>(counterIds.size());
+      for (Integer counterId : counterIds) {
+         final PerfMetricId id = new PerfMetricId();
+         id.setCounterId(counterId);
+         id.setInstance(instance);
+         ids.add(id);
+      }
+      return ids;
+   }
+
+   /**
+    * @param batchSize PerfQuerySpecs per queryPerf call
+    * @return this collector, for method chaining
+    */
+   public PerfCollector batchSize(final int batchSize) {
+      this.batchSize = batchSize;
+      return this;
+   }
+
+   /**
+    * @param parallelism queryPerf calls in flight at once
+    * @return this collector, for method chaining
+    */
+   public PerfCollector parallelism(final int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+   }
+
+   /**
+    * @param seconds seconds between cycles, the default is the realtime sampling period
+    * @return this collector, for method chaining
+    */
+   public PerfCollector interval(final int seconds) {
+      this.interval = seconds;
+      return this;
+   }
+
+   /**
+    * @param format {@link #FORMAT_CSV} or {@link #FORMAT_NORMAL}, for entities not queried yet
+    * @return this collector, for method chaining
+    */
+   public PerfCollector format(final String format) {
+      if (!FORMAT_CSV.equals(format) && !FORMAT_NORMAL.equals(format)) {
+         throw new IllegalArgumentException("unknown format " + format);
+      }
+      this.format = format;
+      return this;
+   }
+
+   /**
+    * @param cycles cycles between two reads of the entity list
+    * @return this collector, for method chaining
+    */
+   public PerfCollector inventoryRefresh(final int cycles) {
+      this.inventoryRefresh = cycles;
+      return this;
+   }
+
+   /**
+    * runs a cycle right away and then one every interval, in a daemon thread
+    */
+   public synchronized void start() {
+      if (scheduler != null) {
+         return;
+      }
+      scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+         final Thread thread = new Thread(runnable, "perf-collector");
+         thread.setDaemon(true);
+         return thread;
+      });
+      scheduler.scheduleAtFixedRate(() -> {
+         try {
+            collect();
+         } catch (RuntimeException e) {
+            // a failed cycle must not cancel the schedule
+            System.err.println("performance collection cycle failed: " + e);
+            inventoryStale = true;
+         }
+      }, 0, interval, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Runs one collection cycle in the calling thread: refreshes the entity list if due, queries every entity
+    * and publishes the new samples. {@link #start()} calls this on its schedule.
+    *
+    * @return what the cycle did
+    */
+   public synchronized Cycle collect() {
+      final long start = System.nanoTime();
+      if (async == null) {
+         async = new AsyncVimPort(connection, AsyncVimPort.sharedExecutor(), parallelism);
+      }
+      if (inventoryStale || ++cyclesSinceRefresh >= inventoryRefresh) {
+         refreshInventory();
+      }
+      final long samplesBefore = samples.get();
+      final List<Entity> all = new ArrayList<Entity>(entities.values());
+      final List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+      int failed = 0;
+      for (int from = 0; from < all.size(); from += batchSize) {
+         final List<Entity> batch = all.subList(from, Math.min(from + batchSize, all.size()));
+         final List<PerfQuerySpec> specs = new ArrayList<PerfQuerySpec>(batch.size());
+         for (Entity entity : batch) {
+            specs.add(entity.spec());
+         }
+         queries.incrementAndGet();
+         batches.add(async.queryPerf(perfManager, specs).thenAccept(this::publish));
+      }
+      for (CompletableFuture<Void> batch : batches) {
+         try {
+            batch.join();
+         } catch (CompletionException e) {
+            // most likely an entity that was deleted or powered off since the last inventory read
+            failed++;
+            failedQueries.incrementAndGet();
+            inventoryStale = true;
+         }
+      }
+      final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      final boolean overrun = elapsed > TimeUnit.SECONDS.toMillis(interval);
+      if (overrun) {
+         overruns.incrementAndGet();
+      }
+      final Cycle cycle = new Cycle(cycles.incrementAndGet(), all.size(), batches.size(), failed,
+            samples.get() - samplesBefore, elapsed, overrun);
+      lastCycle = cycle;
+      synchronized (publishLock) {
+         sink.cycleCompleted(cycle);
+      }
+      return cycle;
+   }
+
+   /**
+    * reads the connected hosts and powered on VMs, keeping the last sample time of the ones already known
+    */
+   private void refreshInventory() {
+      final Map<String, Entity> current = new HashMap<String, Entity>();
+      final ManagedObjectReference rootFolder = connection.getServiceContent().getRootFolder();
+      try {
+         try (Stream<ObjectContent> hosts =
+                    getMOREFs.stream(rootFolder, "HostSystem", INVENTORY_PAGE_SIZE, "runtime.connectionState")) {
+            hosts.filter(oc -> HostSystemConnectionState.CONNECTED.equals(firstValue(oc)))
+                  .forEach(oc -> keep(current, oc.getObj()));
+         }
+         try (Stream<ObjectContent> vms =
+                    getMOREFs.stream(rootFolder, "VirtualMachine", INVENTORY_PAGE_SIZE, "runtime.powerState")) {
+            vms.filter(oc -> VirtualMachinePowerState.POWERED_ON.equals(firstValue(oc)))
+                  .forEach(oc -> keep(current, oc.getObj()));
+         }
+      } catch (RuntimeFaultFaultMsg e) {
+         throw new IllegalStateException("could not read the inventory", e);
+      }
+      entities.keySet().retainAll(current.keySet());
+      for (Map.Entry<String, Entity> entry : current.entrySet()) {
+         if (!entities.containsKey(entry.getKey())) {
+            entities.put(entry.getKey(), entry.getValue());
+         }
+      }
+      inventoryStale = false;
+      cyclesSinceRefresh = 0;
+   }
+
+   private void keep(final Map<String, Entity> current, final ManagedObjectReference ref) {
+      final String key = InventoryCache.key(ref);
+      final Entity known = entities.get(key);
+      current.put(key, known != null ? known : new Entity(ref));
+   }
+
+   private static Object firstValue(final ObjectContent oc) {
+      return oc.getPropSet() == null || oc.getPropSet().isEmpty() ? null : oc.getPropSet().get(0).getVal();
+   }
+
+   /**
+    * hands the samples of one queryPerf result to the sink and moves the start time of each entity forward
+    */
+   private void publish(final List<PerfEntityMetricBase> result) {
+      if (result == null) {
+         return;
+      }
+      synchronized (publishLock) {
+         for (PerfEntityMetricBase base : result) {
+            samples.addAndGet(decoder.publish(base, sink));
+            final long last = decoder.getLastTimestamp();
+            final Entity entity = entities.get(InventoryCache.key(base.getEntity()));
+            if (entity != null && last >= 0) {
+               entity.startTime = decoder.toXml(last);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the most recent cycle, null before the first one
+    */
+   public Cycle getLastCycle() {
+      return lastCycle;
+   }
+
+   public long getCycles() {
+      return cycles.get();
+   }
+
+   /**
+    * @return cycles that took longer than the interval
+    */
+   public long getOverruns() {
+      return overruns.get();
+   }
+
+   public long getQueries() {
+      return queries.get();
+   }
+
+   public long getFailedQueries() {
+      return failedQueries.get();
+   }
+
+   public long getSamples() {
+      return samples.get();
+   }
+
+   /**
+    * stops the schedule, a cycle in progress finishes first
+    */
+   @Override
+   public void close() {
+      final ScheduledExecutorService running;
+      synchronized (this) {
+         running = scheduler;
+         scheduler = null;
+      }
+      if (running != null) {
+         running.shutdown();
+         try {
+            running.awaitTermination(interval, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * one host or VM and the time of the last sample received for it
+    */
+   private class Entity {
+      final PerfQuerySpec spec = new PerfQuerySpec();
+      volatile XMLGregorianCalendar startTime;
+
+      Entity(final ManagedObjectReference ref) {
+         spec.setEntity(ref);
+         spec.setIntervalId(REALTIME_INTERVAL);
+         spec.setFormat(format);
+         spec.getMetricId().addAll(metrics);
+      }
+
+      /**
+       * @return the query for samples after the last one received, or for the latest sample the first time
+       */
+      PerfQuerySpec spec() {
+         if (startTime == null) {
+            spec.setMaxSample(1);
+         } else {
+            spec.setMaxSample(null);
+            spec.setStartTime(startTime);
+         }
+         return spec;
+      }
+   }
+
+   /**
+    * the outcome of one collection cycle
+    */
+   public static class Cycle {
+      private final long number;
+      private final int entities;
+      private final int queries;
+      private final int failedQueries;
+      private final long samples;
+      private final long elapsedMillis;
+      private final boolean overrun;
+
+      Cycle(final long number, final int entities, final int queries, final int failedQueries,
+            final long samples, final long elapsedMillis, final boolean overrun) {
+         this.number = number;
+         this.entities = entities;
+         this.queries = queries;
+         this.failedQueries = failedQueries;
+         this.samples = samples;
+         this.elapsedMillis = elapsedMillis;
+         this.overrun = overrun;
+      }
+
+      public long getNumber() {
+         return number;
+      }
+
+      public int getEntities() {
+         return entities;
+      }
+
+      public int getQueries() {
+         return queries;
+      }
+
+      public int getFailedQueries() {
+         return failedQueries;
+      }
+
+      public long getSamples() {
+         return samples;
+      }
+
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      /**
+       * @return true if the cycle took longer than the interval, so the next one started late
+       */
+      public boolean isOverrun() {
+         return overrun;
+      }
+
+      @Override
+      public String toString() {
+         return "cycle " + number + ": " + entities + " entities, " + queries + " queries ("
+               + failedQueries + " failed), " + samples + " samples in " + elapsedMillis + " ms"
+               + (overrun ? ", overrun" : "");
+      }
+   }
+}
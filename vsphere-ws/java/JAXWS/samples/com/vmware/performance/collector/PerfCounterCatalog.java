@@ -0,0 +1,361 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.connection.Connection;
+import com.vmware.connection.helpers.GetMOREF;
+import com.vmware.connection.helpers.PropertyDecoder;
+import com.vmware.vim25.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The performance counters of one server, read once and indexed by id and by name.
+ * <p/>
+ * Counters are named the way the samples take them on the command line, <code>group.name.rollupType</code>, e.g.
+ * <code>cpu.usage.average</code>; both lookups are a hash map get. {@link #of(Connection)} hands out one catalog
+ * per connection, attached to it and dropped when it disconnects. When the system property
+ * <code>perf.catalog.dir</code> names a directory, the counters are also written to a file there, named after the
+ * server's instance uuid and build, and the next process against the same server reads that file instead of
+ * retrieving PerformanceManager.perfCounter, which on a vCenter is several hundred counters. An upgraded server
+ * has a new build and so gets a new file.
+ * </p>
+ * The counters available on an entity are cached per entity type and interval: the first host asked about
+ * answers for all hosts.
+ * <pre>
+ *     PerfCounterCatalog catalog = PerfCounterCatalog.of(connection);
+ *     int cpuUsage = catalog.id("cpu.usage.average");
+ *     String label = catalog.get(cpuUsage).getNameInfo().getLabel();
+ * </pre>
+ */
+public class PerfCounterCatalog {
+   private static final int FILE_MAGIC = 0x50434331;
+   private static final int FILE_VERSION = 1;
+
+   private final Connection connection;
+   private final List<PerfCounterInfo> counters;
+   private final Map<Integer, PerfCounterInfo> byId = new HashMap<Integer, PerfCounterInfo>();
+   // the first counter listed with a name, as for byGroupAndName
+   private final Map<String, PerfCounterInfo> byName = new HashMap<String, PerfCounterInfo>();
+   // group.name to the first counter listed with it, whatever its rollup
+   private final Map<String, PerfCounterInfo> byGroupAndName = new HashMap<String, PerfCounterInfo>();
+   // entity type and interval to the ids of the counters available on that type
+   private final Map<String, Set<Integer>> available = new ConcurrentHashMap<String, Set<Integer>>();
+   private final boolean fromFile;
+
+   PerfCounterCatalog(final Connection connection, final List<PerfCounterInfo> counters, final boolean fromFile) {
+      this.connection = connection;
+      this.counters = Collections.unmodifiableList(counters);
+      this.fromFile = fromFile;
+      for (PerfCounterInfo info : counters) {
+         byId.put(info.getKey(), info);
+         final String name = name(info);
+         if (!byName.containsKey(name)) {
+            byName.put(name, info);
+         }
+         final String groupAndName = info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey();
+         if (!byGroupAndName.containsKey(groupAndName)) {
+            byGroupAndName.put(groupAndName, info);
+         }
+      }
+   }
+
+   /**
+    * @param connection a connection
+    * @return the catalog of the server, read on first use, from the <code>perf.catalog.dir</code> file if there
+    * is one for this server
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidPropertyFaultMsg
+    */
+   public static PerfCounterCatalog of(final Connection connection)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      final Holder holder = connection.getAttachments().get(Holder.class, c -> new Holder());
+      // only callers on the same connection wait for the retrieval
+      synchronized (holder) {
+         if (holder.catalog == null) {
+            final String dir = System.getProperty("perf.catalog.dir");
+            holder.catalog = dir == null ? retrieve(connection) : load(connection, new File(dir));
+         }
+         return holder.catalog;
+      }
+   }
+
+   /**
+    * Reads the catalog of the server from its file in a directory, or retrieves it and writes the file when
+    * there is none or it cannot be read. A file that cannot be written is only reported.
+    *
+    * @param connection a connection
+    * @param dir        directory holding catalog files, created if needed
+    * @return the catalog
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidPropertyFaultMsg
+    */
+   public static PerfCounterCatalog load(final Connection connection, final File dir)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      final Connection connected = connection.connect();
+      final File file = new File(dir, fileName(connected));
+      if (file.isFile()) {
+         try {
+            return new PerfCounterCatalog(connected, read(file), true);
+         } catch (IOException e) {
+            System.err.println("ignoring unreadable performance counter catalog " + file + ": " + e);
+         }
+      }
+      final PerfCounterCatalog catalog = retrieve(connected);
+      try {
+         if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+         }
+         write(file, catalog.counters);
+      } catch (IOException e) {
+         System.err.println("could not save the performance counter catalog to " + file + ": " + e);
+      }
+      return catalog;
+   }
+
+   private static PerfCounterCatalog retrieve(final Connection connection)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      final Connection connected = connection.connect();
+      final Map<String, Object> props = new GetMOREF(connected)
+            .entityProps(connected.getServiceContent().getPerfManager(), new String[]{"perfCounter"});
+      return new PerfCounterCatalog(connected,
+            new ArrayList<PerfCounterInfo>(PropertyDecoder.list(props.get("perfCounter"), PerfCounterInfo.class)),
+            false);
+   }
+
+   /**
+    * @param info a counter
+    * @return its name as group.name.rollupType, e.g. cpu.usage.average, group.name if it has no rollup type
+    */
+   public static String name(final PerfCounterInfo info) {
+      final String groupAndName = info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey();
+      return info.getRollupType() == null ? groupAndName : groupAndName + "." + info.getRollupType().value();
+   }
+
+   /**
+    * @param id a counter key
+    * @return the counter, null if there is none with that key
+    */
+   public PerfCounterInfo get(final int id) {
+      return byId.get(id);
+   }
+
+   /**
+    * @param name group.name.rollupType, e.g. mem.usage.average
+    * @return the counter, null if there is none with that name
+    */
+   public PerfCounterInfo get(final String name) {
+      return byName.get(name);
+   }
+
+   /**
+    * @param group counter group, e.g. cpu
+    * @param name  counter name, e.g. ready
+    * @return the first counter of that group and name in the server's list whatever its rollup, null if none
+    */
+   public PerfCounterInfo get(final String group, final String name) {
+      return byGroupAndName.get(group + "." + name);
+   }
+
+   /**
+    * @param name group.name.rollupType
+    * @return the counter key
+    * @throws IllegalArgumentException if the server has no such counter
+    */
+   public int id(final String name) {
+      final PerfCounterInfo info = byName.get(name);
+      if (info == null) {
+         throw new IllegalArgumentException("unknown performance counter " + name);
+      }
+      return info.getKey();
+   }
+
+   /**
+    * @param id a counter key
+    * @return its group.name.rollupType, or the key itself if it is unknown
+    */
+   public String name(final int id) {
+      final PerfCounterInfo info = byId.get(id);
+      return info == null ? String.valueOf(id) : name(info);
+   }
+
+   /**
+    * @return every counter, in the order the server lists them
+    */
+   public List<PerfCounterInfo> getCounters() {
+      return counters;
+   }
+
+   /**
+    * @return true if the counters were read from a catalog file rather than from the server
+    */
+   public boolean isFromFile() {
+      return fromFile;
+   }
+
+   /**
+    * The ids of the counters the server has data for on entities of this type, from queryAvailablePerfMetric
+    * on the first entity of the type asked about. Instances differ from entity to entity and are not part of
+    * the answer.
+    *
+    * @param entity     an entity
+    * @param intervalId sampling period, e.g. 20 for realtime or 300 for the first historical interval
+    * @return counter ids, unmodifiable
+    * @throws RuntimeFaultFaultMsg
+    */
+   public Set<Integer> availableCounters(final ManagedObjectReference entity, final int intervalId)
+         throws RuntimeFaultFaultMsg {
+      final String key = entity.getType() + "|" + intervalId;
+      Set<Integer> ids = available.get(key);
+      if (ids == null) {
+         final List<PerfMetricId> metricIds = connection.getVimPort().queryAvailablePerfMetric(
+               connection.getServiceContent().getPerfManager(), entity, null, null, intervalId);
+         ids = new LinkedHashSet<Integer>();
+         if (metricIds != null) {
+            for (PerfMetricId metricId : metricIds) {
+               ids.add(metricId.getCounterId());
+            }
+         }
+         ids = Collections.unmodifiableSet(ids);
+         available.put(key, ids);
+      }
+      return ids;
+   }
+
+   /**
+    * @return a file name unique to the server and its build
+    */
+   static String fileName(final Connection connection) {
+      final AboutInfo about = connection.getServiceContent().getAbout();
+      final String server = about.getInstanceUuid() != null ? about.getInstanceUuid() : connection.getHost();
+      return ("perf-counters-" + server + "-" + about.getBuild() + ".bin").replaceAll("[^A-Za-z0-9._-]", "_");
+   }
+
+   static void write(final File file, final List<PerfCounterInfo> counters) throws IOException {
+      // write aside and rename, so a reader never sees half a file
+      final File temp = new File(file.getPath() + ".tmp");
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+         out.writeInt(FILE_MAGIC);
+         out.writeInt(FILE_VERSION);
+         out.writeInt(counters.size());
+         for (PerfCounterInfo info : counters) {
+            out.writeInt(info.getKey());
+            writeDescription(out, info.getNameInfo());
+            writeDescription(out, info.getGroupInfo());
+            writeDescription(out, info.getUnitInfo());
+            writeString(out, info.getRollupType() == null ? null : info.getRollupType().value());
+            writeString(out, info.getStatsType() == null ? null : info.getStatsType().value());
+            out.writeInt(info.getLevel() == null ? -1 : info.getLevel());
+            out.writeInt(info.getPerDeviceLevel() == null ? -1 : info.getPerDeviceLevel());
+            out.writeInt(info.getAssociatedCounterId().size());
+            for (Integer associated : info.getAssociatedCounterId()) {
+               out.writeInt(associated);
+            }
+         }
+      }
+      if (!temp.renameTo(file)) {
+         file.delete();
+         if (!temp.renameTo(file)) {
+            throw new IOException("cannot rename " + temp + " to " + file);
+         }
+      }
+   }
+
+   static List<PerfCounterInfo> read(final File file) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+         if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+            throw new IOException("not a performance counter catalog of version " + FILE_VERSION);
+         }
+         final int count = in.readInt();
+         final List<PerfCounterInfo> counters = new ArrayList<PerfCounterInfo>(count);
+         for (int i = 0; i < count; i++) {
+            final PerfCounterInfo info = new PerfCounterInfo();
+            info.setKey(in.readInt());
+            info.setNameInfo(readDescription(in));
+            info.setGroupInfo(readDescription(in));
+            info.setUnitInfo(readDescription(in));
+            final String rollupType = readString(in);
+            info.setRollupType(rollupType == null ? null : PerfSummaryType.fromValue(rollupType));
+            final String statsType = readString(in);
+            info.setStatsType(statsType == null ? null : PerfStatsType.fromValue(statsType));
+            final int level = in.readInt();
+            info.setLevel(level < 0 ? null : level);
+            final int perDeviceLevel = in.readInt();
+            info.setPerDeviceLevel(perDeviceLevel < 0 ? null : perDeviceLevel);
+            final int associated = in.readInt();
+            for (int a = 0; a < associated; a++) {
+               info.getAssociatedCounterId().add(in.readInt());
+            }
+            counters.add(info);
+         }
+         return counters;
+      } catch (IllegalArgumentException e) {
+         // an enum value this version of the stubs does not know
+         throw new IOException(e);
+      }
+   }
+
+   private static void writeDescription(final DataOutputStream out, final ElementDescription description)
+         throws IOException {
+      out.writeBoolean(description != null);
+      if (description != null) {
+         writeString(out, description.getKey());
+         writeString(out, description.getLabel());
+         writeString(out, description.getSummary());
+      }
+   }
+
+   private static ElementDescription readDescription(final DataInputStream in) throws IOException {
+      if (!in.readBoolean()) {
+         return null;
+      }
+      final ElementDescription description = new ElementDescription();
+      description.setKey(readString(in));
+      description.setLabel(readString(in));
+      description.setSummary(readString(in));
+      return description;
+   }
+
+   private static void writeString(final DataOutputStream out, final String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+         out.writeUTF(value);
+      }
+   }
+
+   private static String readString(final DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+   }
+
+   /**
+    * the catalog of one connection, loaded on first use under its own lock
+    */
+   private static class Holder {
+      private PerfCounterCatalog catalog;
+   }
+}
@@ -0,0 +1,211 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+/**
+ * Decodes the strings of a csv format queryPerf result straight into primitive arrays.
+ * <p/>
+ * <code>PerfEntityMetricCSV.sampleInfoCSV</code> is a list of interval and timestamp pairs, e.g.
+ * <code>20,2012-06-04T18:12:20Z,20,2012-06-04T18:12:40Z</code>, and each <code>PerfMetricSeriesCSV.value</code> the
+ * matching list of values, e.g. <code>117,-1</code>. The parser walks the strings once, without splitting them
+ * and without a date parser, into arrays it owns and grows as needed, so once they are large enough parsing
+ * allocates nothing. The arrays are overwritten by the next call of the same kind; one parser per thread.
+ * </p>
+ * <pre>
+ *     int samples = parser.parseSampleInfo(csvMetric.getSampleInfoCSV());
+ *     long[] timestamps = parser.getTimestamps();
+ *     for (PerfMetricSeriesCSV series : csvMetric.getValue()) {
+ *        int n = parser.parseValues(series.getValue());
+ *        long[] values = parser.getValues();
+ *        ...
+ *     }
+ * </pre>
+ */
+public class PerfCsvParser {
+   private long[] timestamps = new long[16];
+   private int[] intervals = new int[16];
+   private long[] values = new long[16];
+
+   /**
+    * @param csv a sampleInfoCSV string, may be null or empty
+    * @return number of samples, their times are in {@link #getTimestamps()} and their intervals in
+    * {@link #getIntervals()}
+    * @throws IllegalArgumentException if the string is not a list of interval and timestamp pairs
+    */
+   public int parseSampleInfo(final String csv) {
+      if (csv == null) {
+         return 0;
+      }
+      final int length = csv.length();
+      int count = 0;
+      int pos = 0;
+      while (pos < length) {
+         final int comma = csv.indexOf(',', pos);
+         if (comma < 0) {
+            throw malformed(csv, pos);
+         }
+         int end = csv.indexOf(',', comma + 1);
+         if (end < 0) {
+            end = length;
+         }
+         if (count == timestamps.length) {
+            grow(count * 2);
+         }
+         intervals[count] = (int) parseLong(csv, pos, comma);
+         timestamps[count] = parseTimestamp(csv, comma + 1, end);
+         count++;
+         pos = end + 1;
+      }
+      return count;
+   }
+
+   /**
+    * @param csv a PerfMetricSeriesCSV value string, may be null or empty
+    * @return number of values, they are in {@link #getValues()}; an empty field is read as -1, the value the
+    * server uses for a missing sample
+    * @throws IllegalArgumentException if a field is not a number
+    */
+   public int parseValues(final String csv) {
+      if (csv == null || csv.isEmpty()) {
+         return 0;
+      }
+      final int length = csv.length();
+      int count = 0;
+      int pos = 0;
+      while (pos <= length) {
+         int end = csv.indexOf(',', pos);
+         if (end < 0) {
+            end = length;
+         }
+         if (count == values.length) {
+            final long[] grown = new long[count * 2];
+            System.arraycopy(values, 0, grown, 0, count);
+            values = grown;
+         }
+         values[count++] = end == pos ? -1 : parseLong(csv, pos, end);
+         pos = end + 1;
+      }
+      return count;
+   }
+
+   /**
+    * @return sample times of the last {@link #parseSampleInfo} in milliseconds since the epoch
+    */
+   public long[] getTimestamps() {
+      return timestamps;
+   }
+
+   /**
+    * @return sampling periods in seconds of the last {@link #parseSampleInfo}
+    */
+   public int[] getIntervals() {
+      return intervals;
+   }
+
+   /**
+    * @return values of the last {@link #parseValues}
+    */
+   public long[] getValues() {
+      return values;
+   }
+
+   private void grow(final int size) {
+      final long[] t = new long[size];
+      final int[] i = new int[size];
+      System.arraycopy(timestamps, 0, t, 0, timestamps.length);
+      System.arraycopy(intervals, 0, i, 0, intervals.length);
+      timestamps = t;
+      intervals = i;
+   }
+
+   private static long parseLong(final String s, final int start, final int end) {
+      int pos = start;
+      boolean negative = false;
+      if (pos < end && s.charAt(pos) == '-') {
+         negative = true;
+         pos++;
+      }
+      if (pos == end) {
+         throw malformed(s, start);
+      }
+      long value = 0;
+      for (; pos < end; pos++) {
+         final int digit = s.charAt(pos) - '0';
+         if (digit < 0 || digit > 9) {
+            throw malformed(s, start);
+         }
+         value = value * 10 + digit;
+      }
+      return negative ? -value : value;
+   }
+
+   /**
+    * reads an xsd:dateTime of the form yyyy-MM-ddTHH:mm:ss[.fff][Z|+hh:mm|-hh:mm], no zone meaning UTC
+    */
+   static long parseTimestamp(final String s, final int start, final int end) {
+      if (end - start < 19 || s.charAt(start + 4) != '-' || s.charAt(start + 7) != '-'
+            || s.charAt(start + 10) != 'T' || s.charAt(start + 13) != ':' || s.charAt(start + 16) != ':') {
+         throw malformed(s, start);
+      }
+      final int year = (int) parseLong(s, start, start + 4);
+      final int month = (int) parseLong(s, start + 5, start + 7);
+      final int day = (int) parseLong(s, start + 8, start + 10);
+      final int hour = (int) parseLong(s, start + 11, start + 13);
+      final int minute = (int) parseLong(s, start + 14, start + 16);
+      final int second = (int) parseLong(s, start + 17, start + 19);
+      int pos = start + 19;
+      int millis = 0;
+      if (pos < end && s.charAt(pos) == '.') {
+         pos++;
+         int scale = 100;
+         for (; pos < end && Character.isDigit(s.charAt(pos)); pos++) {
+            millis += (s.charAt(pos) - '0') * scale;
+            scale /= 10;
+         }
+      }
+      int offsetMinutes = 0;
+      if (pos < end) {
+         final char zone = s.charAt(pos);
+         if (zone == '+' || zone == '-') {
+            if (end - pos != 6 || s.charAt(pos + 3) != ':') {
+               throw malformed(s, start);
+            }
+            offsetMinutes = (int) (parseLong(s, pos + 1, pos + 3) * 60 + parseLong(s, pos + 4, pos + 6));
+            if (zone == '-') {
+               offsetMinutes = -offsetMinutes;
+            }
+         } else if (zone != 'Z' || end - pos != 1) {
+            throw malformed(s, start);
+         }
+      }
+      final long seconds = daysFromCivil(year, month, day) * 86400L
+            + hour * 3600 + minute * 60 + second - offsetMinutes * 60;
+      return seconds * 1000 + millis;
+   }
+
+   /**
+    * days since 1970-01-01 of a proleptic Gregorian date
+    */
+   private static long daysFromCivil(final int year, final int month, final int day) {
+      final int y = month <= 2 ? year - 1 : year;
+      final long era = (y >= 0 ? y : y - 399) / 400;
+      final long yearOfEra = y - era * 400;
+      final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+      final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+      return era * 146097 + dayOfEra - 719468;
+   }
+
+   private static IllegalArgumentException malformed(final String csv, final int pos) {
+      return new IllegalArgumentException("malformed performance csv at " + pos + ": " + csv);
+   }
+}
@@ -0,0 +1,122 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.vim25.*;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Hands the series of queryPerf results to a {@link MetricSink}, for both the csv and the normal format, through
+ * arrays it reuses. Not thread safe, callers serialize.
+ */
+class PerfResultDecoder {
+   private final PerfCsvParser csvParser = new PerfCsvParser();
+   private final DatatypeFactory datatypeFactory;
+   private long[] timestamps = new long[16];
+   private long[] values = new long[16];
+   private long lastTimestamp = -1;
+
+   PerfResultDecoder() {
+      try {
+         datatypeFactory = DatatypeFactory.newInstance();
+      } catch (DatatypeConfigurationException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * @param metric one entity of a queryPerf result
+    * @param sink   receives its series
+    * @return number of samples published, {@link #getLastTimestamp()} is the time of the last one
+    */
+   long publish(final PerfEntityMetricBase metric, final MetricSink sink) {
+      lastTimestamp = -1;
+      if (metric instanceof PerfEntityMetricCSV) {
+         return publish((PerfEntityMetricCSV) metric, sink);
+      } else if (metric instanceof PerfEntityMetric) {
+         return publish((PerfEntityMetric) metric, sink);
+      }
+      return 0;
+   }
+
+   private long publish(final PerfEntityMetricCSV metric, final MetricSink sink) {
+      final int count = csvParser.parseSampleInfo(metric.getSampleInfoCSV());
+      if (count == 0) {
+         return 0;
+      }
+      final long[] sampleTimes = csvParser.getTimestamps();
+      long published = 0;
+      for (PerfMetricSeriesCSV series : metric.getValue()) {
+         final int n = Math.min(count, csvParser.parseValues(series.getValue()));
+         sink.publish(metric.getEntity(), series.getId().getCounterId(), series.getId().getInstance(),
+               sampleTimes, csvParser.getValues(), n);
+         published += n;
+      }
+      lastTimestamp = sampleTimes[count - 1];
+      return published;
+   }
+
+   private long publish(final PerfEntityMetric metric, final MetricSink sink) {
+      final List<PerfSampleInfo> sampleInfo = metric.getSampleInfo();
+      final int count = sampleInfo.size();
+      if (count == 0) {
+         return 0;
+      }
+      if (timestamps.length < count) {
+         timestamps = new long[Math.max(count, timestamps.length * 2)];
+         values = new long[timestamps.length];
+      }
+      for (int i = 0; i < count; i++) {
+         timestamps[i] = sampleInfo.get(i).getTimestamp().toGregorianCalendar().getTimeInMillis();
+      }
+      long published = 0;
+      for (PerfMetricSeries series : metric.getValue()) {
+         if (!(series instanceof PerfMetricIntSeries)) {
+            continue;
+         }
+         final List<Long> seriesValues = ((PerfMetricIntSeries) series).getValue();
+         final int n = Math.min(count, seriesValues.size());
+         for (int i = 0; i < n; i++) {
+            values[i] = seriesValues.get(i);
+         }
+         sink.publish(metric.getEntity(), series.getId().getCounterId(), series.getId().getInstance(),
+               timestamps, values, n);
+         published += n;
+      }
+      lastTimestamp = timestamps[count - 1];
+      return published;
+   }
+
+   /**
+    * @return time of the last sample of the latest {@link #publish}, -1 if it had none
+    */
+   long getLastTimestamp() {
+      return lastTimestamp;
+   }
+
+   /**
+    * @param millis milliseconds since the epoch
+    * @return the same time as an xsd:dateTime in UTC, for PerfQuerySpec start and end times
+    */
+   XMLGregorianCalendar toXml(final long millis) {
+      final GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+      calendar.setTimeInMillis(millis);
+      return datatypeFactory.newXMLGregorianCalendar(calendar);
+   }
+}
@@ -0,0 +1,587 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.connection.helpers.InventoryCache;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfCounterInfo;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the latest sample of every collected series on a local HTTP endpoint in the Prometheus text format, or
+ * in OpenMetrics when the scraper asks for it.
+ * <p/>
+ * The exporter is a {@link MetricSink}. Samples published during a cycle are held back and become visible together
+ * when the cycle completes, and only the series that got a sample are touched, so a scrape never sees half a cycle
+ * and the cost of a cycle does not depend on the number of series that did not change. Each counter is a family
+ * named <code>vsphere_group_name_rollup</code>, with the labels <code>type</code>, <code>entity</code> (the
+ * managed object id) and <code>counter_instance</code>, the counter's instance, since Prometheus sets
+ * <code>instance</code> to the scraped target itself. At most <code>prometheus.maxSeries</code> series (default
+ * 10,000) are exported; updates of series beyond that are dropped and counted. A series that got no sample for
+ * <code>prometheus.staleCycles</code> cycles (default 3), usually an entity that went away, is removed.
+ * </p>
+ * A scrape streams the series straight to the response, copying them a fixed size chunk at a time, so it takes the
+ * same memory for ten series as for a hundred thousand and holds the lock for one chunk only. The exporter also
+ * exports its own cycle latency, the number of queryPerf calls and failures, and its scrape counts.
+ * <p/>
+ * Everything but {@link #start} works without a server: feed a {@link PerfCollector} that runs over a connection
+ * with a stubbed VimPortType into the exporter and read the result of {@link #write}.
+ * </p>
+ * <pre>
+ *     PrometheusExporter exporter = new PrometheusExporter(PerfCounterCatalog.of(connection));
+ *     exporter.start(9272);
+ *     new PerfCollector(connection, exporter, metricIds).start();
+ * </pre>
+ */
+public class PrometheusExporter implements MetricSink, Closeable {
+   public static final int DEFAULT_MAX_SERIES = 10000;
+   public static final int DEFAULT_STALE_CYCLES = 3;
+   public static final String CONTENT_TYPE_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+   public static final String CONTENT_TYPE_OPENMETRICS = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+   // upper bounds of the cycle duration buckets in seconds, the realtime period is 20
+   private static final double[] CYCLE_BUCKETS = {0.5, 1, 2, 5, 10, 20, 40};
+   private static final int CHUNK = 256;
+
+   private final PerfCounterCatalog catalog;
+   private final int maxSeries;
+   private final int staleCycles;
+
+   private final Object lock = new Object();
+   private final Map<Integer, Family> families = new LinkedHashMap<Integer, Family>();
+   private final List<Family> familyList = new ArrayList<Family>();
+   private final List<Series> dirty = new ArrayList<Series>();
+   private int seriesCount;
+   private long cycle;
+   private int scrapesRunning;
+
+   private long cycles;
+   private long queries;
+   private long failedQueries;
+   private long samples;
+   private long overruns;
+   private long droppedUpdates;
+   private final long[] cycleBuckets = new long[CYCLE_BUCKETS.length];
+   private double cycleSecondsSum;
+   private long lastCycleMillis;
+   private long scrapes;
+   private double lastScrapeSeconds;
+
+   // per scrape copies of one chunk, scrapes are serialized on scrapeLock
+   private final Object scrapeLock = new Object();
+   private final Series[] chunkSeries = new Series[CHUNK];
+   private final long[] chunkValues = new long[CHUNK];
+   private final long[] chunkTimes = new long[CHUNK];
+
+   private HttpServer server;
+
+   /**
+    * an exporter limited by the <code>prometheus.maxSeries</code> and <code>prometheus.staleCycles</code> system
+    * properties
+    *
+    * @param catalog names and descriptions of the counters
+    */
+   public PrometheusExporter(final PerfCounterCatalog catalog) {
+      this(catalog, Integer.getInteger("prometheus.maxSeries", DEFAULT_MAX_SERIES),
+            Integer.getInteger("prometheus.staleCycles", DEFAULT_STALE_CYCLES));
+   }
+
+   /**
+    * @param catalog     names and descriptions of the counters
+    * @param maxSeries   most series exported at once
+    * @param staleCycles cycles without a sample after which a series is removed
+    */
+   public PrometheusExporter(final PerfCounterCatalog catalog, final int maxSeries, final int staleCycles) {
+      if (maxSeries < 1 || staleCycles < 1) {
+         throw new IllegalArgumentException("maxSeries and staleCycles must be at least 1");
+      }
+      this.catalog = catalog;
+      this.maxSeries = maxSeries;
+      this.staleCycles = staleCycles;
+   }
+
+   /**
+    * serves <code>/metrics</code> on the loopback interface
+    *
+    * @param port port to listen on
+    * @return this exporter, for method chaining
+    * @throws IOException if the port can not be bound
+    */
+   public PrometheusExporter start(final int port) throws IOException {
+      return start(new InetSocketAddress(System.getProperty("prometheus.bind", "127.0.0.1"), port));
+   }
+
+   /**
+    * @param address address to serve <code>/metrics</code> on
+    * @return this exporter, for method chaining
+    * @throws IOException if the address can not be bound
+    */
+   public synchronized PrometheusExporter start(final InetSocketAddress address) throws IOException {
+      if (server != null) {
+         throw new IllegalStateException("already started");
+      }
+      server = HttpServer.create(address, 0);
+      server.createContext("/metrics", new HttpHandler() {
+         @Override
+         public void handle(final HttpExchange exchange) throws IOException {
+            scrape(exchange);
+         }
+      });
+      // requests are handled on the server's own thread, one at a time
+      server.setExecutor(null);
+      server.start();
+      return this;
+   }
+
+   /**
+    * @return the address the server listens on, null before {@link #start}
+    */
+   public synchronized InetSocketAddress getAddress() {
+      return server == null ? null : server.getAddress();
+   }
+
+   @Override
+   public synchronized void close() {
+      if (server != null) {
+         server.stop(0);
+         server = null;
+      }
+   }
+
+   @Override
+   public void publish(final ManagedObjectReference entity, final int counterId, final String instance,
+                       final long[] timestamps, final long[] values, final int count) {
+      // only the latest sample the server has a value for is exported
+      int latest = count - 1;
+      while (latest >= 0 && values[latest] < 0) {
+         latest--;
+      }
+      if (latest < 0) {
+         return;
+      }
+      synchronized (lock) {
+         Family family = families.get(counterId);
+         if (family == null) {
+            family = new Family(counterId, catalog.get(counterId));
+            families.put(counterId, family);
+            familyList.add(family);
+         }
+         final String key = InventoryCache.key(entity) + '\u0000' + instance;
+         Series series = family.index.get(key);
+         if (series == null) {
+            if (seriesCount >= maxSeries) {
+               droppedUpdates++;
+               return;
+            }
+            series = new Series(labels(entity, instance), cycle);
+            family.index.put(key, series);
+            family.series.add(series);
+            seriesCount++;
+         }
+         if (series.pendingCycle != cycle) {
+            dirty.add(series);
+         }
+         series.pendingCycle = cycle;
+         series.pendingValue = values[latest];
+         series.pendingTime = timestamps[latest];
+      }
+   }
+
+   @Override
+   public void cycleCompleted(final PerfCollector.Cycle completed) {
+      synchronized (lock) {
+         for (Series series : dirty) {
+            series.value = series.pendingValue;
+            series.time = series.pendingTime;
+            series.visible = true;
+            series.lastCycle = cycle;
+         }
+         dirty.clear();
+         cycle++;
+         removeStale();
+
+         cycles++;
+         queries += completed.getQueries();
+         failedQueries += completed.getFailedQueries();
+         samples += completed.getSamples();
+         if (completed.isOverrun()) {
+            overruns++;
+         }
+         final double seconds = completed.getElapsedMillis() / 1000.0;
+         cycleSecondsSum += seconds;
+         for (int i = 0; i < CYCLE_BUCKETS.length; i++) {
+            if (seconds <= CYCLE_BUCKETS[i]) {
+               cycleBuckets[i]++;
+            }
+         }
+         lastCycleMillis = System.currentTimeMillis();
+      }
+   }
+
+   /**
+    * Hides series without a recent sample. They are taken out of the lists only while no scrape runs, since a
+    * scrape walks the lists by position between chunks; anything added meanwhile goes to the end.
+    */
+   private void removeStale() {
+      for (Family family : familyList) {
+         boolean compact = false;
+         for (Series series : family.series) {
+            if (cycle - series.lastCycle > staleCycles) {
+               series.visible = false;
+               compact = true;
+            }
+         }
+         if (compact && scrapesRunning == 0) {
+            final Iterator<Series> series = family.index.values().iterator();
+            while (series.hasNext()) {
+               if (cycle - series.next().lastCycle > staleCycles) {
+                  series.remove();
+                  seriesCount--;
+               }
+            }
+            family.series.clear();
+            family.series.addAll(family.index.values());
+         }
+      }
+   }
+
+   /**
+    * @return number of series currently held, exported or waiting for their first cycle to complete
+    */
+   public int size() {
+      synchronized (lock) {
+         return seriesCount;
+      }
+   }
+
+   /**
+    * @return updates of series that were not exported because there were already <code>maxSeries</code>
+    */
+   public long getDroppedUpdates() {
+      synchronized (lock) {
+         return droppedUpdates;
+      }
+   }
+
+   private void scrape(final HttpExchange exchange) throws IOException {
+      try {
+         if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+         }
+         final String accept = exchange.getRequestHeaders().getFirst("Accept");
+         final boolean openMetrics = accept != null && accept.contains("application/openmetrics-text");
+         exchange.getResponseHeaders().set("Content-Type", openMetrics ? CONTENT_TYPE_OPENMETRICS : CONTENT_TYPE_TEXT);
+         if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            return;
+         }
+         // length 0 means chunked, the body is written as it is produced
+         exchange.sendResponseHeaders(200, 0);
+         final Writer out = new BufferedWriter(
+               new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192);
+         write(out, openMetrics);
+         out.flush();
+      } finally {
+         exchange.close();
+      }
+   }
+
+   /**
+    * writes every exported series and the exporter's own metrics
+    *
+    * @param out         where to write, it is not flushed or closed
+    * @param openMetrics true for OpenMetrics, false for the Prometheus text format
+    * @throws IOException if writing fails
+    */
+   public void write(final Writer out, final boolean openMetrics) throws IOException {
+      final long start = System.nanoTime();
+      synchronized (scrapeLock) {
+         synchronized (lock) {
+            scrapesRunning++;
+         }
+         try {
+            int families;
+            synchronized (lock) {
+               families = familyList.size();
+            }
+            for (int f = 0; f < families; f++) {
+               final Family family;
+               synchronized (lock) {
+                  family = familyList.get(f);
+               }
+               writeFamily(out, family, openMetrics);
+            }
+         } finally {
+            synchronized (lock) {
+               scrapesRunning--;
+            }
+         }
+         writeOwnMetrics(out, openMetrics);
+         if (openMetrics) {
+            out.write("# EOF\n");
+         }
+         synchronized (lock) {
+            scrapes++;
+            lastScrapeSeconds = (System.nanoTime() - start) / 1e9;
+         }
+      }
+   }
+
+   private void writeFamily(final Writer out, final Family family, final boolean openMetrics) throws IOException {
+      boolean header = false;
+      int position = 0;
+      while (true) {
+         int n = 0;
+         synchronized (lock) {
+            final List<Series> list = family.series;
+            for (; position < list.size() && n < CHUNK; position++) {
+               final Series series = list.get(position);
+               if (series.visible) {
+                  chunkSeries[n] = series;
+                  chunkValues[n] = series.value;
+                  chunkTimes[n] = series.time;
+                  n++;
+               }
+            }
+         }
+         if (n == 0) {
+            break;
+         }
+         if (!header) {
+            out.write("# HELP ");
+            out.write(family.name);
+            out.write(' ');
+            // OpenMetrics escapes quotes in help texts too
+            out.write(openMetrics ? family.help.replace("\"", "\\\"") : family.help);
+            out.write("\n# TYPE ");
+            out.write(family.name);
+            out.write(" gauge\n");
+            header = true;
+         }
+         for (int i = 0; i < n; i++) {
+            out.write(family.name);
+            out.write(chunkSeries[i].labels);
+            out.write(' ');
+            out.write(Long.toString(chunkValues[i]));
+            out.write(' ');
+            writeTimestamp(out, chunkTimes[i], openMetrics);
+            out.write('\n');
+            chunkSeries[i] = null;
+         }
+      }
+   }
+
+   private void writeOwnMetrics(final Writer out, final boolean openMetrics) throws IOException {
+      final long cycles, queries, failedQueries, samples, overruns, droppedUpdates, scrapes, lastCycleMillis;
+      final long[] buckets = new long[CYCLE_BUCKETS.length];
+      final double cycleSecondsSum, lastScrapeSeconds;
+      final int seriesCount;
+      synchronized (lock) {
+         cycles = this.cycles;
+         queries = this.queries;
+         failedQueries = this.failedQueries;
+         samples = this.samples;
+         overruns = this.overruns;
+         droppedUpdates = this.droppedUpdates;
+         scrapes = this.scrapes;
+         lastCycleMillis = this.lastCycleMillis;
+         System.arraycopy(cycleBuckets, 0, buckets, 0, buckets.length);
+         cycleSecondsSum = this.cycleSecondsSum;
+         lastScrapeSeconds = this.lastScrapeSeconds;
+         seriesCount = this.seriesCount;
+      }
+      writeCounter(out, "vsphere_exporter_cycles", "Collection cycles completed.", cycles, openMetrics);
+      writeCounter(out, "vsphere_exporter_cycle_overruns", "Cycles that took longer than the sampling period.",
+            overruns, openMetrics);
+      writeCounter(out, "vsphere_exporter_queries", "queryPerf calls made.", queries, openMetrics);
+      writeCounter(out, "vsphere_exporter_failed_queries", "queryPerf calls that failed.", failedQueries, openMetrics);
+      writeCounter(out, "vsphere_exporter_samples", "Samples received.", samples, openMetrics);
+      writeCounter(out, "vsphere_exporter_dropped_updates",
+            "Updates of series not exported because of the series limit.", droppedUpdates, openMetrics);
+      writeCounter(out, "vsphere_exporter_scrapes", "Scrapes served before this one.", scrapes, openMetrics);
+
+      out.write("# HELP vsphere_exporter_cycle_duration_seconds Time taken by a collection cycle.\n");
+      out.write("# TYPE vsphere_exporter_cycle_duration_seconds histogram\n");
+      for (int i = 0; i < CYCLE_BUCKETS.length; i++) {
+         out.write("vsphere_exporter_cycle_duration_seconds_bucket{le=\"");
+         out.write(Double.toString(CYCLE_BUCKETS[i]));
+         out.write("\"} ");
+         out.write(Long.toString(buckets[i]));
+         out.write('\n');
+      }
+      out.write("vsphere_exporter_cycle_duration_seconds_bucket{le=\"+Inf\"} ");
+      out.write(Long.toString(cycles));
+      out.write("\nvsphere_exporter_cycle_duration_seconds_sum ");
+      out.write(Double.toString(cycleSecondsSum));
+      out.write("\nvsphere_exporter_cycle_duration_seconds_count ");
+      out.write(Long.toString(cycles));
+      out.write('\n');
+
+      writeGauge(out, "vsphere_exporter_last_cycle_timestamp_seconds", "When the last cycle completed.",
+            Double.toString(lastCycleMillis / 1000.0));
+      writeGauge(out, "vsphere_exporter_last_scrape_duration_seconds", "Time taken by the previous scrape.",
+            Double.toString(lastScrapeSeconds));
+      writeGauge(out, "vsphere_exporter_series", "Series held.", Integer.toString(seriesCount));
+   }
+
+   private static void writeCounter(final Writer out, final String name, final String help, final long value,
+                                    final boolean openMetrics) throws IOException {
+      // OpenMetrics names the family without the _total suffix of its sample
+      final String family = openMetrics ? name : name + "_total";
+      out.write("# HELP ");
+      out.write(family);
+      out.write(' ');
+      out.write(help);
+      out.write("\n# TYPE ");
+      out.write(family);
+      out.write(" counter\n");
+      out.write(name);
+      out.write("_total ");
+      out.write(Long.toString(value));
+      out.write('\n');
+   }
+
+   private static void writeGauge(final Writer out, final String name, final String help, final String value)
+         throws IOException {
+      out.write("# HELP ");
+      out.write(name);
+      out.write(' ');
+      out.write(help);
+      out.write("\n# TYPE ");
+      out.write(name);
+      out.write(" gauge\n");
+      out.write(name);
+      out.write(' ');
+      out.write(value);
+      out.write('\n');
+   }
+
+   /**
+    * Prometheus text takes milliseconds, OpenMetrics seconds
+    */
+   private static void writeTimestamp(final Writer out, final long millis, final boolean openMetrics)
+         throws IOException {
+      if (!openMetrics) {
+         out.write(Long.toString(millis));
+         return;
+      }
+      out.write(Long.toString(millis / 1000));
+      final long fraction = millis % 1000;
+      if (fraction != 0) {
+         out.write('.');
+         out.write(Long.toString(1000 + fraction).substring(1));
+      }
+   }
+
+   private static String labels(final ManagedObjectReference entity, final String instance) {
+      final StringBuilder builder = new StringBuilder(64);
+      builder.append("{type=\"");
+      escape(builder, entity.getType());
+      builder.append("\",entity=\"");
+      escape(builder, entity.getValue());
+      builder.append("\",counter_instance=\"");
+      escape(builder, instance);
+      return builder.append("\"}").toString();
+   }
+
+   private static void escape(final StringBuilder builder, final String value) {
+      if (value == null) {
+         return;
+      }
+      for (int i = 0; i < value.length(); i++) {
+         final char c = value.charAt(i);
+         if (c == '\\' || c == '"') {
+            builder.append('\\').append(c);
+         } else if (c == '\n') {
+            builder.append("\\n");
+         } else {
+            builder.append(c);
+         }
+      }
+   }
+
+   /**
+    * @param counterName a dotted counter name, e.g. cpu.usage.average
+    * @return the metric name for it, e.g. vsphere_cpu_usage_average
+    */
+   static String metricName(final String counterName) {
+      final StringBuilder builder = new StringBuilder("vsphere_");
+      for (int i = 0; i < counterName.length(); i++) {
+         final char c = counterName.charAt(i);
+         builder.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+      }
+      return builder.toString();
+   }
+
+   /**
+    * one counter, its series in the order they were first seen
+    */
+   private static class Family {
+      final String name;
+      final String help;
+      final Map<String, Series> index = new LinkedHashMap<String, Series>();
+      final List<Series> series = new ArrayList<Series>();
+
+      Family(final int counterId, final PerfCounterInfo info) {
+         if (info == null) {
+            name = "vsphere_counter_" + counterId;
+            help = "Performance counter " + counterId + ".";
+         } else {
+            name = metricName(PerfCounterCatalog.name(info));
+            final String summary = info.getNameInfo() == null ? null : info.getNameInfo().getSummary();
+            final String unit = info.getUnitInfo() == null ? null : info.getUnitInfo().getKey();
+            final StringBuilder builder = new StringBuilder();
+            builder.append(summary == null || summary.isEmpty() ? PerfCounterCatalog.name(info) : summary);
+            if (unit != null) {
+               builder.append(" (").append(unit).append(')');
+            }
+            help = builder.toString().replace("\\", "\\\\").replace("\n", "\\n");
+         }
+      }
+   }
+
+   /**
+    * the exported sample of one (entity, counter, instance) and the one waiting for the end of the cycle
+    */
+   private static class Series {
+      final String labels;
+      long value;
+      long time;
+      boolean visible;
+      long lastCycle;
+      long pendingValue;
+      long pendingTime;
+      long pendingCycle = -1;
+
+      Series(final String labels, final long cycle) {
+         this.labels = labels;
+         this.lastCycle = cycle;
+      }
+   }
+}
@@ -0,0 +1,554 @@
+/*
+ * *****************************************************
+ * Copyright VMware, Inc. 2010-2012.  All Rights Reserved.
+ * *****************************************************
+ *
+ * DISCLAIMER. THIS PROGRAM IS PROVIDED TO YOU "AS IS" WITHOUT
+ * WARRANTIES OR CONDITIONS # OF ANY KIND, WHETHER ORAL OR WRITTEN,
+ * EXPRESS OR IMPLIED. THE AUTHOR SPECIFICALLY # DISCLAIMS ANY IMPLIED
+ * WARRANTIES OR CONDITIONS OF MERCHANTABILITY, SATISFACTORY # QUALITY,
+ * NON-INFRINGEMENT AND FITNESS FOR A PARTICULAR PURPOSE.
+ */
+
+package com.vmware.performance.collector;
+
+import com.vmware.connection.helpers.InventoryCache;
+import com.vmware.vim25.ManagedObjectReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the most recent samples of every (entity, counter, instance) series in memory, in a fixed amount of heap
+ * per series.
+ * <p/>
+ * Each series is a ring buffer sized for <code>timeseries.retention</code> seconds (default 86400, a day) of
+ * samples every <code>timeseries.period</code> seconds (default 20, the realtime period); once full, each new
+ * sample replaces the oldest. Timestamps are kept at second resolution as the change in the distance between
+ * consecutive samples, a short that is zero for every sample that arrives on schedule. Values are kept in an
+ * int array until a value does not fit, then in a long array. A day of realtime samples therefore costs about
+ * 26 KB per series, instead of roughly 200 KB as boxed longs in the JAXB lists, so 10,000 VMs with four
+ * counters each fit in about 1 GB.
+ * </p>
+ * The store is a {@link MetricSink}, so it can be fed by a {@link PerfCollector} directly. Negative values are
+ * the server's way of saying it has no value; they are kept but skipped by {@link #downsample} and {@link #top}.
+ * <pre>
+ *     TimeSeriesStore store = new TimeSeriesStore();
+ *     new PerfCollector(connection, store, metricIds).start();
+ *     ...
+ *     for (TimeSeriesStore.Ranked r : store.top(cpuUsage, "", 10)) ...
+ * </pre>
+ */
+public class TimeSeriesStore implements MetricSink {
+   public static final int DEFAULT_RETENTION = 86400;
+   public static final int DEFAULT_PERIOD = 20;
+
+   private final int capacity;
+   private final ConcurrentMap<Key, Series> series = new ConcurrentHashMap<Key, Series>();
+
+   /**
+    * a store sized by the <code>timeseries.retention</code> and <code>timeseries.period</code> system properties
+    */
+   public TimeSeriesStore() {
+      this(Integer.getInteger("timeseries.retention", DEFAULT_RETENTION),
+            Integer.getInteger("timeseries.period", DEFAULT_PERIOD));
+   }
+
+   /**
+    * @param retentionSeconds how far back each series reaches
+    * @param periodSeconds    expected seconds between two samples
+    */
+   public TimeSeriesStore(final int retentionSeconds, final int periodSeconds) {
+      if (retentionSeconds < periodSeconds || periodSeconds < 1) {
+         throw new IllegalArgumentException("retention must be at least one period of at least a second");
+      }
+      this.capacity = retentionSeconds / periodSeconds;
+   }
+
+   /**
+    * how {@link #downsample} combines the samples of a bucket
+    */
+   public enum Aggregation {
+      AVERAGE, MINIMUM, MAXIMUM, SUM, LATEST
+   }
+
+   @Override
+   public void publish(final ManagedObjectReference entity, final int counterId, final String instance,
+                       final long[] timestamps, final long[] values, final int count) {
+      final Series target = series(entity, counterId, instance);
+      synchronized (target) {
+         for (int i = 0; i < count; i++) {
+            target.append(timestamps[i] / 1000, values[i]);
+         }
+      }
+   }
+
+   /**
+    * adds one sample, samples not newer than the latest one of the series are ignored
+    *
+    * @param entity     the host or virtual machine
+    * @param counterId  the PerfCounterInfo key
+    * @param instance   the instance, empty for the aggregate
+    * @param timeMillis sample time in milliseconds since the epoch
+    * @param value      the sample value
+    */
+   public void append(final ManagedObjectReference entity, final int counterId, final String instance,
+                      final long timeMillis, final long value) {
+      final Series target = series(entity, counterId, instance);
+      synchronized (target) {
+         target.append(timeMillis / 1000, value);
+      }
+   }
+
+   private Series series(final ManagedObjectReference entity, final int counterId, final String instance) {
+      final Key key = new Key(InventoryCache.key(entity), counterId, instance);
+      Series target = series.get(key);
+      if (target == null) {
+         final Series created = new Series(entity, capacity);
+         target = series.putIfAbsent(key, created);
+         if (target == null) {
+            target = created;
+         }
+      }
+      return target;
+   }
+
+   private Series find(final ManagedObjectReference entity, final int counterId, final String instance) {
+      return series.get(new Key(InventoryCache.key(entity), counterId, instance));
+   }
+
+   /**
+    * @param entity     the host or virtual machine
+    * @param counterId  the PerfCounterInfo key
+    * @param instance   the instance, empty for the aggregate
+    * @param fromMillis start of the range, inclusive
+    * @param toMillis   end of the range, exclusive
+    * @return the samples in the range, oldest first, empty if the series is unknown
+    */
+   public Samples range(final ManagedObjectReference entity, final int counterId, final String instance,
+                        final long fromMillis, final long toMillis) {
+      final Series source = find(entity, counterId, instance);
+      if (source == null) {
+         return new Samples(0);
+      }
+      synchronized (source) {
+         return source.range(ceilSeconds(fromMillis), ceilSeconds(toMillis));
+      }
+   }
+
+   /**
+    * Combines the samples in a range into fixed size buckets, e.g. 15 one minute averages of realtime data.
+    * Buckets without any value are left out.
+    *
+    * @param entity       the host or virtual machine
+    * @param counterId    the PerfCounterInfo key
+    * @param instance     the instance, empty for the aggregate
+    * @param fromMillis   start of the range, inclusive, buckets are aligned to it
+    * @param toMillis     end of the range, exclusive
+    * @param bucketMillis width of one bucket
+    * @param aggregation  how the values of a bucket are combined
+    * @return one sample per bucket, timestamped with the start of the bucket
+    */
+   public Samples downsample(final ManagedObjectReference entity, final int counterId, final String instance,
+                             final long fromMillis, final long toMillis, final long bucketMillis,
+                             final Aggregation aggregation) {
+      final long bucketSeconds = Math.max(1, bucketMillis / 1000);
+      final long from = ceilSeconds(fromMillis);
+      final Samples raw = range(entity, counterId, instance, fromMillis, toMillis);
+      final Samples buckets = new Samples((int) Math.min(raw.size(), (ceilSeconds(toMillis) - from) / bucketSeconds + 1));
+      long bucket = Long.MIN_VALUE;
+      long result = 0;
+      long sum = 0;
+      int n = 0;
+      for (int i = 0; i < raw.size(); i++) {
+         final long value = raw.values[i];
+         if (value < 0) {
+            continue;
+         }
+         final long start = from + (raw.timestamps[i] / 1000 - from) / bucketSeconds * bucketSeconds;
+         if (start != bucket) {
+            if (n > 0) {
+               buckets.add(bucket * 1000, aggregation == Aggregation.AVERAGE ? sum / n : result);
+            }
+            bucket = start;
+            result = value;
+            sum = 0;
+            n = 0;
+         }
+         switch (aggregation) {
+            case MINIMUM:
+               result = Math.min(result, value);
+               break;
+            case MAXIMUM:
+               result = Math.max(result, value);
+               break;
+            case LATEST:
+               result = value;
+               break;
+            default:
+               break;
+         }
+         sum += value;
+         n++;
+         if (aggregation == Aggregation.SUM) {
+            result = sum;
+         }
+      }
+      if (n > 0) {
+         buckets.add(bucket * 1000, aggregation == Aggregation.AVERAGE ? sum / n : result);
+      }
+      return buckets;
+   }
+
+   /**
+    * @param counterId the PerfCounterInfo key
+    * @param instance  the instance, empty for the aggregate
+    * @param n         how many to return
+    * @return the n entities with the highest latest value of the counter, highest first
+    */
+   public List<Ranked> top(final int counterId, final String instance, final int n) {
+      // a min heap of the best n so far, the weakest on top to be replaced
+      final PriorityQueue<Ranked> best = new PriorityQueue<Ranked>(Math.max(1, n),
+            (a, b) -> Long.compare(a.value, b.value));
+      for (Map.Entry<Key, Series> entry : series.entrySet()) {
+         final Key key = entry.getKey();
+         if (key.counterId != counterId || !key.instance.equals(instance)) {
+            continue;
+         }
+         final Series candidate = entry.getValue();
+         final long time;
+         final long value;
+         synchronized (candidate) {
+            if (candidate.size == 0) {
+               continue;
+            }
+            time = candidate.lastTime * 1000;
+            value = candidate.lastValue;
+         }
+         if (value < 0) {
+            continue;
+         }
+         if (best.size() < n) {
+            best.add(new Ranked(candidate.entity, time, value));
+         } else if (n > 0 && value > best.peek().value) {
+            best.poll();
+            best.add(new Ranked(candidate.entity, time, value));
+         }
+      }
+      final List<Ranked> ranked = new ArrayList<Ranked>(best);
+      Collections.sort(ranked, (a, b) -> Long.compare(b.value, a.value));
+      return ranked;
+   }
+
+   /**
+    * forgets every series of an entity, e.g. after it was deleted
+    *
+    * @param entity the host or virtual machine
+    * @return number of series removed
+    */
+   public int remove(final ManagedObjectReference entity) {
+      final String entityKey = InventoryCache.key(entity);
+      int removed = 0;
+      for (Key key : series.keySet()) {
+         if (key.entity.equals(entityKey) && series.remove(key) != null) {
+            removed++;
+         }
+      }
+      return removed;
+   }
+
+   public void clear() {
+      series.clear();
+   }
+
+   /**
+    * @return number of series
+    */
+   public int size() {
+      return series.size();
+   }
+
+   /**
+    * @return samples a series holds at most
+    */
+   public int getCapacity() {
+      return capacity;
+   }
+
+   /**
+    * @return samples currently held over all series
+    */
+   public long getSampleCount() {
+      long count = 0;
+      for (Series s : series.values()) {
+         synchronized (s) {
+            count += s.size;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * @return approximate heap taken by the sample arrays of all series, in bytes
+    */
+   public long getEstimatedBytes() {
+      long bytes = 0;
+      for (Series s : series.values()) {
+         synchronized (s) {
+            bytes += (long) capacity * (2 + (s.wideValues != null ? 8 : 4));
+         }
+      }
+      return bytes;
+   }
+
+   private static long ceilSeconds(final long millis) {
+      return (millis + 999) / 1000;
+   }
+
+   /**
+    * identifies a series, the entity is kept as "type:value" since ManagedObjectReference has no equals
+    */
+   private static final class Key {
+      final String entity;
+      final int counterId;
+      final String instance;
+      final int hash;
+
+      Key(final String entity, final int counterId, final String instance) {
+         this.entity = entity;
+         this.counterId = counterId;
+         this.instance = instance == null ? "" : instance;
+         this.hash = (entity.hashCode() * 31 + counterId) * 31 + this.instance.hashCode();
+      }
+
+      @Override
+      public boolean equals(final Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         final Key other = (Key) o;
+         return hash == other.hash && counterId == other.counterId
+               && entity.equals(other.entity) && instance.equals(other.instance);
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+   }
+
+   /**
+    * One series in a ring buffer. Slot i holds the value of a sample and its delta of delta: the distance to the
+    * previous sample minus the distance of the previous sample to the one before it, in seconds. The oldest
+    * sample's own time and distance are kept in headTime and headDelta, so decoding starts there. A delta of
+    * delta that does not fit in a short is stored as ESCAPE with the real value in escapes. Callers synchronize
+    * on the series.
+    */
+   private static final class Series {
+      private static final short ESCAPE = Short.MIN_VALUE;
+
+      final ManagedObjectReference entity;
+      private final int capacity;
+      private final short[] deltas;
+      private int[] values;
+      private long[] wideValues;
+      private Map<Integer, Long> escapes;
+      private int head;
+      int size;
+      private long headTime;
+      private long headDelta;
+      long lastTime;
+      private long lastDelta;
+      long lastValue;
+
+      Series(final ManagedObjectReference entity, final int capacity) {
+         this.entity = entity;
+         this.capacity = capacity;
+         this.deltas = new short[capacity];
+         this.values = new int[capacity];
+      }
+
+      void append(final long time, final long value) {
+         if (size > 0 && time <= lastTime) {
+            return;
+         }
+         if (size == capacity) {
+            evict();
+         }
+         final int slot = (head + size) % capacity;
+         if (size == 0) {
+            headTime = time;
+            headDelta = 0;
+            lastDelta = 0;
+            deltas[slot] = 0;
+         } else {
+            final long delta = time - lastTime;
+            final long deltaOfDelta = delta - lastDelta;
+            if (deltaOfDelta > Short.MAX_VALUE || deltaOfDelta <= ESCAPE) {
+               if (escapes == null) {
+                  escapes = new HashMap<Integer, Long>();
+               }
+               escapes.put(slot, deltaOfDelta);
+               deltas[slot] = ESCAPE;
+            } else {
+               deltas[slot] = (short) deltaOfDelta;
+            }
+            lastDelta = delta;
+         }
+         lastTime = time;
+         lastValue = value;
+         store(slot, value);
+         size++;
+      }
+
+      private void evict() {
+         final int next = (head + 1) % capacity;
+         if (size > 1) {
+            headDelta += deltaOfDelta(next);
+            headTime += headDelta;
+         }
+         if (deltas[head] == ESCAPE) {
+            escapes.remove(head);
+         }
+         head = next;
+         size--;
+      }
+
+      private long deltaOfDelta(final int slot) {
+         return deltas[slot] == ESCAPE ? escapes.get(slot) : deltas[slot];
+      }
+
+      private void store(final int slot, final long value) {
+         if (wideValues == null && (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)) {
+            wideValues = new long[capacity];
+            for (int i = 0; i < capacity; i++) {
+               wideValues[i] = values[i];
+            }
+            values = null;
+         }
+         if (wideValues != null) {
+            wideValues[slot] = value;
+         } else {
+            values[slot] = (int) value;
+         }
+      }
+
+      private long value(final int slot) {
+         return wideValues != null ? wideValues[slot] : values[slot];
+      }
+
+      /**
+       * decodes from the oldest sample, there is no way to start in the middle
+       */
+      Samples range(final long from, final long to) {
+         final Samples result = new Samples(Math.min(size, 64));
+         long time = headTime;
+         long delta = headDelta;
+         for (int i = 0; i < size; i++) {
+            final int slot = (head + i) % capacity;
+            if (i > 0) {
+               delta += deltaOfDelta(slot);
+               time += delta;
+            }
+            if (time >= to) {
+               break;
+            }
+            if (time >= from) {
+               result.add(time * 1000, value(slot));
+            }
+         }
+         return result;
+      }
+   }
+
+   /**
+    * samples copied out of a series, oldest first
+    */
+   public static class Samples {
+      private long[] timestamps;
+      private long[] values;
+      private int size;
+
+      Samples(final int initialCapacity) {
+         timestamps = new long[Math.max(initialCapacity, 1)];
+         values = new long[timestamps.length];
+      }
+
+      void add(final long time, final long value) {
+         if (size == timestamps.length) {
+            final int grown = size * 2;
+            final long[] t = new long[grown];
+            final long[] v = new long[grown];
+            System.arraycopy(timestamps, 0, t, 0, size);
+            System.arraycopy(values, 0, v, 0, size);
+            timestamps = t;
+            values = v;
+         }
+         timestamps[size] = time;
+         values[size] = value;
+         size++;
+      }
+
+      public int size() {
+         return size;
+      }
+
+      /**
+       * @param i index, 0 is the oldest
+       * @return sample time in milliseconds since the epoch
+       */
+      public long getTime(final int i) {
+         if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+         }
+         return timestamps[i];
+      }
+
+      /**
+       * @param i index, 0 is the oldest
+       * @return the sample value
+       */
+      public long getValue(final int i) {
+         if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+         }
+         return values[i];
+      }
+   }
+
+   /**
+    * an entity and the latest value of the counter it was ranked by
+    */
+   public static class Ranked {
+      private final ManagedObjectReference entity;
+      private final long time;
+      private final long value;
+
+      Ranked(final ManagedObjectReference entity, final long time, final long value) {
+         this.entity = entity;
+         this.time = time;
+         this.value = value;
+      }
+
+      public ManagedObjectReference getEntity() {
+         return entity;
+      }
+
+      /**
+       * @return time of the value in milliseconds since the epoch
+       */
+      public long getTime() {
+         return time;
+      }
+
+      public long getValue() {
+         return value;
+      }
+   }
+}
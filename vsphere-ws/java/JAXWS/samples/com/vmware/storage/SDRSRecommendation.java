@@ -16,10 +16,10 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.PropertyDecoder;
+import com.vmware.connection.helpers.builders.TraversalSpecs;
 import com.vmware.vim25.*;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -89,30 +89,7 @@ public class SDRSRecommendation extends ConnectedVimServiceBase {
     * performance statistics.
     */
    SelectionSpec[] getStorageTraversalSpec() {
-      // create a traversal spec that start from root folder
-
-      SelectionSpec ssFolders = new SelectionSpec();
-      ssFolders.setName("visitFolders");
-
-      TraversalSpec datacenterSpec = new TraversalSpec();
-      datacenterSpec.setName("dcTodf");
-      datacenterSpec.setType("Datacenter");
-      datacenterSpec.setPath("datastoreFolder");
-      datacenterSpec.setSkip(Boolean.FALSE);
-      datacenterSpec.getSelectSet().add(ssFolders);
-
-      TraversalSpec visitFolder = new TraversalSpec();
-      visitFolder.setType("Folder");
-      visitFolder.setName("visitFolders");
-      visitFolder.setPath("childEntity");
-      visitFolder.setSkip(Boolean.FALSE);
-
-      List<SelectionSpec> ssSpecList = new ArrayList<SelectionSpec>();
-      ssSpecList.add(datacenterSpec);
-      ssSpecList.add(ssFolders);
-
-      visitFolder.getSelectSet().addAll(ssSpecList);
-      return (new SelectionSpec[]{visitFolder});
+      return new SelectionSpec[]{TraversalSpecs.datastoreInventory()};
    }
 
    /**
@@ -191,7 +168,7 @@ public class SDRSRecommendation extends ConnectedVimServiceBase {
     * @param mor Managed Object Reference to StoragePod.
     * @return retrieved object
     */
-   Object getDynamicProperty(ManagedObjectReference mor) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+   Object getDynamicProperty(ManagedObjectReference mor) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
       ObjectContent[] objContent =
             getObjectProperties(mor, new String[]{"podStorageDrsEntry"});
 
@@ -199,77 +176,20 @@ public class SDRSRecommendation extends ConnectedVimServiceBase {
       if (objContent != null) {
          List<DynamicProperty> listdp = objContent[0].getPropSet();
          if (listdp != null) {
-                /*
-                * Check the dynamic propery for ArrayOfXXX object
-                */
-            Object dynamicPropertyVal = listdp.get(0).getVal();
-            String dynamicPropertyName =
-                  dynamicPropertyVal.getClass().getName();
-            if (dynamicPropertyName.indexOf("ArrayOf") != -1) {
-               String methodName =
-                     dynamicPropertyName.substring(
-                           dynamicPropertyName.indexOf("ArrayOf")
-                                 + "ArrayOf".length(),
-                           dynamicPropertyName.length());
-                    /*
-                    * If object is ArrayOfXXX object, then get the xxx[] by invoking
-                    * getXXX() on the object. For Ex:
-                    * ArrayOfManagedObjectReference.getManagedObjectReference()
-                    * returns ManagedObjectReference[] array.
-                    */
-               if (methodExists(dynamicPropertyVal, "get" + methodName, null)) {
-                  methodName = "get" + methodName;
-               } else {
-                        /*
-                        * Construct methodName for ArrayOf primitive types Ex: For
-                        * ArrayOfInt, methodName is get_int
-                        */
-                  methodName = "get_" + methodName.toLowerCase();
-               }
-               Method getMorMethod =
-                     dynamicPropertyVal.getClass().getDeclaredMethod(
-                           methodName, (Class[]) null);
-               propertyValue =
-                     getMorMethod.invoke(dynamicPropertyVal, (Object[]) null);
-            } else if (dynamicPropertyVal.getClass().isArray()) {
-                    /*
-                    * Handle the case of an unwrapped array being deserialized.
-                    */
-               propertyValue = dynamicPropertyVal;
-            } else {
-               propertyValue = dynamicPropertyVal;
-            }
+            // ArrayOfXXX holders are unwrapped to their list by the shared decoder
+            propertyValue = PropertyDecoder.value(listdp.get(0));
          }
       }
       return propertyValue;
    }
 
-   /**
-    * Determines of a method 'methodName' exists for the Object 'obj'.
-    *
-    * @param obj            The Object to check
-    * @param methodName     The method name
-    * @param parameterTypes Array of Class objects for the parameter types
-    * @return true if the method exists, false otherwise
-    */
-   @SuppressWarnings("rawtypes")
-   boolean methodExists(Object obj, String methodName,
-                        Class[] parameterTypes) throws NoSuchMethodException {
-      boolean exists = false;
-      Method method = obj.getClass().getMethod(methodName, parameterTypes);
-      if (method != null) {
-         exists = true;
-      }
-      return exists;
-   }
-
    /**
     * Run the Storage DRS on a given SDRS cluster and show the list of
     * recommendations generated by SDRS.
     *
     * @throws Exception
     */
-   void storageRecommendation() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
+   void storageRecommendation() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
       ManagedObjectReference srmRef =
             serviceContent.getStorageResourceManager();
       ManagedObjectReference sdrsMor = getStoragePodByName(podName);
@@ -297,7 +217,7 @@ public class SDRSRecommendation extends ConnectedVimServiceBase {
    }
 
    @Action
-   public void run() throws RuntimeFaultFaultMsg, InvocationTargetException, InvalidPropertyFaultMsg, NoSuchMethodException, IllegalAccessException {
+   public void run() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
       propCollectorRef = serviceContent.getPropertyCollector();
       storageRecommendation();
    }
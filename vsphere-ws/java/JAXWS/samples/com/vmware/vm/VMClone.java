@@ -16,10 +16,9 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.PropertyDecoder;
 import com.vmware.vim25.*;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -106,7 +105,7 @@ public class VMClone extends ConnectedVimServiceBase {
       return retVal;
    }
 
-   void cloneVM() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, InvalidCollectorVersionFaultMsg, CustomizationFaultFaultMsg, TaskInProgressFaultMsg, VmConfigFaultFaultMsg, InsufficientResourcesFaultFaultMsg, InvalidDatastoreFaultMsg, FileFaultFaultMsg, MigrationFaultFaultMsg, InvalidStateFaultMsg, InvocationTargetException, NoSuchMethodException, IllegalAccessException {
+   void cloneVM() throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg, InvalidCollectorVersionFaultMsg, CustomizationFaultFaultMsg, TaskInProgressFaultMsg, VmConfigFaultFaultMsg, InsufficientResourcesFaultFaultMsg, InvalidDatastoreFaultMsg, FileFaultFaultMsg, MigrationFaultFaultMsg, InvalidStateFaultMsg {
       // Find the Datacenter reference by using findByInventoryPath().
       ManagedObjectReference datacenterRef =
             vimPort.findByInventoryPath(serviceContent.getSearchIndex(),
@@ -197,7 +196,7 @@ public class VMClone extends ConnectedVimServiceBase {
    }
 
    Object getDynamicProperty(ManagedObjectReference mor,
-                             String propertyName) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException, RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+                             String propertyName) throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
       ObjectContent[] objContent =
             getObjectProperties(mor, new String[]{propertyName});
 
@@ -205,47 +204,8 @@ public class VMClone extends ConnectedVimServiceBase {
       if (objContent != null) {
          List<DynamicProperty> listdp = objContent[0].getPropSet();
          if (listdp != null) {
-                /*
-                * Check the dynamic property for ArrayOfXXX object
-                */
-            Object dynamicPropertyVal = listdp.get(0).getVal();
-            String dynamicPropertyName =
-                  dynamicPropertyVal.getClass().getName();
-            if (dynamicPropertyName.indexOf("ArrayOf") != -1) {
-               String methodName =
-                     dynamicPropertyName.substring(
-                           dynamicPropertyName.indexOf("ArrayOf")
-                                 + "ArrayOf".length(),
-                           dynamicPropertyName.length());
-                    /*
-                    * If object is ArrayOfXXX object, then get the XXX[] by
-                    * invoking getXXX() on the object.
-                    * For Ex:
-                    * ArrayOfManagedObjectReference.getManagedObjectReference()
-                    * returns ManagedObjectReference[] array.
-                    */
-               if (methodExists(dynamicPropertyVal, "get" + methodName, null)) {
-                  methodName = "get" + methodName;
-               } else {
-                        /*
-                        * Construct methodName for ArrayOf primitive types
-                        * Ex: For ArrayOfInt, methodName is get_int
-                        */
-                  methodName = "get_" + methodName.toLowerCase();
-               }
-               Method getMorMethod =
-                     dynamicPropertyVal.getClass().getDeclaredMethod(
-                           methodName, (Class[]) null);
-               propertyValue =
-                     getMorMethod.invoke(dynamicPropertyVal, (Object[]) null);
-            } else if (dynamicPropertyVal.getClass().isArray()) {
-                    /*
-                    * Handle the case of an unwrapped array being deserialized.
-                    */
-               propertyValue = dynamicPropertyVal;
-            } else {
-               propertyValue = dynamicPropertyVal;
-            }
+            // ArrayOfXXX holders are unwrapped to their list by the shared decoder
+            propertyValue = PropertyDecoder.value(listdp.get(0));
          }
       }
       return propertyValue;
@@ -283,27 +243,8 @@ public class VMClone extends ConnectedVimServiceBase {
       return listobjcont.toArray(new ObjectContent[listobjcont.size()]);
    }
 
-   /**
-    * Determines of a method 'methodName' exists for the Object 'obj'.
-    *
-    * @param obj            The Object to check
-    * @param methodName     The method name
-    * @param parameterTypes Array of Class objects for the parameter types
-    * @return true if the method exists, false otherwise
-    */
-   @SuppressWarnings("rawtypes")
-   boolean methodExists(Object obj, String methodName,
-                        Class[] parameterTypes) throws NoSuchMethodException {
-      boolean exists = false;
-      Method method = obj.getClass().getMethod(methodName, parameterTypes);
-      if (method != null) {
-         exists = true;
-      }
-      return exists;
-   }
-
    @Action
-   public void run() throws RuntimeFaultFaultMsg, TaskInProgressFaultMsg, VmConfigFaultFaultMsg, InvalidDatastoreFaultMsg, FileFaultFaultMsg, NoSuchMethodException, MigrationFaultFaultMsg, InvalidStateFaultMsg, InvalidCollectorVersionFaultMsg, IllegalAccessException, CustomizationFaultFaultMsg, InsufficientResourcesFaultFaultMsg, InvocationTargetException, InvalidPropertyFaultMsg {
+   public void run() throws RuntimeFaultFaultMsg, TaskInProgressFaultMsg, VmConfigFaultFaultMsg, InvalidDatastoreFaultMsg, FileFaultFaultMsg, MigrationFaultFaultMsg, InvalidStateFaultMsg, InvalidCollectorVersionFaultMsg, CustomizationFaultFaultMsg, InsufficientResourcesFaultFaultMsg, InvalidPropertyFaultMsg {
       propCollectorRef = serviceContent.getPropertyCollector();
       cloneVM();
    }
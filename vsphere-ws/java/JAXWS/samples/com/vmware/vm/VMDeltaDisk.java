@@ -16,6 +16,7 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.builders.TraversalSpecs;
 import com.vmware.vim25.*;
 
 import java.util.ArrayList;
@@ -331,49 +332,7 @@ public class VMDeltaDisk extends ConnectedVimServiceBase {
     * @return the VM TraversalSpec
     */
    TraversalSpec getVMTraversalSpec() {
-      TraversalSpec vAppToVM = new TraversalSpec();
-      vAppToVM.setName("vAppToVM");
-      vAppToVM.setType("VirtualApp");
-      vAppToVM.setPath("vm");
-
-      TraversalSpec vAppToVApp = new TraversalSpec();
-      vAppToVApp.setName("vAppToVApp");
-      vAppToVApp.setType("VirtualApp");
-      vAppToVApp.setPath("resourcePool");
-
-      SelectionSpec vAppRecursion = new SelectionSpec();
-      vAppRecursion.setName("vAppToVApp");
-
-      SelectionSpec vmInVApp = new SelectionSpec();
-      vmInVApp.setName("vAppToVM");
-
-      List<SelectionSpec> vAppToVMSS = new ArrayList<SelectionSpec>();
-      vAppToVMSS.add(vAppRecursion);
-      vAppToVMSS.add(vmInVApp);
-      vAppToVApp.getSelectSet().addAll(vAppToVMSS);
-
-      SelectionSpec sSpec = new SelectionSpec();
-      sSpec.setName("VisitFolders");
-
-      TraversalSpec dataCenterToVMFolder = new TraversalSpec();
-      dataCenterToVMFolder.setName("DataCenterToVMFolder");
-      dataCenterToVMFolder.setType("Datacenter");
-      dataCenterToVMFolder.setPath("vmFolder");
-      dataCenterToVMFolder.setSkip(false);
-      dataCenterToVMFolder.getSelectSet().add(sSpec);
-
-      TraversalSpec traversalSpec = new TraversalSpec();
-      traversalSpec.setName("VisitFolders");
-      traversalSpec.setType("Folder");
-      traversalSpec.setPath("childEntity");
-      traversalSpec.setSkip(false);
-      List<SelectionSpec> sSpecArr = new ArrayList<SelectionSpec>();
-      sSpecArr.add(sSpec);
-      sSpecArr.add(dataCenterToVMFolder);
-      sSpecArr.add(vAppToVM);
-      sSpecArr.add(vAppToVApp);
-      traversalSpec.getSelectSet().addAll(sSpecArr);
-      return traversalSpec;
+      return TraversalSpecs.vmInventory();
    }
 
    /**
@@ -16,6 +16,8 @@ import com.vmware.common.annotations.Action;
 import com.vmware.common.annotations.Option;
 import com.vmware.common.annotations.Sample;
 import com.vmware.connection.ConnectedVimServiceBase;
+import com.vmware.connection.helpers.builders.SelectionSpecBuilder;
+import com.vmware.connection.helpers.builders.TraversalSpecs;
 import com.vmware.vim25.*;
 
 import java.util.*;
@@ -154,120 +156,14 @@ public class VMotion extends ConnectedVimServiceBase {
    * Cluster Compute Resource and Datastore.
    */
    List<SelectionSpec> buildFullTraversal() {
-      // Terminal traversal specs
-
-      // RP -> VM
-      TraversalSpec rpToVm = new TraversalSpec();
-      rpToVm.setName("rpToVm");
-      rpToVm.setType("ResourcePool");
-      rpToVm.setPath("vm");
-      rpToVm.setSkip(Boolean.FALSE);
-
-      // vApp -> VM
-      TraversalSpec vAppToVM = new TraversalSpec();
-      vAppToVM.setName("vAppToVM");
-      vAppToVM.setType("VirtualApp");
-      vAppToVM.setPath("vm");
-
-      // HostSystem -> VM
-      TraversalSpec hToVm = new TraversalSpec();
-      hToVm.setType("HostSystem");
-      hToVm.setPath("vm");
-      hToVm.setName("hToVm");
-      hToVm.getSelectSet().add(getSelectionSpec("visitFolders"));
-      hToVm.setSkip(Boolean.FALSE);
-
-      // DC -> DS
-      TraversalSpec dcToDs = new TraversalSpec();
-      dcToDs.setType("Datacenter");
-      dcToDs.setPath("datastore");
-      dcToDs.setName("dcToDs");
-      dcToDs.setSkip(Boolean.FALSE);
-
-      // Recurse through all ResourcePools
-      TraversalSpec rpToRp = new TraversalSpec();
-      rpToRp.setType("ResourcePool");
-      rpToRp.setPath("resourcePool");
-      rpToRp.setSkip(Boolean.FALSE);
-      rpToRp.setName("rpToRp");
-      rpToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-      rpToRp.getSelectSet().add(getSelectionSpec("rpToVm"));
-
-      TraversalSpec crToRp = new TraversalSpec();
-      crToRp.setType("ComputeResource");
-      crToRp.setPath("resourcePool");
-      crToRp.setSkip(Boolean.FALSE);
-      crToRp.setName("crToRp");
-      crToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-      crToRp.getSelectSet().add(getSelectionSpec("rpToVm"));
-
-      TraversalSpec crToH = new TraversalSpec();
-      crToH.setSkip(Boolean.FALSE);
-      crToH.setType("ComputeResource");
-      crToH.setPath("host");
-      crToH.setName("crToH");
-
-      TraversalSpec dcToHf = new TraversalSpec();
-      dcToHf.setSkip(Boolean.FALSE);
-      dcToHf.setType("Datacenter");
-      dcToHf.setPath("hostFolder");
-      dcToHf.setName("dcToHf");
-      dcToHf.getSelectSet().add(getSelectionSpec("visitFolders"));
-
-      TraversalSpec vAppToRp = new TraversalSpec();
-      vAppToRp.setName("vAppToRp");
-      vAppToRp.setType("VirtualApp");
-      vAppToRp.setPath("resourcePool");
-      vAppToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-
-      TraversalSpec dcToVmf = new TraversalSpec();
-      dcToVmf.setType("Datacenter");
-      dcToVmf.setSkip(Boolean.FALSE);
-      dcToVmf.setPath("vmFolder");
-      dcToVmf.setName("dcToVmf");
-      dcToVmf.getSelectSet().add(getSelectionSpec("visitFolders"));
-
-      // For Folder -> Folder recursion
-      TraversalSpec visitFolders = new TraversalSpec();
-      visitFolders.setType("Folder");
-      visitFolders.setPath("childEntity");
-      visitFolders.setSkip(Boolean.FALSE);
-      visitFolders.setName("visitFolders");
-      List<SelectionSpec> sspecarrvf = new ArrayList<SelectionSpec>();
-      sspecarrvf.add(getSelectionSpec("visitFolders"));
-      sspecarrvf.add(getSelectionSpec("dcToVmf"));
-      sspecarrvf.add(getSelectionSpec("dcToHf"));
-      sspecarrvf.add(getSelectionSpec("dcToDs"));
-      sspecarrvf.add(getSelectionSpec("crToRp"));
-      sspecarrvf.add(getSelectionSpec("crToH"));
-      sspecarrvf.add(getSelectionSpec("hToVm"));
-      sspecarrvf.add(getSelectionSpec("rpToVm"));
-      sspecarrvf.add(getSelectionSpec("rpToRp"));
-      sspecarrvf.add(getSelectionSpec("vAppToRp"));
-      sspecarrvf.add(getSelectionSpec("vAppToVM"));
-
-      visitFolders.getSelectSet().addAll(sspecarrvf);
-
-      List<SelectionSpec> resultspec = new ArrayList<SelectionSpec>();
-      resultspec.add(visitFolders);
-      resultspec.add(dcToVmf);
-      resultspec.add(dcToHf);
-      resultspec.add(dcToDs);
-      resultspec.add(crToRp);
-      resultspec.add(crToH);
-      resultspec.add(hToVm);
-      resultspec.add(rpToVm);
-      resultspec.add(vAppToRp);
-      resultspec.add(vAppToVM);
-      resultspec.add(rpToRp);
-
-      return resultspec;
-   }
-
-   SelectionSpec getSelectionSpec(String name) {
-      SelectionSpec genericSpec = new SelectionSpec();
-      genericSpec.setName(name);
-      return genericSpec;
+      // see TraversalSpecs for the graph, this sample also reaches the VMs of nested resource pools
+      List<SelectionSpec> graph = TraversalSpecs.fullInventory();
+      for (SelectionSpec spec : graph) {
+         if ("rpToRp".equals(spec.getName()) || "crToRp".equals(spec.getName())) {
+            ((TraversalSpec) spec).getSelectSet().add(new SelectionSpecBuilder().name("rpToVm"));
+         }
+      }
+      return graph;
    }
 
    List<DynamicProperty> getDynamicProarray(